@@ -0,0 +1,300 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.api.filter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.glassfish.jersey.server.ChunkedOutput;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Compresses response entities with gzip or deflate when the client's Accept-Encoding allows it.
+ *
+ * The response filter half negotiates the encoding from the request headers; the interceptor half
+ * buffers the first {@code compression.response.minSize} bytes of the entity and only switches to
+ * compression (setting Content-Encoding) if the entity turns out to be larger than that. Entities
+ * whose media type is already compressed (images, audio, video, archives) are passed through, as
+ * are chunked outputs such as event streams, whose chunks must reach the client as written, and
+ * any response that advertises byte ranges (Accept-Ranges), whether whole or partial. A client
+ * resuming such a download with Range and If-Range counts bytes of the stored file under the same
+ * ETag, so the whole-file response must carry those same bytes.
+ */
+@Component
+@Priority(Priorities.ENTITY_CODER)
+public class CompressionWriterInterceptor implements ContainerResponseFilter, WriterInterceptor {
+
+  private static final String GZIP = "gzip";
+  private static final String X_GZIP = "x-gzip";
+  private static final String DEFLATE = "deflate";
+  private static final String ACCEPT_RANGES = "Accept-Ranges";
+  private static final String ENCODING_PROPERTY =
+      CompressionWriterInterceptor.class.getName() + ".encoding";
+
+  private static final String[] COMPRESSED_TYPE_PREFIXES = {"image/", "audio/", "video/"};
+  private static final String[] COMPRESSED_TYPES = {"application/zip", "application/gzip",
+      "application/x-gzip", "application/x-compress", "application/x-bzip2",
+      "application/x-7z-compressed", "application/x-rar-compressed", "application/java-archive"};
+
+  private static final int MAX_IDLE_DEFLATERS = 32;
+
+  private final DeflaterPool gzipDeflaters =
+      new DeflaterPool(Deflater.DEFAULT_COMPRESSION, true, MAX_IDLE_DEFLATERS);
+  private final DeflaterPool zlibDeflaters =
+      new DeflaterPool(Deflater.DEFAULT_COMPRESSION, false, MAX_IDLE_DEFLATERS);
+
+  @Value("${compression.response.minSize:1024}")
+  private int minSize = 1024;
+
+  @Override
+  public void filter(ContainerRequestContext requestContext,
+      ContainerResponseContext responseContext) throws IOException {
+    if (!responseContext.hasEntity()
+        || responseContext.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)
+        || responseContext.getEntity() instanceof ChunkedOutput
+        || responseContext.getStatus() == Status.PARTIAL_CONTENT.getStatusCode()
+        || responseContext.getHeaders().containsKey(ACCEPT_RANGES)
+        || isCompressedType(responseContext.getMediaType())) {
+      return;
+    }
+    responseContext.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    String encoding =
+        negotiateEncoding(requestContext.getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+    if (encoding != null) {
+      requestContext.setProperty(ENCODING_PROPERTY, encoding);
+    }
+  }
+
+  @Override
+  public void aroundWriteTo(WriterInterceptorContext context)
+      throws IOException, WebApplicationException {
+    Object encoding = context.getProperty(ENCODING_PROPERTY);
+    if (encoding == null || context.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)) {
+      context.proceed();
+      return;
+    }
+    ThresholdCompressingOutputStream stream = new ThresholdCompressingOutputStream(
+        context.getOutputStream(), context.getHeaders(), (String) encoding);
+    context.setOutputStream(stream);
+    try {
+      context.proceed();
+    } finally {
+      // writers normally close the stream themselves; this is a no-op if they did
+      stream.close();
+    }
+  }
+
+  /**
+   * Pick gzip or deflate from an Accept-Encoding header, honouring q-values. Ties go to gzip.
+   *
+   * @param acceptEncoding the header value (may be null)
+   * @return the encoding to use, or null if the response should not be compressed
+   */
+  static String negotiateEncoding(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    float gzipQ = -1f;
+    float deflateQ = -1f;
+    float anyQ = -1f;
+    for (String part : acceptEncoding.split(",")) {
+      String[] params = part.trim().split(";");
+      String coding = params[0].trim().toLowerCase();
+      float q = 1f;
+      for (int i = 1; i < params.length; ++i) {
+        String param = params[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            q = Float.parseFloat(param.substring(2).trim());
+          } catch (NumberFormatException e) {
+            q = 0f;
+          }
+        }
+      }
+      if (coding.equals(GZIP) || coding.equals(X_GZIP)) {
+        gzipQ = Math.max(gzipQ, q);
+      } else if (coding.equals(DEFLATE)) {
+        deflateQ = Math.max(deflateQ, q);
+      } else if (coding.equals("*")) {
+        anyQ = q;
+      }
+    }
+    if (gzipQ < 0f) {
+      gzipQ = anyQ;
+    }
+    if (deflateQ < 0f) {
+      deflateQ = anyQ;
+    }
+    if (gzipQ <= 0f && deflateQ <= 0f) {
+      return null;
+    }
+    return (gzipQ >= deflateQ) ? GZIP : DEFLATE;
+  }
+
+  static boolean isCompressedType(MediaType mediaType) {
+    if (mediaType == null) {
+      return false;
+    }
+    String type = (mediaType.getType() + "/" + mediaType.getSubtype()).toLowerCase();
+    for (String prefix : COMPRESSED_TYPE_PREFIXES) {
+      // svg is text
+      if (type.startsWith(prefix) && !type.endsWith("+xml")) {
+        return true;
+      }
+    }
+    for (String compressed : COMPRESSED_TYPES) {
+      if (type.equals(compressed)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Holds back the first minSize bytes. If the entity ends within them it is written uncompressed;
+   * otherwise Content-Encoding is set (the headers are not committed until the first byte reaches
+   * the underlying stream) and everything is compressed.
+   */
+  private class ThresholdCompressingOutputStream extends OutputStream {
+    private final OutputStream target;
+    private final MultivaluedMap<String, Object> headers;
+    private final String encoding;
+    private final byte[] buffer;
+    private int count = 0;
+    private DeflaterOutputStream compressor = null;
+    private Deflater deflater = null;
+    private boolean closed = false;
+
+    ThresholdCompressingOutputStream(OutputStream target, MultivaluedMap<String, Object> headers,
+        String encoding) {
+      this.target = target;
+      this.headers = headers;
+      this.encoding = encoding;
+      this.buffer = new byte[Math.max(minSize, 0)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (compressor == null && count + len <= buffer.length) {
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+        return;
+      }
+      if (compressor == null) {
+        startCompression();
+      }
+      compressor.write(b, off, len);
+    }
+
+    private void startCompression() throws IOException {
+      headers.putSingle(HttpHeaders.CONTENT_ENCODING, encoding);
+      headers.remove(HttpHeaders.CONTENT_LENGTH);
+      if (GZIP.equals(encoding)) {
+        deflater = gzipDeflaters.borrow();
+        compressor = new GzipOutputStream(target, deflater);
+      } else {
+        deflater = zlibDeflaters.borrow();
+        compressor = new DeflaterOutputStream(target, deflater, 8192);
+      }
+      compressor.write(buffer, 0, count);
+      count = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      // below the threshold nothing is written yet, so there is nothing to flush
+      if (compressor != null) {
+        compressor.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        if (compressor == null) {
+          target.write(buffer, 0, count);
+        } else {
+          compressor.finish();
+        }
+      } finally {
+        if (deflater != null) {
+          (GZIP.equals(encoding) ? gzipDeflaters : zlibDeflaters).release(deflater);
+          deflater = null;
+        }
+        target.close();
+      }
+    }
+  }
+
+  /**
+   * gzip framing around a caller-supplied (pooled) raw Deflater; {@link java.util.zip.GZIPOutputStream}
+   * always allocates its own.
+   */
+  private static class GzipOutputStream extends DeflaterOutputStream {
+    private static final byte[] HEADER =
+        {(byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final CRC32 crc = new CRC32();
+
+    GzipOutputStream(OutputStream out, Deflater deflater) throws IOException {
+      super(out, deflater, 8192);
+      out.write(HEADER);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      super.write(b, off, len);
+      crc.update(b, off, len);
+    }
+
+    @Override
+    public void finish() throws IOException {
+      if (!def.finished()) {
+        super.finish();
+        writeInt((int) crc.getValue());
+        writeInt((int) def.getBytesRead());
+      }
+    }
+
+    private void writeInt(int i) throws IOException {
+      out.write(i & 0xff);
+      out.write((i >> 8) & 0xff);
+      out.write((i >> 16) & 0xff);
+      out.write((i >> 24) & 0xff);
+    }
+  }
+}
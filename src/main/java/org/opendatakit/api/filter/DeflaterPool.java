@@ -0,0 +1,52 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.api.filter;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Bounded pool of {@link Deflater} instances. Each Deflater holds native zlib state, so reusing
+ * them avoids a native allocation (and a finalizer) per compressed response.
+ */
+public class DeflaterPool {
+
+  private final int level;
+  private final boolean nowrap;
+  private final BlockingQueue<Deflater> idle;
+
+  /**
+   * @param level the compression level
+   * @param nowrap true for raw deflate data (as wrapped by gzip), false for the zlib format
+   * @param maxIdle the maximum number of Deflaters kept for reuse
+   */
+  public DeflaterPool(int level, boolean nowrap, int maxIdle) {
+    this.level = level;
+    this.nowrap = nowrap;
+    this.idle = new ArrayBlockingQueue<Deflater>(maxIdle);
+  }
+
+  public Deflater borrow() {
+    Deflater deflater = idle.poll();
+    if (deflater == null) {
+      deflater = new Deflater(level, nowrap);
+    }
+    return deflater;
+  }
+
+  public void release(Deflater deflater) {
+    deflater.reset();
+    if (!idle.offer(deflater)) {
+      deflater.end();
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.api.odktables;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.datamodel.BinaryContentManipulator.BlobStreamer;
+import org.opendatakit.odktables.util.ServiceUtils;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+
+/**
+ * Response entity that writes a stored blob part by part, so that a download uses constant heap
+ * and starts sending as soon as the first part has been fetched.
+ *
+ * The status and headers have been sent by the time a part fails to load, so a failure aborts the
+ * response; the client sees fewer bytes than the Content-Length.
+ */
+public class BlobStreamingOutput implements StreamingOutput {
+
+  public static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+  public static final String HEADER_CONTENT_RANGE = "Content-Range";
+  public static final String HEADER_RANGE = "Range";
+
+  private static final String BYTES_UNIT = "bytes";
+
+  private final BlobStreamer blobStreamer;
+  private final long offset;
+  private final long length;
+  private final CallingContext cc;
+
+  public BlobStreamingOutput(BlobStreamer blobStreamer, CallingContext cc) {
+    this(blobStreamer, 0L, blobStreamer.getContentLength(), cc);
+  }
+
+  public BlobStreamingOutput(BlobStreamer blobStreamer, long offset, long length,
+      CallingContext cc) {
+    this.blobStreamer = blobStreamer;
+    this.offset = offset;
+    this.length = length;
+    this.cc = cc;
+  }
+
+  @Override
+  public void write(OutputStream output) throws IOException, WebApplicationException {
+    try {
+      blobStreamer.writeTo(output, offset, length, cc);
+    } catch (ODKDatastoreException e) {
+      throw new IOException("Unable to read the file content", e);
+    }
+  }
+
+  /**
+   * Start the response for a GET of a stored file, honouring a single-range Range header (and
+   * If-Range, validated against eTag). The result is 200 (OK) with the whole file, 206 (Partial
+   * Content) with the requested range, or 416 (Requested Range Not Satisfiable). Requests for
+   * several ranges are answered with the whole file.
+   *
+   * @param httpHeaders
+   * @param blobStreamer
+   * @param eTag
+   *          the content hash of the file
+   * @param cc
+   * @return the builder, with the entity, ETag and range headers set
+   */
+  public static ResponseBuilder responseFor(HttpHeaders httpHeaders, BlobStreamer blobStreamer,
+      String eTag, CallingContext cc) {
+    long contentLength = blobStreamer.getContentLength();
+    String range = httpHeaders.getHeaderString(HEADER_RANGE);
+    if (range != null && ServiceUtils.matchesIfRange(httpHeaders, eTag)) {
+      long[] firstLast = parseRange(range, contentLength);
+      if (firstLast != null && firstLast.length == 0) {
+        return Response.status(Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+            .header(HEADER_CONTENT_RANGE, BYTES_UNIT + " */" + contentLength)
+            .header(HEADER_ACCEPT_RANGES, BYTES_UNIT).header(HttpHeaders.ETAG, eTag);
+      }
+      if (firstLast != null) {
+        long first = firstLast[0];
+        long last = firstLast[1];
+        return Response.status(Status.PARTIAL_CONTENT)
+            .entity(new BlobStreamingOutput(blobStreamer, first, last - first + 1L, cc))
+            .header(HEADER_CONTENT_RANGE,
+                BYTES_UNIT + " " + first + "-" + last + "/" + contentLength)
+            .header(HttpHeaders.CONTENT_LENGTH, last - first + 1L)
+            .header(HEADER_ACCEPT_RANGES, BYTES_UNIT).header(HttpHeaders.ETAG, eTag);
+      }
+    }
+    return Response.ok(new BlobStreamingOutput(blobStreamer, cc))
+        .header(HttpHeaders.CONTENT_LENGTH, contentLength)
+        .header(HEADER_ACCEPT_RANGES, BYTES_UNIT).header(HttpHeaders.ETAG, eTag);
+  }
+
+  /**
+   * @param range
+   *          the Range header, e.g., bytes=0-499, bytes=500- or bytes=-500
+   * @param contentLength
+   * @return the first and last (inclusive) byte positions; an empty array if the range cannot be
+   *         satisfied; null if the header should be ignored (malformed, another unit, or several
+   *         ranges)
+   */
+  static long[] parseRange(String range, long contentLength) {
+    String spec = range.trim();
+    if (!spec.toLowerCase(Locale.ENGLISH).startsWith(BYTES_UNIT + "=")) {
+      return null;
+    }
+    spec = spec.substring(BYTES_UNIT.length() + 1).trim();
+    int dash = spec.indexOf('-');
+    if (dash == -1 || spec.indexOf(',') != -1) {
+      return null;
+    }
+    String firstPos = spec.substring(0, dash).trim();
+    String lastPos = spec.substring(dash + 1).trim();
+    try {
+      if (firstPos.isEmpty()) {
+        // suffix range: the final N bytes
+        long suffix = Long.parseLong(lastPos);
+        if (suffix < 0L) {
+          return null;
+        }
+        if (suffix == 0L || contentLength == 0L) {
+          return new long[0];
+        }
+        return new long[] { Math.max(0L, contentLength - suffix), contentLength - 1L };
+      }
+      long first = Long.parseLong(firstPos);
+      long last = lastPos.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastPos);
+      if (first < 0L || last < first) {
+        return null;
+      }
+      if (first >= contentLength) {
+        return new long[0];
+      }
+      return new long[] { first, Math.min(last, contentLength - 1L) };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+}
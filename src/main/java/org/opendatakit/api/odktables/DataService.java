@@ -14,10 +14,16 @@
 
 package org.opendatakit.api.odktables;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
@@ -26,25 +32,42 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
 
+import org.glassfish.jersey.server.CloseableService;
 import org.opendatakit.aggregate.odktables.rest.ApiConstants;
 import org.opendatakit.aggregate.odktables.rest.entity.Row;
 import org.opendatakit.aggregate.odktables.rest.entity.RowList;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcome;
 import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
 import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
 import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
 import org.opendatakit.context.CallingContext;
 import org.opendatakit.odktables.DataManager;
-import org.opendatakit.odktables.DataManager.WebsafeRows;
+import org.opendatakit.odktables.DataManager.WebsafeRowSource;
+import org.opendatakit.odktables.ParallelRowConverter;
+import org.opendatakit.odktables.TableWriteQueue;
+import org.opendatakit.odktables.entity.RowWriteStatus;
+import org.opendatakit.odktables.entity.StreamingRowOutcomeList;
+import org.opendatakit.odktables.entity.StreamingRowResourceList;
+import org.opendatakit.odktables.entity.serialization.JsonSpool;
+import org.opendatakit.odktables.entity.serialization.RowListStreamReader;
+import org.opendatakit.odktables.entity.serialization.SimpleSmileMessageReaderWriter;
+import org.opendatakit.odktables.RowFilter;
 import org.opendatakit.odktables.exception.BadColumnNameException;
+import org.opendatakit.odktables.exception.BadFilterException;
+import org.opendatakit.odktables.exception.BadRowListException;
 import org.opendatakit.odktables.exception.InconsistentStateException;
 import org.opendatakit.odktables.exception.PermissionDeniedException;
 import org.opendatakit.odktables.exception.TableDataETagMismatchException;
 import org.opendatakit.odktables.security.TablesUserPermissions;
+import org.opendatakit.odktables.util.ServiceUtils;
 import org.opendatakit.persistence.QueryResumePoint;
 import org.opendatakit.persistence.exception.ODKDatastoreException;
 import org.opendatakit.persistence.exception.ODKEntityNotFoundException;
@@ -64,55 +87,87 @@ public class DataService {
   private static final String OFFICE_ID = "officeId";
   private static final String SORT_COLUMN = "sortColumn";
   private static final String ASCENDING = "ascending";
+  private static final String COLUMNS = "columns";
+  private static final String FILTER = "filter";
+  private static final String WRITES = "writes";
+  private static final String PREFER = "Prefer";
+  private static final String RESPOND_ASYNC = "respond-async";
+  private static final String RETRY_AFTER = "Retry-After";
+  private static final String RETRY_AFTER_SECONDS = "2";
 
   private final String schemaETag;
   private final DataManager dm;
+  private final TableWriteQueue writeQueue;
   private final UriInfo info;
 
   public DataService(String appId, String tableId, String schemaETag, UriInfo info,
-      TablesUserPermissions userPermissions, CallingContext cc)
+      TablesUserPermissions userPermissions, ParallelRowConverter rowConverter,
+      TableWriteQueue writeQueue, CallingContext cc)
       throws ODKEntityNotFoundException, ODKDatastoreException {
     this.schemaETag = schemaETag;
-    this.dm = new DataManager(appId, tableId, userPermissions, cc);
+    this.dm = new DataManager(appId, tableId, userPermissions, rowConverter, cc);
+    this.writeQueue = writeQueue;
     this.info = info;
   }
 
   /**
    * Get all data rows.
    * 
+   * If the If-None-Match header matches the entity tag of the current table state and request
+   * parameters, 304 (Not Modified) is returned without querying the table.
+   * 
+   * @param httpHeaders
    * @param cursor - null or a websafeCursor value from the RowResourceList of a previous call
    * @param fetchLimit - null or the number of rows to fetch. If null, server will choose the limit.
+   * @param columns - null or a comma-separated list of the columns to return
+   * @param filter - null or a filter expression the rows must match (see {@link RowFilter})
    * @return {@link RowResourceList} containing the rows being returned.
    * @throws ODKDatastoreException
    * @throws PermissionDeniedException
    * @throws InconsistentStateException
    * @throws ODKTaskLockException
    * @throws BadColumnNameException
+   * @throws BadFilterException
    */
   @GET
   @ApiOperation(value = "Get rows representing form instance submission data.",
   response = RowResourceList.class)
   @Produces({MediaType.APPLICATION_JSON, ApiConstants.MEDIA_TEXT_XML_UTF8,
-      ApiConstants.MEDIA_APPLICATION_XML_UTF8})
-  public Response /* RowResourceList */ getRows(@QueryParam(CURSOR_PARAMETER) String cursor,
+      ApiConstants.MEDIA_APPLICATION_XML_UTF8,
+      SimpleSmileMessageReaderWriter.MEDIA_APPLICATION_SMILE})
+  public Response /* RowResourceList */ getRows(@Context HttpHeaders httpHeaders,
+      @QueryParam(CURSOR_PARAMETER) String cursor,
       @QueryParam(FETCH_LIMIT) String fetchLimit, @QueryParam(SORT_COLUMN) String sortColumn,
       @QueryParam(ASCENDING) Boolean ascending, @QueryParam(DEVICE_ID) String deviceId,
-      @QueryParam(OFFICE_ID) String officeId)
+      @QueryParam(OFFICE_ID) String officeId, @QueryParam(COLUMNS) String columns,
+      @QueryParam(FILTER) String filter)
       throws ODKDatastoreException, PermissionDeniedException, InconsistentStateException,
-      ODKTaskLockException, BadColumnNameException {
+      ODKTaskLockException, BadColumnNameException, BadFilterException {
+    RowFilter rowFilter = RowFilter.parse(filter);
+    String eTag = dm.getRowsEntityTag("getRows", cursor, fetchLimit, sortColumn, ascending,
+        deviceId, officeId, columns, filter);
+    if (ServiceUtils.matchesIfNoneMatch(httpHeaders, eTag)) {
+      return notModified(eTag);
+    }
     int limit =
         (fetchLimit == null || fetchLimit.length() == 0) ? 2000 : Integer.parseInt(fetchLimit);
     boolean asc = ascending == null ? false : ascending;
-    WebsafeRows websafeResult =
-        dm.getRows(QueryResumePoint.fromWebsafeCursor(WebUtils.safeDecode(cursor)), limit,
-            sortColumn, asc, deviceId, officeId);
-    RowResourceList rowResourceList =
-        new RowResourceList(getResources(websafeResult.rows), websafeResult.dataETag, getTableUri(),
+    WebsafeRowSource websafeResult =
+        dm.streamRows(QueryResumePoint.fromWebsafeCursor(WebUtils.safeDecode(cursor)), limit,
+            sortColumn, asc, deviceId, officeId, false, rowFilter,
+            ServiceUtils.parseColumnList(columns));
+    StreamingRowResourceList rowResourceList =
+        new StreamingRowResourceList(websafeResult.rows, websafeResult.dataETag, getTableUri(),
             WebUtils.safeEncode(websafeResult.websafeRefetchCursor),
             WebUtils.safeEncode(websafeResult.websafeBackwardCursor),
             WebUtils.safeEncode(websafeResult.websafeResumeCursor), websafeResult.hasMore,
-            websafeResult.hasPrior);
-    return Response.ok(rowResourceList)
+            websafeResult.hasPrior) {
+          @Override
+          protected RowResource toResource(Row row) {
+            return getResource(row);
+          }
+        };
+    return Response.ok(rowResourceList).header(HttpHeaders.ETAG, eTag)
         .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
         .header("Access-Control-Allow-Origin", "*")
         .header("Access-Control-Allow-Credentials", "true").build();
@@ -121,37 +176,246 @@ public class DataService {
   /**
    * API for creating, updating or deleting rows.
    * 
+   * The change is queued behind any other changes to this table and applied together with them
+   * under one table lock (see {@link TableWriteQueue}). The request waits for its own outcome. With
+   * a "Prefer: respond-async" header, or if the change is not finished within the configured wait,
+   * 202 (Accepted) is returned instead with a Location to poll for the outcome.
+   * 
    * This API will return 409 (Conflict) if the RowList dataETag does not match the current dataETag
    * for this table.
    * 
+   * @param httpHeaders
+   * @param closeableService
    * @param rows
    * @return {@link RowOutcomeList} of the newly added/modified/deleted rows.
+   * @throws IOException
    * @throws ODKTaskLockException
    * @throws ODKDatastoreException
    * @throws PermissionDeniedException
    * @throws BadColumnNameException
    * @throws InconsistentStateException
    * @throws TableDataETagMismatchException
+   * @throws BadRowListException
+   *           if the body is not a well-formed RowList (400); nothing has been applied
    */
   @PUT
   @ApiOperation(value = "Create, update, or delete rows representing form instance submission data.",
   response = RowOutcomeList.class)
-  @Consumes({MediaType.APPLICATION_JSON, ApiConstants.MEDIA_TEXT_XML_UTF8,
-      ApiConstants.MEDIA_APPLICATION_XML_UTF8})
+  @Consumes({ApiConstants.MEDIA_TEXT_XML_UTF8, ApiConstants.MEDIA_APPLICATION_XML_UTF8})
   @Produces({MediaType.APPLICATION_JSON, ApiConstants.MEDIA_TEXT_XML_UTF8,
-      ApiConstants.MEDIA_APPLICATION_XML_UTF8})
-  public Response /* RowOutcomeList */ alterRows(RowList rows)
+      ApiConstants.MEDIA_APPLICATION_XML_UTF8,
+      SimpleSmileMessageReaderWriter.MEDIA_APPLICATION_SMILE})
+  public Response /* RowOutcomeList */ alterRows(@Context HttpHeaders httpHeaders,
+      @Context CloseableService closeableService, RowList rows)
+      throws IOException, ODKTaskLockException, ODKDatastoreException, PermissionDeniedException,
+      BadColumnNameException, InconsistentStateException, TableDataETagMismatchException {
+
+    RowOutcomeSpool outcomes = new RowOutcomeSpool();
+    TableWriteQueue.Job job;
+    try {
+      job = dm.queueRows(writeQueue, rows.getDataETag(), rows.getDeviceId(), rows.getOfficeId(),
+          rows.getRows(), outcomes, Collections.<Closeable> singletonList(outcomes));
+    } catch (ODKDatastoreException | PermissionDeniedException | RuntimeException e) {
+      outcomes.close();
+      throw e;
+    }
+    return awaitRows(httpHeaders, closeableService, job);
+  }
+
+  /**
+   * JSON and Smile variant of {@link #alterRows(HttpHeaders, CloseableService, RowList)}. The
+   * RowList is parsed incrementally and spooled to a temporary file before it is queued, so a slow
+   * upload never holds the table lock; it is then applied in chunks of
+   * {@link DataManager#ROW_CHUNK_SIZE} rows under one table lock and one dataETag. Row outcomes
+   * are spooled too and streamed back, so memory use per upload is bounded regardless of the
+   * payload size.
+   * 
+   * This API will return 409 (Conflict) if the RowList dataETag does not match the current dataETag
+   * for this table, and 400 (Bad Request) if the body is malformed or truncated; the whole body is
+   * read before any row is applied.
+   * 
+   * @param httpHeaders
+   * @param closeableService
+   * @param body the JSON or Smile RowList
+   * @return {@link RowOutcomeList} of the newly added/modified/deleted rows.
+   * @throws IOException
+   * @throws ODKTaskLockException
+   * @throws ODKDatastoreException
+   * @throws PermissionDeniedException
+   * @throws BadColumnNameException
+   * @throws InconsistentStateException
+   * @throws TableDataETagMismatchException
+   * @throws BadRowListException
+   *           if the body is not a well-formed RowList (400); nothing has been applied
+   */
+  @PUT
+  @ApiOperation(value = "Create, update, or delete rows representing form instance submission data.",
+  response = RowOutcomeList.class)
+  @Consumes({MediaType.APPLICATION_JSON,
+      SimpleSmileMessageReaderWriter.MEDIA_APPLICATION_SMILE})
+  @Produces({MediaType.APPLICATION_JSON, ApiConstants.MEDIA_TEXT_XML_UTF8,
+      ApiConstants.MEDIA_APPLICATION_XML_UTF8,
+      SimpleSmileMessageReaderWriter.MEDIA_APPLICATION_SMILE})
+  public Response /* RowOutcomeList */ alterRowsStreaming(
+      @Context HttpHeaders httpHeaders, @Context CloseableService closeableService,
+      InputStream body)
+      throws IOException, ODKTaskLockException, ODKDatastoreException, PermissionDeniedException,
+      BadColumnNameException, InconsistentStateException, TableDataETagMismatchException,
+      BadRowListException {
+
+    RowListStreamReader reader = new RowListStreamReader(body, httpHeaders.getMediaType());
+    closeableService.add(reader);
+
+    JsonSpool<Row> rows = new JsonSpool<Row>(Row.class);
+    RowOutcomeSpool outcomes = null;
+    TableWriteQueue.Job job;
+    try {
+      // the whole body is read before any of it is applied, so a malformed or truncated
+      // body is rejected (400) without writing anything
+      reader.spoolRows(rows);
+      outcomes = new RowOutcomeSpool();
+      job = dm.queueRows(writeQueue, reader.getDataETag(), reader.getDeviceId(),
+          reader.getOfficeId(), rows, outcomes, Arrays.<Closeable> asList(rows, outcomes));
+    } catch (IOException | ODKDatastoreException | PermissionDeniedException
+        | BadRowListException | RuntimeException e) {
+      rows.close();
+      if (outcomes != null) {
+        outcomes.close();
+      }
+      throw e;
+    }
+    return awaitRows(httpHeaders, closeableService, job);
+  }
+
+  /**
+   * Poll for the outcome of a change that was answered with 202 (Accepted). Returns 202 with a
+   * {@link RowWriteStatus} while the change is queued or running. Once it has finished, the
+   * outcome is returned exactly as alterRows would have returned it, and the change is forgotten.
+   * Unknown, already collected, or expired changes return 404.
+   * 
+   * @param closeableService
+   * @param jobId
+   * @return {@link RowOutcomeList} of the newly added/modified/deleted rows.
+   * @throws ODKTaskLockException
+   * @throws ODKDatastoreException
+   * @throws PermissionDeniedException
+   * @throws BadColumnNameException
+   * @throws InconsistentStateException
+   * @throws TableDataETagMismatchException
+   */
+  @GET
+  @ApiOperation(value = "Get the outcome of an accepted change to the rows.",
+  response = RowOutcomeList.class)
+  @Path(WRITES + "/{jobId}")
+  @Produces({MediaType.APPLICATION_JSON, ApiConstants.MEDIA_TEXT_XML_UTF8,
+      ApiConstants.MEDIA_APPLICATION_XML_UTF8,
+      SimpleSmileMessageReaderWriter.MEDIA_APPLICATION_SMILE})
+  public Response /* RowOutcomeList */ getRowsOutcome(
+      @Context CloseableService closeableService, @PathParam("jobId") String jobId)
       throws ODKTaskLockException, ODKDatastoreException, PermissionDeniedException,
       BadColumnNameException, InconsistentStateException, TableDataETagMismatchException {
+    TableWriteQueue.Job job = dm.getQueuedRows(writeQueue, jobId);
+    if (!job.isDone()) {
+      return accepted(job);
+    }
+    return collect(closeableService, job);
+  }
+
+  private Response awaitRows(HttpHeaders httpHeaders, CloseableService closeableService,
+      TableWriteQueue.Job job)
+      throws ODKTaskLockException, ODKDatastoreException, PermissionDeniedException,
+      BadColumnNameException, InconsistentStateException, TableDataETagMismatchException {
+    boolean respondAsync = false;
+    List<String> prefer = httpHeaders.getRequestHeader(PREFER);
+    if (prefer != null) {
+      for (String value : prefer) {
+        respondAsync |= value.toLowerCase().contains(RESPOND_ASYNC);
+      }
+    }
+    boolean done = false;
+    if (!respondAsync) {
+      try {
+        done = job.await(writeQueue.getWaitMillis(), TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (!done) {
+      return accepted(job);
+    }
+    return collect(closeableService, job);
+  }
+
+  private Response accepted(TableWriteQueue.Job job) {
+    String statusUri = getWriteStatusUri(job.getId());
+    return Response.status(Status.ACCEPTED)
+        .entity(new RowWriteStatus(job.getId(), job.getState().name(), statusUri))
+        .location(URI.create(statusUri))
+        .header(RETRY_AFTER, RETRY_AFTER_SECONDS)
+        .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+        .header("Access-Control-Allow-Origin", "*")
+        .header("Access-Control-Allow-Credentials", "true").build();
+  }
+
+  private Response collect(CloseableService closeableService, TableWriteQueue.Job job)
+      throws ODKTaskLockException, ODKDatastoreException, PermissionDeniedException,
+      BadColumnNameException, InconsistentStateException, TableDataETagMismatchException {
+    // forgotten, and its spools removed, once the response has been written
+    closeableService.add(job);
+
+    Exception failure = job.getFailure();
+    if (failure instanceof ODKTaskLockException) {
+      throw (ODKTaskLockException) failure;
+    } else if (failure instanceof ODKDatastoreException) {
+      throw (ODKDatastoreException) failure;
+    } else if (failure instanceof PermissionDeniedException) {
+      throw (PermissionDeniedException) failure;
+    } else if (failure instanceof BadColumnNameException) {
+      throw (BadColumnNameException) failure;
+    } else if (failure instanceof InconsistentStateException) {
+      throw (InconsistentStateException) failure;
+    } else if (failure instanceof TableDataETagMismatchException) {
+      throw (TableDataETagMismatchException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure != null) {
+      throw new ODKDatastoreException("Unable to apply row changes", failure);
+    }
 
-    RowOutcomeList outcomes = dm.insertOrUpdateRows(rows);
-    updateTableUri(outcomes);
+    StreamingRowOutcomeList outcomes = new StreamingRowOutcomeList(
+        (RowOutcomeSpool) job.getOutcomes(), job.getDataETag(), getTableUri());
     return Response.ok(outcomes)
         .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
         .header("Access-Control-Allow-Origin", "*")
         .header("Access-Control-Allow-Credentials", "true").build();
   }
 
+  /**
+   * Row outcomes of a queued change, buffered in a temporary file.
+   */
+  private static class RowOutcomeSpool
+      implements DataManager.RowOutcomeSink, Iterable<RowOutcome>, Closeable {
+    private final JsonSpool<RowOutcome> spool = new JsonSpool<RowOutcome>(RowOutcome.class);
+
+    RowOutcomeSpool() throws IOException {
+    }
+
+    @Override
+    public void add(RowOutcome outcome) throws IOException {
+      spool.add(outcome);
+    }
+
+    @Override
+    public Iterator<RowOutcome> iterator() {
+      return spool.iterator();
+    }
+
+    @Override
+    public void close() {
+      spool.close();
+    }
+  }
+
   /**
    * Get the current values for a single rowId
    * 
@@ -168,7 +432,8 @@ public class DataService {
   response = Row.class)
   @Path("{rowId}")
   @Produces({MediaType.APPLICATION_JSON, ApiConstants.MEDIA_TEXT_XML_UTF8,
-      ApiConstants.MEDIA_APPLICATION_XML_UTF8})
+      ApiConstants.MEDIA_APPLICATION_XML_UTF8,
+      SimpleSmileMessageReaderWriter.MEDIA_APPLICATION_SMILE})
   public Response /* RowResource */ getRow(@PathParam("rowId") String rowId)
       throws ODKDatastoreException, PermissionDeniedException, InconsistentStateException,
       ODKTaskLockException, BadColumnNameException {
@@ -180,6 +445,13 @@ public class DataService {
         .header("Access-Control-Allow-Credentials", "true").build();
   }
 
+  private Response notModified(String eTag) {
+    return Response.status(Status.NOT_MODIFIED).header(HttpHeaders.ETAG, eTag)
+        .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+        .header("Access-Control-Allow-Origin", "*")
+        .header("Access-Control-Allow-Credentials", "true").build();
+  }
+
   private String getTableUri() {
     String appId = dm.getAppId();
     String tableId = dm.getTableId();
@@ -217,25 +489,18 @@ public class DataService {
     return resource;
   }
 
-  private ArrayList<RowResource> getResources(List<Row> rows) {
-    ArrayList<RowResource> resources = new ArrayList<RowResource>();
-    for (Row row : rows) {
-      resources.add(getResource(row));
-    }
-    return resources;
-  }
-
-  private void updateTableUri(RowOutcomeList outcomeList) {
+  private String getWriteStatusUri(String jobId) {
     String appId = dm.getAppId();
     String tableId = dm.getTableId();
-    // for bandwidth efficiency, do not provide selfUri in response array
 
     UriBuilder ub = info.getBaseUriBuilder();
     ub.path(OdkTables.class);
     ub.path(OdkTables.class, "getTablesService");
-    URI table = ub.clone().build(appId, tableId);
+    URI status = ub.clone().path(TableService.class, "getRealizedTable")
+        .path(RealizedTableService.class, "getData").path(DataService.class, "getRowsOutcome")
+        .build(appId, tableId, schemaETag, jobId);
     try {
-      outcomeList.setTableUri(table.toURL().toExternalForm());
+      return status.toURL().toExternalForm();
     } catch (MalformedURLException e) {
       e.printStackTrace();
       throw new IllegalArgumentException("unable to convert URL ");
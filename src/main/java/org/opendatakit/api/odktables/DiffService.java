@@ -24,8 +24,11 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
 
@@ -36,11 +39,18 @@ import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
 import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
 import org.opendatakit.context.CallingContext;
 import org.opendatakit.odktables.DataManager;
+import org.opendatakit.odktables.DataManager.WebsafeRowSource;
 import org.opendatakit.odktables.DataManager.WebsafeRows;
+import org.opendatakit.odktables.ParallelRowConverter;
+import org.opendatakit.odktables.entity.StreamingRowResourceList;
+import org.opendatakit.odktables.entity.serialization.SimpleSmileMessageReaderWriter;
+import org.opendatakit.odktables.RowFilter;
 import org.opendatakit.odktables.exception.BadColumnNameException;
+import org.opendatakit.odktables.exception.BadFilterException;
 import org.opendatakit.odktables.exception.InconsistentStateException;
 import org.opendatakit.odktables.exception.PermissionDeniedException;
 import org.opendatakit.odktables.security.TablesUserPermissions;
+import org.opendatakit.odktables.util.ServiceUtils;
 import org.opendatakit.persistence.QueryResumePoint;
 import org.opendatakit.persistence.exception.ODKDatastoreException;
 import org.opendatakit.persistence.exception.ODKEntityNotFoundException;
@@ -60,6 +70,8 @@ public class DiffService  {
   public static final String QUERY_SEQUENCE_VALUE = "sequence_value";
   public static final String CURSOR_PARAMETER = "cursor";
   public static final String FETCH_LIMIT = "fetchLimit";
+  public static final String COLUMNS = "columns";
+  public static final String FILTER = "filter";
 
   
   private final String schemaETag;
@@ -67,45 +79,73 @@ public class DiffService  {
   private final UriInfo info;
 
   public DiffService(String appId, String tableId, String schemaETag, UriInfo info,
-      TablesUserPermissions userPermissions, CallingContext cc)
+      TablesUserPermissions userPermissions, ParallelRowConverter rowConverter, CallingContext cc)
       throws ODKEntityNotFoundException, ODKDatastoreException {
     this.schemaETag = schemaETag;
-    this.dm = new DataManager(appId, tableId, userPermissions, cc);
+    this.dm = new DataManager(appId, tableId, userPermissions, rowConverter, cc);
     this.info = info;
   }
 
   /**
+   * If the If-None-Match header matches the entity tag of the current table state and request
+   * parameters, 304 (Not Modified) is returned without querying the log table.
    *
+   * @param httpHeaders
    * @param dataETag
    * @param cursor - null or a websafeCursor value from the RowResourceList of a previous call
    * @param fetchLimit - null or the number of rows to fetch. If null, server will choose the limit.
+   * @param columns - null or a comma-separated list of the columns to return
+   * @param filter - null or a filter expression the changes must match (see {@link RowFilter})
    * @return {@link RowResourceList} of row changes since the dataETag value
    * @throws ODKDatastoreException
    * @throws PermissionDeniedException
    * @throws InconsistentStateException
    * @throws ODKTaskLockException
    * @throws BadColumnNameException
+   * @throws BadFilterException
    */
   @GET
   @ApiOperation(value = "Get rows since ?.",
   response = RowResourceList.class)
   @Produces({MediaType.APPLICATION_JSON, ApiConstants.MEDIA_TEXT_XML_UTF8,
-      ApiConstants.MEDIA_APPLICATION_XML_UTF8})
-  public Response /* RowResourceList */ getRowsSince(@QueryParam(QUERY_DATA_ETAG) String dataETag,
-      @QueryParam(CURSOR_PARAMETER) String cursor, @QueryParam(FETCH_LIMIT) String fetchLimit)
+      ApiConstants.MEDIA_APPLICATION_XML_UTF8,
+      SimpleSmileMessageReaderWriter.MEDIA_APPLICATION_SMILE})
+  public Response /* RowResourceList */ getRowsSince(@Context HttpHeaders httpHeaders,
+      @QueryParam(QUERY_DATA_ETAG) String dataETag,
+      @QueryParam(CURSOR_PARAMETER) String cursor, @QueryParam(FETCH_LIMIT) String fetchLimit,
+      @QueryParam(COLUMNS) String columns, @QueryParam(FILTER) String filter)
       throws ODKDatastoreException, PermissionDeniedException, InconsistentStateException,
-      ODKTaskLockException, BadColumnNameException {
+      ODKTaskLockException, BadColumnNameException, BadFilterException {
+    RowFilter rowFilter = RowFilter.parse(filter);
+    String eTag =
+        dm.getRowsEntityTag("getRowsSince", dataETag, cursor, fetchLimit, columns, filter);
+    if (ServiceUtils.matchesIfNoneMatch(httpHeaders, eTag)) {
+      return notModified(eTag);
+    }
     int limit =
         (fetchLimit == null || fetchLimit.length() == 0) ? 2000 : Integer.valueOf(fetchLimit);
-    WebsafeRows websafeResult = dm.getRowsSince(dataETag,
-        QueryResumePoint.fromWebsafeCursor(WebUtils.safeDecode(cursor)), limit);
-    RowResourceList rowResourceList =
-        new RowResourceList(getResources(websafeResult.rows), websafeResult.dataETag, getTableUri(),
+    WebsafeRowSource websafeResult = dm.streamRowsSince(dataETag,
+        QueryResumePoint.fromWebsafeCursor(WebUtils.safeDecode(cursor)), limit, rowFilter,
+        ServiceUtils.parseColumnList(columns));
+    StreamingRowResourceList rowResourceList =
+        new StreamingRowResourceList(websafeResult.rows, websafeResult.dataETag, getTableUri(),
             WebUtils.safeEncode(websafeResult.websafeRefetchCursor),
             WebUtils.safeEncode(websafeResult.websafeBackwardCursor),
             WebUtils.safeEncode(websafeResult.websafeResumeCursor), websafeResult.hasMore,
-            websafeResult.hasPrior);
-    return Response.ok(rowResourceList)
+            websafeResult.hasPrior) {
+          @Override
+          protected RowResource toResource(Row row) {
+            return getResource(row);
+          }
+        };
+    return Response.ok(rowResourceList).header(HttpHeaders.ETAG, eTag)
+        .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+        .header("Access-Control-Allow-Origin", "*")
+        .header("Access-Control-Allow-Credentials", "true").build();
+  }
+
+  private Response notModified(String eTag) {
+    return Response.status(Status.NOT_MODIFIED).header(HttpHeaders.ETAG, eTag)
         .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
         .header("Access-Control-Allow-Origin", "*")
         .header("Access-Control-Allow-Credentials", "true").build();
@@ -164,6 +204,10 @@ public class DiffService  {
    * alphabetically. The returned object includes a sequenceValue that can be used on a subsequent
    * call to get all changes to this table since this point in time.
    * 
+   * If the If-None-Match header matches the entity tag of the current table state and request
+   * parameters, 304 (Not Modified) is returned without querying the log table.
+   * 
+   * @param httpHeaders
    * @param dataETag
    * @param sequenceValue
    * @return
@@ -178,15 +222,20 @@ public class DiffService  {
   @ApiOperation(value = "Get change sets since ?.",
   response = ChangeSetList.class)
   @Produces({MediaType.APPLICATION_JSON, ApiConstants.MEDIA_TEXT_XML_UTF8,
-      ApiConstants.MEDIA_APPLICATION_XML_UTF8})
-  public Response /* ChangeSetList */ getChangeSetsSince(
+      ApiConstants.MEDIA_APPLICATION_XML_UTF8,
+      SimpleSmileMessageReaderWriter.MEDIA_APPLICATION_SMILE})
+  public Response /* ChangeSetList */ getChangeSetsSince(@Context HttpHeaders httpHeaders,
       @QueryParam(QUERY_DATA_ETAG) String dataETag,
       @QueryParam(QUERY_SEQUENCE_VALUE) String sequenceValue)
       throws ODKDatastoreException, PermissionDeniedException, InconsistentStateException,
       ODKTaskLockException, BadColumnNameException {
 
+    String eTag = dm.getRowsEntityTag("getChangeSetsSince", dataETag, sequenceValue);
+    if (ServiceUtils.matchesIfNoneMatch(httpHeaders, eTag)) {
+      return notModified(eTag);
+    }
     ChangeSetList changeSetList = dm.getChangeSetsSince(dataETag, sequenceValue);
-    return Response.ok(changeSetList)
+    return Response.ok(changeSetList).header(HttpHeaders.ETAG, eTag)
         .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
         .header("Access-Control-Allow-Origin", "*")
         .header("Access-Control-Allow-Credentials", "true").build();
@@ -213,7 +262,8 @@ public class DiffService  {
   @ApiOperation(value = "Get change set rows",
   response = RowResourceList.class)
   @Produces({MediaType.APPLICATION_JSON, ApiConstants.MEDIA_TEXT_XML_UTF8,
-      ApiConstants.MEDIA_APPLICATION_XML_UTF8})
+      ApiConstants.MEDIA_APPLICATION_XML_UTF8,
+      SimpleSmileMessageReaderWriter.MEDIA_APPLICATION_SMILE})
   public Response /* RowResourceList */ getChangeSetRows(@PathParam("dataETag") String dataETag,
       @QueryParam(QUERY_ACTIVE_ONLY) String isActive, @QueryParam(CURSOR_PARAMETER) String cursor,
       @QueryParam(FETCH_LIMIT) String fetchLimit)
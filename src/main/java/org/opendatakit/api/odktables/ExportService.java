@@ -22,6 +22,7 @@ import org.opendatakit.context.CallingContext;
 import org.opendatakit.datamodel.BinaryContent;
 import org.opendatakit.datamodel.BinaryContentManipulator;
 import org.opendatakit.datamodel.BinaryContentRefBlob;
+import org.opendatakit.datamodel.BlobStores;
 import org.opendatakit.datamodel.RefBlob;
 import org.opendatakit.odktables.ODKTablesExportHelper;
 import org.opendatakit.odktables.exception.PermissionDeniedException;
@@ -163,6 +164,16 @@ public class ExportService {
 
       for (BinaryContent binaryContent : contents) {
 
+        String blobKey = binaryContent.getBlobKey();
+        if (blobKey != null) {
+          // the content is held in a blob store rather than in the database
+          ByteArrayOutputStream content = new ByteArrayOutputStream();
+          BlobStores.getStore(blobKey).writeTo(blobKey, content, 0L,
+              binaryContent.getContentLength(), callingContext);
+          zipFile(zos, binaryContent.getUnrootedFilePath(), content.toByteArray());
+          continue;
+        }
+
         // Create BlobManipulator to read the blob from the database
         BinaryContentManipulator.BlobManipulator blobManipulator =
             new BinaryContentManipulator.BlobManipulator(binaryContent.getUri(),
@@ -13,7 +13,9 @@
  */
 package org.opendatakit.api.odktables;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.util.List;
 import java.util.TreeSet;
@@ -138,10 +140,10 @@ public class FileService {
     String eTag = (eTags == null || eTags.isEmpty()) ? null : eTags.get(0);
 
     FileManager fm = new FileManager(appId, callingContext);
-    fileContentInfo = fm.getFile(odkClientVersion, tableId, appRelativePath);
+    fileContentInfo = fm.getFileStream(odkClientVersion, tableId, appRelativePath);
 
     // And now prepare everything to be returned to the caller.
-    if (fileContentInfo.fileBlob != null && fileContentInfo.contentType != null
+    if (fileContentInfo.blobStreamer != null && fileContentInfo.contentType != null
         && fileContentInfo.contentLength != null && fileContentInfo.contentLength != 0L) {
 
       // test if we should return a NOT_MODIFIED response...
@@ -160,9 +162,11 @@ public class FileService {
         mediaType = mediaType.withCharset("utf-8");
       }
       
-      ResponseBuilder rBuild = Response.ok(fileContentInfo.fileBlob).type(mediaType)
-          .header(HttpHeaders.CONTENT_LENGTH, fileContentInfo.contentLength)
-          .header(HttpHeaders.ETAG, fileContentInfo.contentHash)
+      // whole file, or the requested range of it
+      ResponseBuilder rBuild = BlobStreamingOutput
+          .responseFor(httpHeaders, fileContentInfo.blobStreamer, fileContentInfo.contentHash,
+              callingContext)
+          .type(mediaType)
           .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
           .header("Access-Control-Allow-Origin", "*")
           .header("Access-Control-Allow-Credentials", "true");
@@ -185,7 +189,7 @@ public class FileService {
   @POST
   @Path("{odkClientVersion}/{filePath:.*}")
   public Response putFile(@PathParam("odkClientVersion") String odkClientVersion,
-      @PathParam("filePath") List<PathSegment> segments, byte[] content)
+      @PathParam("filePath") List<PathSegment> segments, InputStream content)
       throws IOException, ODKTaskLockException, PermissionDeniedException, ODKDatastoreException {
 
     TreeSet<GrantedAuthorityName> ui =
@@ -212,10 +216,15 @@ public class FileService {
 
     FileManager fm = new FileManager(appId, callingContext);
 
-    FileContentInfo fi = new FileContentInfo(appRelativePath, contentType,
-        Long.valueOf(content.length), null, content);
-
-    ConfigFileChangeDetail outcome = fm.putFile(odkClientVersion, tableId, fi, userPermissions);
+    // streamed into the store, hashing it as it goes
+    ConfigFileChangeDetail outcome;
+    InputStream bi = new BufferedInputStream(content);
+    try {
+      outcome = fm.putFileStream(odkClientVersion, tableId, appRelativePath, contentType, bi,
+          userPermissions);
+    } finally {
+      bi.close();
+    }
 
     UriBuilder ub = info.getBaseUriBuilder();
     ub.path(OdkTables.class, "getFilesService");
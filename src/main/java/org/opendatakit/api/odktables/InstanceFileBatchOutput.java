@@ -0,0 +1,152 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.api.odktables;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriBuilder;
+
+import org.opendatakit.odktables.InstanceFileBatch;
+import org.opendatakit.odktables.InstanceFileBatch.Entry;
+
+/**
+ * Response entity for a batch download of instance attachments. The files are written as the
+ * parts of a multipart/mixed body, or as the entries of a zip archive, in the order of the batch.
+ *
+ * Each multipart/mixed part carries the Content-Type and Content-Length of the file, its MD5 hash
+ * as the ETag, its instance-relative path as the Content-Disposition filename (as expected by the
+ * upload), and the URL it is served from individually as the Content-Location. Zip entries are
+ * named rowId/path.
+ *
+ * As with {@link BlobStreamingOutput}, a file that fails to load aborts the response.
+ */
+public class InstanceFileBatchOutput implements StreamingOutput {
+
+  public static final String MEDIA_MULTIPART_MIXED = "multipart/mixed";
+  public static final String MEDIA_APPLICATION_ZIP = "application/zip";
+
+  private static final String CRLF = "\r\n";
+
+  private final InstanceFileBatch batch;
+  private final boolean zip;
+  private final String boundary;
+  private final UriBuilder fileUri;
+  private final String appId;
+  private final String tableId;
+  private final String schemaETag;
+
+  /**
+   * @param batch
+   * @param zip
+   *          true to write a zip archive, false for multipart/mixed
+   * @param fileUri
+   *          builds the URL of a single file from appId, tableId, schemaETag, rowId and path
+   * @param appId
+   * @param tableId
+   * @param schemaETag
+   */
+  public InstanceFileBatchOutput(InstanceFileBatch batch, boolean zip, UriBuilder fileUri,
+      String appId, String tableId, String schemaETag) {
+    this.batch = batch;
+    this.zip = zip;
+    this.boundary = "boundary-" + UUID.randomUUID().toString();
+    this.fileUri = fileUri;
+    this.appId = appId;
+    this.tableId = tableId;
+    this.schemaETag = schemaETag;
+  }
+
+  /**
+   * @param httpHeaders
+   * @return true if the client prefers a zip archive to multipart/mixed
+   */
+  public static boolean prefersZip(HttpHeaders httpHeaders) {
+    MediaType zipType = MediaType.valueOf(MEDIA_APPLICATION_ZIP);
+    MediaType multipartType = MediaType.valueOf(MEDIA_MULTIPART_MIXED);
+    for (MediaType acceptable : httpHeaders.getAcceptableMediaTypes()) {
+      if (acceptable.isCompatible(multipartType)) {
+        return false;
+      }
+      if (acceptable.isCompatible(zipType)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the Content-Type of the response
+   */
+  public String getMediaType() {
+    return zip ? MEDIA_APPLICATION_ZIP : MEDIA_MULTIPART_MIXED + "; boundary=" + boundary;
+  }
+
+  @Override
+  public void write(OutputStream output) throws IOException, WebApplicationException {
+    if (zip) {
+      writeZip(output);
+    } else {
+      writeMultipart(output);
+    }
+  }
+
+  private void writeMultipart(final OutputStream output) throws IOException {
+    batch.writeTo(new InstanceFileBatch.EntryWriter() {
+      @Override
+      public void writeEntry(Entry entry) throws IOException {
+        String location = fileUri.build(appId, tableId, schemaETag, entry.rowId,
+            entry.content.partialPath).toASCIIString();
+        StringBuilder b = new StringBuilder();
+        b.append("--").append(boundary).append(CRLF);
+        b.append("Content-Type: ").append(entry.content.contentType).append(CRLF);
+        b.append("Content-Length: ").append(entry.content.contentLength).append(CRLF);
+        b.append("Content-Disposition: file; filename=\"")
+            .append(entry.content.partialPath.replace("\"", "\"\"")).append("\"").append(CRLF);
+        b.append("Content-Location: ").append(location).append(CRLF);
+        if (entry.content.contentHash != null) {
+          b.append(HttpHeaders.ETAG).append(": ").append(entry.content.contentHash).append(CRLF);
+        }
+        b.append(CRLF);
+        output.write(b.toString().getBytes(StandardCharsets.UTF_8));
+        batch.writeContent(entry, output);
+        output.write(CRLF.getBytes(StandardCharsets.UTF_8));
+      }
+    });
+    output.write(("--" + boundary + "--" + CRLF).getBytes(StandardCharsets.UTF_8));
+    output.flush();
+  }
+
+  private void writeZip(OutputStream output) throws IOException {
+    final ZipOutputStream zos = new ZipOutputStream(output);
+    // attachments are mostly photos and other media that do not compress
+    zos.setLevel(Deflater.BEST_SPEED);
+    batch.writeTo(new InstanceFileBatch.EntryWriter() {
+      @Override
+      public void writeEntry(Entry entry) throws IOException {
+        zos.putNextEntry(new ZipEntry(entry.rowId + "/" + entry.content.partialPath));
+        batch.writeContent(entry, zos);
+        zos.closeEntry();
+      }
+    });
+    zos.finish();
+    zos.flush();
+  }
+}
@@ -13,16 +13,30 @@
  */
 package org.opendatakit.api.odktables;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HEAD;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
@@ -48,16 +62,20 @@ import org.opendatakit.constants.BasicConsts;
 import org.opendatakit.constants.WebConsts;
 import org.opendatakit.context.CallingContext;
 import org.opendatakit.odktables.FileContentInfo;
+import org.opendatakit.odktables.InstanceFileBatch;
+import org.opendatakit.odktables.InstanceFileReaders;
 import org.opendatakit.odktables.InstanceFileChangeDetail;
 import org.opendatakit.odktables.InstanceFileManager;
 import org.opendatakit.odktables.InstanceFileManager.FetchBlobHandler;
 import org.opendatakit.odktables.InstanceFileManager.FileContentHandler;
+import org.opendatakit.odktables.exception.FileNotFoundException;
 import org.opendatakit.odktables.exception.ODKTablesException;
 import org.opendatakit.odktables.exception.PermissionDeniedException;
+import org.opendatakit.odktables.exception.UploadOffsetMismatchException;
+import org.opendatakit.odktables.relation.DbInstanceFileUpload.DbInstanceFileUploadEntity;
 import org.opendatakit.odktables.relation.DbTableInstanceManifestETags;
 import org.opendatakit.odktables.relation.DbTableInstanceManifestETags.DbTableInstanceManifestETagEntity;
 import org.opendatakit.odktables.security.TablesUserPermissions;
-import org.opendatakit.persistence.PersistenceUtils;
 import org.opendatakit.persistence.exception.ODKDatastoreException;
 import org.opendatakit.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.persistence.exception.ODKTaskLockException;
@@ -89,6 +107,24 @@ public class InstanceFileService {
       "Not Enough Path Segments: must be at least 1.";
   public static final String ERROR_MSG_UNRECOGNIZED_APP_ID = "Unrecognized app id: ";
   public static final String ERROR_MSG_PATH_NOT_UNDER_APP_ID = "File path is not under app id: ";
+  public static final String ERROR_MSG_UPLOAD_CREATION_HEADERS =
+      "Upload-Length and Upload-Metadata with a filename and md5 hash expected.";
+  public static final String ERROR_MSG_UPLOAD_OFFSET_EXPECTED = "Upload-Offset expected.";
+
+  /**
+   * The version of the tus resumable upload protocol spoken by the upload endpoints.
+   */
+  public static final String TUS_VERSION = "1.0.0";
+  public static final String HEADER_TUS_RESUMABLE = "Tus-Resumable";
+  public static final String HEADER_TUS_VERSION = "Tus-Version";
+  public static final String HEADER_UPLOAD_LENGTH = "Upload-Length";
+  public static final String HEADER_UPLOAD_OFFSET = "Upload-Offset";
+  public static final String HEADER_UPLOAD_METADATA = "Upload-Metadata";
+  public static final String HEADER_UPLOAD_EXPIRES = "Upload-Expires";
+  public static final String MEDIA_OFFSET_OCTET_STREAM = "application/offset+octet-stream";
+  private static final String METADATA_FILENAME = "filename";
+  private static final String METADATA_FILETYPE = "filetype";
+  private static final String METADATA_MD5 = "md5";
 
   /**
    * String to stand in for those things in the app's root directory.
@@ -112,11 +148,13 @@ public class InstanceFileService {
   private final String tableId;
   private final String rowId;
   private final String schemaETag;
+  private final InstanceFileReaders readers;
 
   public InstanceFileService(String appId, String tableId, String schemaETag, String rowId,
-      UriInfo info, TablesUserPermissions userPermissions, CallingContext cc)
-      throws ODKEntityNotFoundException, ODKDatastoreException {
+      UriInfo info, TablesUserPermissions userPermissions, InstanceFileReaders readers,
+      CallingContext cc) throws ODKEntityNotFoundException, ODKDatastoreException {
     this.cc = cc;
+    this.readers = readers;
     this.appId = appId;
     this.tableId = tableId;
     this.rowId = rowId;
@@ -279,10 +317,10 @@ public class InstanceFileService {
     InstanceFileManager fm = new InstanceFileManager(appId, cc);
 
     try {
-      FileContentInfo fi = fm.getFile(tableId, rowId, partialPath, userPermissions);
+      FileContentInfo fi = fm.getFileStream(tableId, rowId, partialPath, userPermissions);
       if (fi != null) {
         // And now prepare everything to be returned to the caller.
-        if (fi.fileBlob != null && fi.contentType != null && fi.contentLength != null
+        if (fi.blobStreamer != null && fi.contentType != null && fi.contentLength != null
             && fi.contentLength != 0L) {
 
           // test if we should return a NOT_MODIFIED response...
@@ -294,9 +332,10 @@ public class InstanceFileService {
                 .header("Access-Control-Allow-Credentials", "true").build();
           }
 
+          // whole file, or the requested range of it
           ResponseBuilder responseBuilder =
-              Response.ok(fi.fileBlob, fi.contentType).header(HttpHeaders.ETAG, fi.contentHash)
-                  .header(HttpHeaders.CONTENT_LENGTH, fi.contentLength)
+              BlobStreamingOutput.responseFor(httpHeaders, fi.blobStreamer, fi.contentHash, cc)
+                  .type(fi.contentType)
                   .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER,
                       ApiConstants.OPEN_DATA_KIT_VERSION)
                   .header("Access-Control-Allow-Origin", "*")
@@ -330,139 +369,121 @@ public class InstanceFileService {
   }
 
   /**
-   * The JSON is a OdkTablesFileManifest containing the list of files to be returned. The files are
-   * returned in a multipart form data response.
-   * 
+   * The JSON is a OdkTablesFileManifest containing the list of files to be returned; only the
+   * filename of each entry is used. The files are streamed as the parts of a multipart/mixed
+   * response, or as a zip archive if the client accepts that in preference.
+   *
    * @param httpHeaders
    * @param manifest
    * @return
    * @throws IOException
    * @throws ODKTaskLockException
    * @throws PermissionDeniedException
+   * @see InstanceFileBatchOutput
+   */
+  @POST
+  @Path("download")
+  @Consumes({MediaType.APPLICATION_JSON, ApiConstants.MEDIA_TEXT_XML_UTF8,
+      ApiConstants.MEDIA_APPLICATION_XML_UTF8})
+  @Produces({InstanceFileBatchOutput.MEDIA_MULTIPART_MIXED,
+      InstanceFileBatchOutput.MEDIA_APPLICATION_ZIP})
+  public Response getFiles(@Context HttpHeaders httpHeaders, OdkTablesFileManifest manifest)
+      throws IOException, ODKTaskLockException, PermissionDeniedException {
+    // The appId and tableId are from the surrounding TableService.
+    // The rowId is already pulled out.
+    // The segments are in the manifest as filenames.
+    // On the device, these filenames are just rest/of/path in the full
+    // app-centric
+    // path of:
+    // appid/data/attachments/tableid/instances/instanceId/rest/of/path
+    if (rowId == null || rowId.length() == 0) {
+      return Response.status(Status.BAD_REQUEST)
+          .entity(InstanceFileService.ERROR_MSG_INVALID_ROW_ID)
+          .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+          .header("Access-Control-Allow-Origin", "*")
+          .header("Access-Control-Allow-Credentials", "true").build();
+    }
+    if (manifest == null || manifest.getFiles() == null || manifest.getFiles().isEmpty()) {
+      return Response.status(Status.BAD_REQUEST)
+          .entity(InstanceFileService.ERROR_MSG_MANIFEST_IS_EMPTY_OR_MISSING)
+          .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+          .header("Access-Control-Allow-Origin", "*")
+          .header("Access-Control-Allow-Credentials", "true").build();
+    }
+
+    Set<String> filenames = new HashSet<String>();
+    for (OdkTablesFileManifestEntry entry : manifest.getFiles()) {
+      if (entry.filename != null) {
+        filenames.add(entry.filename);
+      }
+    }
+    Map<String, Set<String>> requested = new HashMap<String, Set<String>>();
+    requested.put(rowId, filenames);
+
+    return getFiles(httpHeaders, appId, tableId, schemaETag, requested, info, userPermissions,
+        readers, cc);
+  }
+
+  /**
+   * Stream the requested attachments of one or more rows.
+   *
+   * @param httpHeaders
+   * @param appId
+   * @param tableId
+   * @param schemaETag
+   * @param requested
+   *          map of rowId to the paths wanted from that row (null for all), in response order
+   * @param info
+   * @param userPermissions
+   * @param readers
+   *          reads the files ahead of the response
+   * @param cc
+   * @return 200 (OK) with the files, or 404 (Not Found) if there are none
+   * @throws ODKTaskLockException
+   * @throws PermissionDeniedException
    */
-  // Refer to https://www.ibm.com/support/knowledgecenter/en/SSAW57_8.5.5/com.ibm.websphere.nd.doc/ae/twbs_jaxrs_multipart_formdata_from_html.html
-//  @POST
-//  @Path("download")
-//  @Consumes({MediaType.APPLICATION_JSON, ApiConstants.MEDIA_TEXT_XML_UTF8,
-//      ApiConstants.MEDIA_APPLICATION_XML_UTF8})
-//  @Produces({MediaType.MULTIPART_FORM_DATA})
-//  public Response getFiles(@Context HttpHeaders httpHeaders, OdkTablesFileManifest manifest)
-//      throws IOException, ODKTaskLockException, PermissionDeniedException {
-//    // The appId and tableId are from the surrounding TableService.
-//    // The rowId is already pulled out.
-//    // The segments are in the manifest as filenames.
-//    // On the device, these filenames are just rest/of/path in the full
-//    // app-centric
-//    // path of:
-//    // appid/data/attachments/tableid/instances/instanceId/rest/of/path
-//    if (rowId == null || rowId.length() == 0) {
-//      return Response.status(Status.BAD_REQUEST)
-//          .entity(InstanceFileService.ERROR_MSG_INVALID_ROW_ID)
-//          .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
-//          .header("Access-Control-Allow-Origin", "*")
-//          .header("Access-Control-Allow-Credentials", "true").build();
-//    }
-//    if (manifest.getFiles() == null || manifest.getFiles().isEmpty()) {
-//      return Response.status(Status.BAD_REQUEST)
-//          .entity(InstanceFileService.ERROR_MSG_MANIFEST_IS_EMPTY_OR_MISSING)
-//          .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
-//          .header("Access-Control-Allow-Origin", "*")
-//          .header("Access-Control-Allow-Credentials", "true").build();
-//    }
-//
-//    UriBuilder ub = info.getBaseUriBuilder();
-//    ub.path(OdkTables.class, "getTablesService");
-//
-//    URI getFile = ub.clone().path(TableService.class, "getRealizedTable")
-//        .path(RealizedTableService.class, "getInstanceFiles")
-//        .path(InstanceFileService.class, "getFiles").build(appId, tableId, schemaETag, rowId);
-//
-//    String locationUrl = getFile.toURL().toExternalForm();
-//
-//    String boundary = "boundary-" + UUID.randomUUID().toString();
-//
-//    InstanceFileManager instanceFileManager = new InstanceFileManager(appId, cc);
-//
-//    try {
-//      BufferedOutMultiPart mpEntity = new BufferedOutMultiPart();
-//      mpEntity.setBoundary(boundary);
-//
-//      final OutPart[] outParts = new OutPart[manifest.getFiles().size()];
-//
-//      instanceFileManager.getInstanceAttachments(tableId, rowId, new FileContentHandler() {
-//
-//        @Override
-//        public void processFileContent(FileContentInfo content, FetchBlobHandler fetcher) {
-//          // NOTE: this is processed within a critical section
-//
-//          // see if the server's file entry is in the requested set of files.
-//          //
-//          int entryIndex = -1;
-//          for (int i = 0; i < manifest.getFiles().size(); ++i) {
-//            OdkTablesFileManifestEntry entry = manifest.getFiles().get(i);
-//            if (entry.filename.equals(content.partialPath)) {
-//              entryIndex = i;
-//              break;
-//            }
-//          }
-//
-//          if (entryIndex != -1) {
-//            // it is in the requested set.
-//
-//            // verify that there is content
-//            if (content.contentType != null && content.contentLength != null
-//                && content.contentLength != 0L) {
-//
-//              // get content
-//              byte[] fileBlob;
-//              try {
-//                fileBlob = fetcher.getBlob();
-//              } catch (ODKDatastoreException e) {
-//                e.printStackTrace();
-//                // silently ignore this -- error in this record
-//                fileBlob = null;
-//              }
-//
-//              if (fileBlob != null) {
-//                // we got the content -- create an OutPart to hold it
-//                OutPart op = new OutPart();
-//                op.addHeader("Name", "file-" + Integer.toString(entryIndex));
-//                String disposition =
-//                    "file; filename=\"" + content.partialPath.replace("\"", "\"\"") + "\"";
-//                op.addHeader("Content-Disposition", disposition);
-//                op.addHeader("Content-Type", content.contentType);
-//                op.setBody(fileBlob);
-//                outParts[entryIndex] = op;
-//              }
-//            }
-//          }
-//
-//        }
-//      }, userPermissions);
-//
-//      // assemble the outParts into the body.
-//      // These are returned in the same order as they were called.
-//      for (int i = 0; i < outParts.length; ++i) {
-//        if (outParts[i] != null) {
-//          mpEntity.addPart(outParts[i]);
-//        }
-//      }
-//
-//      ResponseBuilder rBuild = Response.status(Status.OK).entity(mpEntity)
-//          .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
-//          .header("Access-Control-Allow-Origin", "*")
-//          .header("Access-Control-Allow-Credentials", "true");
-//      return rBuild.build();
-//    } catch (ODKDatastoreException e) {
-//      e.printStackTrace();
-//      return Response.status(Status.INTERNAL_SERVER_ERROR)
-//          .entity("Unable to retrieve attachment and access attributes for: " + locationUrl)
-//          .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
-//          .header("Access-Control-Allow-Origin", "*")
-//          .header("Access-Control-Allow-Credentials", "true").build();
-//    }
-//    return null;
-//  }
+  static Response getFiles(HttpHeaders httpHeaders, String appId, String tableId,
+      String schemaETag, Map<String, Set<String>> requested, UriInfo info,
+      TablesUserPermissions userPermissions, InstanceFileReaders readers, CallingContext cc)
+      throws ODKTaskLockException, PermissionDeniedException {
+
+    UriBuilder ub = info.getBaseUriBuilder();
+    ub.path(OdkTables.class);
+    ub.path(OdkTables.class, "getTablesService");
+
+    UriBuilder getFile = ub.clone().path(TableService.class, "getRealizedTable")
+        .path(RealizedTableService.class, "getInstanceFiles")
+        .path(InstanceFileService.class, "getFile");
+
+    InstanceFileManager instanceFileManager = new InstanceFileManager(appId, cc);
+
+    try {
+      List<InstanceFileBatch.Entry> entries =
+          instanceFileManager.getAttachmentStreams(tableId, requested, userPermissions);
+      if (entries.isEmpty()) {
+        return Response.status(Status.NOT_FOUND).entity("No files found")
+            .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+            .header("Access-Control-Allow-Origin", "*")
+            .header("Access-Control-Allow-Credentials", "true").build();
+      }
+
+      InstanceFileBatchOutput output =
+          new InstanceFileBatchOutput(readers.newBatch(entries, cc),
+              InstanceFileBatchOutput.prefersZip(httpHeaders), getFile, appId, tableId,
+              schemaETag);
+      return Response.ok(output).type(output.getMediaType())
+          .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+          .header("Access-Control-Allow-Origin", "*")
+          .header("Access-Control-Allow-Credentials", "true").build();
+    } catch (ODKDatastoreException e) {
+      e.printStackTrace();
+      return Response.status(Status.INTERNAL_SERVER_ERROR)
+          .entity("Unable to retrieve attachments and access attributes for table: " + tableId)
+          .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+          .header("Access-Control-Allow-Origin", "*")
+          .header("Access-Control-Allow-Credentials", "true").build();
+    }
+  }
 
   /**
    * Takes a multipart form containing the files to be uploaded. The Content-Disposition for each
@@ -508,7 +529,7 @@ public class InstanceFileService {
   @Path("file/{filePath:.*}")
   // @Consumes({MediaType.MEDIA_TYPE_WILDCARD})
   public Response putFile(@Context HttpServletRequest req,
-      @PathParam("filePath") List<PathSegment> segments, byte[] content)
+      @PathParam("filePath") List<PathSegment> segments, InputStream content)
       throws IOException, ODKTaskLockException, PermissionDeniedException, ODKDatastoreException {
     if (segments.size() < 1) {
       return Response.status(Status.BAD_REQUEST)
@@ -524,13 +545,18 @@ public class InstanceFileService {
     // appid/data/attachments/tableid/instances/instanceId/rest/of/path
     String partialPath = constructPathFromSegments(segments);
     String contentType = req.getContentType();
-    String md5Hash = PersistenceUtils.newMD5HashUri(content);
 
     InstanceFileManager fileInstanceManager = new InstanceFileManager(appId, cc);
 
-    FileContentInfo fileContentInfo =
-        new FileContentInfo(partialPath, contentType, (long) content.length, md5Hash, content);
-    InstanceFileChangeDetail outcome = fileInstanceManager.putFile(tableId, rowId, fileContentInfo, userPermissions);
+    // streamed into the store, hashing it as it goes
+    InstanceFileChangeDetail outcome;
+    InputStream bi = new BufferedInputStream(content);
+    try {
+      outcome = fileInstanceManager.putFile(tableId, rowId, partialPath, contentType, bi,
+          userPermissions);
+    } finally {
+      bi.close();
+    }
 
     UriBuilder uriBuilder = info.getBaseUriBuilder();
     uriBuilder.path(OdkTables.class);
@@ -561,6 +587,249 @@ public class InstanceFileService {
     }
   }
 
+  /**
+   * Start a resumable (tus 1.0.0) upload of a file of this row. The Upload-Length header gives
+   * the length of the file; the Upload-Metadata header its instance-relative path (filename), its
+   * content type (filetype) and its md5 hash (md5), each base64-encoded. The file is then sent in
+   * one or more PATCH requests to the returned Location, and attached to the row once all of it
+   * has arrived and matches the md5 hash. Only the user who started the upload may resume or
+   * abandon it; to anyone else it is not found.
+   *
+   * @param httpHeaders
+   * @return 201 (Created) with the Location of the upload
+   * @throws IOException
+   * @throws ODKDatastoreException
+   * @throws PermissionDeniedException
+   */
+  @POST
+  @Path("uploads")
+  public Response createUpload(@Context HttpHeaders httpHeaders)
+      throws IOException, ODKDatastoreException, PermissionDeniedException {
+    Response invalid = checkTusResumable(httpHeaders);
+    if (invalid != null) {
+      return invalid;
+    }
+    if (rowId == null || rowId.length() == 0) {
+      return uploadResponse(Response.status(Status.BAD_REQUEST)
+          .entity(InstanceFileService.ERROR_MSG_INVALID_ROW_ID)).build();
+    }
+    Long uploadLength = parseLongHeader(httpHeaders, HEADER_UPLOAD_LENGTH);
+    Map<String, String> metadata = parseUploadMetadata(
+        httpHeaders.getHeaderString(HEADER_UPLOAD_METADATA));
+    String partialPath = (metadata == null) ? null : metadata.get(METADATA_FILENAME);
+    String contentHash = (metadata == null) ? null : toMD5HashUri(metadata.get(METADATA_MD5));
+    if (uploadLength == null || uploadLength < 0L || partialPath == null
+        || partialPath.length() == 0 || contentHash == null) {
+      return uploadResponse(Response.status(Status.BAD_REQUEST)
+          .entity(InstanceFileService.ERROR_MSG_UPLOAD_CREATION_HEADERS)).build();
+    }
+    String contentType = metadata.get(METADATA_FILETYPE);
+    if (contentType == null || contentType.length() == 0) {
+      contentType = MediaType.APPLICATION_OCTET_STREAM;
+    }
+
+    InstanceFileManager instanceFileManager = new InstanceFileManager(appId, cc);
+    DbInstanceFileUploadEntity upload = instanceFileManager.createUpload(tableId, rowId,
+        partialPath, contentType, contentHash, uploadLength, userPermissions);
+
+    UriBuilder uriBuilder = info.getBaseUriBuilder();
+    uriBuilder.path(OdkTables.class);
+    uriBuilder.path(OdkTables.class, "getTablesService");
+
+    URI getUpload = uriBuilder.clone().path(TableService.class, "getRealizedTable")
+        .path(RealizedTableService.class, "getInstanceFiles")
+        .path(InstanceFileService.class, "getUploadOffset")
+        .build(appId, tableId, schemaETag, rowId, upload.getId());
+
+    String locationUrl = getUpload.toURL().toExternalForm();
+    return uploadResponse(Response.status(Status.CREATED)).header("Location", locationUrl)
+        .header(HEADER_UPLOAD_EXPIRES, formatHttpDate(upload.getExpires())).build();
+  }
+
+  /**
+   * @param httpHeaders
+   * @param uploadId
+   * @return the Upload-Offset from which to resume the upload, and its Upload-Length
+   * @throws ODKDatastoreException
+   * @throws PermissionDeniedException
+   * @throws FileNotFoundException
+   */
+  @HEAD
+  @Path("uploads/{uploadId}")
+  public Response getUploadOffset(@Context HttpHeaders httpHeaders,
+      @PathParam("uploadId") String uploadId)
+      throws ODKDatastoreException, PermissionDeniedException, FileNotFoundException {
+    Response invalid = checkTusResumable(httpHeaders);
+    if (invalid != null) {
+      return invalid;
+    }
+    InstanceFileManager instanceFileManager = new InstanceFileManager(appId, cc);
+    DbInstanceFileUploadEntity upload =
+        instanceFileManager.getUpload(tableId, rowId, uploadId, userPermissions);
+    return uploadResponse(Response.ok())
+        .header(HEADER_UPLOAD_OFFSET, Long.toString(upload.getUploadOffset()))
+        .header(HEADER_UPLOAD_LENGTH, Long.toString(upload.getUploadLength()))
+        .header(HEADER_UPLOAD_EXPIRES, formatHttpDate(upload.getExpires()))
+        .header(HttpHeaders.CACHE_CONTROL, "no-store").build();
+  }
+
+  /**
+   * Append the body to the upload, which must resume from its Upload-Offset. If the body is cut
+   * short, what arrived is kept; ask for the Upload-Offset again to resume. The request that
+   * completes the file also attaches it to the row.
+   *
+   * @param httpHeaders
+   * @param uploadId
+   * @param content
+   * @return 204 (No Content) with the new Upload-Offset, or 409 (Conflict) with the expected one
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws ODKTablesException
+   */
+  @PATCH
+  @Path("uploads/{uploadId}")
+  @Consumes({MEDIA_OFFSET_OCTET_STREAM})
+  public Response appendToUpload(@Context HttpHeaders httpHeaders,
+      @PathParam("uploadId") String uploadId, InputStream content)
+      throws ODKDatastoreException, ODKTaskLockException, ODKTablesException {
+    Response invalid = checkTusResumable(httpHeaders);
+    if (invalid != null) {
+      return invalid;
+    }
+    Long uploadOffset = parseLongHeader(httpHeaders, HEADER_UPLOAD_OFFSET);
+    if (uploadOffset == null) {
+      return uploadResponse(Response.status(Status.BAD_REQUEST)
+          .entity(InstanceFileService.ERROR_MSG_UPLOAD_OFFSET_EXPECTED)).build();
+    }
+
+    InstanceFileManager instanceFileManager = new InstanceFileManager(appId, cc);
+    DbInstanceFileUploadEntity upload;
+    try {
+      upload = instanceFileManager.appendToUpload(tableId, rowId, uploadId, uploadOffset,
+          content, userPermissions);
+    } catch (UploadOffsetMismatchException e) {
+      return uploadResponse(Response.status(Status.CONFLICT).entity(e.getMessage()))
+          .header(HEADER_UPLOAD_OFFSET, Long.toString(e.getUploadOffset())).build();
+    }
+    return uploadResponse(Response.noContent())
+        .header(HEADER_UPLOAD_OFFSET, Long.toString(upload.getUploadOffset()))
+        .header(HEADER_UPLOAD_EXPIRES, formatHttpDate(upload.getExpires())).build();
+  }
+
+  /**
+   * Abandon the upload, removing what was received.
+   *
+   * @param httpHeaders
+   * @param uploadId
+   * @return 204 (No Content)
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws PermissionDeniedException
+   * @throws FileNotFoundException
+   */
+  @DELETE
+  @Path("uploads/{uploadId}")
+  public Response deleteUpload(@Context HttpHeaders httpHeaders,
+      @PathParam("uploadId") String uploadId) throws ODKDatastoreException,
+      ODKTaskLockException, PermissionDeniedException, FileNotFoundException {
+    Response invalid = checkTusResumable(httpHeaders);
+    if (invalid != null) {
+      return invalid;
+    }
+    InstanceFileManager instanceFileManager = new InstanceFileManager(appId, cc);
+    instanceFileManager.deleteUpload(tableId, rowId, uploadId, userPermissions);
+    return uploadResponse(Response.noContent()).build();
+  }
+
+  /**
+   * @return a 412 (Precondition Failed) response if the client speaks another version of the
+   *         resumable upload protocol; otherwise null
+   */
+  private static Response checkTusResumable(HttpHeaders httpHeaders) {
+    String version = httpHeaders.getHeaderString(HEADER_TUS_RESUMABLE);
+    if (version == null || TUS_VERSION.equals(version)) {
+      return null;
+    }
+    return uploadResponse(Response.status(Status.PRECONDITION_FAILED))
+        .header(HEADER_TUS_VERSION, TUS_VERSION).build();
+  }
+
+  /**
+   * Add the headers common to the resumable upload responses.
+   */
+  private static ResponseBuilder uploadResponse(ResponseBuilder rBuild) {
+    return rBuild.header(HEADER_TUS_RESUMABLE, TUS_VERSION)
+        .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+        .header("Access-Control-Allow-Origin", "*")
+        .header("Access-Control-Allow-Credentials", "true")
+        .header("Access-Control-Expose-Headers", "Location, " + HEADER_TUS_RESUMABLE + ", "
+            + HEADER_UPLOAD_OFFSET + ", " + HEADER_UPLOAD_LENGTH + ", " + HEADER_UPLOAD_EXPIRES);
+  }
+
+  /**
+   * @return the value of the header, or null if it is missing or not a number
+   */
+  private static Long parseLongHeader(HttpHeaders httpHeaders, String name) {
+    String value = httpHeaders.getHeaderString(name);
+    if (value == null) {
+      return null;
+    }
+    try {
+      return Long.valueOf(value.trim());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Parse an Upload-Metadata header: comma-separated pairs of a key and its base64-encoded value.
+   *
+   * @return the decoded values by key, or null if the header is missing or malformed
+   */
+  private static Map<String, String> parseUploadMetadata(String header) {
+    if (header == null) {
+      return null;
+    }
+    Map<String, String> metadata = new HashMap<String, String>();
+    for (String pair : header.split(",")) {
+      String[] keyValue = pair.trim().split(" ", 2);
+      if (keyValue[0].length() == 0) {
+        continue;
+      }
+      try {
+        String value = (keyValue.length == 1) ? ""
+            : new String(Base64.getDecoder().decode(keyValue[1].trim()), StandardCharsets.UTF_8);
+        metadata.put(keyValue[0], value);
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+    return metadata;
+  }
+
+  /**
+   * @return the md5 hash uri of a hex md5 hash, with or without the md5: prefix; null if it is
+   *         not one
+   */
+  private static String toMD5HashUri(String md5) {
+    if (md5 == null) {
+      return null;
+    }
+    String hex = md5.trim().toLowerCase(Locale.ROOT);
+    if (hex.startsWith("md5:")) {
+      hex = hex.substring(4);
+    }
+    if (!hex.matches("[0-9a-f]{32}")) {
+      return null;
+    }
+    return "md5:" + hex;
+  }
+
+  private static String formatHttpDate(Date date) {
+    return DateTimeFormatter.RFC_1123_DATE_TIME
+        .format(ZonedDateTime.ofInstant(date.toInstant(), ZoneOffset.UTC));
+  }
+
   /**
    * Construct the path for the file. This is the entire path excluding the app id.
    *
@@ -25,6 +25,8 @@ import org.opendatakit.ContextUtils;
 import org.opendatakit.aggregate.odktables.rest.ApiConstants;
 import org.opendatakit.aggregate.odktables.rest.entity.AppNameList;
 import org.opendatakit.aggregate.odktables.rest.entity.ClientVersionList;
+import org.opendatakit.configuration.NotificationConfiguration;
+import org.opendatakit.configuration.SyncConfiguration;
 import org.opendatakit.context.CallingContext;
 import org.opendatakit.odktables.exception.AppNameMismatchException;
 import org.opendatakit.odktables.exception.PermissionDeniedException;
@@ -56,6 +58,12 @@ public class OdkTables {
   @Autowired
   CallingContext callingContext;
 
+  @Autowired
+  SyncConfiguration syncConfiguration;
+
+  @Autowired
+  NotificationConfiguration notificationConfiguration;
+
   @GET
   @ApiOperation(value = "Returns list of applications.  Usually only returns 'default'.",
       response = AppNameList.class)
@@ -202,7 +210,46 @@ public class OdkTables {
       throw new AppNameMismatchException("AppName (" + appId + ") differs");
     }
     logger.debug("Retrieving table service " + appId + " " + tableId);
-    return new TableService(sc, req, res, httpHeaders, info, appId, tableId, callingContext);
+    return new TableService(sc, req, res, httpHeaders, info, appId, tableId, syncConfiguration,
+        callingContext);
+  }
+
+  @Path("{appId}/sync")
+  public SyncBatchService getSyncBatchService(@Context ServletContext sc,
+      @Context HttpServletRequest req, @Context HttpHeaders httpHeaders, @Context UriInfo info,
+      @PathParam("appId") String appId) throws AppNameMismatchException, PermissionDeniedException,
+      ODKDatastoreException, ODKTaskLockException {
+
+    ServiceUtils.examineRequest(sc, req, httpHeaders);
+    String preferencesAppId = ContextUtils.getOdkTablesAppId(callingContext);
+
+    if (!preferencesAppId.equals(appId)) {
+      throw new AppNameMismatchException("AppName (" + appId + ") differs");
+    }
+
+    return new SyncBatchService(appId, info, callingContext,
+        syncConfiguration.syncBatchExecutor(), syncConfiguration.getParallelism(),
+        syncConfiguration.getMaxTables(), syncConfiguration.rowConverter());
+  }
+
+  @Path("{appId}/changes")
+  public TableChangeService getTableChangeService(@Context ServletContext sc,
+      @Context HttpServletRequest req, @Context HttpHeaders httpHeaders,
+      @PathParam("appId") String appId) throws AppNameMismatchException, PermissionDeniedException,
+      ODKDatastoreException, ODKTaskLockException {
+
+    ServiceUtils.examineRequest(sc, req, httpHeaders);
+    String preferencesAppId = ContextUtils.getOdkTablesAppId(callingContext);
+
+    if (!preferencesAppId.equals(appId)) {
+      throw new AppNameMismatchException("AppName (" + appId + ") differs");
+    }
+
+    return new TableChangeService(appId, callingContext,
+        notificationConfiguration.notificationScheduler(),
+        notificationConfiguration.eventStreamWriters(),
+        notificationConfiguration.getLongPollTimeoutSeconds(),
+        notificationConfiguration.getHeartbeatSeconds());
   }
 
 }
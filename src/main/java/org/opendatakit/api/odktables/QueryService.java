@@ -36,6 +36,7 @@ import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
 import org.opendatakit.context.CallingContext;
 import org.opendatakit.odktables.DataManager;
 import org.opendatakit.odktables.DataManager.WebsafeRows;
+import org.opendatakit.odktables.ParallelRowConverter;
 import org.opendatakit.odktables.exception.BadColumnNameException;
 import org.opendatakit.odktables.exception.InconsistentStateException;
 import org.opendatakit.odktables.exception.PermissionDeniedException;
@@ -64,10 +65,10 @@ public class QueryService {
   private final UriInfo info;
 
   public QueryService(String appId, String tableId, String schemaETag, UriInfo info,
-      TablesUserPermissions userPermissions, CallingContext cc)
+      TablesUserPermissions userPermissions, ParallelRowConverter rowConverter, CallingContext cc)
       throws ODKEntityNotFoundException, ODKDatastoreException {
     this.schemaETag = schemaETag;
-    this.dm = new DataManager(appId, tableId, userPermissions, cc);
+    this.dm = new DataManager(appId, tableId, userPermissions, rowConverter, cc);
     this.info = info;
   }
 
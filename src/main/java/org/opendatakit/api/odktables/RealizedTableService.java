@@ -19,13 +19,16 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
@@ -50,6 +53,7 @@ import org.opendatakit.aggregate.odktables.rest.entity.OdkTablesFileManifestEntr
 import org.opendatakit.aggregate.odktables.rest.entity.TableDefinition;
 import org.opendatakit.aggregate.odktables.rest.entity.TableDefinitionResource;
 import org.opendatakit.api.offices.entity.RegionalOffice;
+import org.opendatakit.configuration.SyncConfiguration;
 import org.opendatakit.constants.BasicConsts;
 import org.opendatakit.constants.WebConsts;
 import org.opendatakit.context.CallingContext;
@@ -81,6 +85,9 @@ import io.swagger.annotations.Authorization;
 public class RealizedTableService {
   private static final Log logger = LogFactory.getLog(RealizedTableService.class);
 
+  public static final String ERROR_MSG_NO_ROWS = "No rowIds specified.";
+  public static final String ERROR_MSG_TOO_MANY_ROWS = "Too many rowIds specified; limit is ";
+
   private final ServletContext sc;
   private final HttpServletRequest req;
   private final HttpHeaders headers;
@@ -91,12 +98,13 @@ public class RealizedTableService {
   private final boolean notActiveSchema;
   private final TablesUserPermissions userPermissions;
   private final TableManager tm;
+  private final SyncConfiguration syncConfiguration;
   private final CallingContext cc;
 
   public RealizedTableService(ServletContext sc, HttpServletRequest req, HttpHeaders headers,
       UriInfo info, String appId, String tableId, String schemaETag, boolean notActiveSchema,
-      TablesUserPermissions userPermissions, TableManager tm, CallingContext cc)
-      throws ODKEntityNotFoundException, ODKDatastoreException {
+      TablesUserPermissions userPermissions, TableManager tm, SyncConfiguration syncConfiguration,
+      CallingContext cc) throws ODKEntityNotFoundException, ODKDatastoreException {
     this.sc = sc;
     this.req = req;
     this.headers = headers;
@@ -107,6 +115,7 @@ public class RealizedTableService {
     this.notActiveSchema = notActiveSchema;
     this.userPermissions = userPermissions;
     this.tm = tm;
+    this.syncConfiguration = syncConfiguration;
     this.cc = cc;
   }
 
@@ -159,7 +168,8 @@ public class RealizedTableService {
     if (notActiveSchema) {
       throw new TableNotFoundException(TableService.ERROR_TABLE_NOT_FOUND + "\n" + tableId);
     }
-    DataService service = new DataService(appId, tableId, schemaETag, info, userPermissions, cc);
+    DataService service = new DataService(appId, tableId, schemaETag, info, userPermissions,
+        syncConfiguration.rowConverter(), syncConfiguration.tableWriteQueue(), cc);
     return service;
   }
 
@@ -182,7 +192,8 @@ public class RealizedTableService {
     if (notActiveSchema) {
       throw new TableNotFoundException(TableService.ERROR_TABLE_NOT_FOUND + "\n" + tableId);
     }
-    DiffService service = new DiffService(appId, tableId, schemaETag, info, userPermissions, cc);
+    DiffService service = new DiffService(appId, tableId, schemaETag, info, userPermissions,
+        syncConfiguration.rowConverter(), cc);
     return service;
   }
 
@@ -205,7 +216,25 @@ public class RealizedTableService {
     if (notActiveSchema) {
       throw new TableNotFoundException(TableService.ERROR_TABLE_NOT_FOUND + "\n" + tableId);
     }
-    QueryService service = new QueryService(appId, tableId, schemaETag, info, userPermissions, cc);
+    QueryService service = new QueryService(appId, tableId, schemaETag, info, userPermissions,
+        syncConfiguration.rowConverter(), cc);
+    return service;
+  }
+
+  /**
+   * Snapshot subresource for a realized tableId (supplied in implementation constructor)
+   *
+   * @return {@link SnapshotService} for bootstrapping a device with the rows of this table.
+   * @throws TableNotFoundException
+   */
+  @Path("snapshot")
+  public SnapshotService getSnapshot() throws TableNotFoundException {
+
+    if (notActiveSchema) {
+      throw new TableNotFoundException(TableService.ERROR_TABLE_NOT_FOUND + "\n" + tableId);
+    }
+    SnapshotService service = new SnapshotService(appId, tableId, schemaETag, info,
+        userPermissions, cc);
     return service;
   }
 
@@ -282,6 +311,59 @@ public class RealizedTableService {
 
 
 
+  /**
+   * Batch download of the attachments of several rows. The JSON is the list of rowIds; all of
+   * their attachments are streamed, row by row, as the parts of a multipart/mixed response or as a
+   * zip archive if the client accepts that in preference. For selected files of a single row, use
+   * attachments/{rowId}/download.
+   *
+   * @param httpHeaders
+   * @param rowIds
+   * @return
+   * @throws ODKTaskLockException
+   * @throws PermissionDeniedException
+   * @throws TableNotFoundException
+   * @see InstanceFileBatchOutput
+   */
+  @POST
+  @Path("attachments/download")
+  @Consumes({MediaType.APPLICATION_JSON})
+  @Produces({InstanceFileBatchOutput.MEDIA_MULTIPART_MIXED,
+      InstanceFileBatchOutput.MEDIA_APPLICATION_ZIP})
+  public Response getFiles(@Context HttpHeaders httpHeaders, ArrayList<String> rowIds)
+      throws ODKTaskLockException, PermissionDeniedException, TableNotFoundException {
+    if (notActiveSchema) {
+      throw new TableNotFoundException(TableService.ERROR_TABLE_NOT_FOUND + "\n" + tableId);
+    }
+    if (rowIds == null || rowIds.isEmpty()) {
+      return Response.status(Status.BAD_REQUEST).entity(ERROR_MSG_NO_ROWS)
+          .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+          .header("Access-Control-Allow-Origin", "*")
+          .header("Access-Control-Allow-Credentials", "true").build();
+    }
+    int maxRows = syncConfiguration.instanceFileReaders().getMaxRows();
+    if (rowIds.size() > maxRows) {
+      return Response.status(Status.BAD_REQUEST).entity(ERROR_MSG_TOO_MANY_ROWS + maxRows)
+          .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+          .header("Access-Control-Allow-Origin", "*")
+          .header("Access-Control-Allow-Credentials", "true").build();
+    }
+
+    Map<String, Set<String>> requested = new LinkedHashMap<String, Set<String>>();
+    for (String rowId : rowIds) {
+      if (rowId == null || rowId.length() == 0) {
+        return Response.status(Status.BAD_REQUEST).entity(ERROR_MSG_NO_ROWS)
+            .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+            .header("Access-Control-Allow-Origin", "*")
+            .header("Access-Control-Allow-Credentials", "true").build();
+      }
+      requested.put(rowId, null);
+    }
+
+    return InstanceFileService.getFiles(httpHeaders, appId, tableId, schemaETag, requested, info,
+        userPermissions, syncConfiguration.instanceFileReaders(), cc);
+  }
+
   /**
    * Instance file subresource for a realized tableId and (supplied in implementation constructor)
    *
@@ -302,8 +384,8 @@ public class RealizedTableService {
     if (notActiveSchema) {
       throw new TableNotFoundException(TableService.ERROR_TABLE_NOT_FOUND + "\n" + tableId);
     }
-    InstanceFileService service =
-        new InstanceFileService(appId, tableId, schemaETag, rowId, info, userPermissions, cc);
+    InstanceFileService service = new InstanceFileService(appId, tableId, schemaETag, rowId, info,
+        userPermissions, syncConfiguration.instanceFileReaders(), cc);
     return service;
   }
 
@@ -0,0 +1,193 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.api.odktables;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.util.ArrayList;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+
+import org.opendatakit.aggregate.odktables.rest.ApiConstants;
+import org.opendatakit.aggregate.odktables.rest.entity.OdkTablesFileManifestEntry;
+import org.opendatakit.aggregate.odktables.rest.entity.TableRole.TablePermission;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.odktables.TableSnapshotBuilder;
+import org.opendatakit.odktables.entity.TableSnapshotManifest;
+import org.opendatakit.odktables.exception.PermissionDeniedException;
+import org.opendatakit.odktables.relation.DbTableSnapshot;
+import org.opendatakit.odktables.relation.DbTableSnapshot.DbTableSnapshotEntity;
+import org.opendatakit.odktables.relation.DbTableSnapshotFiles;
+import org.opendatakit.odktables.relation.DbTableSnapshotPage;
+import org.opendatakit.odktables.relation.DbTableSnapshotPage.DbTableSnapshotPageEntity;
+import org.opendatakit.odktables.security.TablesUserPermissions;
+import org.opendatakit.odktables.util.ServiceUtils;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.Authorization;
+
+/**
+ * Serves the pre-built snapshot of a table (see {@link TableSnapshotBuilder}). A new device reads
+ * the manifest, downloads its pages, and then calls getRowsSince with the manifest's dataETag.
+ *
+ * Snapshots hold every row, so they are only served to users who may read every row.
+ */
+@Api(authorizations = {@Authorization(value = "basicAuth")})
+public class SnapshotService {
+
+  private final String appId;
+  private final String tableId;
+  private final String schemaETag;
+  private final UriInfo info;
+  private final TablesUserPermissions userPermissions;
+  private final CallingContext cc;
+
+  public SnapshotService(String appId, String tableId, String schemaETag, UriInfo info,
+      TablesUserPermissions userPermissions, CallingContext cc) {
+    this.appId = appId;
+    this.tableId = tableId;
+    this.schemaETag = schemaETag;
+    this.info = info;
+    this.userPermissions = userPermissions;
+    this.cc = cc;
+  }
+
+  /**
+   * @param httpHeaders
+   * @return {@link TableSnapshotManifest} of the current snapshot, or 404 (Not Found) if the table
+   *         has no snapshot for this schemaETag yet
+   * @throws ODKDatastoreException
+   * @throws PermissionDeniedException
+   */
+  @GET
+  @ApiOperation(value = "Get the manifest of the table's snapshot.",
+      response = TableSnapshotManifest.class)
+  @Produces({MediaType.APPLICATION_JSON, ApiConstants.MEDIA_TEXT_XML_UTF8,
+      ApiConstants.MEDIA_APPLICATION_XML_UTF8})
+  public Response getManifest(@Context HttpHeaders httpHeaders)
+      throws ODKDatastoreException, PermissionDeniedException {
+    checkPermissions();
+
+    DbTableSnapshotEntity snapshot = DbTableSnapshot.getSnapshot(tableId, cc);
+    if (snapshot == null || !schemaETag.equals(snapshot.getSchemaETag())) {
+      return notFound("No snapshot is available for table " + tableId);
+    }
+    String eTag = snapshot.getDataETag();
+    if (ServiceUtils.matchesIfNoneMatch(httpHeaders, eTag)) {
+      return Response.status(Status.NOT_MODIFIED).header(HttpHeaders.ETAG, eTag)
+          .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+          .header("Access-Control-Allow-Origin", "*")
+          .header("Access-Control-Allow-Credentials", "true").build();
+    }
+
+    ArrayList<OdkTablesFileManifestEntry> pages = new ArrayList<OdkTablesFileManifestEntry>();
+    for (DbTableSnapshotPageEntity page : DbTableSnapshotPage.query(tableId,
+        snapshot.getDataETag(), cc)) {
+      OdkTablesFileManifestEntry entry = new OdkTablesFileManifestEntry();
+      entry.filename = "page-" + page.getOrdinal() + ".json.gz";
+      entry.contentLength = page.getContentLength();
+      entry.contentType = TableSnapshotBuilder.PAGE_CONTENT_TYPE;
+      entry.md5hash = page.getContentHash();
+      entry.downloadUrl = getPageUrl(snapshot.getDataETag(), page.getOrdinal());
+      pages.add(entry);
+    }
+    TableSnapshotManifest manifest = new TableSnapshotManifest(snapshot.getSchemaETag(),
+        snapshot.getDataETag(), snapshot.getRowCount(), pages);
+    return Response.ok(manifest).header(HttpHeaders.ETAG, eTag)
+        .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+        .header("Access-Control-Allow-Origin", "*")
+        .header("Access-Control-Allow-Credentials", "true").build();
+  }
+
+  /**
+   * The pages of a snapshot are kept for sync.snapshots.retainSupersededSeconds after it is
+   * replaced and removed after that; a 404 (Not Found) means the manifest should be fetched again.
+   *
+   * @param dataETag
+   *          the dataETag of the snapshot
+   * @param ordinal
+   *          the page number, from 1
+   * @return the gzip-compressed JSON RowList of the page
+   * @throws ODKDatastoreException
+   * @throws PermissionDeniedException
+   */
+  @GET
+  @Path("{dataETag}/{ordinal}")
+  @ApiOperation(value = "Get a page of the table's snapshot.")
+  @Produces({TableSnapshotBuilder.PAGE_CONTENT_TYPE})
+  public Response getPage(@PathParam("dataETag") String dataETag,
+      @PathParam("ordinal") int ordinal) throws ODKDatastoreException, PermissionDeniedException {
+    checkPermissions();
+
+    DbTableSnapshotPageEntity page = DbTableSnapshotPage.getPage(tableId, dataETag, ordinal, cc);
+    if (page == null) {
+      return notFound("No such snapshot page: " + dataETag + "/" + ordinal);
+    }
+    DbTableSnapshotFiles files = new DbTableSnapshotFiles(cc);
+    byte[] content;
+    try {
+      content = files.getBlobEntitySet(page.getBlobSetUri(), cc).getBlob(1, cc);
+    } catch (ODKDatastoreException e) {
+      // replaced and removed since the page record was read
+      return notFound("No such snapshot page: " + dataETag + "/" + ordinal);
+    }
+    // the compression filter leaves application/gzip alone
+    return Response.ok(content).type(TableSnapshotBuilder.PAGE_CONTENT_TYPE)
+        .header(HttpHeaders.CONTENT_LENGTH, content.length)
+        .header(HttpHeaders.ETAG, page.getContentHash())
+        .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+        .header("Access-Control-Allow-Origin", "*")
+        .header("Access-Control-Allow-Credentials", "true").build();
+  }
+
+  private void checkPermissions() throws ODKDatastoreException, PermissionDeniedException {
+    userPermissions.checkPermission(appId, tableId, TablePermission.READ_ROW);
+    if (!userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)) {
+      throw new PermissionDeniedException(
+          "Snapshots are only available to users who may read every row of table " + tableId);
+    }
+  }
+
+  private Response notFound(String message) {
+    return Response.status(Status.NOT_FOUND).entity(message)
+        .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+        .header("Access-Control-Allow-Origin", "*")
+        .header("Access-Control-Allow-Credentials", "true").build();
+  }
+
+  private String getPageUrl(String dataETag, int ordinal) {
+    UriBuilder ub = info.getBaseUriBuilder();
+    ub.path(OdkTables.class);
+    ub.path(OdkTables.class, "getTablesService");
+    URI page = ub.clone().path(TableService.class, "getRealizedTable")
+        .path(RealizedTableService.class, "getSnapshot").path(SnapshotService.class, "getPage")
+        .build(appId, tableId, schemaETag, dataETag, ordinal);
+    try {
+      return page.toURL().toExternalForm();
+    } catch (MalformedURLException e) {
+      e.printStackTrace();
+      throw new IllegalArgumentException("unable to convert URL ");
+    }
+  }
+}
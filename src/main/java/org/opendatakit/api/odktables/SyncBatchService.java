@@ -0,0 +1,299 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.api.odktables;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.aggregate.odktables.rest.ApiConstants;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.odktables.DataManager;
+import org.opendatakit.odktables.ParallelRowConverter;
+import org.opendatakit.odktables.DataManager.WebsafeRows;
+import org.opendatakit.odktables.entity.StreamingTableSyncResultList;
+import org.opendatakit.odktables.entity.TableSyncRequest;
+import org.opendatakit.odktables.entity.TableSyncRequestList;
+import org.opendatakit.odktables.entity.TableSyncResult;
+import org.opendatakit.odktables.entity.TableSyncResultList;
+import org.opendatakit.odktables.entity.serialization.SimpleSmileMessageReaderWriter;
+import org.opendatakit.odktables.exception.ODKTablesException;
+import org.opendatakit.odktables.exception.PermissionDeniedException;
+import org.opendatakit.odktables.relation.DbTableEntry;
+import org.opendatakit.odktables.relation.DbTableEntry.DbTableEntryEntity;
+import org.opendatakit.odktables.security.TablesUserPermissions;
+import org.opendatakit.odktables.security.TablesUserPermissionsImpl;
+import org.opendatakit.persistence.QueryResumePoint;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+import org.opendatakit.persistence.exception.ODKTaskLockException;
+import org.opendatakit.utils.WebUtils;
+import org.springframework.security.concurrent.DelegatingSecurityContextCallable;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.Authorization;
+
+/**
+ * Returns the changes to many tables in one round trip. Each requested table is read on the shared
+ * batch sync pool (see SyncConfiguration); at most {@code parallelism} tables of a request are in
+ * flight at once, and results are written in request order as they complete.
+ */
+@Api(authorizations = {@Authorization(value = "basicAuth")})
+public class SyncBatchService {
+
+  private static final Log logger = LogFactory.getLog(SyncBatchService.class);
+
+  public static final String ERROR_MSG_NO_TABLES = "No tables specified.";
+  public static final String ERROR_MSG_TOO_MANY_TABLES = "Too many tables specified; limit is ";
+
+  private static final int DEFAULT_FETCH_LIMIT = 2000;
+
+  private final String appId;
+  private final UriInfo info;
+  private final CallingContext cc;
+  private final ExecutorService executor;
+  private final int parallelism;
+  private final int maxTables;
+  private final ParallelRowConverter rowConverter;
+
+  public SyncBatchService(String appId, UriInfo info, CallingContext cc, ExecutorService executor,
+      int parallelism, int maxTables, ParallelRowConverter rowConverter) {
+    this.appId = appId;
+    this.info = info;
+    this.cc = cc;
+    this.executor = executor;
+    this.parallelism = Math.max(1, parallelism);
+    this.maxTables = maxTables;
+    this.rowConverter = rowConverter;
+  }
+
+  /**
+   * For each (tableId, dataETag, cursor) in the request, return the same page of changes that
+   * getRowsSince would, together with the table's current schemaETag, dataETag and table-level
+   * manifest ETag. A table that cannot be read carries an error message instead; the other tables
+   * are unaffected.
+   *
+   * @param request
+   * @return {@link TableSyncResultList} with one entry per requested table
+   * @throws ODKDatastoreException
+   * @throws PermissionDeniedException
+   * @throws ODKTaskLockException
+   */
+  @POST
+  @ApiOperation(value = "Get the changes to several tables in one request.",
+      response = TableSyncResultList.class)
+  @Consumes({MediaType.APPLICATION_JSON})
+  @Produces({MediaType.APPLICATION_JSON,
+      SimpleSmileMessageReaderWriter.MEDIA_APPLICATION_SMILE})
+  public Response /* TableSyncResultList */ syncTables(TableSyncRequestList request)
+      throws ODKDatastoreException, PermissionDeniedException, ODKTaskLockException {
+
+    if (request == null || request.getTables() == null || request.getTables().isEmpty()) {
+      return badRequest(ERROR_MSG_NO_TABLES);
+    }
+    if (request.getTables().size() > maxTables) {
+      return badRequest(ERROR_MSG_TOO_MANY_TABLES + maxTables);
+    }
+
+    final TablesUserPermissions userPermissions = new TablesUserPermissionsImpl(cc);
+    final int limit = (request.getFetchLimit() == null || request.getFetchLimit() <= 0)
+        ? DEFAULT_FETCH_LIMIT : request.getFetchLimit();
+
+    // the UriInfo proxy and the security context are bound to the request thread; capture what the
+    // workers need from them here.
+    final UriBuilder tablesUri =
+        info.getBaseUriBuilder().path(OdkTables.class).path(OdkTables.class, "getTablesService");
+    final SecurityContext securityContext = SecurityContextHolder.getContext();
+
+    String appLevelManifestETag = null;
+    try {
+      appLevelManifestETag = FileManifestService.getAppLevelManifestETag(cc);
+    } catch (ODKDatastoreException e) {
+      // ignore
+    }
+
+    final List<TableSyncRequest> tables = request.getTables();
+    Iterable<TableSyncResult> results = new Iterable<TableSyncResult>() {
+      @Override
+      public Iterator<TableSyncResult> iterator() {
+        return new ResultIterator(tables.iterator(), userPermissions, limit, tablesUri,
+            securityContext);
+      }
+    };
+
+    return Response.ok(new StreamingTableSyncResultList(results, appLevelManifestETag))
+        .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+        .header("Access-Control-Allow-Origin", "*")
+        .header("Access-Control-Allow-Credentials", "true").build();
+  }
+
+  private Response badRequest(String message) {
+    return Response.status(Status.BAD_REQUEST).entity(message)
+        .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+        .header("Access-Control-Allow-Origin", "*")
+        .header("Access-Control-Allow-Credentials", "true").build();
+  }
+
+  /**
+   * Hands out the table results in request order, keeping up to {@code parallelism} of the
+   * following tables queued on the executor so that they are read while earlier ones are written.
+   */
+  private class ResultIterator implements Iterator<TableSyncResult> {
+    private final Iterator<TableSyncRequest> pending;
+    private final ArrayDeque<Future<TableSyncResult>> inFlight =
+        new ArrayDeque<Future<TableSyncResult>>();
+    private final ArrayDeque<String> inFlightTableIds = new ArrayDeque<String>();
+    private final TablesUserPermissions userPermissions;
+    private final int limit;
+    private final UriBuilder tablesUri;
+    private final SecurityContext securityContext;
+
+    ResultIterator(Iterator<TableSyncRequest> pending, TablesUserPermissions userPermissions,
+        int limit, UriBuilder tablesUri, SecurityContext securityContext) {
+      this.pending = pending;
+      this.userPermissions = userPermissions;
+      this.limit = limit;
+      this.tablesUri = tablesUri;
+      this.securityContext = securityContext;
+      fill();
+    }
+
+    private void fill() {
+      while (inFlight.size() < parallelism && pending.hasNext()) {
+        final TableSyncRequest table = pending.next();
+        Callable<TableSyncResult> task = new Callable<TableSyncResult>() {
+          @Override
+          public TableSyncResult call() {
+            return syncTable(table, userPermissions, limit, tablesUri.clone());
+          }
+        };
+        inFlight.add(executor.submit(DelegatingSecurityContextCallable.create(task,
+            securityContext)));
+        inFlightTableIds.add(String.valueOf(table.getTableId()));
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !inFlight.isEmpty();
+    }
+
+    @Override
+    public TableSyncResult next() {
+      if (inFlight.isEmpty()) {
+        throw new NoSuchElementException();
+      }
+      Future<TableSyncResult> future = inFlight.remove();
+      String tableId = inFlightTableIds.remove();
+      fill();
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        for (Future<TableSyncResult> f : inFlight) {
+          f.cancel(true);
+        }
+        throw new IllegalStateException("Interrupted while syncing table " + tableId, e);
+      } catch (ExecutionException e) {
+        logger.error("Unexpected failure syncing table " + tableId, e.getCause());
+        TableSyncResult result = new TableSyncResult(tableId);
+        result.setError(e.getCause().toString());
+        return result;
+      }
+    }
+  }
+
+  /**
+   * Read one table of the batch. Runs on the batch sync pool.
+   */
+  private TableSyncResult syncTable(TableSyncRequest table, TablesUserPermissions userPermissions,
+      int limit, UriBuilder tablesUri) {
+    String tableId = table.getTableId();
+    TableSyncResult result = new TableSyncResult(tableId);
+    if (tableId == null || tableId.length() == 0) {
+      result.setError("Missing tableId");
+      return result;
+    }
+    try {
+      DbTableEntryEntity entry = DbTableEntry.getTableIdEntry(tableId, cc);
+      String schemaETag = entry.getSchemaETag();
+
+      DataManager dm = new DataManager(appId, tableId, userPermissions, rowConverter, cc);
+      WebsafeRows websafeResult = dm.getRowsSince(table.getDataETag(),
+          QueryResumePoint.fromWebsafeCursor(WebUtils.safeDecode(table.getCursor())), limit);
+
+      ArrayList<RowResource> resources = new ArrayList<RowResource>();
+      for (Row row : websafeResult.rows) {
+        resources.add(getResource(tablesUri, tableId, schemaETag, row));
+      }
+      result.setSchemaETag(schemaETag);
+      result.setDataETag(websafeResult.dataETag);
+      result.setRows(resources);
+      result.setWebSafeRefetchCursor(WebUtils.safeEncode(websafeResult.websafeRefetchCursor));
+      result.setWebSafeBackwardCursor(WebUtils.safeEncode(websafeResult.websafeBackwardCursor));
+      result.setWebSafeResumeCursor(WebUtils.safeEncode(websafeResult.websafeResumeCursor));
+      result.setHasMoreResults(websafeResult.hasMore);
+      result.setHasPriorResults(websafeResult.hasPrior);
+
+      // set the table-level manifest ETag if known...
+      try {
+        result.setTableLevelManifestETag(
+            FileManifestService.getTableLevelManifestETag(tableId, cc));
+      } catch (ODKDatastoreException e) {
+        // ignore
+      }
+    } catch (ODKTablesException | ODKDatastoreException | ODKTaskLockException e) {
+      logger.warn("Unable to sync table " + tableId + ": " + e.toString());
+      result = new TableSyncResult(tableId);
+      result.setError(e.toString());
+    }
+    return result;
+  }
+
+  private RowResource getResource(UriBuilder tablesUri, String tableId, String schemaETag,
+      Row row) {
+    URI self = tablesUri.clone().path(TableService.class, "getRealizedTable")
+        .path(RealizedTableService.class, "getData").path(DataService.class, "getRow")
+        .build(appId, tableId, schemaETag, row.getRowId());
+    RowResource resource = new RowResource(row);
+    try {
+      resource.setSelfUri(self.toURL().toExternalForm());
+    } catch (MalformedURLException e) {
+      e.printStackTrace();
+      throw new IllegalArgumentException("unable to convert URL ");
+    }
+    return resource;
+  }
+}
@@ -0,0 +1,401 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.api.odktables;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.glassfish.jersey.server.ChunkedOutput;
+import org.opendatakit.aggregate.odktables.rest.ApiConstants;
+import org.opendatakit.aggregate.odktables.rest.entity.Error;
+import org.opendatakit.aggregate.odktables.rest.entity.Error.ErrorType;
+import org.opendatakit.aggregate.odktables.rest.entity.TableRole.TablePermission;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.odktables.TableChangeNotifier;
+import org.opendatakit.odktables.entity.TableChangeEvent;
+import org.opendatakit.odktables.entity.TableChangeEventList;
+import org.opendatakit.odktables.exception.PermissionDeniedException;
+import org.opendatakit.odktables.relation.DbTableEntry;
+import org.opendatakit.odktables.relation.DbTableEntry.DbTableEntryEntity;
+import org.opendatakit.odktables.security.TablesUserPermissions;
+import org.opendatakit.odktables.security.TablesUserPermissionsImpl;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+import org.opendatakit.persistence.exception.ODKTaskLockException;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.Authorization;
+
+/**
+ * Push notification of committed row changes, as a long poll or as a Server-Sent Events stream.
+ * Neither holds a request thread while waiting: the long poll suspends its AsyncResponse and the
+ * event stream returns a ChunkedOutput that is written to from the event stream writer pool.
+ * Each event stream is written by at most one thread at a time and queues what arrives meanwhile;
+ * a client that falls {@value #MAX_PENDING_CHUNKS} chunks behind is disconnected.
+ *
+ * Both accept any number of {@code table} parameters, each either a tableId or
+ * {@code tableId:dataETag}. With no tables, changes to every table the user can read are reported.
+ * When a dataETag is given and the table has already moved past it, the change is reported at once
+ * so that nothing committed between two polls is missed.
+ */
+@Api(authorizations = {@Authorization(value = "basicAuth")})
+public class TableChangeService {
+
+  private static final Log logger = LogFactory.getLog(TableChangeService.class);
+
+  public static final String MEDIA_TEXT_EVENT_STREAM = "text/event-stream";
+  public static final String TABLE_PARAMETER = "table";
+  public static final String TIMEOUT_PARAMETER = "timeout";
+
+  private static final String EVENT_NAME = "change";
+  private static final String HEARTBEAT = ":\n\n";
+  static final int MAX_PENDING_CHUNKS = 100;
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private final String appId;
+  private final CallingContext cc;
+  private final ScheduledExecutorService scheduler;
+  private final Executor writer;
+  private final int maxTimeoutSeconds;
+  private final int heartbeatSeconds;
+
+  public TableChangeService(String appId, CallingContext cc, ScheduledExecutorService scheduler,
+      Executor writer, int maxTimeoutSeconds, int heartbeatSeconds) {
+    this.appId = appId;
+    this.cc = cc;
+    this.scheduler = scheduler;
+    this.writer = writer;
+    this.maxTimeoutSeconds = maxTimeoutSeconds;
+    this.heartbeatSeconds = heartbeatSeconds;
+  }
+
+  /**
+   * Wait for the next change to any of the given tables. Responds with the change(s), or with 204
+   * (No Content) if nothing changed within the timeout. A timeout that is not a number is answered
+   * with 400 (Bad Request).
+   *
+   * @param asyncResponse
+   * @param tables
+   * @param timeout
+   *          seconds to wait; capped by the server
+   * @throws ODKDatastoreException
+   * @throws PermissionDeniedException
+   * @throws ODKTaskLockException
+   */
+  @GET
+  @ApiOperation(value = "Wait for a change to the listed tables.",
+      response = TableChangeEventList.class)
+  @Produces({MediaType.APPLICATION_JSON})
+  public void waitForChanges(@Suspended final AsyncResponse asyncResponse,
+      @QueryParam(TABLE_PARAMETER) List<String> tables,
+      @QueryParam(TIMEOUT_PARAMETER) String timeout)
+      throws ODKDatastoreException, PermissionDeniedException, ODKTaskLockException {
+
+    int seconds = maxTimeoutSeconds;
+    if (timeout != null && timeout.length() != 0) {
+      try {
+        seconds = Math.max(1, Math.min(maxTimeoutSeconds, Integer.parseInt(timeout.trim())));
+      } catch (NumberFormatException e) {
+        asyncResponse.resume(Response.status(Status.BAD_REQUEST)
+            .entity(new Error(ErrorType.BAD_REQUEST,
+                "The " + TIMEOUT_PARAMETER + " must be a number of seconds: " + timeout))
+            .type(MediaType.APPLICATION_JSON)
+            .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+            .header("Access-Control-Allow-Origin", "*")
+            .header("Access-Control-Allow-Credentials", "true").build());
+        return;
+      }
+    }
+
+    final Map<String, String> knownDataETags = parseTables(tables);
+    final Set<String> tableIds = knownDataETags.keySet();
+    final TablesUserPermissions userPermissions = getUserPermissions(tableIds);
+
+    final TableChangeNotifier.Subscriber subscriber = new TableChangeNotifier.Subscriber() {
+      @Override
+      public void onChange(TableChangeEvent event) {
+        if (isVisible(event, tableIds, userPermissions)) {
+          ArrayList<TableChangeEvent> changes = new ArrayList<TableChangeEvent>();
+          changes.add(event);
+          asyncResponse.resume(changesResponse(changes));
+        }
+      }
+    };
+    asyncResponse.setTimeout(seconds, TimeUnit.SECONDS);
+    asyncResponse.setTimeoutHandler(new TimeoutHandler() {
+      @Override
+      public void handleTimeout(AsyncResponse response) {
+        response.resume(Response.noContent()
+            .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+            .header("Access-Control-Allow-Origin", "*")
+            .header("Access-Control-Allow-Credentials", "true").build());
+      }
+    });
+    asyncResponse.register(new CompletionCallback() {
+      @Override
+      public void onComplete(Throwable throwable) {
+        TableChangeNotifier.unsubscribe(subscriber, tableIds);
+      }
+    });
+    TableChangeNotifier.subscribe(subscriber, tableIds);
+
+    // subscribed first, so nothing committed after this check can be missed
+    ArrayList<TableChangeEvent> missed = getMissedChanges(knownDataETags);
+    if (!missed.isEmpty()) {
+      asyncResponse.resume(changesResponse(missed));
+    }
+  }
+
+  /**
+   * Stream changes to the given tables as Server-Sent Events named "change" whose data is the JSON
+   * of the change. A comment line is sent periodically so that dead connections are noticed.
+   *
+   * @param tables
+   * @return the event stream
+   * @throws ODKDatastoreException
+   * @throws PermissionDeniedException
+   * @throws ODKTaskLockException
+   */
+  @GET
+  @ApiOperation(value = "Stream changes to the listed tables as Server-Sent Events.")
+  @Produces({MEDIA_TEXT_EVENT_STREAM})
+  public Response /* ChunkedOutput */ streamChanges(
+      @QueryParam(TABLE_PARAMETER) List<String> tables)
+      throws ODKDatastoreException, PermissionDeniedException, ODKTaskLockException {
+
+    Map<String, String> knownDataETags = parseTables(tables);
+    Set<String> tableIds = knownDataETags.keySet();
+    TablesUserPermissions userPermissions = getUserPermissions(tableIds);
+
+    EventStream stream = new EventStream(tableIds, userPermissions);
+    stream.open();
+    for (TableChangeEvent event : getMissedChanges(knownDataETags)) {
+      stream.onChange(event);
+    }
+    return Response.ok(stream.output)
+        .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+        .header("Cache-Control", "no-cache")
+        .header("Access-Control-Allow-Origin", "*")
+        .header("Access-Control-Allow-Credentials", "true").build();
+  }
+
+  /**
+   * One open event stream: its subscription, its heartbeat and its output. Chunks are queued and
+   * written on the writer pool, so neither the dispatch threads nor the heartbeat scheduler wait
+   * on the client.
+   */
+  private class EventStream implements TableChangeNotifier.Subscriber, Runnable {
+    private final ChunkedOutput<String> output = new ChunkedOutput<String>(String.class);
+    private final Set<String> tableIds;
+    private final TablesUserPermissions userPermissions;
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Runnable drain = new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    };
+    private ScheduledFuture<?> heartbeat;
+
+    EventStream(Set<String> tableIds, TablesUserPermissions userPermissions) {
+      this.tableIds = tableIds;
+      this.userPermissions = userPermissions;
+    }
+
+    void open() {
+      // before subscribing, as a change may arrive and close the stream at once
+      heartbeat = scheduler.scheduleAtFixedRate(this, heartbeatSeconds, heartbeatSeconds,
+          TimeUnit.SECONDS);
+      TableChangeNotifier.subscribe(this, tableIds);
+    }
+
+    @Override
+    public void onChange(TableChangeEvent event) {
+      if (!isVisible(event, tableIds, userPermissions)) {
+        return;
+      }
+      try {
+        send("event: " + EVENT_NAME + "\ndata: " + mapper.writeValueAsString(event) + "\n\n");
+      } catch (JsonProcessingException e) {
+        logger.error("Unable to serialize change to table " + event.getTableId(), e);
+      }
+    }
+
+    @Override
+    public void run() {
+      send(HEARTBEAT);
+    }
+
+    private void send(String chunk) {
+      if (pendingCount.incrementAndGet() > MAX_PENDING_CHUNKS) {
+        logger.warn("Closing an event stream whose client is not keeping up");
+        close();
+        return;
+      }
+      pending.add(chunk);
+      scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+      if (draining.compareAndSet(false, true)) {
+        try {
+          writer.execute(drain);
+        } catch (RejectedExecutionException e) {
+          // shutting down
+          close();
+        }
+      }
+    }
+
+    private void drain() {
+      String chunk;
+      while ((chunk = pending.poll()) != null) {
+        pendingCount.decrementAndGet();
+        write(chunk);
+      }
+      draining.set(false);
+      // a chunk queued after the last poll but before draining was cleared
+      if (!pending.isEmpty()) {
+        scheduleDrain();
+      }
+    }
+
+    private void write(String chunk) {
+      if (output.isClosed()) {
+        close();
+        return;
+      }
+      try {
+        output.write(chunk);
+      } catch (IOException e) {
+        // the client has gone away
+        close();
+      }
+    }
+
+    private void close() {
+      TableChangeNotifier.unsubscribe(this, tableIds);
+      heartbeat.cancel(false);
+      try {
+        output.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  /**
+   * @param tables
+   *          values of the table parameter: tableId or tableId:dataETag
+   * @return the known dataETag (or null) of each listed table, in request order
+   */
+  private static Map<String, String> parseTables(List<String> tables) {
+    Map<String, String> knownDataETags = new LinkedHashMap<String, String>();
+    if (tables != null) {
+      for (String table : tables) {
+        if (table == null || table.length() == 0) {
+          continue;
+        }
+        // dataETags are uuid:... so only the first colon separates the tableId
+        int idx = table.indexOf(':');
+        if (idx == -1) {
+          knownDataETags.put(table, null);
+        } else {
+          knownDataETags.put(table.substring(0, idx), table.substring(idx + 1));
+        }
+      }
+    }
+    return knownDataETags;
+  }
+
+  private TablesUserPermissions getUserPermissions(Set<String> tableIds)
+      throws ODKDatastoreException, PermissionDeniedException, ODKTaskLockException {
+    TablesUserPermissions userPermissions = new TablesUserPermissionsImpl(cc);
+    for (String tableId : tableIds) {
+      userPermissions.checkPermission(appId, tableId, TablePermission.READ_ROW);
+    }
+    return userPermissions;
+  }
+
+  private ArrayList<TableChangeEvent> getMissedChanges(Map<String, String> knownDataETags)
+      throws ODKDatastoreException {
+    ArrayList<TableChangeEvent> missed = new ArrayList<TableChangeEvent>();
+    for (Map.Entry<String, String> known : knownDataETags.entrySet()) {
+      if (known.getValue() == null) {
+        continue;
+      }
+      DbTableEntryEntity entry = DbTableEntry.getTableIdEntry(known.getKey(), cc);
+      String dataETag = entry.getDataETag();
+      if (dataETag != null && !dataETag.equals(known.getValue())) {
+        missed.add(new TableChangeEvent(appId, known.getKey(), dataETag, null));
+      }
+    }
+    return missed;
+  }
+
+  /**
+   * Subscriptions to named tables were permission-checked up front; a subscription to all tables
+   * is filtered here, one event at a time.
+   */
+  private boolean isVisible(TableChangeEvent event, Set<String> tableIds,
+      TablesUserPermissions userPermissions) {
+    if (event.getAppId() != null && !appId.equals(event.getAppId())) {
+      return false;
+    }
+    if (!tableIds.isEmpty()) {
+      return true;
+    }
+    try {
+      return userPermissions.hasPermission(appId, event.getTableId(), TablePermission.READ_ROW);
+    } catch (ODKDatastoreException e) {
+      return false;
+    }
+  }
+
+  private Response changesResponse(ArrayList<TableChangeEvent> changes) {
+    return Response.ok(new TableChangeEventList(changes))
+        .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+        .header("Access-Control-Allow-Origin", "*")
+        .header("Access-Control-Allow-Credentials", "true").build();
+  }
+}
@@ -68,6 +68,7 @@ import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResourceList;
 import org.opendatakit.aggregate.odktables.rest.entity.TableRole.TablePermission;
 import org.opendatakit.api.odktables.TableService;
+import org.opendatakit.configuration.SyncConfiguration;
 import org.opendatakit.constants.BasicConsts;
 import org.opendatakit.constants.WebConsts;
 import org.opendatakit.context.CallingContext;
@@ -121,6 +122,7 @@ public class TableService {
   private final UriInfo info;
   private final String appId;
   private final String tableId;
+  private final SyncConfiguration syncConfiguration;
   private final CallingContext callingContext;
 
   public TableService(ServletContext sc, HttpServletRequest req, HttpServletResponse res, HttpHeaders headers,
@@ -133,12 +135,13 @@ public class TableService {
     this.info = info;
     this.appId = appId;
     tableId = null;
+    syncConfiguration = null;
     this.callingContext = cc;
   }
 
   public TableService(ServletContext sc, HttpServletRequest req, HttpServletResponse res, HttpHeaders headers,
-      UriInfo info, String appId, String tableId, CallingContext cc)
-      throws ODKEntityNotFoundException, ODKDatastoreException {
+      UriInfo info, String appId, String tableId, SyncConfiguration syncConfiguration,
+      CallingContext cc) throws ODKEntityNotFoundException, ODKDatastoreException {
     this.sc = sc;
     this.req = req;
     this.res = res;
@@ -146,6 +149,7 @@ public class TableService {
     this.info = info;
     this.appId = appId;
     this.tableId = tableId;
+    this.syncConfiguration = syncConfiguration;
     this.callingContext = cc;
   }
 
@@ -327,7 +331,8 @@ public class TableService {
     }
     logger.debug("Returning RealizedTableService " + tableId + " " + appId + " " + schemaETag );
     RealizedTableService service = new RealizedTableService(sc, req, headers, info, appId,
-        tableId, schemaETag, (entry.getSchemaETag() == null), userPermissions, tm, callingContext);
+        tableId, schemaETag, (entry.getSchemaETag() == null), userPermissions, tm, syncConfiguration,
+        callingContext);
     return service;
 
   }
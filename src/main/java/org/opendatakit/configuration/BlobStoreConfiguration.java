@@ -0,0 +1,127 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.configuration;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.ContextUtils;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.datamodel.BlobStore;
+import org.opendatakit.datamodel.BlobStores;
+import org.opendatakit.odktables.BlobStoreMigrator;
+import org.opendatakit.odktables.DatastoreBlobStore;
+import org.opendatakit.odktables.LocalFileBlobStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Where the content of app files and instance attachments is kept. Both stores address content by
+ * its hash, so identical files are stored once. With blobstore.type=database (the default) new
+ * content is kept in the database, in one deduplicated set of blob tables; with
+ * blobstore.type=filesystem, it is written under blobstore.filesystem.root instead.
+ *
+ * Content written before either store existed stays in the per-table blob tables. When
+ * blobstore.migrate.enabled is true, it is moved into the active store in the background.
+ *
+ * Once blobstore.filesystem.root is set, the store stays registered for reading whatever the type,
+ * so it must not be removed while it holds content.
+ */
+@Configuration
+public class BlobStoreConfiguration {
+  private static Log logger = LogFactory.getLog(BlobStoreConfiguration.class);
+
+  public static final String TYPE_DATABASE = "database";
+  public static final String TYPE_FILESYSTEM = "filesystem";
+
+  @Autowired
+  private CallingContext callingContext;
+
+  @Value("${blobstore.type:database}")
+  private String type;
+
+  @Value("${blobstore.filesystem.root:}")
+  private String filesystemRoot;
+
+  @Value("${blobstore.migrate.enabled:false}")
+  private boolean migrate;
+
+  @Value("${blobstore.migrate.intervalMinutes:60}")
+  private int migrateIntervalMinutes;
+
+  @Value("${blobstore.migrate.pauseMillis:100}")
+  private long migratePauseMillis;
+
+  private BlobStore databaseStore;
+  private BlobStore filesystemStore;
+  private ScheduledExecutorService scheduler;
+  private BlobStoreMigrator migrator;
+
+  @PostConstruct
+  public void startBlobStore() throws IOException {
+    boolean filesystem = TYPE_FILESYSTEM.equals(type);
+    if (!filesystem && !TYPE_DATABASE.equals(type)) {
+      throw new IllegalStateException("Unknown blobstore.type " + type);
+    }
+    databaseStore = new DatastoreBlobStore();
+    BlobStores.register(databaseStore, !filesystem);
+    if (filesystemRoot != null && filesystemRoot.trim().length() != 0) {
+      filesystemStore = new LocalFileBlobStore(Paths.get(filesystemRoot.trim()));
+      BlobStores.register(filesystemStore, filesystem);
+    } else if (filesystem) {
+      throw new IllegalStateException("blobstore.filesystem.root must be set");
+    }
+    BlobStore store = filesystem ? filesystemStore : databaseStore;
+    if (filesystem) {
+      logger.info("File content is stored under " + filesystemRoot);
+    } else {
+      logger.info("File content is stored in the database.");
+    }
+    if (!migrate) {
+      return;
+    }
+    CallingContext cc = ContextUtils.duplicateContext(callingContext);
+    cc.setAsDaemon(true);
+    migrator = new BlobStoreMigrator(cc, store, migratePauseMillis);
+    scheduler = Executors
+        .newSingleThreadScheduledExecutor(new DaemonThreadFactory("blob-store-migration-"));
+    scheduler.scheduleWithFixedDelay(migrator, 1, migrateIntervalMinutes, TimeUnit.MINUTES);
+  }
+
+  @PreDestroy
+  public void stopBlobStore() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+    if (filesystemStore != null) {
+      BlobStores.unregister(filesystemStore);
+    }
+    if (databaseStore != null) {
+      BlobStores.unregister(databaseStore);
+    }
+  }
+
+  /**
+   * @return the migrator, or null if content is not being moved
+   */
+  public BlobStoreMigrator getMigrator() {
+    return migrator;
+  }
+}
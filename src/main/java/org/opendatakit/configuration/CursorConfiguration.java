@@ -0,0 +1,52 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.configuration;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.utils.WebCursorUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Optional HMAC signing of the websafe cursors handed out by the paged APIs. Set
+ * cursor.signingKey to a shared secret (the same on every server behind a load balancer) to turn
+ * it on. Unsigned XML cursors from older servers are then rejected, unless
+ * cursor.acceptUnsignedXml is set while clients move over.
+ */
+@Configuration
+public class CursorConfiguration {
+  private static Log logger = LogFactory.getLog(CursorConfiguration.class);
+
+  @Value("${cursor.signingKey:}")
+  private String signingKey;
+
+  @Value("${cursor.acceptUnsignedXml:false}")
+  private boolean acceptUnsignedXml;
+
+  @PostConstruct
+  public void configureCursorSigning() {
+    if (signingKey == null || signingKey.length() == 0) {
+      WebCursorUtils.setSigningKey(null);
+    } else {
+      logger.info("Signing websafe cursors.");
+      WebCursorUtils.setSigningKey(signingKey.getBytes(StandardCharsets.UTF_8));
+    }
+    if (acceptUnsignedXml) {
+      logger.warn("Accepting unsigned XML websafe cursors.");
+    }
+    WebCursorUtils.setAcceptUnsignedXml(acceptUnsignedXml);
+  }
+}
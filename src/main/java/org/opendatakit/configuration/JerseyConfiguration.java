@@ -21,6 +21,7 @@ import org.glassfish.jersey.server.wadl.internal.WadlResource;
 import org.glassfish.jersey.servlet.ServletProperties;
 import org.opendatakit.api.RootRedirect;
 import org.opendatakit.api.admin.UserAdminService;
+import org.opendatakit.api.filter.CompressionWriterInterceptor;
 import org.opendatakit.api.filter.GzipReaderInterceptor;
 import org.opendatakit.api.filter.MultipartFormDataToMixedInterceptor;
 import org.opendatakit.api.filter.ProxyUrlSetFilter;
@@ -35,6 +36,8 @@ import org.opendatakit.api.odktables.InstanceFileService;
 import org.opendatakit.api.odktables.OdkTables;
 import org.opendatakit.api.odktables.QueryService;
 import org.opendatakit.api.odktables.RealizedTableService;
+import org.opendatakit.api.odktables.SyncBatchService;
+import org.opendatakit.api.odktables.TableChangeService;
 import org.opendatakit.api.odktables.TableAclService;
 import org.opendatakit.api.odktables.TableService;
 import org.opendatakit.api.odktables.mapper.IOExceptionApplicationXmlMapper;
@@ -57,6 +60,7 @@ import org.opendatakit.api.users.RoleService;
 import org.opendatakit.api.users.UserService;
 import org.opendatakit.odktables.entity.serialization.SimpleHTMLMessageWriter;
 import org.opendatakit.odktables.entity.serialization.SimpleJSONMessageReaderWriter;
+import org.opendatakit.odktables.entity.serialization.SimpleSmileMessageReaderWriter;
 import org.opendatakit.odktables.entity.serialization.SimpleXMLMessageReaderWriter;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
@@ -89,6 +93,7 @@ public class JerseyConfiguration extends ResourceConfig implements ServletConfig
     // Uncomment to handle proxied URLs
     register(ProxyUrlSetFilter.class);
     register(GzipReaderInterceptor.class);
+    register(CompressionWriterInterceptor.class);
     register(MultipartFormDataToMixedInterceptor.class);
 
     register(MultiPartFeature.class);
@@ -102,7 +107,9 @@ public class JerseyConfiguration extends ResourceConfig implements ServletConfig
     register(InstanceFileService.class);
     register(QueryService.class);
     register(RealizedTableService.class);
+    register(SyncBatchService.class);
     register(TableAclService.class);
+    register(TableChangeService.class);
     register(TableService.class);
 
     // Legacy User/Roles ODK 1.0 API
@@ -125,6 +132,7 @@ public class JerseyConfiguration extends ResourceConfig implements ServletConfig
     // Mapper classes
     register(SimpleHTMLMessageWriter.class);
     register(SimpleJSONMessageReaderWriter.class);
+    register(SimpleSmileMessageReaderWriter.class);
     register(SimpleXMLMessageReaderWriter.class);
     register(ODKDatastoreExceptionJsonMapper.class);
     register(ODKDatastoreExceptionTextXmlMapper.class);
@@ -0,0 +1,130 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.configuration;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.ContextUtils;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.odktables.LogCompactor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Periodic compaction of the table change logs. Superseded row versions older than
+ * sync.logCompaction.retainDays are removed; sync.logCompaction.tableRetainDays overrides that per
+ * table as a list of tableId=days pairs. A negative number of days keeps everything, which is the
+ * default.
+ */
+@Configuration
+public class LogCompactionConfiguration {
+  private static Log logger = LogFactory.getLog(LogCompactionConfiguration.class);
+
+  @Autowired
+  private CallingContext callingContext;
+
+  @Value("${sync.logCompaction.retainDays:-1}")
+  private int retainDays;
+
+  @Value("${sync.logCompaction.tableRetainDays:}")
+  private String tableRetainDays;
+
+  @Value("${sync.logCompaction.intervalMinutes:60}")
+  private int intervalMinutes;
+
+  @Value("${sync.logCompaction.batchSize:500}")
+  private int batchSize;
+
+  @Value("${sync.logCompaction.pauseMillis:200}")
+  private long pauseMillis;
+
+  private ScheduledExecutorService scheduler;
+  private LogCompactor compactor;
+
+  @PostConstruct
+  public void startLogCompaction() {
+    Map<String, Long> tableRetainMillis = parseTableRetainDays(tableRetainDays);
+    if (retainDays < 0 && !hasRetention(tableRetainMillis)) {
+      logger.info("Table change logs are kept in full.");
+      return;
+    }
+    CallingContext cc = ContextUtils.duplicateContext(callingContext);
+    cc.setAsDaemon(true);
+    compactor = new LogCompactor(cc, toMillis(retainDays), tableRetainMillis, batchSize,
+        pauseMillis);
+    scheduler = Executors
+        .newSingleThreadScheduledExecutor(new DaemonThreadFactory("log-compaction-"));
+    scheduler.scheduleWithFixedDelay(compactor, intervalMinutes, intervalMinutes,
+        TimeUnit.MINUTES);
+  }
+
+  @PreDestroy
+  public void stopLogCompaction() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * @return the compactor, or null if no table has a retention limit
+   */
+  public LogCompactor getCompactor() {
+    return compactor;
+  }
+
+  private static Map<String, Long> parseTableRetainDays(String value) {
+    Map<String, Long> tableRetainMillis = new HashMap<String, Long>();
+    if (value == null) {
+      return tableRetainMillis;
+    }
+    for (String pair : value.split(",")) {
+      pair = pair.trim();
+      if (pair.length() == 0) {
+        continue;
+      }
+      int idx = pair.indexOf('=');
+      try {
+        if (idx <= 0) {
+          throw new NumberFormatException("expected tableId=days");
+        }
+        tableRetainMillis.put(pair.substring(0, idx).trim(),
+            toMillis(Integer.parseInt(pair.substring(idx + 1).trim())));
+      } catch (NumberFormatException e) {
+        logger.warn("Ignoring sync.logCompaction.tableRetainDays entry " + pair + ": "
+            + e.getMessage());
+      }
+    }
+    return tableRetainMillis;
+  }
+
+  private static boolean hasRetention(Map<String, Long> tableRetainMillis) {
+    for (Long millis : tableRetainMillis.values()) {
+      if (millis >= 0L) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static long toMillis(int days) {
+    return (days < 0) ? -1L : TimeUnit.DAYS.toMillis(days);
+  }
+}
@@ -0,0 +1,131 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.configuration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.odktables.PostgresTableChangeTransport;
+import org.opendatakit.odktables.TableChangeNotifier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Table change notifications. Changes are fanned out to the long-poll and event-stream
+ * subscribers of this server on a dispatch pool and, when notifications.postgres.enabled is set,
+ * to the other servers sharing the database through PostgreSQL LISTEN/NOTIFY (this holds one
+ * database connection open for as long as the server runs).
+ *
+ * Dispatch only hands each change to its subscribers, which never wait on a client. Event streams
+ * are written on a separate pool of notifications.streamWriterThreads threads, as a write blocks
+ * for as long as the client is slow to read. A stream is drained by at most one task at a time, so
+ * that pool queues at most one task per open stream; while slow clients hold its threads the
+ * other streams fall behind, and any stream that falls too far behind is disconnected.
+ */
+@Configuration
+public class NotificationConfiguration {
+  private static Log logger = LogFactory.getLog(NotificationConfiguration.class);
+
+  @Autowired
+  private DataSource dataSource;
+
+  @Value("${jdbc.schema:}")
+  private String schemaName;
+
+  @Value("${notifications.postgres.enabled:false}")
+  private boolean postgresEnabled;
+
+  @Value("${notifications.postgres.waitMillis:10000}")
+  private int waitMillis;
+
+  @Value("${notifications.dispatchThreads:2}")
+  private int dispatchThreads;
+
+  @Value("${notifications.dispatchQueue:10000}")
+  private int dispatchQueue;
+
+  @Value("${notifications.streamWriterThreads:16}")
+  private int streamWriterThreads;
+
+  @Value("${notifications.longPollTimeoutSeconds:60}")
+  private int longPollTimeoutSeconds;
+
+  @Value("${notifications.heartbeatSeconds:30}")
+  private int heartbeatSeconds;
+
+  private ExecutorService dispatcher;
+  private PostgresTableChangeTransport transport;
+
+  @PostConstruct
+  public void startNotifications() {
+    // a change that does not fit in the queue is dropped and logged
+    dispatcher = new ThreadPoolExecutor(dispatchThreads, dispatchThreads, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(dispatchQueue),
+        new DaemonThreadFactory("table-change-"));
+    TableChangeNotifier.setDispatcher(dispatcher);
+    if (postgresEnabled) {
+      transport = new PostgresTableChangeTransport(dataSource,
+          "odktables_changes_" + schemaName, waitMillis);
+      transport.start();
+      TableChangeNotifier.setTransport(transport);
+    } else {
+      logger.info("Table change notifications are not shared with other servers.");
+    }
+  }
+
+  @PreDestroy
+  public void stopNotifications() {
+    TableChangeNotifier.setTransport(null);
+    TableChangeNotifier.setDispatcher(null);
+    if (transport != null) {
+      transport.stop();
+    }
+    dispatcher.shutdown();
+  }
+
+  /**
+   * @return the scheduler for event-stream heartbeats.
+   */
+  @Bean(destroyMethod = "shutdown")
+  public ScheduledExecutorService notificationScheduler() {
+    return Executors
+        .newSingleThreadScheduledExecutor(new DaemonThreadFactory("table-change-heartbeat-"));
+  }
+
+  /**
+   * @return the pool that event streams are written from
+   */
+  @Bean(destroyMethod = "shutdown")
+  public ExecutorService eventStreamWriters() {
+    return Executors.newFixedThreadPool(streamWriterThreads,
+        new DaemonThreadFactory("table-change-stream-"));
+  }
+
+  public int getLongPollTimeoutSeconds() {
+    return longPollTimeoutSeconds;
+  }
+
+  public int getHeartbeatSeconds() {
+    return heartbeatSeconds;
+  }
+}
@@ -0,0 +1,65 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.configuration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PostConstruct;
+
+import org.opendatakit.ContextUtils;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.odktables.SchemaUpgrader;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Upgrades the tables created by an earlier release, once: the missing columns are added while the
+ * server starts and before it serves requests, and the missing indexes are then built in the
+ * background. Set schema.upgrade.enabled to false to skip it, e.g. when several servers share the
+ * database and one of them has already done it.
+ */
+@Configuration
+public class SchemaUpgradeConfiguration {
+
+  @Autowired
+  private CallingContext callingContext;
+
+  @Value("${schema.upgrade.enabled:true}")
+  private boolean enabled;
+
+  @PostConstruct
+  public void upgradeSchema() {
+    if (!enabled) {
+      return;
+    }
+    CallingContext cc = ContextUtils.duplicateContext(callingContext);
+    cc.setAsDaemon(true);
+    final SchemaUpgrader upgrader = new SchemaUpgrader(cc);
+    upgrader.run();
+    schemaIndexBuilder().execute(new Runnable() {
+      @Override
+      public void run() {
+        upgrader.buildIndexes();
+      }
+    });
+  }
+
+  /**
+   * @return the thread that builds the missing indexes after startup
+   */
+  @Bean(destroyMethod = "shutdownNow")
+  public ExecutorService schemaIndexBuilder() {
+    return Executors.newSingleThreadExecutor(new DaemonThreadFactory("schema-index-builder-"));
+  }
+}
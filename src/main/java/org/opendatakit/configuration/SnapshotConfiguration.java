@@ -0,0 +1,120 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.configuration;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.ContextUtils;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.odktables.TableChangeNotifier;
+import org.opendatakit.odktables.TableSnapshotBuilder;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Pre-built table snapshots for bootstrapping new devices. When sync.snapshots.enabled is true,
+ * the snapshot of a table is brought up to date once its writes have settled for
+ * sync.snapshots.settleSeconds (or after sync.snapshots.maxDelaySeconds of continuous writes).
+ * The pages of a replaced snapshot are removed sync.snapshots.retainSupersededSeconds after it is
+ * replaced.
+ */
+@Configuration
+public class SnapshotConfiguration {
+  private static Log logger = LogFactory.getLog(SnapshotConfiguration.class);
+
+  @Autowired
+  private CallingContext callingContext;
+
+  @Value("${sync.snapshots.enabled:false}")
+  private boolean enabled;
+
+  @Value("${sync.snapshots.settleSeconds:60}")
+  private int settleSeconds;
+
+  @Value("${sync.snapshots.maxDelaySeconds:900}")
+  private int maxDelaySeconds;
+
+  @Value("${sync.snapshots.pageSize:5000}")
+  private int pageSize;
+
+  @Value("${sync.snapshots.maxIncrementalChanges:50000}")
+  private int maxIncrementalChanges;
+
+  @Value("${sync.snapshots.retainSupersededSeconds:600}")
+  private int retainSupersededSeconds;
+
+  private ScheduledExecutorService scheduler;
+  private TableSnapshotBuilder builder;
+
+  @PostConstruct
+  public void startSnapshots() {
+    if (!enabled) {
+      logger.info("Table snapshots are not built.");
+      return;
+    }
+    CallingContext cc = ContextUtils.duplicateContext(callingContext);
+    cc.setAsDaemon(true);
+    scheduler = Executors
+        .newSingleThreadScheduledExecutor(new DaemonThreadFactory("table-snapshots-"));
+    builder = new TableSnapshotBuilder(cc, scheduler, TimeUnit.SECONDS.toMillis(settleSeconds),
+        TimeUnit.SECONDS.toMillis(maxDelaySeconds), pageSize, maxIncrementalChanges,
+        TimeUnit.SECONDS.toMillis(retainSupersededSeconds));
+    TableChangeNotifier.subscribe(builder, null);
+    // catch up on the changes made while the server was down
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          builder.scheduleAll();
+        } catch (ODKDatastoreException e) {
+          logger.error("Unable to list the tables to snapshot", e);
+        }
+      }
+    }, settleSeconds, TimeUnit.SECONDS);
+    long sweepSeconds = Math.max(1, retainSupersededSeconds / 2);
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          builder.dropSuperseded();
+        } catch (ODKDatastoreException e) {
+          logger.error("Unable to list the tables with replaced snapshots", e);
+        }
+      }
+    }, sweepSeconds, sweepSeconds, TimeUnit.SECONDS);
+  }
+
+  @PreDestroy
+  public void stopSnapshots() {
+    if (builder != null) {
+      TableChangeNotifier.unsubscribe(builder, null);
+    }
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * @return the builder, or null if snapshots are disabled
+   */
+  public TableSnapshotBuilder getBuilder() {
+    return builder;
+  }
+}
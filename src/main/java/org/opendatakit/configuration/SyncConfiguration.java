@@ -0,0 +1,126 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.configuration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.opendatakit.odktables.InstanceFileReaders;
+import org.opendatakit.odktables.ParallelRowConverter;
+import org.opendatakit.odktables.TableWriteQueue;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * The worker pool shared by all batch sync requests. Its size bounds the number of tables being
+ * read at once across the whole server, and with it the table locks and database connections that
+ * batch syncs can hold.
+ *
+ * Also the fork/join pool that converts large pages of rows, shared by every row read, and the
+ * writers that drain the per-table queues of row changes, and the readers that fetch the files of
+ * batch attachment downloads ahead of the response.
+ */
+@Configuration
+public class SyncConfiguration {
+
+  @Value("${sync.batch.threads:4}")
+  private int threads;
+
+  @Value("${sync.batch.maxTables:200}")
+  private int maxTables;
+
+  @Value("${sync.conversion.threads:0}")
+  private int conversionThreads;
+
+  @Value("${sync.conversion.threshold:1000}")
+  private int conversionThreshold;
+
+  @Value("${sync.writes.threads:4}")
+  private int writeThreads;
+
+  @Value("${sync.writes.maxBatch:16}")
+  private int writeMaxBatch;
+
+  @Value("${sync.writes.maxBatchRows:5000}")
+  private long writeMaxBatchRows;
+
+  @Value("${sync.writes.maxBatchSeconds:20}")
+  private int writeMaxBatchSeconds;
+
+  @Value("${sync.writes.waitSeconds:300}")
+  private int writeWaitSeconds;
+
+  @Value("${sync.writes.retainMinutes:10}")
+  private int writeRetainMinutes;
+
+  @Value("${sync.attachments.threads:4}")
+  private int attachmentThreads;
+
+  @Value("${sync.attachments.readAhead:8}")
+  private int attachmentReadAhead;
+
+  @Value("${sync.attachments.prefetchMaxBytes:4194304}")
+  private long attachmentPrefetchMaxBytes;
+
+  @Value("${sync.attachments.maxRows:500}")
+  private int attachmentMaxRows;
+
+  @Bean(destroyMethod = "shutdown")
+  public ExecutorService syncBatchExecutor() {
+    return Executors.newFixedThreadPool(threads, new DaemonThreadFactory("sync-batch-"));
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public ExecutorService tableWriteExecutor() {
+    return Executors.newFixedThreadPool(writeThreads, new DaemonThreadFactory("table-writer-"));
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public TableWriteQueue tableWriteQueue() {
+    long retainMillis = TimeUnit.MINUTES.toMillis(writeRetainMinutes);
+    TableWriteQueue queue = new TableWriteQueue(tableWriteExecutor(), writeMaxBatch,
+        (writeMaxBatchRows > 0L) ? writeMaxBatchRows : Long.MAX_VALUE,
+        TimeUnit.SECONDS.toMillis(writeMaxBatchSeconds),
+        TimeUnit.SECONDS.toMillis(writeWaitSeconds), retainMillis);
+    queue.startSweep(Math.max(retainMillis / 2, TimeUnit.SECONDS.toMillis(30)));
+    return queue;
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public InstanceFileReaders instanceFileReaders() {
+    return new InstanceFileReaders(Executors.newFixedThreadPool(attachmentThreads,
+        new DaemonThreadFactory("attachment-reader-")), attachmentReadAhead,
+        attachmentPrefetchMaxBytes, attachmentMaxRows);
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public ParallelRowConverter rowConverter() {
+    return new ParallelRowConverter(new ForkJoinPool((conversionThreads > 0) ? conversionThreads
+        : Runtime.getRuntime().availableProcessors()), conversionThreshold);
+  }
+
+  /**
+   * @return the number of tables of a single request that may be in flight at once.
+   */
+  public int getParallelism() {
+    return threads;
+  }
+
+  /**
+   * @return the largest number of tables accepted in a single batch sync request.
+   */
+  public int getMaxTables() {
+    return maxTables;
+  }
+}
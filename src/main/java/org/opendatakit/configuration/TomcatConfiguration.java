@@ -44,9 +44,6 @@ public class TomcatConfiguration {
   @Bean
   public EmbeddedServletContainerFactory servletContainer() {
     TomcatEmbeddedServletContainerFactory tomcat = new TomcatEmbeddedServletContainerFactory();
-    tomcat.addConnectorCustomizers((connector) -> {
-      connector.setMaxPostSize(250000000); // 250 MB
-    });
 
     TomcatContextCustomizer staticContentCustomizer = new TomcatContextCustomizer() {
       @Override
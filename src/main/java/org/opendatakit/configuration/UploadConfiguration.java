@@ -0,0 +1,83 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.configuration;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.ContextUtils;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.odktables.InstanceFileManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Resumable uploads of instance attachments. An upload that is not appended to for
+ * upload.resumable.expireHours is removed, with what it received, by a sweep run every
+ * upload.resumable.sweepIntervalMinutes. A single request appends at most
+ * upload.resumable.maxChunkBytes; the client then resumes from there.
+ */
+@Configuration
+public class UploadConfiguration {
+  private static Log logger = LogFactory.getLog(UploadConfiguration.class);
+
+  @Autowired
+  private CallingContext callingContext;
+
+  @Value("${upload.resumable.expireHours:24}")
+  private long expireHours;
+
+  @Value("${upload.resumable.maxChunkBytes:16777216}")
+  private long maxChunkBytes;
+
+  @Value("${upload.resumable.sweepIntervalMinutes:60}")
+  private int sweepIntervalMinutes;
+
+  private ScheduledExecutorService scheduler;
+
+  @PostConstruct
+  public void startUploadSweep() {
+    InstanceFileManager.configureUploads(TimeUnit.HOURS.toMillis(expireHours),
+        (maxChunkBytes > 0L) ? maxChunkBytes : Long.MAX_VALUE);
+
+    final CallingContext cc = ContextUtils.duplicateContext(callingContext);
+    cc.setAsDaemon(true);
+    scheduler = Executors
+        .newSingleThreadScheduledExecutor(new DaemonThreadFactory("upload-expiry-"));
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          int count = InstanceFileManager.deleteExpiredUploads(cc);
+          if (count != 0) {
+            logger.info("Removed " + count + " expired uploads.");
+          }
+        } catch (Exception e) {
+          logger.error("Unable to remove expired uploads", e);
+        }
+      }
+    }, sweepIntervalMinutes, sweepIntervalMinutes, TimeUnit.MINUTES);
+  }
+
+  @PreDestroy
+  public void stopUploadSweep() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+}
@@ -47,6 +47,9 @@ public class UserServiceConfiguration {
   @Value("${security.server.superUserUsername:admin}")
   private String superUserUsername;
 
+  @Value("${security.server.maxActiveUsers:" + UserServiceImpl.DEFAULT_MAX_ACTIVE_USERS + "}")
+  private int maxActiveUsers;
+
   @Value("")
   private String webApplicationBase;
 
@@ -64,6 +67,7 @@ public class UserServiceConfiguration {
     userServiceImpl.setRealm(realm());
     userServiceImpl.setDatastore(dataConfiguration.datastore());
     userServiceImpl.setSuperUserUsername(superUserUsername);
+    userServiceImpl.setMaxActiveUsers(maxActiveUsers);
    return userServiceImpl;
   }
 
@@ -33,6 +33,10 @@ import org.opendatakit.security.User;
  * database, the content type, length and hash will be null.  Otherwise, these
  * will have values describing the attachment.    
  * <p>
+ * When a {@link BlobStore} is in use, the content itself is held there instead
+ * of in the BinaryContentRefBlob and RefBlob tables, and the BinaryContent row
+ * records the key of the content in that store.
+ * <p>
  * The intent is that this is a write-twice record.  Written once to create the
  * placeholder for the attachment, and written a second time to update the content
  * information of the attachment.  See {@link BinaryContentManipulator} for 
@@ -51,11 +55,14 @@ public final class BinaryContent extends DynamicBase {
 			DataField.DataType.INTEGER, true);
 	private static final DataField CONTENT_HASH = new DataField("CONTENT_HASH", 
 			DataField.DataType.STRING, true);
+	private static final DataField BLOB_KEY = new DataField("BLOB_KEY",
+			DataField.DataType.STRING, true, 255L);
 
 	public final DataField unrootedFilePath;
 	public final DataField contentType;
 	public final DataField contentLength;
 	public final DataField contentHash;
+	public final DataField blobKey;
 
 	/**
 	 * Construct a relation prototype.
@@ -69,6 +76,9 @@ public final class BinaryContent extends DynamicBase {
 		fieldList.add(contentType = new DataField(CONTENT_TYPE));
 		fieldList.add(contentLength = new DataField(CONTENT_LENGTH));
 		fieldList.add(contentHash = new DataField(CONTENT_HASH));
+		fieldList.add(blobKey = new DataField(BLOB_KEY));
+		// blob tables created before the blob store have no BLOB_KEY column
+		addUpgradeColumn(BLOB_KEY.getName());
 	}
 
 	/**
@@ -83,6 +93,7 @@ public final class BinaryContent extends DynamicBase {
 		contentType = ref.contentType;
 		contentLength = ref.contentLength;
 		contentHash = ref.contentHash;
+		blobKey = ref.blobKey;
 	}
 
 	// Only called from within the persistence layer.
@@ -129,4 +140,19 @@ public final class BinaryContent extends DynamicBase {
 			throw new IllegalStateException("overflow on contentHash");
 		}
 	}
+
+	/**
+	 * @return the key of the content in a {@link BlobStore}, or null if the
+	 *         content is held in the {@link BinaryContentRefBlob} and
+	 *         {@link RefBlob} tables.
+	 */
+	public String getBlobKey() {
+		return getStringField(blobKey);
+	}
+
+	public void setBlobKey(String value) {
+		if ( !setStringField(blobKey, value)) {
+			throw new IllegalStateException("overflow on blobKey");
+		}
+	}
 }
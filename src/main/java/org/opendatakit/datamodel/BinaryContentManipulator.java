@@ -14,6 +14,10 @@
 package org.opendatakit.datamodel;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
@@ -22,9 +26,11 @@ import java.util.List;
 import java.util.Map;
 
 import org.opendatakit.context.CallingContext;
+import org.opendatakit.datamodel.BlobStore.StoredBlob;
 import org.opendatakit.persistence.CommonFieldsBase;
 import org.opendatakit.persistence.Datastore;
 import org.opendatakit.persistence.EntityKey;
+import org.opendatakit.persistence.JoinedEntity;
 import org.opendatakit.persistence.Query;
 import org.opendatakit.persistence.Query.Direction;
 import org.opendatakit.persistence.Query.FilterOperation;
@@ -47,6 +53,11 @@ import org.opendatakit.security.User;
  * attachment relations, one for each distinct attachment. For submissions, for
  * example, each binary form element gets its own set of 3 attachment relations.
  * <p>
+ * If a {@link BlobStore} is active (see {@link BlobStores}), new content is
+ * written there instead of into the BinaryContentRefBlob and RefBlob relations;
+ * the BinaryContent row still holds the content's metadata and records its key
+ * in the store. Content already in the relations stays readable from there.
+ * <p>
  *
  *
  * @author mitchellsundt@gmail.com
@@ -78,9 +89,29 @@ public class BinaryContentManipulator {
    */
   public static class BlobManipulator {
 
+    /**
+     * The size of the parts a blob is split into (unless the datastore's blob
+     * column is smaller). Every part but the last is this size, which bounds the
+     * memory used by a streamed upload and lets a range of the blob be read
+     * without reading the parts before it.
+     */
+    public static final int PART_SIZE = 1024 * 1024;
+
+    /**
+     * @param ref
+     * @return the size of the parts written into ref
+     */
+    public static long getPartSize(RefBlob ref) {
+      return Math.min(ref.value.getMaxCharLen(), PART_SIZE);
+    }
+
     private List<BinaryContentRefBlob> dbBcbEntityList = new ArrayList<BinaryContentRefBlob>();
     private List<RefBlob> dbRefBlobList = new ArrayList<RefBlob>();
 
+    // only known for streamed blobs
+    private Long contentLength = null;
+    private String contentHash = null;
+
     /**
      * Construct an blob entity and persist it into the data store
      *
@@ -98,7 +129,7 @@ public class BinaryContentManipulator {
 
       // loop to create the VBCRB and RB entries for each part of the
       // larger blob
-      long blobLimit = ref.value.getMaxCharLen();
+      long blobLimit = getPartSize(ref);
       long part = 1L;
       Datastore ds = cc.getDatastore();
       User user = cc.getCurrentUser();
@@ -117,25 +148,284 @@ public class BinaryContentManipulator {
         bcb.setSubAuri(eBlob.getUri());
         bcb.setPart(part++);
         dbBcbEntityList.add(bcb);
-        ds.putEntity(eBlob, user);
-        ds.putEntity(bcb, user);
       }
+      // the parts are all in memory anyway; insert them in two batches
+      ds.batchAlterData(dbRefBlobList, user);
+      ds.batchAlterData(dbBcbEntityList, user);
+    }
+
+    /**
+     * Stream a blob into the data store, computing its md5 hash along the way. Parts are inserted
+     * in batches of up to {@link BlobStreamer#PART_BATCH_BYTES} (or one part, if larger), so only
+     * the batch being written is held in memory; the persisted parts retain their keys but not
+     * their values.
+     *
+     * If the stream or the data store fails, the parts written so far are removed before the
+     * exception is rethrown.
+     *
+     * @param blob
+     *          the content, read to its end (but not closed)
+     * @param uriVersionedContent
+     * @param bcbRef
+     * @param ref
+     * @param topLevelKey
+     * @param cc
+     *          - the CallingContext of this request
+     * @throws ODKDatastoreException
+     * @throws IOException
+     */
+    public BlobManipulator(InputStream blob, String uriVersionedContent,
+        BinaryContentRefBlob bcbRef, RefBlob ref, String topLevelKey, CallingContext cc)
+        throws ODKDatastoreException, IOException {
+
+      int partSize = (int) getPartSize(ref);
+      int partsPerBatch = (int) Math.max(1L, BlobStreamer.PART_BATCH_BYTES / partSize);
+      MessageDigest md = CommonFieldsBase.newMD5Digest();
+      long length = 0L;
+      long part = 1L;
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
+      List<RefBlob> blobBatch = new ArrayList<RefBlob>();
+      List<BinaryContentRefBlob> bcbBatch = new ArrayList<BinaryContentRefBlob>();
+      boolean success = false;
+      try {
+        byte[] buffer = new byte[partSize];
+        int len;
+        while ((len = readPart(blob, buffer)) > 0) {
+          md.update(buffer, 0, len);
+          length += len;
+          RefBlob eBlob = ds.createEntityUsingRelation(ref, user);
+          eBlob.setTopLevelAuri(topLevelKey);
+          eBlob.setValue((len == buffer.length) ? buffer : Arrays.copyOf(buffer, len));
+          BinaryContentRefBlob bcb = ds.createEntityUsingRelation(bcbRef, user);
+          bcb.setTopLevelAuri(topLevelKey);
+          bcb.setDomAuri(uriVersionedContent);
+          bcb.setSubAuri(eBlob.getUri());
+          bcb.setPart(part++);
+          blobBatch.add(eBlob);
+          bcbBatch.add(bcb);
+          if (blobBatch.size() == partsPerBatch) {
+            putPartBatch(blobBatch, bcbBatch, ds, user);
+          }
+          // the buffer now belongs to the part
+          buffer = new byte[partSize];
+        }
+        putPartBatch(blobBatch, bcbBatch, ds, user);
+        success = true;
+      } finally {
+        if (!success) {
+          List<EntityKey> keyList = new ArrayList<EntityKey>();
+          recursivelyAddEntityKeysForDeletion(keyList);
+          try {
+            DeleteHelper.deleteEntities(keyList, cc);
+          } catch (ODKDatastoreException e) {
+            e.printStackTrace();
+          }
+        }
+      }
+      contentLength = length;
+      contentHash = CommonFieldsBase.newMD5HashUri(md);
+    }
+
+    /**
+     * Insert a batch of parts, remembering their keys but dropping their values.
+     */
+    private void putPartBatch(List<RefBlob> blobBatch, List<BinaryContentRefBlob> bcbBatch,
+        Datastore ds, User user) throws ODKEntityPersistException, ODKOverQuotaException {
+      if (blobBatch.isEmpty()) {
+        return;
+      }
+      // track the parts first, so that a failed batch is removed with the rest
+      dbRefBlobList.addAll(blobBatch);
+      dbBcbEntityList.addAll(bcbBatch);
+      ds.batchAlterData(blobBatch, user);
+      ds.batchAlterData(bcbBatch, user);
+      for (RefBlob eBlob : blobBatch) {
+        eBlob.setValue(null);
+      }
+      blobBatch.clear();
+      bcbBatch.clear();
+    }
+
+    /**
+     * Fill the buffer from the stream, stopping early only at the end of the stream.
+     *
+     * @return the number of bytes read (0 at the end of the stream)
+     */
+    private static int readPart(InputStream in, byte[] buffer) throws IOException {
+      int total = 0;
+      while (total < buffer.length) {
+        int len = in.read(buffer, total, buffer.length - total);
+        if (len == -1) {
+          break;
+        }
+        total += len;
+      }
+      return total;
+    }
+
+    /**
+     * Append to a blob that is received in pieces, such as a resumable upload. Every part but the
+     * last is full, so a short last part is read back and replaced by one that also holds the
+     * appended bytes; its reference is re-pointed to the new part before the old one is deleted,
+     * so the blob is never without it. Parts past offset, left by an append that failed, are
+     * removed first.
+     *
+     * A failure to read the stream ends the append rather than failing it: the bytes read so far
+     * are kept, so that the sender can resume after them.
+     *
+     * @param blob
+     *          the content to append, read until its end or until limit bytes (but not closed)
+     * @param offset
+     *          the length of the blob so far
+     * @param limit
+     *          the most bytes to append
+     * @param uriVersionedContent
+     * @param bcbRef
+     * @param ref
+     * @param topLevelKey
+     * @param cc
+     * @return the number of bytes appended
+     * @throws ODKDatastoreException
+     */
+    public static long append(InputStream blob, long offset, long limit, String uriVersionedContent,
+        BinaryContentRefBlob bcbRef, RefBlob ref, String topLevelKey, CallingContext cc)
+        throws ODKDatastoreException {
+
+      int partSize = (int) getPartSize(ref);
+      int partsPerBatch = (int) Math.max(1L, BlobStreamer.PART_BATCH_BYTES / partSize);
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
+      long part = offset / partSize + 1L;
+      int tailLength = (int) (offset % partSize);
+
+      // the short last part, if any, and anything after it...
+      List<JoinedEntity<BinaryContentRefBlob, RefBlob>> existing = ds.queryReferenceJoin(bcbRef,
+          bcbRef.domAuri, uriVersionedContent, bcbRef.part, part, 0, bcbRef.subAuri, ref, false,
+          user);
+      JoinedEntity<BinaryContentRefBlob, RefBlob> tail = null;
+      List<EntityKey> leftovers = new ArrayList<EntityKey>();
+      for (JoinedEntity<BinaryContentRefBlob, RefBlob> joined : existing) {
+        if (tailLength != 0 && tail == null
+            && Long.valueOf(part).equals(joined.getReference().getPart())) {
+          tail = joined;
+          continue;
+        }
+        if (joined.getTarget() != null) {
+          leftovers.add(joined.getTarget().getEntityKey());
+        }
+        leftovers.add(joined.getReference().getEntityKey());
+      }
+      if (!leftovers.isEmpty()) {
+        DeleteHelper.deleteEntities(leftovers, cc);
+      }
+
+      byte[] buffer = new byte[partSize];
+      if (tailLength != 0) {
+        byte[] value = (tail == null) ? null
+            : ds.getEntity(ref, tail.getReference().getSubAuri(), user).getValue();
+        // a failed append may have left a longer part; only the leading bytes are kept
+        if (value == null || value.length < tailLength) {
+          throw new ODKEnumeratedElementException("SELECT * FROM " + bcbRef.getTableName()
+              + " WHERE _DOM_AURI = " + uriVersionedContent + " is missing part " + part);
+        }
+        System.arraycopy(value, 0, buffer, 0, tailLength);
+      }
+
+      List<RefBlob> blobBatch = new ArrayList<RefBlob>();
+      List<BinaryContentRefBlob> bcbBatch = new ArrayList<BinaryContentRefBlob>();
+      long appended = 0L;
+      int filled = tailLength;
+      boolean ended = false;
+      while (!ended) {
+        int room = (int) Math.min(buffer.length - filled, limit - appended);
+        int len = 0;
+        try {
+          while (len < room) {
+            int n = blob.read(buffer, filled + len, room - len);
+            if (n == -1) {
+              break;
+            }
+            len += n;
+          }
+        } catch (IOException e) {
+          // keep what arrived, so that the sender can resume after it
+        }
+        ended = (len < room) || (appended + len == limit);
+        filled += len;
+        appended += len;
+        if (len == 0) {
+          break;
+        }
+        RefBlob eBlob = ds.createEntityUsingRelation(ref, user);
+        eBlob.setTopLevelAuri(topLevelKey);
+        eBlob.setValue((filled == buffer.length) ? buffer : Arrays.copyOf(buffer, filled));
+        if (tail != null) {
+          ds.putEntity(eBlob, user);
+          BinaryContentRefBlob bcb = tail.getReference();
+          String oldBlobUri = bcb.getSubAuri();
+          bcb.setSubAuri(eBlob.getUri());
+          ds.putEntity(bcb, user);
+          ds.deleteEntity(new EntityKey(ref, oldBlobUri), user);
+          tail = null;
+        } else {
+          BinaryContentRefBlob bcb = ds.createEntityUsingRelation(bcbRef, user);
+          bcb.setTopLevelAuri(topLevelKey);
+          bcb.setDomAuri(uriVersionedContent);
+          bcb.setSubAuri(eBlob.getUri());
+          bcb.setPart(part);
+          blobBatch.add(eBlob);
+          bcbBatch.add(bcb);
+          if (blobBatch.size() == partsPerBatch) {
+            ds.batchAlterData(blobBatch, user);
+            ds.batchAlterData(bcbBatch, user);
+            blobBatch.clear();
+            bcbBatch.clear();
+          }
+        }
+        ++part;
+        filled = 0;
+        // the buffer now belongs to the part
+        buffer = new byte[partSize];
+      }
+      if (!blobBatch.isEmpty()) {
+        ds.batchAlterData(blobBatch, user);
+        ds.batchAlterData(bcbBatch, user);
+      }
+      return appended;
     }
 
     public BlobManipulator(String uriVersionedContent, BinaryContentRefBlob bcbRef, RefBlob ref,
         CallingContext cc) throws ODKDatastoreException {
+      this(uriVersionedContent, bcbRef, ref, true, cc);
+    }
+
+    /**
+     * Gather the parts of a stored blob with a single query joining the
+     * reference parts to the blob parts.
+     *
+     * @param uriVersionedContent
+     * @param bcbRef
+     * @param ref
+     * @param fetchValues
+     *          if false, only the keys of the blob parts are fetched -- enough to
+     *          delete them, but not to call {@link #getBlob()}. Missing blob parts
+     *          are then tolerated, so that a partially-written blob can be removed.
+     * @param cc
+     * @throws ODKDatastoreException
+     */
+    public BlobManipulator(String uriVersionedContent, BinaryContentRefBlob bcbRef, RefBlob ref,
+        boolean fetchValues, CallingContext cc) throws ODKDatastoreException {
 
       Datastore ds = cc.getDatastore();
       User user = cc.getCurrentUser();
-      // gather the ordered list of parts...
-      Query q = ds.createQuery(bcbRef, "BinaryContentManipulator.BlobManipulator.constructor", user);
-      q.addFilter(bcbRef.domAuri, FilterOperation.EQUAL, uriVersionedContent);
-      q.addSort(bcbRef.domAuri, Direction.ASCENDING); // gae optimization
-      q.addSort(bcbRef.part, Direction.ASCENDING);
-      List<? extends CommonFieldsBase> bcbList = q.executeQuery();
+      // gather the ordered list of parts and the blob parts themselves...
+      List<JoinedEntity<BinaryContentRefBlob, RefBlob>> parts = ds.queryReferenceJoin(bcbRef,
+          bcbRef.domAuri, uriVersionedContent, bcbRef.part, 1L, 0, bcbRef.subAuri, ref,
+          fetchValues, user);
       long expectedPart = 1L;
-      for (CommonFieldsBase cb : bcbList) {
-        BinaryContentRefBlob bcref = (BinaryContentRefBlob) cb;
+      for (JoinedEntity<BinaryContentRefBlob, RefBlob> joined : parts) {
+        BinaryContentRefBlob bcref = joined.getReference();
         Long part = bcref.getPart();
         if ( part == null || part.longValue() != expectedPart ) {
           String errString = "SELECT * FROM " + bcref.getTableName()
@@ -145,15 +435,11 @@ public class BinaryContentManipulator {
         }
         ++expectedPart;
         dbBcbEntityList.add(bcref);
-      }
-
-      // and gather the blob parts themselves...
-      for (BinaryContentRefBlob b : dbBcbEntityList) {
-        RefBlob eBlob = ds.getEntity(ref, b.getSubAuri(), user);
-        if (eBlob == null) {
+        if (joined.getTarget() != null) {
+          dbRefBlobList.add(joined.getTarget());
+        } else if (fetchValues) {
           throw new IllegalStateException("Missing blob part!");
         }
-        dbRefBlobList.add(eBlob);
       }
     }
 
@@ -173,6 +459,36 @@ public class BinaryContentManipulator {
       return dbBcbEntityList.get(0).getDomAuri();
     }
 
+    /**
+     * @return the length of a streamed blob, otherwise null
+     */
+    public Long getContentLength() {
+      return contentLength;
+    }
+
+    /**
+     * @return the md5 hash uri of a streamed blob, otherwise null
+     */
+    public String getContentHash() {
+      return contentHash;
+    }
+
+    /**
+     * Re-point the parts of this blob to a different BinaryContent.
+     *
+     * @param uriVersionedContent
+     * @param cc
+     * @throws ODKEntityPersistException
+     * @throws ODKOverQuotaException
+     */
+    public void moveTo(String uriVersionedContent, CallingContext cc)
+        throws ODKEntityPersistException, ODKOverQuotaException {
+      for (BinaryContentRefBlob bcb : dbBcbEntityList) {
+        bcb.setDomAuri(uriVersionedContent);
+      }
+      cc.getDatastore().batchAlterData(dbBcbEntityList, cc.getCurrentUser());
+    }
+
     public byte[] getBlob() {
       ByteArrayOutputStream reconstructedBlob = new ByteArrayOutputStream();
       for (RefBlob partialBlob : dbRefBlobList) {
@@ -221,6 +537,257 @@ public class BinaryContentManipulator {
 
   }
 
+  /**
+   * Reader for streaming a stored blob. The ordered list of parts is fetched when
+   * this is constructed; the parts themselves are only fetched, a few at a time,
+   * as they are written out. At most {@link #PART_BATCH_BYTES} (or one part, if
+   * larger) of the blob is held in memory.
+   * <p>
+   * If the blob is replaced after this is constructed, its old parts are deleted
+   * and writing fails part-way through rather than mixing old and new content.
+   */
+  public static class BlobStreamer {
+
+    private static final long PART_BATCH_BYTES = 4L * 1024L * 1024L;
+
+    private final String uriVersionedContent;
+    private final BinaryContentRefBlob bcbRef;
+    private final RefBlob ref;
+    private final long contentLength;
+    private final List<String> partUris = new ArrayList<String>();
+
+    // set only for content held in a BlobStore
+    private final BlobStore store;
+    private final String blobKey;
+
+    public BlobStreamer(String uriVersionedContent, long contentLength,
+        BinaryContentRefBlob bcbRef, RefBlob ref, CallingContext cc) throws ODKDatastoreException {
+      this.uriVersionedContent = uriVersionedContent;
+      this.bcbRef = bcbRef;
+      this.ref = ref;
+      this.contentLength = contentLength;
+      this.store = null;
+      this.blobKey = null;
+
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
+      // gather the ordered list of parts...
+      Query q = ds.createQuery(bcbRef, "BinaryContentManipulator.BlobStreamer.constructor", user);
+      q.addFilter(bcbRef.domAuri, FilterOperation.EQUAL, uriVersionedContent);
+      q.addSort(bcbRef.domAuri, Direction.ASCENDING); // gae optimization
+      q.addSort(bcbRef.part, Direction.ASCENDING);
+      List<? extends CommonFieldsBase> bcbList = q.executeQuery();
+      long expectedPart = 1L;
+      for (CommonFieldsBase cb : bcbList) {
+        BinaryContentRefBlob bcref = (BinaryContentRefBlob) cb;
+        Long part = bcref.getPart();
+        if ( part == null || part.longValue() != expectedPart ) {
+          String errString = "SELECT * FROM " + bcref.getTableName()
+              + " WHERE _TOP_LEVEL_AURI = " + bcref.getTopLevelAuri()
+              + " AND _DOM_AURI = " + bcref.getDomAuri() + " is missing a reference part OR has extra copies.";
+          throw new ODKEnumeratedElementException(errString);
+        }
+        ++expectedPart;
+        partUris.add(bcref.getSubAuri());
+      }
+    }
+
+    /**
+     * Stream content held in a {@link BlobStore}.
+     *
+     * @param store
+     * @param blobKey
+     * @param contentLength
+     */
+    public BlobStreamer(BlobStore store, String blobKey, long contentLength) {
+      this.uriVersionedContent = null;
+      this.bcbRef = null;
+      this.ref = null;
+      this.contentLength = contentLength;
+      this.store = store;
+      this.blobKey = blobKey;
+    }
+
+    public long getContentLength() {
+      return contentLength;
+    }
+
+    /**
+     * @param cc
+     * @return the content as a stream, read {@link #PART_BATCH_BYTES} at a
+     *         time. Failures to read the datastore surface as IOExceptions.
+     */
+    public InputStream openStream(final CallingContext cc) {
+      return new InputStream() {
+        private long position = 0L;
+        private byte[] buffer = new byte[0];
+        private int index = 0;
+
+        private boolean fill() throws IOException {
+          if (index < buffer.length) {
+            return true;
+          }
+          if (position >= contentLength) {
+            return false;
+          }
+          long len = Math.min(PART_BATCH_BYTES, contentLength - position);
+          ByteArrayOutputStream bo = new ByteArrayOutputStream((int) len);
+          try {
+            writeTo(bo, position, len, cc);
+          } catch (ODKDatastoreException e) {
+            throw new IOException("Unable to read the file content", e);
+          }
+          buffer = bo.toByteArray();
+          index = 0;
+          if (buffer.length == 0) {
+            throw new IOException("Missing blob part!");
+          }
+          position += buffer.length;
+          return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+          if (!fill()) {
+            return -1;
+          }
+          return buffer[index++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          if (len == 0) {
+            return 0;
+          }
+          if (!fill()) {
+            return -1;
+          }
+          int n = Math.min(len, buffer.length - index);
+          System.arraycopy(buffer, index, b, off, n);
+          index += n;
+          return n;
+        }
+      };
+    }
+
+    /**
+     * Every part but the last is the same size. Blobs are written with
+     * {@link BlobManipulator#getPartSize(RefBlob)} parts, but older ones were
+     * split at the size of the blob column instead; the part count tells them
+     * apart.
+     *
+     * @return the size of the parts, or -1 if it cannot be determined.
+     */
+    private long getPartSize() {
+      long parts = partUris.size();
+      if (parts <= 1L) {
+        return Math.max(1L, contentLength);
+      }
+      long[] candidates = { BlobManipulator.getPartSize(ref), ref.value.getMaxCharLen() };
+      for (long candidate : candidates) {
+        if ((contentLength + candidate - 1L) / candidate == parts) {
+          return candidate;
+        }
+      }
+      return -1L;
+    }
+
+    /**
+     * Write the blob to the stream, in order, fetching its parts in small batches.
+     *
+     * @param out
+     *          not closed by this call
+     * @param cc
+     * @throws ODKDatastoreException
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out, CallingContext cc)
+        throws ODKDatastoreException, IOException {
+      writeTo(out, 0L, contentLength, cc);
+    }
+
+    /**
+     * Write a range of the blob to the stream. Only the parts that cover the
+     * range are fetched (unless the part size cannot be determined, in which
+     * case the preceding parts are read and skipped).
+     *
+     * @param out
+     *          not closed by this call
+     * @param offset
+     *          the first byte to write
+     * @param length
+     *          the number of bytes to write
+     * @param cc
+     * @throws ODKDatastoreException
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out, long offset, long length, CallingContext cc)
+        throws ODKDatastoreException, IOException {
+      if (store != null) {
+        if (length > 0L) {
+          store.writeTo(blobKey, out, offset, length, cc);
+        }
+        return;
+      }
+      if (partUris.isEmpty() || length <= 0L) {
+        return;
+      }
+      long partSize = getPartSize();
+      int firstPart = 0;
+      long skip = offset;
+      if (partSize > 0L) {
+        firstPart = (int) (offset / partSize);
+        skip = offset - firstPart * partSize;
+      }
+      long averagePartSize = (contentLength + partUris.size() - 1) / partUris.size();
+      int batchSize = (int) Math.max(1L, PART_BATCH_BYTES / Math.max(1L, averagePartSize));
+      long remaining = length;
+
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
+      // part indexes are 0-based here; part numbers are 1-based
+      int i = firstPart;
+      while (i < partUris.size()) {
+        List<JoinedEntity<BinaryContentRefBlob, RefBlob>> batch = ds.queryReferenceJoin(bcbRef,
+            bcbRef.domAuri, uriVersionedContent, bcbRef.part, i + 1L, batchSize, bcbRef.subAuri,
+            ref, true, user);
+        if (batch.isEmpty()) {
+          throw new IllegalStateException("Missing blob part!");
+        }
+        for (JoinedEntity<BinaryContentRefBlob, RefBlob> joined : batch) {
+          // validate each part as it arrives: it must be the next part of the
+          // blob as it was when this streamer was constructed.
+          BinaryContentRefBlob bcref = joined.getReference();
+          Long partNumber = bcref.getPart();
+          if (i >= partUris.size() || partNumber == null || partNumber.longValue() != i + 1L
+              || !partUris.get(i).equals(bcref.getSubAuri()) || joined.getTarget() == null) {
+            throw new IllegalStateException("Missing blob part!");
+          }
+          byte[] part = joined.getTarget().getValue();
+          if (part == null) {
+            throw new IllegalStateException("Missing blob part!");
+          }
+          if (partSize > 0L && i < partUris.size() - 1 && part.length != partSize) {
+            // the offsets computed for this blob would be wrong
+            throw new IllegalStateException("Unexpected blob part size!");
+          }
+          ++i;
+          if (skip >= part.length) {
+            skip -= part.length;
+            continue;
+          }
+          int len = (int) Math.min(part.length - skip, remaining);
+          out.write(part, (int) skip, len);
+          skip = 0L;
+          remaining -= len;
+          if (remaining == 0L) {
+            return;
+          }
+        }
+      }
+    }
+  }
+
   public BinaryContentManipulator(String parentKey, String topLevelKey, BinaryContent ctntRelation,
       BinaryContentRefBlob vrefRelation, RefBlob blbRelation) {
     this.parentKey = parentKey;
@@ -354,10 +921,44 @@ public class BinaryContentManipulator {
       // we are somehow out of sync!
       throw new IllegalStateException("missing attachment declaration");
     }
+    String blobKey = b.getBlobKey();
+    if (blobKey != null && b.getContentHash() != null && b.getContentLength() != null) {
+      ByteArrayOutputStream bo = new ByteArrayOutputStream(b.getContentLength().intValue());
+      try {
+        BlobStores.getStore(blobKey).writeTo(blobKey, bo, 0L, b.getContentLength(), cc);
+      } catch (IOException e) {
+        throw new ODKDatastoreException("Unable to read the file content", e);
+      }
+      return bo.toByteArray();
+    }
     BlobManipulator blbManipulator = new BlobManipulator(b.getUri(), vrefRelation, blbRelation, cc);
     return blbManipulator.getBlob();
   }
 
+  /**
+   * @param ordinal
+   * @param cc
+   * @return a reader that streams the attachment without holding all of it in
+   *         memory, or null if no content is attached.
+   * @throws ODKDatastoreException
+   */
+  public BlobStreamer getBlobStreamer(int ordinal, CallingContext cc) throws ODKDatastoreException {
+    updateAttachments(cc);
+    BinaryContent b = attachments.get(Long.valueOf(ordinal));
+    if (b == null) {
+      // we are somehow out of sync!
+      throw new IllegalStateException("missing attachment declaration");
+    }
+    if (b.getContentHash() == null || b.getContentLength() == null) {
+      return null;
+    }
+    String blobKey = b.getBlobKey();
+    if (blobKey != null) {
+      return new BlobStreamer(BlobStores.getStore(blobKey), blobKey, b.getContentLength());
+    }
+    return new BlobStreamer(b.getUri(), b.getContentLength(), vrefRelation, blbRelation, cc);
+  }
+
   /**
    * Atomically rename the given source file path to the destination path.
    * Will fail if the destination path already exists.
@@ -510,16 +1111,11 @@ public class BinaryContentManipulator {
 
         // Step (2)
         // -- should not have any data. If it does, prior request failed before step 4 completed.
-        BlobManipulator b = new BlobManipulator(matchedBc.getUri(), vrefRelation, blbRelation, cc);
-        List<EntityKey> keyList = new ArrayList<EntityKey>();
-        b.recursivelyAddEntityKeysForDeletion(keyList);
-        DeleteHelper.deleteEntities(keyList, cc);
+        deleteContent(matchedBc, cc);
 
         // Step (3)
         // persist the binary data
-        @SuppressWarnings("unused")
-        BlobManipulator subBlob = new BlobManipulator(byteArray, matchedBc.getUri(), vrefRelation,
-            blbRelation, topLevelKey, cc);
+        storeContent(matchedBc, byteArray, cc);
 
         // Step (4)
         matchedBc.setContentHash(md5Hash);
@@ -546,16 +1142,11 @@ public class BinaryContentManipulator {
         ds.putEntity(matchedBc, user);
 
         // Step (2)
-        BlobManipulator b = new BlobManipulator(matchedBc.getUri(), vrefRelation, blbRelation, cc);
-        List<EntityKey> keyList = new ArrayList<EntityKey>();
-        b.recursivelyAddEntityKeysForDeletion(keyList);
-        DeleteHelper.deleteEntities(keyList, cc);
+        deleteContent(matchedBc, cc);
 
         // Step (3)
         // persist the binary data
-        @SuppressWarnings("unused")
-        BlobManipulator subBlob = new BlobManipulator(byteArray, matchedBc.getUri(), vrefRelation,
-            blbRelation, topLevelKey, cc);
+        storeContent(matchedBc, byteArray, cc);
 
         // Step (4)
         matchedBc.setContentHash(md5Hash);
@@ -568,6 +1159,551 @@ public class BinaryContentManipulator {
     }
   }
 
+  /**
+   * Save the attachment to the database, reading it from a stream. Unlike
+   * {@link #setValueFromByteArray(byte[], String, String, boolean, CallingContext)}, the content
+   * is never held in memory: it is hashed as it is written to the datastore in parts of at most
+   * {@link BlobManipulator#PART_SIZE} bytes.
+   *
+   * @param stream
+   *          the content, read to its end (but not closed)
+   * @param contentType
+   * @param unrootedFilePath
+   * @param overwriteOK -- if the file exists and is different, must be true to overwrite existing value.
+   * @param cc
+   * @return COMPLETELY_NEW_FILE on successful save; FILE_UNCHANGED on hash
+   *         equivalence; NEW_FILE_VERSION on updating existing file (save not allowed unless overwriteOK).
+   * @throws ODKDatastoreException
+   * @throws IOException
+   *           if the stream could not be read; nothing is saved
+   */
+  public BinaryContentManipulator.BlobSubmissionOutcome setValueFromStream(InputStream stream,
+      String contentType, String unrootedFilePath, boolean overwriteOK, CallingContext cc)
+      throws ODKDatastoreException, IOException {
+
+    if (stream == null || contentType == null) {
+      throw new IllegalArgumentException("unexpected null values passed into method");
+    }
+
+    // search for a matching entry for unrootedFilePath
+    BinaryContent matchedBc = null;
+    String currentContentHash = null;
+
+    updateAttachments(cc);
+    for (BinaryContent bc : attachments.values()) {
+      String bcFilePath = bc.getUnrootedFilePath();
+      if ((bcFilePath == null) ? (unrootedFilePath == null)
+          : (unrootedFilePath != null && bcFilePath.equals(unrootedFilePath))) {
+        matchedBc = bc;
+        currentContentHash = matchedBc.getContentHash();
+        break;
+      }
+    }
+
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+
+    if (matchedBc == null || currentContentHash == null) {
+      // either
+      // - create a new entry with file data
+      // or
+      // - update an existing file entry that does not have file data...
+
+      // (0) create entry if no matchedBc
+      // (1) modify entry to be intermediate update state (null md5 hash).
+      // (2) delete the database entries for any incomplete old data.
+      // (3) stream the database entries for the new data.
+      // (4) update contentLength and contentHash to indicate that data is properly stored.
+
+      boolean newBc = (matchedBc == null);
+
+      if (newBc) {
+        // Step (0)
+        // create the record...
+        matchedBc = (BinaryContent) ds.createEntityUsingRelation(ctntRelation, user);
+        matchedBc.setTopLevelAuri(topLevelKey);
+        matchedBc.setParentAuri(parentKey);
+        matchedBc.setOrdinalNumber(internalGetAttachmentCount() + 1L);
+        matchedBc.setUnrootedFilePath(unrootedFilePath);
+      }
+
+      // Step (1)
+      matchedBc.setContentType(contentType);
+      ds.putEntity(matchedBc, user);
+
+      if (newBc) {
+        // persist was successful -- remember this new record...
+        attachments.put(matchedBc.getOrdinalNumber(), matchedBc);
+      }
+
+      // Step (2)
+      // -- should not have any data. If it does, prior request failed before step 4 completed.
+      deleteContent(matchedBc, cc);
+
+      // Step (3)
+      BlobStore store = BlobStores.getActive();
+      Long contentLength;
+      String contentHash;
+      if (store == null) {
+        BlobManipulator subBlob = new BlobManipulator(stream, matchedBc.getUri(), vrefRelation,
+            blbRelation, topLevelKey, cc);
+        contentLength = subBlob.getContentLength();
+        contentHash = subBlob.getContentHash();
+      } else {
+        StoredBlob stored = store.put(stream, cc);
+        matchedBc.setBlobKey(stored.getKey());
+        contentLength = stored.getContentLength();
+        contentHash = stored.getContentHash();
+      }
+
+      // Step (4)
+      matchedBc.setContentLength(contentLength);
+      matchedBc.setContentHash(contentHash);
+      ds.putEntity(matchedBc, user);
+
+      return BinaryContentManipulator.BlobSubmissionOutcome.COMPLETELY_NEW_FILE;
+    } else if (!overwriteOK) {
+      // the existing file is kept whatever the content is, so only its hash is needed
+      MessageDigest md = CommonFieldsBase.newMD5Digest();
+      byte[] buffer = new byte[8192];
+      int len;
+      while ((len = stream.read(buffer)) != -1) {
+        md.update(buffer, 0, len);
+      }
+      String md5Hash = CommonFieldsBase.newMD5HashUri(md);
+      return currentContentHash.equals(md5Hash)
+          ? BinaryContentManipulator.BlobSubmissionOutcome.FILE_UNCHANGED
+          : BinaryContentManipulator.BlobSubmissionOutcome.NEW_FILE_VERSION;
+    } else {
+      // The hash of the new content is only known once it has been read, so its parts
+      // are staged under a fresh uri and then either discarded or moved into place.
+      // We are overwriting what was there (if it differs) by:
+      // (1) modify entry to be intermediate update state (null md5 hash).
+      // (2) delete the database entries for the old data.
+      // (3) move the staged database entries for the new data onto the entry.
+      // (4) update contentHash to indicate that data is properly stored.
+      // (With a BlobStore, the content is staged by putting it into the store.)
+      BlobStore store = BlobStores.getActive();
+      BlobManipulator subBlob = null;
+      StoredBlob stored = null;
+      Long contentLength;
+      String contentHash;
+      if (store == null) {
+        subBlob = new BlobManipulator(stream, CommonFieldsBase.newUri(), vrefRelation,
+            blbRelation, topLevelKey, cc);
+        contentLength = subBlob.getContentLength();
+        contentHash = subBlob.getContentHash();
+      } else {
+        stored = store.put(stream, cc);
+        contentLength = stored.getContentLength();
+        contentHash = stored.getContentHash();
+      }
+
+      if (currentContentHash.equals(contentHash)) {
+        if (subBlob != null) {
+          List<EntityKey> keyList = new ArrayList<EntityKey>();
+          subBlob.recursivelyAddEntityKeysForDeletion(keyList);
+          DeleteHelper.deleteEntities(keyList, cc);
+        } else {
+          store.release(stored.getKey(), cc);
+        }
+        return BinaryContentManipulator.BlobSubmissionOutcome.FILE_UNCHANGED;
+      }
+
+      // Step (1)
+      matchedBc.setContentHash(null);
+      matchedBc.setContentType(contentType);
+      matchedBc.setContentLength(contentLength);
+      ds.putEntity(matchedBc, user);
+
+      // Step (2)
+      deleteContent(matchedBc, cc);
+
+      // Step (3)
+      if (subBlob != null) {
+        subBlob.moveTo(matchedBc.getUri(), cc);
+      } else {
+        matchedBc.setBlobKey(stored.getKey());
+      }
+
+      // Step (4)
+      matchedBc.setContentHash(contentHash);
+      ds.putEntity(matchedBc, user);
+
+      return BinaryContentManipulator.BlobSubmissionOutcome.NEW_FILE_VERSION;
+    }
+  }
+
+  /**
+   * Content that has been written ahead of being attached, by
+   * {@link BinaryContentManipulator#stageContent(InputStream, CallingContext)}.
+   * It is either attached by
+   * {@link BinaryContentManipulator#setValueFromStagedContent(StagedContent, String, String, boolean, CallingContext)}
+   * or removed by
+   * {@link BinaryContentManipulator#discardStagedContent(StagedContent, CallingContext)}.
+   */
+  public static final class StagedContent {
+    private final BlobManipulator parts;
+    private final StoredBlob stored;
+    private final long contentLength;
+    private final String contentHash;
+    private boolean used = false;
+
+    private StagedContent(BlobManipulator parts, StoredBlob stored, long contentLength,
+        String contentHash) {
+      this.parts = parts;
+      this.stored = stored;
+      this.contentLength = contentLength;
+      this.contentHash = contentHash;
+    }
+
+    public long getContentLength() {
+      return contentLength;
+    }
+
+    /**
+     * @return the md5 hash uri of the content
+     */
+    public String getContentHash() {
+      return contentHash;
+    }
+  }
+
+  /**
+   * Write content, hashing it as it is read, without yet attaching it to
+   * anything. It is put into the active {@link BlobStore} or, if there is none,
+   * into the blob relations under a fresh uri. Neither needs the lock that
+   * guards the attachments, so an upload can be read and written before the
+   * lock is taken and then attached while briefly holding it.
+   *
+   * @param stream
+   *          the content, read to its end (but not closed)
+   * @param cc
+   * @return the staged content
+   * @throws ODKDatastoreException
+   * @throws IOException
+   *           if the stream could not be read; nothing is staged
+   */
+  public StagedContent stageContent(InputStream stream, CallingContext cc)
+      throws ODKDatastoreException, IOException {
+    BlobStore store = BlobStores.getActive();
+    if (store == null) {
+      BlobManipulator parts = new BlobManipulator(stream, CommonFieldsBase.newUri(), vrefRelation,
+          blbRelation, topLevelKey, cc);
+      return new StagedContent(parts, null, parts.getContentLength(), parts.getContentHash());
+    }
+    StoredBlob stored = store.put(stream, cc);
+    return new StagedContent(null, stored, stored.getContentLength(), stored.getContentHash());
+  }
+
+  /**
+   * As {@link #setValueFromStream(InputStream, String, String, boolean, CallingContext)}, but
+   * for content that has already been staged. Only the attachment records are
+   * written and the staged parts re-pointed. Staged content that is not
+   * attached is discarded.
+   *
+   * @param staged
+   * @param contentType
+   * @param unrootedFilePath
+   * @param overwriteOK -- if the file exists and is different, must be true to overwrite existing value.
+   * @param cc
+   * @return COMPLETELY_NEW_FILE on successful save; FILE_UNCHANGED on hash
+   *         equivalence; NEW_FILE_VERSION on updating existing file (save not allowed unless overwriteOK).
+   * @throws ODKDatastoreException
+   */
+  public BinaryContentManipulator.BlobSubmissionOutcome setValueFromStagedContent(
+      StagedContent staged, String contentType, String unrootedFilePath, boolean overwriteOK,
+      CallingContext cc) throws ODKDatastoreException {
+
+    if (staged == null || staged.used || contentType == null) {
+      throw new IllegalArgumentException("unexpected null values passed into method");
+    }
+
+    // search for a matching entry for unrootedFilePath
+    BinaryContent matchedBc = null;
+    String currentContentHash = null;
+
+    updateAttachments(cc);
+    for (BinaryContent bc : attachments.values()) {
+      String bcFilePath = bc.getUnrootedFilePath();
+      if ((bcFilePath == null) ? (unrootedFilePath == null)
+          : (unrootedFilePath != null && bcFilePath.equals(unrootedFilePath))) {
+        matchedBc = bc;
+        currentContentHash = matchedBc.getContentHash();
+        break;
+      }
+    }
+
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+
+    if (matchedBc == null) {
+      // the record is only written once its content is in place
+      matchedBc = (BinaryContent) ds.createEntityUsingRelation(ctntRelation, user);
+      matchedBc.setTopLevelAuri(topLevelKey);
+      matchedBc.setParentAuri(parentKey);
+      matchedBc.setOrdinalNumber(internalGetAttachmentCount() + 1L);
+      matchedBc.setUnrootedFilePath(unrootedFilePath);
+      matchedBc.setContentType(contentType);
+      matchedBc.setContentLength(staged.contentLength);
+      attachStagedContent(matchedBc, staged, cc);
+      matchedBc.setContentHash(staged.contentHash);
+      ds.putEntity(matchedBc, user);
+      attachments.put(matchedBc.getOrdinalNumber(), matchedBc);
+
+      return BinaryContentManipulator.BlobSubmissionOutcome.COMPLETELY_NEW_FILE;
+    }
+
+    BinaryContentManipulator.BlobSubmissionOutcome outcome;
+    if (currentContentHash == null) {
+      // an existing file entry that does not have file data...
+      outcome = BinaryContentManipulator.BlobSubmissionOutcome.COMPLETELY_NEW_FILE;
+    } else if (currentContentHash.equals(staged.contentHash)) {
+      discardStagedContent(staged, cc);
+      return BinaryContentManipulator.BlobSubmissionOutcome.FILE_UNCHANGED;
+    } else if (!overwriteOK) {
+      discardStagedContent(staged, cc);
+      return BinaryContentManipulator.BlobSubmissionOutcome.NEW_FILE_VERSION;
+    } else {
+      outcome = BinaryContentManipulator.BlobSubmissionOutcome.NEW_FILE_VERSION;
+    }
+
+    // (1) modify entry to be intermediate update state (null md5 hash).
+    // (2) delete the database entries for any old data.
+    // (3) attach the staged content to the entry.
+    // (4) update contentHash to indicate that data is properly stored.
+
+    // Step (1)
+    matchedBc.setContentHash(null);
+    matchedBc.setContentType(contentType);
+    matchedBc.setContentLength(staged.contentLength);
+    ds.putEntity(matchedBc, user);
+
+    // Step (2)
+    deleteContent(matchedBc, cc);
+
+    // Step (3)
+    attachStagedContent(matchedBc, staged, cc);
+
+    // Step (4)
+    matchedBc.setContentHash(staged.contentHash);
+    ds.putEntity(matchedBc, user);
+
+    return outcome;
+  }
+
+  /**
+   * Remove staged content that was not attached. Does nothing if it was.
+   *
+   * @param staged
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void discardStagedContent(StagedContent staged, CallingContext cc)
+      throws ODKDatastoreException {
+    if (staged.used) {
+      return;
+    }
+    staged.used = true;
+    if (staged.parts != null) {
+      List<EntityKey> keyList = new ArrayList<EntityKey>();
+      staged.parts.recursivelyAddEntityKeysForDeletion(keyList);
+      DeleteHelper.deleteEntities(keyList, cc);
+    } else {
+      BlobStores.getStore(staged.stored.getKey()).release(staged.stored.getKey(), cc);
+    }
+  }
+
+  /**
+   * Append to content that is staged in pieces under stagingUri, as with a
+   * resumable upload. The parts are written directly into the blob relations;
+   * see {@link BlobManipulator#append}.
+   *
+   * @param stagingUri
+   *          identifies the staged content
+   * @param stream
+   * @param offset
+   *          the length of the staged content so far
+   * @param limit
+   *          the most bytes to append
+   * @param cc
+   * @return the number of bytes appended
+   * @throws ODKDatastoreException
+   */
+  public long appendStagedContent(String stagingUri, InputStream stream, long offset, long limit,
+      CallingContext cc) throws ODKDatastoreException {
+    return BlobManipulator.append(stream, offset, limit, stagingUri, vrefRelation, blbRelation,
+        topLevelKey, cc);
+  }
+
+  /**
+   * Complete content that was staged in pieces by
+   * {@link #appendStagedContent(String, InputStream, long, long, CallingContext)},
+   * reading it back to compute its md5 hash. The result is attached or
+   * discarded like any other staged content.
+   *
+   * @param stagingUri
+   * @param contentLength
+   *          the length of the staged content
+   * @param cc
+   * @return the staged content
+   * @throws ODKDatastoreException
+   * @throws IOException
+   *           if the parts could not be read back or fall short of contentLength
+   */
+  public StagedContent getStagedContent(String stagingUri, long contentLength, CallingContext cc)
+      throws ODKDatastoreException, IOException {
+    BlobStreamer streamer = new BlobStreamer(stagingUri, contentLength, vrefRelation, blbRelation,
+        cc);
+    MessageDigest md = CommonFieldsBase.newMD5Digest();
+    long length = 0L;
+    byte[] buffer = new byte[BlobManipulator.PART_SIZE];
+    InputStream in = streamer.openStream(cc);
+    int len;
+    while ((len = in.read(buffer)) != -1) {
+      md.update(buffer, 0, len);
+      length += len;
+    }
+    if (length != contentLength) {
+      throw new IOException("Staged content is " + length + " bytes, expected " + contentLength);
+    }
+    BlobManipulator parts = new BlobManipulator(stagingUri, vrefRelation, blbRelation, false, cc);
+    return new StagedContent(parts, null, contentLength, CommonFieldsBase.newMD5HashUri(md));
+  }
+
+  /**
+   * Remove content that was staged in pieces under stagingUri, whether or not
+   * it was complete.
+   *
+   * @param stagingUri
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void discardStagedContent(String stagingUri, CallingContext cc)
+      throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    List<JoinedEntity<BinaryContentRefBlob, RefBlob>> parts = ds.queryReferenceJoin(vrefRelation,
+        vrefRelation.domAuri, stagingUri, vrefRelation.part, 1L, 0, vrefRelation.subAuri,
+        blbRelation, false, cc.getCurrentUser());
+    List<EntityKey> keyList = new ArrayList<EntityKey>();
+    for (JoinedEntity<BinaryContentRefBlob, RefBlob> joined : parts) {
+      if (joined.getTarget() != null) {
+        keyList.add(joined.getTarget().getEntityKey());
+      }
+      keyList.add(joined.getReference().getEntityKey());
+    }
+    if (!keyList.isEmpty()) {
+      DeleteHelper.deleteEntities(keyList, cc);
+    }
+  }
+
+  /**
+   * Make the staged content the content of bc (which the caller persists).
+   */
+  private void attachStagedContent(BinaryContent bc, StagedContent staged, CallingContext cc)
+      throws ODKDatastoreException {
+    if (staged.parts != null) {
+      staged.parts.moveTo(bc.getUri(), cc);
+    } else {
+      bc.setBlobKey(staged.stored.getKey());
+    }
+    staged.used = true;
+  }
+
+  /**
+   * Delete the stored content of an attachment: its parts in the blob relations
+   * and its reference into a {@link BlobStore}. The key is cleared from the
+   * record before the reference is released, so that a failure can leave
+   * unreferenced content in the store but never a record without content.
+   *
+   * @param bc
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  private void deleteContent(BinaryContent bc, CallingContext cc) throws ODKDatastoreException {
+    BlobManipulator b = new BlobManipulator(bc.getUri(), vrefRelation, blbRelation, false, cc);
+    List<EntityKey> keyList = new ArrayList<EntityKey>();
+    b.recursivelyAddEntityKeysForDeletion(keyList);
+    DeleteHelper.deleteEntities(keyList, cc);
+
+    String blobKey = bc.getBlobKey();
+    if (blobKey != null) {
+      bc.setBlobKey(null);
+      cc.getDatastore().putEntity(bc, cc.getCurrentUser());
+      BlobStores.getStore(blobKey).release(blobKey, cc);
+    }
+  }
+
+  /**
+   * Write the content of an attachment into the active {@link BlobStore}
+   * (recording its key on bc, which the caller persists) or, if there is
+   * none, into the blob relations.
+   *
+   * @param bc
+   * @param byteArray
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  private void storeContent(BinaryContent bc, byte[] byteArray, CallingContext cc)
+      throws ODKDatastoreException {
+    BlobStore store = BlobStores.getActive();
+    if (store == null) {
+      @SuppressWarnings("unused")
+      BlobManipulator subBlob = new BlobManipulator(byteArray, bc.getUri(), vrefRelation,
+          blbRelation, topLevelKey, cc);
+      return;
+    }
+    StoredBlob stored = store.put(byteArray, cc);
+    bc.setBlobKey(stored.getKey());
+  }
+
+  /**
+   * Move the content of an attachment out of the blob relations and into the
+   * store. The caller must hold whatever lock guards changes to this
+   * attachment.
+   *
+   * @param ordinal
+   * @param store
+   * @param cc
+   * @return true if the content was moved; false if the attachment has no
+   *         content or it is already in a store
+   * @throws ODKDatastoreException
+   *           also if the content read back does not match its hash; it is
+   *           then left where it was
+   * @throws IOException
+   */
+  public boolean moveToBlobStore(int ordinal, BlobStore store, CallingContext cc)
+      throws ODKDatastoreException, IOException {
+    updateAttachments(cc);
+    BinaryContent b = attachments.get(Long.valueOf(ordinal));
+    if (b == null) {
+      // we are somehow out of sync!
+      throw new IllegalStateException("missing attachment declaration");
+    }
+    if (b.getContentHash() == null || b.getContentLength() == null || b.getBlobKey() != null) {
+      return false;
+    }
+    BlobStreamer streamer = new BlobStreamer(b.getUri(), b.getContentLength(), vrefRelation,
+        blbRelation, cc);
+    StoredBlob stored = store.put(streamer.openStream(cc), cc);
+    if (stored.getContentLength() != b.getContentLength().longValue()
+        || !stored.getContentHash().equals(b.getContentHash())) {
+      store.release(stored.getKey(), cc);
+      throw new ODKDatastoreException("Content of " + b.getTableName() + " " + b.getUri()
+          + " does not match its hash");
+    }
+
+    // switch readers over to the store before removing the parts
+    b.setBlobKey(stored.getKey());
+    cc.getDatastore().putEntity(b, cc.getCurrentUser());
+
+    BlobManipulator parts = new BlobManipulator(b.getUri(), vrefRelation, blbRelation, false, cc);
+    List<EntityKey> keyList = new ArrayList<EntityKey>();
+    parts.recursivelyAddEntityKeysForDeletion(keyList);
+    DeleteHelper.deleteEntities(keyList, cc);
+    return true;
+  }
+
   public synchronized void updateAttachments(CallingContext cc) throws ODKDatastoreException {
     if ( refreshBeforeUse ) {
       // clear our mutable state.
@@ -634,9 +1770,19 @@ public class BinaryContentManipulator {
     }
     boolean success = false;
     List<EntityKey> keys = new ArrayList<EntityKey>();
+    List<String> blobKeys = new ArrayList<String>();
+    for (BinaryContent bc : attachments.values()) {
+      if (bc.getBlobKey() != null) {
+        blobKeys.add(bc.getBlobKey());
+      }
+    }
     try {
       recursivelyAddEntityKeysForDeletion(keys, cc);
       DeleteHelper.deleteEntities(keys, cc);
+      // the records are gone; now drop their references into the blob stores
+      for (String blobKey : blobKeys) {
+        BlobStores.getStore(blobKey).release(blobKey, cc);
+      }
       success = true;
     } catch (ODKDatastoreException e) {
       e.printStackTrace();
@@ -671,6 +1817,9 @@ public class BinaryContentManipulator {
    * Build up the list of entity keys for the attachments and their
    * references and blobs. This is done so that if we delete these in
    * reverse order, we don't get into a bad state.
+   * <p>
+   * Content held in a {@link BlobStore} is not covered; {@link #deleteAll}
+   * releases it once the attachments have been deleted.
    * 
    * @param keyList
    * @param cc
@@ -682,7 +1831,7 @@ public class BinaryContentManipulator {
     updateAttachments(cc);
     for (BinaryContent bc : attachments.values()) {
       if (bc.getContentHash() != null) {
-        BlobManipulator b = new BlobManipulator(bc.getUri(), vrefRelation, blbRelation, cc);
+        BlobManipulator b = new BlobManipulator(bc.getUri(), vrefRelation, blbRelation, false, cc);
         b.recursivelyAddEntityKeysForDeletion(keyList);
       }
       keyList.add(bc.getEntityKey());
@@ -0,0 +1,127 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.datamodel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+
+/**
+ * Storage for attachment content outside of the {@link BinaryContentRefBlob}
+ * and {@link RefBlob} tables. The datastore remains the store of record for
+ * the attachment: its {@link BinaryContent} row holds the file path, content
+ * type, length and MD5 hash, and the key under which the content was stored.
+ * <p>
+ * Content is reference counted. Every successful {@link #put} adds a
+ * reference that must eventually be handed back through {@link #release};
+ * implementations may return the same key for identical content.
+ * <p>
+ * Keys are prefixed with the name of the store and a colon, so that the store
+ * holding an attachment can be found with {@link BlobStores#getStore(String)}.
+ *
+ * @see BinaryContentManipulator
+ */
+public interface BlobStore {
+
+  /**
+   * The outcome of a {@link BlobStore#put}.
+   */
+  public static final class StoredBlob {
+    private final String key;
+    private final long contentLength;
+    private final String contentHash;
+
+    public StoredBlob(String key, long contentLength, String contentHash) {
+      this.key = key;
+      this.contentLength = contentLength;
+      this.contentHash = contentHash;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public long getContentLength() {
+      return contentLength;
+    }
+
+    /**
+     * @return the MD5 hash of the content, as from
+     *         {@link org.opendatakit.persistence.CommonFieldsBase#newMD5HashUri(java.security.MessageDigest)}
+     */
+    public String getContentHash() {
+      return contentHash;
+    }
+  }
+
+  /**
+   * @return the prefix of the keys of this store. Short, and without a colon.
+   */
+  public String getName();
+
+  /**
+   * Store the content, adding a reference to it. The content is durable by the
+   * time this returns.
+   *
+   * @param content
+   *          read to its end (but not closed)
+   * @param cc
+   * @return the key, length and MD5 hash of the content
+   * @throws ODKDatastoreException
+   * @throws IOException
+   *           if the content could not be read or written; nothing is stored
+   */
+  public StoredBlob put(InputStream content, CallingContext cc)
+      throws ODKDatastoreException, IOException;
+
+  /**
+   * Store content that is already in memory, adding a reference to it. A
+   * store that already holds identical content need not write it again.
+   *
+   * @param content
+   * @param cc
+   * @return the key, length and MD5 hash of the content
+   * @throws ODKDatastoreException
+   */
+  public StoredBlob put(byte[] content, CallingContext cc) throws ODKDatastoreException;
+
+  /**
+   * Drop a reference to stored content. The content is removed once no
+   * references remain.
+   *
+   * @param key
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void release(String key, CallingContext cc) throws ODKDatastoreException;
+
+  /**
+   * Write a range of stored content to the stream.
+   *
+   * @param key
+   * @param out
+   *          not closed by this call
+   * @param offset
+   *          the first byte to write
+   * @param length
+   *          the number of bytes to write
+   * @param cc
+   * @throws ODKDatastoreException
+   * @throws IOException
+   *           if the content is missing or could not be read, or the stream
+   *           could not be written
+   */
+  public void writeTo(String key, OutputStream out, long offset, long length, CallingContext cc)
+      throws ODKDatastoreException, IOException;
+}
@@ -0,0 +1,72 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.datamodel;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link BlobStore}s known to this server. New attachment content is
+ * written to the active store, or to the {@link BinaryContentRefBlob} and
+ * {@link RefBlob} tables if there is none. Every store that may hold existing
+ * content must stay registered so that the content can be read and released.
+ */
+public final class BlobStores {
+
+  private static final Map<String, BlobStore> stores = new ConcurrentHashMap<String, BlobStore>();
+  private static volatile BlobStore active = null;
+
+  private BlobStores() {
+  }
+
+  /**
+   * @param store
+   * @param makeActive
+   *          true to write new content to this store
+   */
+  public static synchronized void register(BlobStore store, boolean makeActive) {
+    stores.put(store.getName(), store);
+    if (makeActive) {
+      active = store;
+    }
+  }
+
+  public static synchronized void unregister(BlobStore store) {
+    stores.remove(store.getName());
+    if (active == store) {
+      active = null;
+    }
+  }
+
+  /**
+   * @return the store new content is written to, or null if it is written to
+   *         the datastore's blob tables.
+   */
+  public static BlobStore getActive() {
+    return active;
+  }
+
+  /**
+   * @param key
+   *          a key returned by {@link BlobStore#put}
+   * @return the store holding the content
+   * @throws IllegalStateException
+   *           if that store is not registered
+   */
+  public static BlobStore getStore(String key) {
+    int idx = key.indexOf(':');
+    BlobStore store = (idx == -1) ? null : stores.get(key.substring(0, idx));
+    if (store == null) {
+      throw new IllegalStateException("No blob store is configured for key " + key);
+    }
+    return store;
+  }
+}
@@ -13,6 +13,8 @@
  */
 package org.opendatakit.ermodel;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
 import java.util.List;
 
@@ -20,8 +22,11 @@ import org.opendatakit.context.CallingContext;
 import org.opendatakit.datamodel.BinaryContent;
 import org.opendatakit.datamodel.BinaryContentManipulator;
 import org.opendatakit.datamodel.BinaryContentRefBlob;
+import org.opendatakit.datamodel.BlobStore;
 import org.opendatakit.datamodel.RefBlob;
+import org.opendatakit.datamodel.BinaryContentManipulator.BlobStreamer;
 import org.opendatakit.datamodel.BinaryContentManipulator.BlobSubmissionOutcome;
+import org.opendatakit.datamodel.BinaryContentManipulator.StagedContent;
 import org.opendatakit.persistence.CommonFieldsBase;
 import org.opendatakit.persistence.Datastore;
 import org.opendatakit.persistence.Query;
@@ -278,6 +283,17 @@ public class AbstractBlobRelationSet implements BlobRelationSet {
     }
   }
 
+  /**
+   * Add the upgrade columns that the binary content table lacks. This alters
+   * the table, so it is run once, at startup, rather than on request paths.
+   *
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void upgradeBlobRelationSet(CallingContext cc) throws ODKDatastoreException {
+    cc.getDatastore().upgradeRelation(ctntRelation, cc.getCurrentUser());
+  }
+
   /**
    * Numerous possibilities for failures here...
    */
@@ -345,6 +361,18 @@ public class AbstractBlobRelationSet implements BlobRelationSet {
       return binaryContentManipulator.getBlob(ordinal, cc);
     }
 
+    @Override
+    public BlobStreamer getBlobStreamer(int ordinal, CallingContext cc)
+        throws ODKDatastoreException {
+      return binaryContentManipulator.getBlobStreamer(ordinal, cc);
+    }
+
+    @Override
+    public boolean moveToBlobStore(int ordinal, BlobStore store, CallingContext cc)
+        throws ODKDatastoreException, IOException {
+      return binaryContentManipulator.moveToBlobStore(ordinal, store, cc);
+    }
+
     @Override
     public String getContentHash(int ordinal, CallingContext cc) throws ODKDatastoreException {
       return binaryContentManipulator.getContentHash(ordinal, cc);
@@ -392,6 +420,50 @@ public class AbstractBlobRelationSet implements BlobRelationSet {
         throws ODKDatastoreException {
       return binaryContentManipulator.setValueFromByteArray(byteArray, contentType, unrootedFilePath, overwriteOK, cc);
     }
+
+    @Override
+    public BlobSubmissionOutcome addBlob(InputStream stream, String contentType,
+        String unrootedFilePath, boolean overwriteOK, CallingContext cc)
+        throws ODKDatastoreException, IOException {
+      return binaryContentManipulator.setValueFromStream(stream, contentType, unrootedFilePath, overwriteOK, cc);
+    }
+
+    @Override
+    public StagedContent stageBlob(InputStream stream, CallingContext cc)
+        throws ODKDatastoreException, IOException {
+      return binaryContentManipulator.stageContent(stream, cc);
+    }
+
+    @Override
+    public BlobSubmissionOutcome addStagedBlob(StagedContent staged, String contentType,
+        String unrootedFilePath, boolean overwriteOK, CallingContext cc)
+        throws ODKDatastoreException {
+      return binaryContentManipulator.setValueFromStagedContent(staged, contentType, unrootedFilePath, overwriteOK, cc);
+    }
+
+    @Override
+    public void discardStagedBlob(StagedContent staged, CallingContext cc)
+        throws ODKDatastoreException {
+      binaryContentManipulator.discardStagedContent(staged, cc);
+    }
+
+    @Override
+    public long appendToStagedBlob(String stagingUri, InputStream stream, long offset, long limit,
+        CallingContext cc) throws ODKDatastoreException {
+      return binaryContentManipulator.appendStagedContent(stagingUri, stream, offset, limit, cc);
+    }
+
+    @Override
+    public StagedContent getStagedBlob(String stagingUri, long contentLength, CallingContext cc)
+        throws ODKDatastoreException, IOException {
+      return binaryContentManipulator.getStagedContent(stagingUri, contentLength, cc);
+    }
+
+    @Override
+    public void discardStagedBlob(String stagingUri, CallingContext cc)
+        throws ODKDatastoreException {
+      binaryContentManipulator.discardStagedContent(stagingUri, cc);
+    }
   }
 
   public List<BinaryContent> getAllBinaryContents(CallingContext cc) throws ODKDatastoreException {
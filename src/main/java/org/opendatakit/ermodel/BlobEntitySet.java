@@ -13,10 +13,15 @@
  */
 package org.opendatakit.ermodel;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
 
 import org.opendatakit.context.CallingContext;
+import org.opendatakit.datamodel.BlobStore;
+import org.opendatakit.datamodel.BinaryContentManipulator.BlobStreamer;
 import org.opendatakit.datamodel.BinaryContentManipulator.BlobSubmissionOutcome;
+import org.opendatakit.datamodel.BinaryContentManipulator.StagedContent;
 import org.opendatakit.persistence.exception.ODKDatastoreException;
 import org.opendatakit.persistence.exception.ODKEntityPersistException;
 import org.opendatakit.persistence.exception.ODKOverQuotaException;
@@ -143,6 +148,33 @@ public interface BlobEntitySet {
    */
   public byte[] getBlob(int ordinal, CallingContext cc) throws ODKDatastoreException;
 
+  /**
+   * Get a reader that streams the contents of the "ordinal'th" blob, fetching
+   * its parts as they are written rather than all at once.
+   * 
+   * @param ordinal
+   *          [1..]
+   * @param cc
+   * @return null if the blob has no content
+   * @throws ODKDatastoreException
+   */
+  public BlobStreamer getBlobStreamer(int ordinal, CallingContext cc) throws ODKDatastoreException;
+
+  /**
+   * Move the contents of the "ordinal'th" blob out of the datastore's blob
+   * tables and into the given store.
+   * 
+   * @param ordinal
+   *          [1..]
+   * @param store
+   * @param cc
+   * @return false if the blob has no content or is already in a store
+   * @throws ODKDatastoreException
+   * @throws IOException
+   */
+  public boolean moveToBlobStore(int ordinal, BlobStore store, CallingContext cc)
+      throws ODKDatastoreException, IOException;
+
   /**
    * Save this BlobSet. Only useful for empty blob sets, as inserting a blob
    * always causes an immediate persist of the blob set.
@@ -179,4 +211,110 @@ public interface BlobEntitySet {
   public BlobSubmissionOutcome addBlob(byte[] byteArray, String contentType,
       String unrootedFilePath, boolean overwriteOK, CallingContext cc) throws ODKDatastoreException;
 
+  /**
+   * As {@link #addBlob(byte[], String, String, boolean, CallingContext)}, but the blob is read
+   * from a stream and written to the datastore in fixed-size parts as it arrives, so it is never
+   * held in memory.
+   * 
+   * @param stream
+   *          read to its end (but not closed)
+   * @param contentType
+   * @param unrootedFilePath
+   * @param overwriteOK
+   * @param cc
+   * @return
+   * @throws ODKDatastoreException
+   * @throws IOException
+   */
+  public BlobSubmissionOutcome addBlob(InputStream stream, String contentType,
+      String unrootedFilePath, boolean overwriteOK, CallingContext cc)
+      throws ODKDatastoreException, IOException;
+
+  /**
+   * Write a blob, hashing it as it is read, ahead of adding it with
+   * {@link #addStagedBlob(StagedContent, String, String, boolean, CallingContext)}.
+   * This does not touch the Blob set, so it needs no lock.
+   * 
+   * @param stream
+   *          read to its end (but not closed)
+   * @param cc
+   * @return the staged blob
+   * @throws ODKDatastoreException
+   * @throws IOException
+   */
+  public StagedContent stageBlob(InputStream stream, CallingContext cc)
+      throws ODKDatastoreException, IOException;
+
+  /**
+   * As {@link #addBlob(InputStream, String, String, boolean, CallingContext)}, for a blob
+   * written by {@link #stageBlob(InputStream, CallingContext)}. A staged blob that is not added
+   * is discarded.
+   * 
+   * @param staged
+   * @param contentType
+   * @param unrootedFilePath
+   * @param overwriteOK
+   * @param cc
+   * @return
+   * @throws ODKDatastoreException
+   */
+  public BlobSubmissionOutcome addStagedBlob(StagedContent staged, String contentType,
+      String unrootedFilePath, boolean overwriteOK, CallingContext cc)
+      throws ODKDatastoreException;
+
+  /**
+   * Remove a staged blob that will not be added. Does nothing if it was added.
+   * 
+   * @param staged
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void discardStagedBlob(StagedContent staged, CallingContext cc)
+      throws ODKDatastoreException;
+
+  /**
+   * Append to a blob that is staged in pieces under stagingUri, as with a resumable upload. The
+   * bytes read before the stream fails are kept.
+   * 
+   * @param stagingUri
+   * @param stream
+   *          read to its end or until limit bytes (but not closed)
+   * @param offset
+   *          the length of the staged blob so far
+   * @param limit
+   *          the most bytes to append
+   * @param cc
+   * @return the number of bytes appended
+   * @throws ODKDatastoreException
+   */
+  public long appendToStagedBlob(String stagingUri, InputStream stream, long offset, long limit,
+      CallingContext cc) throws ODKDatastoreException;
+
+  /**
+   * Complete a blob staged in pieces by
+   * {@link #appendToStagedBlob(String, InputStream, long, long, CallingContext)}, hashing it, so
+   * that it can be added with
+   * {@link #addStagedBlob(StagedContent, String, String, boolean, CallingContext)}.
+   * 
+   * @param stagingUri
+   * @param contentLength
+   * @param cc
+   * @return the staged blob
+   * @throws ODKDatastoreException
+   * @throws IOException
+   *           if the blob could not be read back or is shorter than contentLength
+   */
+  public StagedContent getStagedBlob(String stagingUri, long contentLength, CallingContext cc)
+      throws ODKDatastoreException, IOException;
+
+  /**
+   * Remove a blob staged in pieces under stagingUri, complete or not.
+   * 
+   * @param stagingUri
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void discardStagedBlob(String stagingUri, CallingContext cc)
+      throws ODKDatastoreException;
+
 }
\ No newline at end of file
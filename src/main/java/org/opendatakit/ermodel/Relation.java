@@ -340,6 +340,52 @@ public class Relation {
     return Collections.unmodifiableSet(fieldSet);
   }
 
+  /**
+   * Override to declare multi-column ORDERED indices on the backing table.
+   * Called while the relation is being constructed, so it must not depend on
+   * instance state.
+   *
+   * @return the column names of each index, in index order
+   */
+  protected List<String[]> getCompositeIndexes() {
+    return Collections.emptyList();
+  }
+
+  /**
+   * Override to declare the nullable fields that tables created by an earlier
+   * release lack. Their columns are only added by {@link #upgradeRelation}.
+   * Called while the relation is being constructed, so it must not depend on
+   * instance state.
+   *
+   * @return the column names
+   */
+  protected List<String> getUpgradeColumns() {
+    return Collections.emptyList();
+  }
+
+  /**
+   * Add the upgrade columns that the backing table lacks. This alters the
+   * table, so it is run once, at startup, rather than on request paths.
+   *
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void upgradeRelation(CallingContext cc) throws ODKDatastoreException {
+    cc.getDatastore().upgradeRelation(prototype, cc.getCurrentUser());
+  }
+
+  /**
+   * Build the multi-column indices that the backing table lacks, without
+   * blocking writes. This can take a long time, so it is run once, in the
+   * background, rather than on request paths.
+   *
+   * @param cc
+   * @return true if every index is in place
+   */
+  public boolean buildIndexes(CallingContext cc) {
+    return cc.getDatastore().buildIndexes(prototype, cc.getCurrentUser());
+  }
+
   /**
    * The backing object for the Entity.
    *
@@ -776,6 +822,12 @@ public class Relation {
     String schema = ds.getDefaultSchemaName();
     synchronized (Relation.class) {
       RelationImpl candidate = new RelationImpl(schema, backingTableName, definedFields);
+      for (String[] columnNames : getCompositeIndexes()) {
+        candidate.addCompositeIndex(columnNames);
+      }
+      for (String columnName : getUpgradeColumns()) {
+        candidate.addUpgradeColumn(columnName);
+      }
       ds.assertRelation(candidate, user);
       prototype = candidate;
     }
@@ -0,0 +1,203 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.datamodel.BinaryContent;
+import org.opendatakit.datamodel.BlobStore;
+import org.opendatakit.ermodel.BlobEntitySet;
+import org.opendatakit.odktables.relation.DbTableEntry;
+import org.opendatakit.odktables.relation.DbTableEntry.DbTableEntryEntity;
+import org.opendatakit.odktables.relation.DbTableFileInfo;
+import org.opendatakit.odktables.relation.DbTableFileInfo.DbTableFileInfoEntity;
+import org.opendatakit.odktables.relation.DbTableFiles;
+import org.opendatakit.odktables.relation.DbTableInstanceFiles;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+import org.opendatakit.persistence.exception.ODKTaskLockException;
+
+/**
+ * Moves the content of app files ({@link DbTableFiles}) and instance attachments
+ * ({@link DbTableInstanceFiles}) out of the datastore's blob tables and into a {@link BlobStore}.
+ *
+ * Each file is moved under the same lock that guards its uploads (the table lock for app and
+ * table files, the row bucket lock for attachments), copied with its MD5 hash verified, and only
+ * then are its parts deleted. Files are moved one at a time with a pause in between, so a pass can
+ * run alongside normal traffic. Files that fail are left in place and retried by the next pass.
+ */
+public class BlobStoreMigrator implements Runnable {
+
+  private static final Log logger = LogFactory.getLog(BlobStoreMigrator.class);
+
+  /**
+   * What a migration pass did.
+   */
+  public static class Result {
+    private long files = 0L;
+    private long bytes = 0L;
+    private long failed = 0L;
+
+    public long getFiles() {
+      return files;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * @return the number of files left in the datastore because they could not be moved
+     */
+    public long getFailed() {
+      return failed;
+    }
+  }
+
+  private final CallingContext cc;
+  private final BlobStore store;
+  private final long pauseMillis;
+
+  private volatile Result lastResult = null;
+  private volatile boolean complete = false;
+
+  /**
+   * @param cc
+   *          a daemon calling context
+   * @param store
+   *          the store to move the content into
+   * @param pauseMillis
+   *          the pause after each file is moved
+   */
+  public BlobStoreMigrator(CallingContext cc, BlobStore store, long pauseMillis) {
+    this.cc = cc;
+    this.store = store;
+    this.pauseMillis = pauseMillis;
+  }
+
+  /**
+   * @return the totals of the last completed pass, or null if none has completed
+   */
+  public Result getLastResult() {
+    return lastResult;
+  }
+
+  /**
+   * @return true once a pass has found nothing left to move. New content is written to the store,
+   *         so further passes are skipped.
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  @Override
+  public void run() {
+    if (complete) {
+      return;
+    }
+    try {
+      Result result = new Result();
+      migrateTableFiles(DbTableFileInfo.NO_TABLE_ID,
+          DbTableFileInfo.queryForAllOdkClientVersionsOfAppLevelFiles(cc), result);
+      for (DbTableEntryEntity entry : DbTableEntry.query(cc)) {
+        String tableId = entry.getId();
+        migrateTableFiles(tableId,
+            DbTableFileInfo.queryForAllOdkClientVersionsOfTableIdFiles(tableId, cc), result);
+        migrateInstanceFiles(tableId, result);
+      }
+      lastResult = result;
+      logger.info("Moved " + result.getFiles() + " files (" + result.getBytes()
+          + " bytes) into the " + store.getName() + " blob store; " + result.getFailed()
+          + " could not be moved");
+      if (result.getFiles() == 0L && result.getFailed() == 0L) {
+        complete = true;
+        logger.info("All files are in the " + store.getName() + " blob store");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      // keep the scheduled job alive
+      logger.error("Moving files into the " + store.getName() + " blob store failed", e);
+    }
+  }
+
+  private void migrateTableFiles(String tableId, List<DbTableFileInfoEntity> entries,
+      Result result) throws ODKDatastoreException, InterruptedException {
+    DbTableFiles dbTableFiles = new DbTableFiles(cc);
+    for (DbTableFileInfoEntity entry : entries) {
+      // the uri of the blob set is the id of the file's DbTableFileInfo row
+      BlobEntitySet blobEntitySet = dbTableFiles.getBlobEntitySet(entry.getId(), cc);
+      int count = blobEntitySet.getAttachmentCount(cc);
+      for (int ordinal = 1; ordinal <= count; ++ordinal) {
+        if (blobEntitySet.getContentHash(ordinal, cc) == null) {
+          continue;
+        }
+        OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId, null,
+            ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES,
+            OdkTablesLockTemplate.DelayStrategy.MEDIUM, cc);
+        // re-read under the lock
+        migrate(propsLock, dbTableFiles.getBlobEntitySet(entry.getId(), cc), ordinal,
+            tableId + "/" + entry.getPathToFile(), result);
+      }
+    }
+  }
+
+  private void migrateInstanceFiles(String tableId, Result result)
+      throws ODKDatastoreException, InterruptedException {
+    DbTableInstanceFiles blobStore = new DbTableInstanceFiles(tableId, cc);
+    for (BinaryContent bc : blobStore.getAllBinaryContents(cc)) {
+      if (bc.getContentHash() == null || bc.getBlobKey() != null) {
+        continue;
+      }
+      // the uri of the blob set is the rowId
+      String rowId = bc.getParentAuri();
+      OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId, rowId,
+          ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES,
+          OdkTablesLockTemplate.DelayStrategy.MEDIUM, cc);
+      migrate(propsLock, blobStore.getBlobEntitySet(rowId, cc), bc.getOrdinalNumber().intValue(),
+          tableId + "/" + rowId + "/" + bc.getUnrootedFilePath(), result);
+    }
+  }
+
+  private void migrate(OdkTablesLockTemplate propsLock, BlobEntitySet blobEntitySet,
+      int ordinal, String description, Result result) throws InterruptedException {
+    boolean moved = false;
+    try {
+      propsLock.acquire();
+      try {
+        Long length = blobEntitySet.getContentLength(ordinal, cc);
+        moved = blobEntitySet.moveToBlobStore(ordinal, store, cc);
+        if (moved) {
+          result.files++;
+          result.bytes += length;
+        }
+      } finally {
+        propsLock.release();
+      }
+    } catch (ODKTaskLockException e) {
+      result.failed++;
+      logger.warn("Unable to lock " + description + " to move it into the blob store");
+    } catch (ODKDatastoreException e) {
+      result.failed++;
+      logger.error("Unable to move " + description + " into the blob store", e);
+    } catch (IOException e) {
+      result.failed++;
+      logger.error("Unable to move " + description + " into the blob store", e);
+    }
+    if (moved && pauseMillis > 0L) {
+      Thread.sleep(pauseMillis);
+    }
+  }
+}
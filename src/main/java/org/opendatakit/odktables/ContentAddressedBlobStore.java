@@ -0,0 +1,295 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.datamodel.BlobStore;
+import org.opendatakit.odktables.relation.DbBlobStoreReference;
+import org.opendatakit.odktables.relation.DbBlobStoreReference.DbBlobStoreReferenceEntity;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+import org.opendatakit.persistence.exception.ODKTaskLockException;
+
+/**
+ * A {@link BlobStore} that addresses content by its SHA-256 hash, so that identical content is
+ * stored once however many attachments hold it. The references to each piece of content are
+ * counted in {@link DbBlobStoreReference}; the content is removed when the last one is released.
+ *
+ * New content is first staged, outside of any lock, and then installed under its hash (or
+ * discarded, if that content is already stored) while holding the lock for the hash. Counts are
+ * only changed under that lock, so a put and a release of the same content cannot interleave.
+ *
+ * @param <S>
+ *          the staged content
+ */
+public abstract class ContentAddressedBlobStore<S extends ContentAddressedBlobStore.Staged>
+    implements BlobStore {
+
+  private static final Log logger = LogFactory.getLog(ContentAddressedBlobStore.class);
+
+  /**
+   * Content that has been written, but is not yet installed under its hash.
+   */
+  public static class Staged {
+    private final String id;
+    private final long contentLength;
+    private final String contentHash;
+
+    protected Staged(String id, long contentLength, String contentHash) {
+      this.id = id;
+      this.contentLength = contentLength;
+      this.contentHash = contentHash;
+    }
+
+    /**
+     * @return the hex SHA-256 hash of the content
+     */
+    public String getId() {
+      return id;
+    }
+
+    public long getContentLength() {
+      return contentLength;
+    }
+
+    /**
+     * @return the MD5 hash of the content
+     */
+    public String getContentHash() {
+      return contentHash;
+    }
+  }
+
+  /**
+   * Write the content somewhere it can later be installed from.
+   *
+   * @param content
+   * @param cc
+   * @return the staged content, with its hashes
+   * @throws ODKDatastoreException
+   * @throws IOException
+   */
+  protected abstract S stage(InputStream content, CallingContext cc)
+      throws ODKDatastoreException, IOException;
+
+  /**
+   * Make the staged content the content stored under its id, replacing anything left there by an
+   * earlier failure. Called holding the lock for the id.
+   *
+   * @param staged
+   * @param cc
+   * @throws ODKDatastoreException
+   * @throws IOException
+   */
+  protected abstract void install(S staged, CallingContext cc)
+      throws ODKDatastoreException, IOException;
+
+  /**
+   * Remove whatever of the staged content was not installed.
+   *
+   * @param staged
+   * @param cc
+   */
+  protected abstract void discard(S staged, CallingContext cc);
+
+  /**
+   * @param id
+   * @param cc
+   * @return true if content is stored under the id. Called holding the lock for the id, and only
+   *         for ids that have references.
+   * @throws ODKDatastoreException
+   */
+  protected abstract boolean isStored(String id, CallingContext cc) throws ODKDatastoreException;
+
+  /**
+   * Remove the content stored under the id. Called holding the lock for the id, once its last
+   * reference has been released.
+   *
+   * @param id
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  protected abstract void remove(String id, CallingContext cc) throws ODKDatastoreException;
+
+  @Override
+  public StoredBlob put(InputStream content, CallingContext cc)
+      throws ODKDatastoreException, IOException {
+    S staged = stage(content, cc);
+    try {
+      return link(staged, cc);
+    } finally {
+      discard(staged, cc);
+    }
+  }
+
+  @Override
+  public StoredBlob put(byte[] content, CallingContext cc) throws ODKDatastoreException {
+    // the hashes are cheap to compute first, and content that is already stored is not written
+    MessageDigest sha = newSHA256Digest();
+    sha.update(content);
+    String id = Hex.encodeHexString(sha.digest());
+    StoredBlob stored = addReference(id, cc);
+    if (stored != null) {
+      return stored;
+    }
+    try {
+      return put(new ByteArrayInputStream(content), cc);
+    } catch (IOException e) {
+      throw new ODKDatastoreException("Unable to store the file content", e);
+    }
+  }
+
+  @Override
+  public void release(String key, CallingContext cc) throws ODKDatastoreException {
+    String id = idOf(key);
+    OdkTablesLockTemplate lock = lockFor(id, cc);
+    try {
+      DbBlobStoreReferenceEntity reference = DbBlobStoreReference.getReference(key, cc);
+      if (reference == null) {
+        logger.warn("Released blob " + key + " has no references");
+        return;
+      }
+      long count = reference.getRefCount() - 1L;
+      if (count > 0L) {
+        reference.setRefCount(count);
+        reference.put(cc);
+        return;
+      }
+      // forget the content before removing it; a failure leaves it unreferenced, and it is
+      // replaced when the same content is next stored
+      reference.delete(cc);
+      remove(id, cc);
+    } finally {
+      unlock(lock);
+    }
+  }
+
+  /**
+   * @param id
+   * @param cc
+   * @return the stored content, with a reference added; null if it is not stored
+   * @throws ODKDatastoreException
+   */
+  private StoredBlob addReference(String id, CallingContext cc) throws ODKDatastoreException {
+    String key = keyOf(id);
+    OdkTablesLockTemplate lock = lockFor(id, cc);
+    try {
+      DbBlobStoreReferenceEntity reference = DbBlobStoreReference.getReference(key, cc);
+      if (reference == null || !isStored(id, cc)) {
+        return null;
+      }
+      reference.setRefCount(reference.getRefCount() + 1L);
+      reference.put(cc);
+      return new StoredBlob(key, reference.getContentLength(), reference.getContentHash());
+    } finally {
+      unlock(lock);
+    }
+  }
+
+  private StoredBlob link(S staged, CallingContext cc) throws ODKDatastoreException, IOException {
+    String id = staged.getId();
+    String key = keyOf(id);
+    OdkTablesLockTemplate lock = lockFor(id, cc);
+    try {
+      DbBlobStoreReferenceEntity reference = DbBlobStoreReference.getReference(key, cc);
+      if (reference == null || !isStored(id, cc)) {
+        install(staged, cc);
+      }
+      if (reference == null) {
+        reference = DbBlobStoreReference.createNewEntity(cc);
+        reference.setBlobKey(key);
+        reference.setRefCount(1L);
+        reference.setContentLength(staged.getContentLength());
+        reference.setContentHash(staged.getContentHash());
+      } else {
+        reference.setRefCount(reference.getRefCount() + 1L);
+      }
+      reference.put(cc);
+    } finally {
+      unlock(lock);
+    }
+    return new StoredBlob(key, staged.getContentLength(), staged.getContentHash());
+  }
+
+  private String keyOf(String id) {
+    return getName() + ":" + id;
+  }
+
+  /**
+   * @param key
+   * @return the hex SHA-256 hash the key addresses
+   */
+  protected String idOf(String key) {
+    String prefix = getName() + ":";
+    if (!key.startsWith(prefix)) {
+      throw new IllegalArgumentException("Not a " + getName() + " blob key: " + key);
+    }
+    String id = key.substring(prefix.length());
+    if (!id.matches("[0-9a-f]{64}")) {
+      throw new IllegalArgumentException("Malformed blob key: " + key);
+    }
+    return id;
+  }
+
+  /**
+   * @param key
+   * @param cc
+   * @return the length of the content, or null if it is not stored
+   * @throws ODKDatastoreException
+   */
+  protected Long getContentLength(String key, CallingContext cc) throws ODKDatastoreException {
+    DbBlobStoreReferenceEntity reference = DbBlobStoreReference.getReference(key, cc);
+    return (reference == null) ? null : reference.getContentLength();
+  }
+
+  protected static MessageDigest newSHA256Digest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unexpected problem computing sha-256 hash", e);
+    }
+  }
+
+  /**
+   * Reference counts are changed under a lock on one of 256 buckets of ids.
+   */
+  private OdkTablesLockTemplate lockFor(String id, CallingContext cc)
+      throws ODKDatastoreException {
+    OdkTablesLockTemplate lock = new OdkTablesLockTemplate(
+        "blob-store|" + getName() + "|" + id.substring(0, 2),
+        ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES,
+        OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+    try {
+      lock.acquire();
+    } catch (ODKTaskLockException e) {
+      throw new ODKDatastoreException("Unable to lock the blob store", e);
+    }
+    return lock;
+  }
+
+  private void unlock(OdkTablesLockTemplate lock) {
+    try {
+      lock.release();
+    } catch (ODKTaskLockException e) {
+      // it times out
+      logger.warn("Unable to release the blob store lock", e);
+    }
+  }
+}
@@ -16,13 +16,20 @@
 
 package org.opendatakit.odktables;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -45,18 +52,22 @@ import org.opendatakit.context.CallingContext;
 import org.opendatakit.ermodel.Entity;
 import org.opendatakit.ermodel.Query;
 import org.opendatakit.ermodel.Query.WebsafeQueryResult;
+import org.opendatakit.odktables.entity.TableChangeEvent;
 import org.opendatakit.odktables.exception.BadColumnNameException;
+import org.opendatakit.odktables.exception.BadFilterException;
 import org.opendatakit.odktables.exception.ETagMismatchException;
 import org.opendatakit.odktables.exception.InconsistentStateException;
 import org.opendatakit.odktables.exception.PermissionDeniedException;
 import org.opendatakit.odktables.exception.TableDataETagMismatchException;
 import org.opendatakit.odktables.relation.DbColumnDefinitions;
+import org.opendatakit.odktables.relation.DbLogCheckpoint;
 import org.opendatakit.odktables.relation.DbLogTable;
 import org.opendatakit.odktables.relation.DbTable;
 import org.opendatakit.odktables.relation.DbTableDefinitions;
 import org.opendatakit.odktables.relation.DbTableEntry;
 import org.opendatakit.odktables.relation.EntityConverter;
 import org.opendatakit.odktables.relation.EntityCreator;
+import org.opendatakit.odktables.relation.RowContentHash;
 import org.opendatakit.odktables.relation.DbColumnDefinitions.DbColumnDefinitionsEntity;
 import org.opendatakit.odktables.relation.DbTableDefinitions.DbTableDefinitionsEntity;
 import org.opendatakit.odktables.relation.DbTableEntry.DbTableEntryEntity;
@@ -83,6 +94,11 @@ public class DataManager {
 
   private static final Log logger = LogFactory.getLog(DataManager.class);
 
+  /**
+   * Number of rows of a bulk change written (and reported) together.
+   */
+  public static final int ROW_CHUNK_SIZE = 500;
+
   public static class WebsafeRows {
     @JsonProperty
     public final List<Row> rows;
@@ -112,15 +128,83 @@ public class DataManager {
     }
   }
 
+  /**
+   * A page of rows whose entities are converted to {@link Row} objects (and checked against the
+   * user's row-level permissions) only as the row source is iterated. This lets a response start
+   * serializing while later rows of the page are still being mapped. The source may only be
+   * iterated once.
+   */
+  public static class WebsafeRowSource {
+    public final Iterable<Row> rows;
+
+    public final String dataETag;
+    public final String websafeRefetchCursor;
+    public final String websafeBackwardCursor;
+    public final String websafeResumeCursor;
+    public final boolean hasMore;
+    public final boolean hasPrior;
+
+    public WebsafeRowSource(Iterable<Row> rows, String dataETag, String websafeRefetchCursor,
+        String websafeBackwardCursor, String websafeResumeCursor, boolean hasMore,
+        boolean hasPrior) {
+      this.rows = rows;
+      this.dataETag = dataETag;
+      this.websafeRefetchCursor = websafeRefetchCursor;
+      this.websafeBackwardCursor = websafeBackwardCursor;
+      this.websafeResumeCursor = websafeResumeCursor;
+      this.hasMore = hasMore;
+      this.hasPrior = hasPrior;
+    }
+
+    /**
+     * Consume the row source into a fully materialized {@link WebsafeRows}.
+     *
+     * @return the rows of this page
+     * @throws ODKDatastoreException
+     *           if a row-level permission check failed during conversion
+     */
+    public WebsafeRows toWebsafeRows() throws ODKDatastoreException {
+      ArrayList<Row> list = new ArrayList<Row>();
+      try {
+        for (Row row : rows) {
+          list.add(row);
+        }
+      } catch (RowSourceException e) {
+        throw e.getCause();
+      }
+      return new WebsafeRows(list, dataETag, websafeRefetchCursor, websafeBackwardCursor,
+          websafeResumeCursor, hasMore, hasPrior);
+    }
+  }
+
+  /**
+   * Unchecked wrapper for a datastore failure raised while a {@link WebsafeRowSource} is being
+   * iterated.
+   */
+  public static class RowSourceException extends RuntimeException {
+
+    private static final long serialVersionUID = 2317418652418305418L;
+
+    public RowSourceException(ODKDatastoreException cause) {
+      super(cause);
+    }
+
+    @Override
+    public synchronized ODKDatastoreException getCause() {
+      return (ODKDatastoreException) super.getCause();
+    }
+  }
+
   private CallingContext cc;
   private TablesUserPermissions userPermissions;
   private EntityConverter converter;
+  private ParallelRowConverter rowConverter;
   private EntityCreator creator;
   private String appId;
   private String tableId;
 
   /**
-   * Construct a new DataManager.
+   * Construct a new DataManager that converts every page of rows on the calling thread.
    *
    * @param tableId
    *          the unique identifier of the table
@@ -135,12 +219,36 @@ public class DataManager {
    */
   public DataManager(String appId, String tableId, TablesUserPermissions userPermissions,
       CallingContext cc) throws ODKEntityNotFoundException, ODKDatastoreException {
+    this(appId, tableId, userPermissions, ParallelRowConverter.SEQUENTIAL, cc);
+  }
+
+  /**
+   * Construct a new DataManager that converts large pages of rows with the given converter.
+   *
+   * @param tableId
+   *          the unique identifier of the table
+   * @param userPermissions
+   *          the requesting user's permissions
+   * @param rowConverter
+   *          the converter for pages of query results
+   * @param cc
+   *          the calling context
+   * @throws ODKEntityNotFoundException
+   *           if no table with the given id exists
+   * @throws ODKDatastoreException
+   *           if there is an internal error in the datastore
+   */
+  public DataManager(String appId, String tableId, TablesUserPermissions userPermissions,
+      ParallelRowConverter rowConverter, CallingContext cc)
+      throws ODKEntityNotFoundException, ODKDatastoreException {
     Validate.notEmpty(appId);
     Validate.notEmpty(tableId);
+    Validate.notNull(rowConverter);
     Validate.notNull(cc);
     this.cc = cc;
     this.userPermissions = userPermissions;
     this.converter = new EntityConverter();
+    this.rowConverter = rowConverter;
     this.creator = new EntityCreator();
     this.appId = appId;
     this.tableId = tableId;
@@ -154,6 +262,45 @@ public class DataManager {
     return tableId;
   }
 
+  /**
+   * Compute an entity tag for a read of the rows of this table. The tag is derived from the
+   * committed schemaETag and dataETag, the requesting user and that user's access scope (roles,
+   * scopes and the table permissions they confer), and the request parameters that shape the
+   * response, so it changes whenever the table data or the rows visible to the user change.
+   * <p>
+   * Beyond the table ACLs the permission check reads, only a single DbTableEntry read is
+   * performed: no table lock is acquired and neither the table definition nor the log table is
+   * consulted. This makes it suitable for answering conditional GET requests before doing any real
+   * work.
+   *
+   * @param requestParameters
+   *          the values that distinguish this request (may contain nulls)
+   * @return the entity tag, or null if the schema is not defined or a data change is pending
+   * @throws ODKDatastoreException
+   * @throws PermissionDeniedException
+   */
+  public String getRowsEntityTag(Object... requestParameters)
+      throws ODKDatastoreException, PermissionDeniedException {
+
+    userPermissions.checkPermission(appId, tableId, TablePermission.READ_ROW);
+
+    DbTableEntryEntity entry = DbTableEntry.getTableIdEntry(tableId, cc);
+    String schemaETag = entry.getSchemaETag();
+    if (schemaETag == null || entry.getPendingDataETag() != null) {
+      // the full request path will either fail or revert the pending change
+      return null;
+    }
+
+    StringBuilder b = new StringBuilder();
+    b.append(schemaETag).append('|').append(entry.getDataETag()).append('|')
+        .append(userPermissions.getOdkTablesUserId()).append('|')
+        .append(userPermissions.getAccessScope(appId, tableId));
+    for (Object parameter : requestParameters) {
+      b.append('|').append(parameter);
+    }
+    return CommonFieldsBase.newMD5HashUri(b.toString());
+  }
+
   private void revertPendingChanges(DbTableEntryEntity entry,
       List<DbColumnDefinitionsEntity> columns, DbTable table, DbLogTable logTable)
       throws ODKDatastoreException, BadColumnNameException {
@@ -242,6 +389,56 @@ public class DataManager {
       boolean ascending, String deviceId, String officeId, boolean showDeleted)
       throws ODKDatastoreException, PermissionDeniedException, ODKTaskLockException,
       InconsistentStateException, BadColumnNameException {
+    return streamRows(startCursor, fetchLimit, sortColumn, ascending, deviceId, officeId,
+        showDeleted).toWebsafeRows();
+  }
+
+  /**
+   * Retrieve all current rows of the table as a lazily converted row source. The query runs (and
+   * the table lock is released) before this returns; only the entity-to-row mapping is deferred.
+   *
+   * @return the rows of the table.
+   * @throws ODKDatastoreException
+   * @throws PermissionDeniedException
+   * @throws ODKTaskLockException
+   * @throws InconsistentStateException
+   * @throws BadColumnNameException
+   */
+  public WebsafeRowSource streamRows(QueryResumePoint startCursor, int fetchLimit,
+      String sortColumn, boolean ascending, String deviceId, String officeId, boolean showDeleted)
+      throws ODKDatastoreException, PermissionDeniedException, ODKTaskLockException,
+      InconsistentStateException, BadColumnNameException {
+    try {
+      return streamRows(startCursor, fetchLimit, sortColumn, ascending, deviceId, officeId,
+          showDeleted, null, null);
+    } catch (BadFilterException e) {
+      throw new IllegalStateException("no filter was given", e);
+    }
+  }
+
+  /**
+   * Retrieve the current rows of the table that match a filter, with only some of their columns.
+   * The filter is evaluated by the database.
+   *
+   * @param filter
+   *          null or the filter the rows must match
+   * @param projection
+   *          null or the elementKeys of the columns to return
+   * @return the rows of the table.
+   * @throws ODKDatastoreException
+   * @throws PermissionDeniedException
+   * @throws ODKTaskLockException
+   * @throws InconsistentStateException
+   * @throws BadColumnNameException
+   *           if the filter or projection names a column the table does not have
+   * @throws BadFilterException
+   *           if a filter value does not match the type of its column
+   */
+  public WebsafeRowSource streamRows(QueryResumePoint startCursor, int fetchLimit,
+      String sortColumn, boolean ascending, String deviceId, String officeId, boolean showDeleted,
+      RowFilter filter, List<String> projection)
+      throws ODKDatastoreException, PermissionDeniedException, ODKTaskLockException,
+      InconsistentStateException, BadColumnNameException, BadFilterException {
 
     userPermissions.checkPermission(appId, tableId, TablePermission.READ_ROW);
 
@@ -298,6 +495,9 @@ public class DataManager {
       if (officeId != null)
         query.addFilter(table.getDataField("OFFICE_ID"),
             org.opendatakit.persistence.Query.FilterOperation.EQUAL, officeId);
+      if (filter != null) {
+        filter.apply(query, table, columns);
+      }
       result = query.execute(startCursor, fetchLimit);
 
     } finally {
@@ -308,18 +508,126 @@ public class DataManager {
       throw new InconsistentStateException("Unable to retrieve rows for table " + tableId + ".");
     }
 
-    ArrayList<Row> rows = new ArrayList<Row>();
-    for (Entity entity : result.entities) {
-      Row row = converter.toRow(entity, columns);
-      if (userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)) {
-        rows.add(row);
-      } else if (userPermissions.hasFilterScope(appId, tableId, TablePermission.READ_ROW,
-          row.getRowId(), /* row.getFilterScope() */ Scope.EMPTY_SCOPE)) {
-        rows.add(row);
+    return new WebsafeRowSource(
+        toReadableRows(result.entities, projectColumns(columns, projection), false),
+        currentDataETag, result.websafeRefetchCursor, result.websafeBackwardCursor, result.websafeResumeCursor,
+        result.hasMore, result.hasPrior);
+  }
+
+  /**
+   * Wrap the query result in a row source that converts each entity on demand and skips the rows
+   * the user may not read. The UNFILTERED_READ check is made once, up front. Large pages are
+   * instead converted all at once by {@link ParallelRowConverter}.
+   *
+   * @param entities
+   *          the query result
+   * @param columns
+   *          the column definitions of the table
+   * @param fromLogTable
+   *          true if the entities are DbLogTable entries
+   * @return the readable rows
+   * @throws ODKDatastoreException
+   */
+  private Iterable<Row> toReadableRows(final List<Entity> entities,
+      final List<DbColumnDefinitionsEntity> columns, final boolean fromLogTable)
+      throws ODKDatastoreException {
+    final boolean unfilteredRead = userPermissions.hasPermission(appId, tableId,
+        TablePermission.UNFILTERED_READ);
+    if (rowConverter.isParallel(entities.size())) {
+      return rowConverter.toRows(converter, entities, columns, fromLogTable,
+          readCheck(unfilteredRead));
+    }
+    return new Iterable<Row>() {
+      @Override
+      public Iterator<Row> iterator() {
+        final Iterator<Entity> source = entities.iterator();
+        return new Iterator<Row>() {
+          private Row nextRow = null;
+
+          @Override
+          public boolean hasNext() {
+            while (nextRow == null && source.hasNext()) {
+              Entity entity = source.next();
+              Row row = fromLogTable ? converter.toRowFromLogTable(entity, columns)
+                  : converter.toRow(entity, columns);
+              if (unfilteredRead || isRowReadable(row)) {
+                nextRow = row;
+              }
+            }
+            return nextRow != null;
+          }
+
+          @Override
+          public Row next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            Row row = nextRow;
+            nextRow = null;
+            return row;
+          }
+        };
       }
+    };
+  }
+
+  /**
+   * @param columns
+   *          the column definitions of the table
+   * @param projection
+   *          null or the elementKeys of the columns wanted
+   * @return the definitions of the wanted columns, in the order requested
+   * @throws BadColumnNameException
+   *           if a wanted column is not a column of the table
+   */
+  private List<DbColumnDefinitionsEntity> projectColumns(List<DbColumnDefinitionsEntity> columns,
+      List<String> projection) throws BadColumnNameException {
+    if (projection == null || projection.isEmpty()) {
+      return columns;
+    }
+    List<DbColumnDefinitionsEntity> projected = new ArrayList<DbColumnDefinitionsEntity>();
+    for (String elementKey : projection) {
+      DbColumnDefinitionsEntity match = null;
+      for (DbColumnDefinitionsEntity column : columns) {
+        if (column.isUnitOfRetention() && column.getElementKey().equals(elementKey)) {
+          match = column;
+          break;
+        }
+      }
+      if (match == null) {
+        throw new BadColumnNameException(
+            "Column " + elementKey + " is not a column of table " + tableId);
+      }
+      projected.add(match);
+    }
+    return projected;
+  }
+
+  /**
+   * @param unfilteredRead
+   *          true if the user holds UNFILTERED_READ on this table
+   * @return the per-row read check, or null if every row is readable
+   */
+  private ParallelRowConverter.ReadCheck readCheck(boolean unfilteredRead) {
+    if (unfilteredRead) {
+      return null;
+    }
+    return new ParallelRowConverter.ReadCheck() {
+      @Override
+      public boolean isReadable(Row row) throws ODKDatastoreException {
+        return userPermissions.hasFilterScope(appId, tableId, TablePermission.READ_ROW,
+            row.getRowId(), /* row.getFilterScope() */ Scope.EMPTY_SCOPE);
+      }
+    };
+  }
+
+  private boolean isRowReadable(Row row) {
+    try {
+      return userPermissions.hasFilterScope(appId, tableId, TablePermission.READ_ROW,
+          row.getRowId(), /* row.getFilterScope() */ Scope.EMPTY_SCOPE);
+    } catch (ODKDatastoreException e) {
+      throw new RowSourceException(e);
     }
-    return new WebsafeRows(rows, currentDataETag, result.websafeRefetchCursor,
-        result.websafeBackwardCursor, result.websafeResumeCursor, result.hasMore, result.hasPrior);
   }
 
   /**
@@ -348,6 +656,59 @@ public class DataManager {
   public WebsafeRows getRowsSince(String dataETag, QueryResumePoint startCursor, int fetchLimit)
       throws ODKDatastoreException, ODKTaskLockException, InconsistentStateException,
       PermissionDeniedException, BadColumnNameException {
+    return streamRowsSince(dataETag, startCursor, fetchLimit).toWebsafeRows();
+  }
+
+  /**
+   * Retrieves the changes since the given data etag as a lazily converted row source. Log entries
+   * are reduced to the latest entry per row before any of them are converted.
+   *
+   * @param dataETag
+   *          the data ETag
+   * @return the rows which have changed or been added since the given data etag
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws InconsistentStateException
+   * @throws PermissionDeniedException
+   * @throws BadColumnNameException
+   */
+  public WebsafeRowSource streamRowsSince(String dataETag, QueryResumePoint startCursor,
+      int fetchLimit) throws ODKDatastoreException, ODKTaskLockException,
+      InconsistentStateException, PermissionDeniedException, BadColumnNameException {
+    try {
+      return streamRowsSince(dataETag, startCursor, fetchLimit, null, null);
+    } catch (BadFilterException e) {
+      throw new IllegalStateException("no filter was given", e);
+    }
+  }
+
+  /**
+   * Retrieves the changes since the given data etag that match a filter, with only some of their
+   * columns. The log entries of each page are reduced to the latest entry per row, and a changed
+   * row is then reported only if its current version matches the filter. The filter is never
+   * evaluated against an older logged version, so a row that has since stopped matching is not
+   * reported with a stale matching version. Deletions are always reported.
+   *
+   * @param dataETag
+   *          the data ETag
+   * @param filter
+   *          null or the filter the changes must match
+   * @param projection
+   *          null or the elementKeys of the columns to return
+   * @return the rows which have changed or been added since the given data etag
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws InconsistentStateException
+   * @throws PermissionDeniedException
+   * @throws BadColumnNameException
+   *           if the filter or projection names a column the table does not have
+   * @throws BadFilterException
+   *           if a filter value does not match the type of its column
+   */
+  public WebsafeRowSource streamRowsSince(String dataETag, QueryResumePoint startCursor,
+      int fetchLimit, RowFilter filter, List<String> projection) throws ODKDatastoreException,
+      ODKTaskLockException, InconsistentStateException, PermissionDeniedException,
+      BadColumnNameException, BadFilterException {
 
     userPermissions.checkPermission(appId, tableId, TablePermission.READ_ROW);
 
@@ -355,6 +716,7 @@ public class DataManager {
 
     List<DbColumnDefinitionsEntity> columns = null;
     WebsafeQueryResult result = null;
+    List<Entity> diff = null;
     OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId,
         ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES,
         OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
@@ -398,8 +760,13 @@ public class DataManager {
         query = buildRowsSinceQuery(logTable, sequenceValue,
             (startCursor == null ? true : startCursor.isForwardCursor()));
       }
-
       result = query.execute(startCursor, fetchLimit);
+      if (result.entities != null) {
+        diff = computeEntityDiff(result.entities);
+        if (filter != null) {
+          diff = filterEntityDiff(diff, filter, table, columns);
+        }
+      }
     } finally {
       propsLock.release();
     }
@@ -411,18 +778,9 @@ public class DataManager {
     // TODO: properly handle reporting of rows that the user no longer has
     // access to because of a access / permissions change for that user and / or
     // row.
-    ArrayList<Row> rows = new ArrayList<Row>();
-    for (Entity entity : result.entities) {
-      Row row = converter.toRowFromLogTable(entity, columns);
-      if (userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)) {
-        rows.add(row);
-      } else if (userPermissions.hasFilterScope(appId, tableId, TablePermission.READ_ROW,
-          row.getRowId(), /* row.getFilterScope() */ Scope.EMPTY_SCOPE)) {
-        rows.add(row);
-      }
-    }
-    return new WebsafeRows(computeDiff(rows), currentDataETag, result.websafeRefetchCursor,
-        result.websafeBackwardCursor, result.websafeResumeCursor, result.hasMore, result.hasPrior);
+    return new WebsafeRowSource(toReadableRows(diff,
+        projectColumns(columns, projection), true), currentDataETag, result.websafeRefetchCursor, result.websafeBackwardCursor,
+        result.websafeResumeCursor, result.hasMore, result.hasPrior);
   }
 
   /**
@@ -491,51 +849,16 @@ public class DataManager {
 
       revertPendingChanges(entry, columns, table, logTable);
 
-      SimpleDateFormat sf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSSSSSSS");
-      Date startDateToCompare = null;
-      String startSequenceValue = null;
-      if (startTime != null) {
-        try {
-          startDateToCompare = sf.parse(startTime);
-          startSequenceValue = getSequenceValueForStartTime(logTable, query_col, startTime,
-              startDateToCompare, Direction.ASCENDING);
-          // (startCursor == null || startCursor.isForwardCursor()) ?
-          // Direction.ASCENDING : Direction.DESCENDING);
-        } catch (ODKEntityNotFoundException e) {
-          // No values to display should return empty list
-          ArrayList<Row> rows = new ArrayList<Row>();
-          return new WebsafeRows(rows, currentDataETag, null, null, null, false, false);
-        }
-      } else {
+      if (startTime == null) {
         throw new IllegalArgumentException("startTime must be specified.");
       }
-
+      SimpleDateFormat sf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSSSSSSS");
+      Date startDateToCompare = sf.parse(startTime);
       // endTime is an optional parameter
-      // and does not have to have a valid value
-      Date endDateToCompare = null;
-      String endSequenceValue = null;
-      if (endTime != null) {
-        try {
-          endDateToCompare = sf.parse(endTime);
-          // For the end time stamp we want the last one
-          endSequenceValue = getSequenceValueForEndTime(logTable, query_col, endTime,
-              endDateToCompare, Direction.DESCENDING);
-          // (startCursor == null || startCursor.isForwardCursor()) ?
-          // Direction.DESCENDING : Direction.ASCENDING);
-        } catch (ODKEntityNotFoundException e) {
-          // If a sequence values is not found,
-          // the query should still work
-        }
-      }
+      Date endDateToCompare = (endTime == null) ? null : sf.parse(endTime);
 
-      // CAL: From getRowsSince
-      Query query;
-      if (startSequenceValue == null) {
-        throw new IllegalArgumentException("No sequence value exists for the specified startTime.");
-      } else {
-        query = buildRowsIncludingQuery(logTable, startSequenceValue, endSequenceValue,
-            (startCursor == null ? true : startCursor.isForwardCursor()));
-      }
+      Query query = buildRowsInTimeRangeQuery(logTable, query_col, startTime, startDateToCompare,
+          endTime, endDateToCompare, (startCursor == null ? true : startCursor.isForwardCursor()));
 
       result = query.execute(startCursor, fetchLimit);
     } finally {
@@ -549,16 +872,8 @@ public class DataManager {
     // TODO: properly handle reporting of rows that the user no longer has
     // access to because of a access / permissions change for that user and / or
     // row.
-    ArrayList<Row> rows = new ArrayList<Row>();
-    for (Entity entity : result.entities) {
-      Row row = converter.toRowFromLogTable(entity, columns);
-      if (userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)) {
-        rows.add(row);
-      } else if (userPermissions.hasFilterScope(appId, tableId, TablePermission.READ_ROW,
-          row.getRowId(), /* row.getFilterScope() */ Scope.EMPTY_SCOPE)) {
-        rows.add(row);
-      }
-    }
+    List<Row> rows = rowConverter.toRows(converter, result.entities, columns, true,
+        readCheck(userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)));
 
     List<Row> diffRows = computeDiff(rows);
 
@@ -596,6 +911,11 @@ public class DataManager {
 
     List<Entity> values = query.execute();
     if (values == null || values.size() == 0) {
+      // log compaction may have removed its entries
+      String checkpoint = DbLogCheckpoint.getSequenceValue(tableId, dataETag, cc);
+      if (checkpoint != null) {
+        return checkpoint;
+      }
       throw new ODKEntityNotFoundException("ETag " + dataETag + " was not found in log table!");
     } else if (values.size() != 1) {
       // the descending sort on the sequence value ensures we get the last
@@ -610,104 +930,6 @@ public class DataManager {
     return e.getString(DbLogTable.SEQUENCE_VALUE);
   }
 
-  /**
-   * Perform direct query on dateColToUseForCompare to retrieve the
-   * SEQUENCE_VALUE of that row. This is then used to construct the query for
-   * getting data with that using this start time.
-   * 
-   * @param logTable
-   *          - the log table to use
-   * @param dateColToUseForCompare
-   *          - the date field to use for the comparison
-   * @param givenTimestamp
-   *          - the original string value the user passed in
-   * @param dateToCompare
-   *          - the date to compare against the LAST_UPDATE_DATE_COLUMN_NAME
-   * @param dir
-   *          - the sort direction to use when retrieving the data
-   * @return SEQUENCE_VALUE of that row
-   * @throws ODKDatastoreException
-   */
-  private String getSequenceValueForStartTime(DbLogTable logTable, String dateColToUseForCompare,
-      String givenTimestamp, Date dateToCompare, Direction dir) throws ODKDatastoreException {
-    Query query = logTable.query("DataManager.getSequenceValueForTimestamp", cc);
-
-    // we need the filter to activate the sort for the sequence value
-    query.addFilter(DbLogTable.SEQUENCE_VALUE,
-        org.opendatakit.persistence.Query.FilterOperation.GREATER_THAN, " ");
-
-    query.addSort(DbLogTable.SEQUENCE_VALUE, dir);
-
-    // _LAST_UPDATE_DATE is a datetime field
-    // _SAVEPOINT_TIMESTAMP is a String field
-    if (dateColToUseForCompare.equals(DbLogTable.LAST_UPDATE_DATE_COLUMN_NAME)) {
-      query.addFilter(dateColToUseForCompare,
-          org.opendatakit.persistence.Query.FilterOperation.GREATER_THAN_OR_EQUAL,
-          dateToCompare);
-    } else if (dateColToUseForCompare.equals(DbLogTable.SAVEPOINT_TIMESTAMP.getName())) {
-      query.addFilter(dateColToUseForCompare,
-          org.opendatakit.persistence.Query.FilterOperation.GREATER_THAN_OR_EQUAL,
-          givenTimestamp);
-    }
-
-    List<Entity> values = query.execute();
-    if (values == null || values.size() == 0) {
-      throw new ODKEntityNotFoundException(
-          "Timestamp " + dateToCompare.toString() + " was not found in log table!");
-    }
-    Entity e = values.get(0);
-    return e.getString(DbLogTable.SEQUENCE_VALUE);
-  }
-
-  /**
-   * Perform direct query on dateColToUseForCompare to retrieve the
-   * SEQUENCE_VALUE of that row. This is then used to construct the query for
-   * getting data with that using this end time.
-   * 
-   * @param logTable
-   *          - the log table to use
-   * @param dateColToUseForCompare
-   *          - the date field to use for the comparison
-   * @param givenTimestamp
-   *          - the original string value the user passed in
-   * @param dateToCompare
-   *          - the date to compare against the LAST_UPDATE_DATE_COLUMN_NAME
-   * @param dir
-   *          - the sort direction to use when retrieving the data
-   * @return SEQUENCE_VALUE of that row
-   * @throws ODKDatastoreException
-   */
-  private String getSequenceValueForEndTime(DbLogTable logTable, String dateColToUseForCompare,
-      String givenTimestamp, Date dateToCompare, Direction dir) throws ODKDatastoreException {
-    Query query = logTable.query("DataManager.getSequenceValueForTimestamp", cc);
-
-    // we need the filter to activate the sort for the sequence value
-    query.addFilter(DbLogTable.SEQUENCE_VALUE,
-        org.opendatakit.persistence.Query.FilterOperation.GREATER_THAN, " ");
-
-    query.addSort(DbLogTable.SEQUENCE_VALUE, dir);
-
-    // _LAST_UPDATE_DATE is a datetime field
-    // _SAVEPOINT_TIMESTAMP is a String field
-    if (dateColToUseForCompare.equals(DbLogTable.LAST_UPDATE_DATE_COLUMN_NAME)) {
-      query.addFilter(dateColToUseForCompare,
-          org.opendatakit.persistence.Query.FilterOperation.LESS_THAN_OR_EQUAL,
-          dateToCompare);
-    } else if (dateColToUseForCompare.equals(DbLogTable.SAVEPOINT_TIMESTAMP.getName())) {
-      query.addFilter(dateColToUseForCompare,
-          org.opendatakit.persistence.Query.FilterOperation.LESS_THAN_OR_EQUAL,
-          givenTimestamp);
-    }
-
-    List<Entity> values = query.execute();
-    if (values == null || values.size() == 0) {
-      throw new ODKEntityNotFoundException(
-          "Timestamp " + dateToCompare.toString() + " was not found in log table!");
-    }
-    Entity e = values.get(0);
-    return e.getString(DbLogTable.SEQUENCE_VALUE);
-  }
-
   /**
    * @return the query for rows which have been changed or added from the
    *         beginning
@@ -744,44 +966,130 @@ public class DataManager {
   }
 
   /**
-   * @param startSequenceValue
-   * @param endSequenceValue
-   * @return the query for rows which have been changed or added since the given
-   *         sequenceValue
+   * Query the log table directly on the time column, which has an index on
+   * (time, _SEQUENCE_VALUE). The results are in that order, so that a resume
+   * cursor on the time column picks up where the prior page left off.
+   *
+   * @param logTable
+   * @param dateColToUseForCompare
+   *          _LAST_UPDATE_DATE (a datetime) or _SAVEPOINT_TIMESTAMP (a string)
+   * @param startTime
+   *          the original string value the user passed in
+   * @param startDateToCompare
+   *          the parsed startTime
+   * @param endTime
+   *          null if there is no upper bound
+   * @param endDateToCompare
+   *          the parsed endTime
+   * @param isForwardCursor
+   * @return the query for the log entries within the time range
    * @throws ODKDatastoreException
    */
-  private Query buildRowsIncludingQuery(DbLogTable logTable, String startSequenceValue,
-      String endSequenceValue, boolean isForwardCursor) throws ODKDatastoreException {
-    Query query = logTable.query("DataManager.buildRowsIncludingQuery", cc);
-    query.greaterThanOrEqual(DbLogTable.SEQUENCE_VALUE, startSequenceValue);
-    if (endSequenceValue != null) {
-      query.lessThanOrEqual(DbLogTable.SEQUENCE_VALUE, endSequenceValue);
+  private Query buildRowsInTimeRangeQuery(DbLogTable logTable, String dateColToUseForCompare,
+      String startTime, Date startDateToCompare, String endTime, Date endDateToCompare,
+      boolean isForwardCursor) throws ODKDatastoreException {
+    Query query = logTable.query("DataManager.buildRowsInTimeRangeQuery", cc);
+
+    // _LAST_UPDATE_DATE is a datetime field
+    // _SAVEPOINT_TIMESTAMP is a String field
+    if (dateColToUseForCompare.equals(DbLogTable.LAST_UPDATE_DATE_COLUMN_NAME)) {
+      query.greaterThanOrEqual(dateColToUseForCompare, startDateToCompare);
+      if (endDateToCompare != null) {
+        query.lessThanOrEqual(dateColToUseForCompare, endDateToCompare);
+      }
+    } else {
+      query.greaterThanOrEqual(dateColToUseForCompare, startTime);
+      if (endTime != null) {
+        query.lessThanOrEqual(dateColToUseForCompare, endTime);
+      }
     }
 
     if (isForwardCursor) {
+      query.sortAscending(dateColToUseForCompare);
       query.sortAscending(DbLogTable.SEQUENCE_VALUE);
     } else {
+      query.sortDescending(dateColToUseForCompare);
       query.sortDescending(DbLogTable.SEQUENCE_VALUE);
     }
     return query;
   }
 
   /**
-   * Takes a list of rows which are not necessarily all unique and returns a
-   * list of unique rows. In the case where there is more than one row with the
-   * same rowId, only the last (highest index) row is included in the returned
-   * list.
+   * Takes a list of rows which are not necessarily all unique and returns a
+   * list of unique rows. In the case where there is more than one row with the
+   * same rowId, only the last (highest index) row is included in the returned
+   * list.
+   *
+   * @param rows
+   *          the rows
+   * @return the list of unique rows
+   */
+  private List<Row> computeDiff(List<Row> rows) {
+    Map<String, Row> diff = new HashMap<String, Row>();
+    for (Row logRow : rows) {
+      diff.put(logRow.getRowId(), logRow);
+    }
+    return new ArrayList<Row>(diff.values());
+  }
+
+  /**
+   * Keep the changes to rows whose current version matches a filter. A single query on the table
+   * finds which of the changed rows match.
+   *
+   * @param diff
+   *          the latest log entry of each changed row
+   * @param filter
+   * @param table
+   *          the table the log entries belong to
+   * @param columns
+   * @return the entries of the rows that match the filter, and every deletion
+   * @throws ODKDatastoreException
+   * @throws BadColumnNameException
+   * @throws BadFilterException
+   */
+  private List<Entity> filterEntityDiff(List<Entity> diff, RowFilter filter, DbTable table,
+      List<DbColumnDefinitionsEntity> columns)
+      throws ODKDatastoreException, BadColumnNameException, BadFilterException {
+    List<String> rowIds = new ArrayList<String>();
+    for (Entity logEntity : diff) {
+      rowIds.add(logEntity.getString(DbLogTable.ROW_ID));
+    }
+    Set<String> matchingRowIds = new HashSet<String>();
+    if (!rowIds.isEmpty()) {
+      Query query = table.query("DataManager.filterEntityDiff", cc);
+      query.include(table.getDataField(CommonFieldsBase.URI_COLUMN_NAME), rowIds);
+      filter.apply(query, table, columns);
+      for (Entity rowEntity : query.execute()) {
+        matchingRowIds.add(rowEntity.getId());
+      }
+    } else {
+      // still reject an invalid filter on an empty page
+      filter.apply(table.query("DataManager.filterEntityDiff", cc), table, columns);
+    }
+    List<Entity> matching = new ArrayList<Entity>();
+    for (Entity logEntity : diff) {
+      if (Boolean.TRUE.equals(logEntity.getBoolean(DbLogTable.DELETED))
+          || matchingRowIds.contains(logEntity.getString(DbLogTable.ROW_ID))) {
+        matching.add(logEntity);
+      }
+    }
+    return matching;
+  }
+
+  /**
+   * Same as {@link #computeDiff(List)} but applied to the DbLogTable entities, so that superseded
+   * log entries are never converted.
    *
-   * @param rows
-   *          the rows
-   * @return the list of unique rows
+   * @param logEntities
+   *          the log table entities
+   * @return the last entity for each row id
    */
-  private List<Row> computeDiff(List<Row> rows) {
-    Map<String, Row> diff = new HashMap<String, Row>();
-    for (Row logRow : rows) {
-      diff.put(logRow.getRowId(), logRow);
+  private List<Entity> computeEntityDiff(List<Entity> logEntities) {
+    Map<String, Entity> diff = new LinkedHashMap<String, Entity>();
+    for (Entity logEntity : logEntities) {
+      diff.put(logEntity.getString(DbLogTable.ROW_ID), logEntity);
     }
-    return new ArrayList<Row>(diff.values());
+    return new ArrayList<Entity>(diff.values());
   }
 
   /**
@@ -884,9 +1192,24 @@ public class DataManager {
     }
   }
 
+  /**
+   * Whether a row sent by a client matches the row stored on the server in
+   * everything but its rowETag. The content hashes settle it when the stored
+   * row has one; rows stored before the hash was kept are compared field by
+   * field.
+   */
+  private static boolean matchesStoredRow(Row row, Entity entity, Row currentRow,
+      RowContentHash hasher, DataKeyValueDeepComparator dc) {
+    String storedHash = entity.getString(DbTable.ROW_HASH);
+    if (storedHash != null) {
+      return storedHash.equals(hasher.hash(row));
+    }
+    return row.hasMatchingSignificantFieldValues(currentRow, dc);
+  }
+
   private void prepareRowForInsertUpdateOrDelete(BulkRowObjWrapper rowWrapper,
-      List<DbColumnDefinitionsEntity> columns, DbTable table, DataKeyValueDeepComparator dc)
-      throws ODKDatastoreException, PermissionDeniedException {
+      List<DbColumnDefinitionsEntity> columns, DbTable table, RowContentHash hasher,
+      DataKeyValueDeepComparator dc) throws ODKDatastoreException, PermissionDeniedException {
 
     Row row = rowWrapper.getRow();
     Entity entity = rowWrapper.getEntity();
@@ -948,7 +1271,7 @@ public class DataManager {
       if (currentETag == null || !currentETag.equals(rowETag)) {
         // Take the hit to convert the row we have.
         Row currentRow = converter.toRow(entity, columns);
-        if (row.hasMatchingSignificantFieldValues(currentRow, dc)) {
+        if (matchesStoredRow(row, entity, currentRow, hasher, dc)) {
           // If the row matches everywhere except on the rowETag,
           // return the row on the server.
           rowWrapper.setOutcome(currentRow, OutcomeType.SUCCESS);
@@ -964,6 +1287,14 @@ public class DataManager {
     }
   }
 
+  /**
+   * Receives the outcome of each row of a bulk change as soon as the chunk
+   * containing it has been written.
+   */
+  public interface RowOutcomeSink {
+    public void add(RowOutcome outcome) throws IOException;
+  }
+
   /**
    * The tableUri of the returned rowOutcomeList is null.
    * 
@@ -982,224 +1313,445 @@ public class DataManager {
       throws ODKEntityPersistException, ODKEntityNotFoundException, ODKDatastoreException,
       ODKTaskLockException, BadColumnNameException, PermissionDeniedException,
       InconsistentStateException, TableDataETagMismatchException {
+    Validate.notNull(rows);
+    final ArrayList<RowOutcome> rowOutcomes = new ArrayList<RowOutcome>();
+    String dataETagAtModification = insertOrUpdateRows(rows.getDataETag(), rows.getDeviceId(),
+        rows.getOfficeId(), rows.getRows().iterator(), new RowOutcomeSink() {
+          @Override
+          public void add(RowOutcome outcome) {
+            rowOutcomes.add(outcome);
+          }
+        });
+    return new RowOutcomeList(rowOutcomes, dataETagAtModification);
+  }
 
-    long startTime = System.currentTimeMillis();
+  /**
+   * Apply a bulk change whose rows are supplied incrementally. The rows are
+   * processed in chunks of {@link #ROW_CHUNK_SIZE}; each chunk is written and
+   * its outcomes handed to the sink before the next one is read. The whole
+   * change is made under a single table lock and a single dataETag, exactly as
+   * for {@link #insertOrUpdateRows(RowList)}.
+   * 
+   * @param rowsDataETag
+   *          the dataETag the client based its changes upon
+   * @param deviceId
+   * @param officeId
+   * @param rows
+   *          the rows to insert, update or delete
+   * @param outcomes
+   *          receives the outcome of every row, in order
+   * @return the new dataETag of the table
+   * @throws ODKEntityPersistException
+   * @throws ODKEntityNotFoundException
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws BadColumnNameException
+   * @throws PermissionDeniedException
+   * @throws InconsistentStateException
+   * @throws TableDataETagMismatchException
+   */
+  public String insertOrUpdateRows(String rowsDataETag, String deviceId, String officeId,
+      Iterator<Row> rows, RowOutcomeSink outcomes)
+      throws ODKEntityPersistException, ODKEntityNotFoundException, ODKDatastoreException,
+      ODKTaskLockException, BadColumnNameException, PermissionDeniedException,
+      InconsistentStateException, TableDataETagMismatchException {
 
     try {
       Validate.notNull(rows);
-      ArrayList<RowOutcome> rowOutcomes = new ArrayList<RowOutcome>();
+      Validate.notNull(outcomes);
 
       userPermissions.checkPermission(appId, tableId, TablePermission.WRITE_ROW);
 
-      String dataETagAtModification = null;
+      RowWriteSession session = openWriteSession();
+      try {
+        return applyRows(session, rowsDataETag, deviceId, officeId, rows, outcomes);
+      } finally {
+        session.close();
+      }
+    } catch (NullPointerException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (IllegalArgumentException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (IndexOutOfBoundsException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (ODKEntityPersistException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (ODKEntityNotFoundException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (ODKDatastoreException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (ODKTaskLockException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (BadColumnNameException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (PermissionDeniedException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (InconsistentStateException e) {
+      e.printStackTrace();
+      throw e;
+    }
+  }
 
-      OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId,
-          ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES,
-          OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+  /**
+   * Queue a bulk change on the table's {@link TableWriteQueue}, to be applied
+   * together with other changes queued at the same time. The rows and the sink
+   * are used on the writer thread.
+   *
+   * @param writeQueue
+   *          the queue of changes to this server's tables
+   * @param rowsDataETag
+   *          the dataETag the client based its changes upon
+   * @param deviceId
+   * @param officeId
+   * @param rows
+   *          the rows to insert, update or delete
+   * @param outcomes
+   *          receives the outcome of every row, in order
+   * @param resources
+   *          released when the job is closed or discarded
+   * @return the queued job
+   * @throws ODKDatastoreException
+   * @throws PermissionDeniedException
+   */
+  public TableWriteQueue.Job queueRows(TableWriteQueue writeQueue, String rowsDataETag,
+      String deviceId, String officeId, Iterable<Row> rows, RowOutcomeSink outcomes,
+      List<Closeable> resources)
+      throws ODKDatastoreException, PermissionDeniedException {
+    Validate.notNull(rows);
+    Validate.notNull(outcomes);
 
-      List<DbColumnDefinitionsEntity> columns = null;
-      try {
-        propsLock.acquire();
-        Sequencer sequencer = new Sequencer(cc);
+    userPermissions.checkPermission(appId, tableId, TablePermission.WRITE_ROW);
 
-        DbTableEntryEntity entry = DbTableEntry.getTableIdEntry(tableId, cc);
-        String schemaETag = entry.getSchemaETag();
+    return writeQueue.submit(this, userPermissions.getOdkTablesUserId(), rowsDataETag,
+        deviceId, officeId, rows, outcomes, resources);
+  }
 
-        if (schemaETag == null) {
-          throw new InconsistentStateException(
-              "Schema for table " + tableId + " is not yet defined.");
-        }
+  /**
+   * @param jobId
+   * @return the queued change with this id, submitted by this user to this table
+   * @throws ODKEntityNotFoundException
+   *           if there is no such change, or it has been collected or discarded
+   */
+  public TableWriteQueue.Job getQueuedRows(TableWriteQueue writeQueue, String jobId)
+      throws ODKEntityNotFoundException {
+    TableWriteQueue.Job job = writeQueue.getJob(jobId);
+    if (job == null || !job.getTableId().equals(tableId)
+        || !StringUtils.equals(job.getUserId(), userPermissions.getOdkTablesUserId())) {
+      throw new ODKEntityNotFoundException("No pending change " + jobId + " for table " + tableId);
+    }
+    return job;
+  }
+
+  /**
+   * The table state shared by the bulk changes made under one acquisition of the table lock: the
+   * lock itself, the table entry, schema and relations, and one {@link Sequencer}. A session lets
+   * {@link TableWriteQueue} apply several queued changes while paying for the lock and the schema
+   * reads only once.
+   *
+   * Change notifications are held back until {@link #close()} releases the lock.
+   */
+  public static class RowWriteSession {
+    private final OdkTablesLockTemplate propsLock;
+    private final List<TableChangeEvent> events = new ArrayList<TableChangeEvent>();
+    private Sequencer sequencer;
+    private DbTableEntryEntity entry;
+    private List<DbColumnDefinitionsEntity> columns;
+    private DbTable table;
+    private DbLogTable logTable;
+    private RowContentHash hasher;
+    private DataKeyValueDeepComparator dc;
+
+    private RowWriteSession(OdkTablesLockTemplate propsLock) {
+      this.propsLock = propsLock;
+    }
 
-        String dataETag = entry.getDataETag();
-        if (!((dataETag == null) ? (rows.getDataETag() == null)
-            : dataETag.equals(rows.getDataETag()))) {
-          throw new TableDataETagMismatchException(
-              "The dataETag for table " + tableId + " does not match that supplied in the RowList");
+    /**
+     * Release the table lock and announce the changes made in this session.
+     *
+     * @throws ODKTaskLockException
+     */
+    public void close() throws ODKTaskLockException {
+      try {
+        propsLock.release();
+      } finally {
+        for (TableChangeEvent event : events) {
+          TableChangeNotifier.publish(event);
         }
+        events.clear();
+      }
+    }
+  }
 
-        DbTableDefinitionsEntity tableDefn = DbTableDefinitions.getDefinition(tableId, schemaETag,
-            cc);
-        columns = DbColumnDefinitions.query(tableId, schemaETag, cc);
+  /**
+   * Acquire the table lock and load what a bulk change needs. The caller must
+   * {@link RowWriteSession#close()} the session.
+   *
+   * @return the open session
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws InconsistentStateException
+   *           if the schema of the table is not yet defined
+   */
+  public RowWriteSession openWriteSession()
+      throws ODKDatastoreException, ODKTaskLockException, InconsistentStateException {
+    OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId,
+        ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES,
+        OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+    propsLock.acquire();
+    RowWriteSession session = new RowWriteSession(propsLock);
+    boolean opened = false;
+    try {
+      session.sequencer = new Sequencer(cc);
 
-        DbTable table = DbTable.getRelation(tableDefn, columns, cc);
-        DbLogTable logTable = DbLogTable.getRelation(tableDefn, columns, cc);
+      session.entry = DbTableEntry.getTableIdEntry(tableId, cc);
+      String schemaETag = session.entry.getSchemaETag();
 
-        revertPendingChanges(entry, columns, table, logTable);
+      if (schemaETag == null) {
+        throw new InconsistentStateException(
+            "Schema for table " + tableId + " is not yet defined.");
+      }
 
-        logger.info("Before loop Time elapsed: " + (System.currentTimeMillis() - startTime));
+      DbTableDefinitionsEntity tableDefn = DbTableDefinitions.getDefinition(tableId, schemaETag,
+          cc);
+      session.columns = DbColumnDefinitions.query(tableId, schemaETag, cc);
+
+      session.table = DbTable.getRelation(tableDefn, session.columns, cc);
+      session.logTable = DbLogTable.getRelation(tableDefn, session.columns, cc);
+      session.hasher = new RowContentHash(session.columns);
+      session.dc = new DataKeyValueDeepComparator(session.columns);
+      opened = true;
+      return session;
+    } finally {
+      if (!opened) {
+        propsLock.release();
+      }
+    }
+  }
 
-        DataKeyValueDeepComparator dc = new DataKeyValueDeepComparator(columns);
+  /**
+   * Apply one bulk change within an open session. The rows are processed in
+   * chunks of {@link #ROW_CHUNK_SIZE}; each chunk is written and its outcomes
+   * handed to the sink before the next one is read. The change gets its own
+   * dataETag. Any change left pending by an earlier failure in the session is
+   * reverted first.
+   *
+   * The caller must hold WRITE_ROW; per-row permissions are checked against
+   * this DataManager's user.
+   *
+   * @param session
+   *          a session opened on this table
+   * @param rowsDataETag
+   *          the dataETag the client based its changes upon
+   * @param deviceId
+   * @param officeId
+   * @param rows
+   * @param outcomes
+   * @return the new dataETag of the table
+   * @throws ODKDatastoreException
+   * @throws BadColumnNameException
+   * @throws PermissionDeniedException
+   * @throws TableDataETagMismatchException
+   */
+  public String applyRows(RowWriteSession session, String rowsDataETag, String deviceId,
+      String officeId, Iterator<Row> rows, RowOutcomeSink outcomes)
+      throws ODKDatastoreException, BadColumnNameException, PermissionDeniedException,
+      TableDataETagMismatchException {
 
-        // mark as pending change.
-        // get new dataETag
-        dataETagAtModification = PersistenceUtils.newUri();
-        entry.setPendingDataETag(dataETagAtModification);
-        entry.put(cc);
+    long startTime = System.currentTimeMillis();
+    int numRows = 0;
 
-        List<Entity> entityInsertList = new ArrayList<Entity>();
-        List<Entity> entityUpdateList = new ArrayList<Entity>();
-        List<Entity> logEntityList = new ArrayList<Entity>();
+    DbTableEntryEntity entry = session.entry;
+    List<DbColumnDefinitionsEntity> columns = session.columns;
+    DbTable table = session.table;
+    DbLogTable logTable = session.logTable;
+    Sequencer sequencer = session.sequencer;
 
-        ArrayList<BulkRowObjWrapper> rowWrapperList = new ArrayList<BulkRowObjWrapper>();
+    revertPendingChanges(entry, columns, table, logTable);
 
-        for (Row row : rows.getRows()) {
+    String dataETag = entry.getDataETag();
+    if (!((dataETag == null) ? (rowsDataETag == null)
+        : dataETag.equals(rowsDataETag))) {
+      throw new TableDataETagMismatchException(
+          "The dataETag for table " + tableId + " does not match that supplied in the RowList");
+    }
 
-          BulkRowObjWrapper rowWrapper = new BulkRowObjWrapper(row);
+    logger.info("Before loop Time elapsed: " + (System.currentTimeMillis() - startTime));
 
-          // and add row wrapper for bulk processing
-          rowWrapperList.add(rowWrapper);
+    // mark as pending change.
+    // get new dataETag
+    String dataETagAtModification = PersistenceUtils.newUri();
+    entry.setPendingDataETag(dataETagAtModification);
+    entry.put(cc);
 
-          Entity entity = null;
-          try {
-            entity = table.getEntity(rowWrapper.getRowId(), cc);
+    List<Entity> entityInsertList = new ArrayList<Entity>();
+    List<Entity> entityUpdateList = new ArrayList<Entity>();
+    List<Entity> logEntityList = new ArrayList<Entity>();
 
-            if (rowWrapper.hasNewRowId()) {
-              // yikes! -- generated UUID conflicts with an existing one.
-              rowWrapper.setOutcome(OutcomeType.IN_CONFLICT);
-              rowWrapperList.add(rowWrapper);
-              continue;
-            }
+    ArrayList<BulkRowObjWrapper> rowWrapperList = new ArrayList<BulkRowObjWrapper>();
 
-          } catch (ODKEntityNotFoundException e) {
+    while (rows.hasNext()) {
+      Row row = rows.next();
+      ++numRows;
 
-            if (row.isDeleted()) {
-              rowWrapper.setOutcome(OutcomeType.DENIED);
-              rowWrapperList.add(rowWrapper);
-              continue;
-            }
+      if (rowWrapperList.size() >= ROW_CHUNK_SIZE) {
+        writeRowChunk(table, logTable, columns, entityInsertList, entityUpdateList,
+            logEntityList, rowWrapperList, outcomes);
+      }
 
-            // presumptive initialization for insert...
-            entity = table.newEntity(rowWrapper.getRowId(), cc);
-            entity.set(DbTable.CREATE_USER, userPermissions.getOdkTablesUserId());
-          }
+      BulkRowObjWrapper rowWrapper = new BulkRowObjWrapper(row);
 
-          // add entity to row wrapper
-          rowWrapper.setEntity(entity);
+      // and add row wrapper for bulk processing
+      rowWrapperList.add(rowWrapper);
 
-          // determine whether the update or insert should go through or not.
-          // if entity.isFromDatabase() is true, it is an update or delete
-          prepareRowForInsertUpdateOrDelete(rowWrapper, columns, table, dc);
+      Entity entity = null;
+      try {
+        entity = table.getEntity(rowWrapper.getRowId(), cc);
 
-          // OK we are able to update or insert or delete the record
-          if (!rowWrapper.outcomeAlreadySet()) {
-            RowFilterScope rowFilterScope = rowWrapper.getRowFilterScope();
+        if (rowWrapper.hasNewRowId()) {
+          // yikes! -- generated UUID conflicts with an existing one.
+          rowWrapper.setOutcome(OutcomeType.IN_CONFLICT);
+          rowWrapperList.add(rowWrapper);
+          continue;
+        }
 
-            String previousRowETag;
+      } catch (ODKEntityNotFoundException e) {
 
-            if (row.isDeleted()) {
+        if (row.isDeleted()) {
+          rowWrapper.setOutcome(OutcomeType.DENIED);
+          rowWrapperList.add(rowWrapper);
+          continue;
+        }
 
-              // remember the previous row ETag so we can chain revisions in the
-              // DbLogTable
-              previousRowETag = entity.getString(DbTable.ROW_ETAG);
+        // presumptive initialization for insert...
+        entity = table.newEntity(rowWrapper.getRowId(), cc);
+        entity.set(DbTable.CREATE_USER, userPermissions.getOdkTablesUserId());
+      }
 
-              // update the row ETag and deletion status
-              entity.set(DbTable.ROW_ETAG, PersistenceUtils.newUri());
-              entity.set(DbTable.DELETED, true);
+      // add entity to row wrapper
+      rowWrapper.setEntity(entity);
 
-            } else {
-              // this will be null of the entity is newly created...
-              previousRowETag = row.getRowETag();
+      // determine whether the update or insert should go through or not.
+      // if entity.isFromDatabase() is true, it is an update or delete
+      prepareRowForInsertUpdateOrDelete(rowWrapper, columns, table, session.hasher,
+          session.dc);
 
-              // update the fields in the DbTable entity...
-              creator.setRowFields(entity, PersistenceUtils.newUri(), dataETagAtModification,
-                  userPermissions.getOdkTablesUserId(), false, rowFilterScope, row.getFormId(),
-                  row.getLocale(), row.getSavepointType(), row.getSavepointTimestamp(),
-                  row.getSavepointCreator(), rows.getDeviceId(), rows.getOfficeId(),
-                  row.getValues(), columns);
+      // OK we are able to update or insert or delete the record
+      if (!rowWrapper.outcomeAlreadySet()) {
+        RowFilterScope rowFilterScope = rowWrapper.getRowFilterScope();
 
-            }
+        String previousRowETag;
 
-            // create log table entry
-            Entity logEntity = creator.newLogEntity(logTable, dataETagAtModification,
-                previousRowETag, entity, columns, sequencer, cc);
+        if (row.isDeleted()) {
 
-            logEntityList.add(logEntity);
+          // remember the previous row ETag so we can chain revisions in the
+          // DbLogTable
+          previousRowETag = entity.getString(DbTable.ROW_ETAG);
 
-            if (entity.isFromDatabase()) {
-              entityUpdateList.add(entity);
-            } else {
-              entityInsertList.add(entity);
-            }
-          }
+          // update the row ETag and deletion status
+          entity.set(DbTable.ROW_ETAG, PersistenceUtils.newUri());
+          entity.set(DbTable.DELETED, true);
+          creator.setRowHash(entity, columns);
 
-        }
+        } else {
+          // this will be null of the entity is newly created...
+          previousRowETag = row.getRowETag();
 
-        // commit the log change to the database (must be done first!)
-        if (!logEntityList.isEmpty()) {
-          logTable.bulkAlterEntities(logEntityList, cc);
-        }
+          // update the fields in the DbTable entity...
+          creator.setRowFields(entity, PersistenceUtils.newUri(), dataETagAtModification,
+              userPermissions.getOdkTablesUserId(), false, rowFilterScope, row.getFormId(),
+              row.getLocale(), row.getSavepointType(), row.getSavepointTimestamp(),
+              row.getSavepointCreator(), deviceId, officeId,
+              row.getValues(), columns);
 
-        // commit the row updates
-        if (!entityUpdateList.isEmpty()) {
-          table.bulkAlterEntities(entityUpdateList, cc);
-        }
-        // commit the row inserts
-        if (!entityInsertList.isEmpty()) {
-          table.bulkAlterEntities(entityInsertList, cc);
         }
 
-        // commit change
-        entry.setDataETag(entry.getPendingDataETag());
-        entry.setPendingDataETag(null);
-        entry.put(cc);
+        // create log table entry
+        Entity logEntity = creator.newLogEntity(logTable, dataETagAtModification,
+            previousRowETag, entity, columns, sequencer, cc);
 
-        for (BulkRowObjWrapper rowWrapper : rowWrapperList) {
-          if (!rowWrapper.outcomeAlreadySet()) {
-            // we need to return the fields from the entity we upserted.
-            Row newServer = converter.toRow(rowWrapper.getEntity(), columns);
-            rowWrapper.setOutcome(newServer, OutcomeType.SUCCESS);
-          }
-          // update the outcomes set...
-          rowOutcomes.add(rowWrapper.getOutcome());
-        }
+        logEntityList.add(logEntity);
 
-        logger.info("End loop Time elapsed: " + (System.currentTimeMillis() - startTime));
-      } finally {
-        propsLock.release();
+        if (entity.isFromDatabase()) {
+          entityUpdateList.add(entity);
+        } else {
+          entityInsertList.add(entity);
+        }
       }
 
-      if (columns == null) {
-        throw new InconsistentStateException("Unable to retrieve rows for table " + tableId + ".");
-      }
+    }
 
-      if (rows != null) {
-        long time = (System.currentTimeMillis() - startTime);
-        int numRows = rows.getRows().size();
-        logger.info("Time: " + time + " size: " + numRows + " per iteration " + (time / numRows));
-      }
+    writeRowChunk(table, logTable, columns, entityInsertList, entityUpdateList,
+        logEntityList, rowWrapperList, outcomes);
 
-      return new RowOutcomeList(rowOutcomes, dataETagAtModification);
-    } catch (NullPointerException e) {
-      e.printStackTrace();
-      throw e;
-    } catch (IllegalArgumentException e) {
-      e.printStackTrace();
-      throw e;
-    } catch (IndexOutOfBoundsException e) {
-      e.printStackTrace();
-      throw e;
-    } catch (ODKEntityPersistException e) {
-      e.printStackTrace();
-      throw e;
-    } catch (ODKEntityNotFoundException e) {
-      e.printStackTrace();
-      throw e;
-    } catch (ODKDatastoreException e) {
-      e.printStackTrace();
-      throw e;
-    } catch (ODKTaskLockException e) {
-      e.printStackTrace();
-      throw e;
-    } catch (BadColumnNameException e) {
-      e.printStackTrace();
-      throw e;
-    } catch (PermissionDeniedException e) {
-      e.printStackTrace();
-      throw e;
-    } catch (InconsistentStateException e) {
-      e.printStackTrace();
-      throw e;
+    // commit change
+    entry.setDataETag(entry.getPendingDataETag());
+    entry.setPendingDataETag(null);
+    entry.put(cc);
+    session.events.add(new TableChangeEvent(appId, tableId, dataETagAtModification,
+        sequencer.getLastSequenceValue()));
+
+    logger.info("End loop Time elapsed: " + (System.currentTimeMillis() - startTime));
+
+    if (numRows != 0) {
+      long time = (System.currentTimeMillis() - startTime);
+      logger.info("Time: " + time + " size: " + numRows + " per iteration " + (time / numRows));
     }
+
+    return dataETagAtModification;
+  }
+
+
+  /**
+   * Write one chunk of a bulk change and report its outcomes. The lists are
+   * cleared on return.
+   */
+  private void writeRowChunk(DbTable table, DbLogTable logTable,
+      List<DbColumnDefinitionsEntity> columns, List<Entity> entityInsertList,
+      List<Entity> entityUpdateList, List<Entity> logEntityList,
+      List<BulkRowObjWrapper> rowWrapperList, RowOutcomeSink outcomes)
+      throws ODKEntityPersistException, ODKDatastoreException {
+
+    // commit the log change to the database (must be done first!)
+    if (!logEntityList.isEmpty()) {
+      logTable.bulkAlterEntities(logEntityList, cc);
+    }
+
+    // commit the row updates
+    if (!entityUpdateList.isEmpty()) {
+      table.bulkAlterEntities(entityUpdateList, cc);
+    }
+    // commit the row inserts
+    if (!entityInsertList.isEmpty()) {
+      table.bulkAlterEntities(entityInsertList, cc);
+    }
+
+    for (BulkRowObjWrapper rowWrapper : rowWrapperList) {
+      if (!rowWrapper.outcomeAlreadySet()) {
+        // we need to return the fields from the entity we upserted.
+        Row newServer = converter.toRow(rowWrapper.getEntity(), columns);
+        rowWrapper.setOutcome(newServer, OutcomeType.SUCCESS);
+      }
+      // update the outcomes set...
+      try {
+        outcomes.add(rowWrapper.getOutcome());
+      } catch (IOException e) {
+        throw new ODKDatastoreException("Unable to record row outcome", e);
+      }
+    }
+
+    logEntityList.clear();
+    entityUpdateList.clear();
+    entityInsertList.clear();
+    rowWrapperList.clear();
   }
 
   /**
@@ -1243,6 +1795,8 @@ public class DataManager {
 
       List<DbColumnDefinitionsEntity> columns = null;
       Entity entity = null;
+      String dataETagAtModification = null;
+      String sequenceValue = null;
       OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId,
           ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES,
           OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
@@ -1267,6 +1821,7 @@ public class DataManager {
 
         revertPendingChanges(entry, columns, table, logTable);
 
+        RowContentHash hasher = new RowContentHash(columns);
         DataKeyValueDeepComparator dc = new DataKeyValueDeepComparator(columns);
 
         String rowId = row.getRowId();
@@ -1337,7 +1892,7 @@ public class DataManager {
             // Take the hit to convert the row we have.
             // If the row matches everywhere except on the rowETag, return it.
             Row currentRow = converter.toRow(entity, columns);
-            if (row.hasMatchingSignificantFieldValues(currentRow, dc)) {
+            if (matchesStoredRow(row, entity, currentRow, hasher, dc)) {
               return currentRow;
             }
 
@@ -1368,7 +1923,7 @@ public class DataManager {
         // change.
 
         // get new dataETag
-        String dataETagAtModification = PersistenceUtils.newUri();
+        dataETagAtModification = PersistenceUtils.newUri();
         entry.setPendingDataETag(dataETagAtModification);
         entry.put(cc);
 
@@ -1393,11 +1948,15 @@ public class DataManager {
         entry.setDataETag(entry.getPendingDataETag());
         entry.setPendingDataETag(null);
         entry.put(cc);
+        sequenceValue = sequencer.getLastSequenceValue();
 
       } finally {
         propsLock.release();
       }
 
+      TableChangeNotifier.publish(
+          new TableChangeEvent(appId, tableId, dataETagAtModification, sequenceValue));
+
       if (columns == null) {
         throw new InconsistentStateException("Unable to retrieve rows for table " + tableId + ".");
       }
@@ -1466,6 +2025,7 @@ public class DataManager {
 
       userPermissions.checkPermission(appId, tableId, TablePermission.DELETE_ROW);
       String dataETagAtModification = null;
+      String sequenceValue = null;
       OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId,
           ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES,
           OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
@@ -1555,6 +2115,7 @@ public class DataManager {
         // update the row ETag and deletion status
         entity.set(DbTable.ROW_ETAG, PersistenceUtils.newUri());
         entity.set(DbTable.DELETED, true);
+        creator.setRowHash(entity, columns);
 
         // create log table entry
         Entity logEntity = creator.newLogEntity(logTable, dataETagAtModification, previousRowETag,
@@ -1576,11 +2137,15 @@ public class DataManager {
         entry.setDataETag(entry.getPendingDataETag());
         entry.setPendingDataETag(null);
         entry.put(cc);
+        sequenceValue = sequencer.getLastSequenceValue();
 
       } finally {
         propsLock.release();
       }
 
+      TableChangeNotifier.publish(
+          new TableChangeEvent(appId, tableId, dataETagAtModification, sequenceValue));
+
       return dataETagAtModification;
     } catch (NullPointerException e) {
       e.printStackTrace();
@@ -1810,32 +2375,9 @@ public class DataManager {
     // TODO: properly handle reporting of rows that the user no longer has
     // access to because of a access / permissions change for that user and / or
     // row.
-    ArrayList<Row> rows = new ArrayList<Row>();
-    if (isActive) {
-      // query is against DbTable
-      for (Entity entity : result.entities) {
-        Row row = converter.toRow(entity, columns);
-        if (userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)) {
-          rows.add(row);
-        } else if (userPermissions.hasFilterScope(appId, tableId, TablePermission.READ_ROW,
-            row.getRowId(), /* row.getFilterScope() */ Scope.EMPTY_SCOPE)) {
-          rows.add(row);
-        }
-      }
-
-    } else {
-      // query is against DbLogTable
-      for (Entity entity : result.entities) {
-        Row row = converter.toRowFromLogTable(entity, columns);
-        if (userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)) {
-          rows.add(row);
-        } else if (userPermissions.hasFilterScope(appId, tableId, TablePermission.READ_ROW,
-            row.getRowId(), /* row.getFilterScope() */ Scope.EMPTY_SCOPE)) {
-          rows.add(row);
-        }
-      }
-
-    }
+    // isActive: query is against DbTable; otherwise against DbLogTable
+    List<Row> rows = rowConverter.toRows(converter, result.entities, columns, !isActive,
+        readCheck(userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)));
     return new WebsafeRows(computeDiff(rows), currentDataETag, result.websafeRefetchCursor,
         result.websafeBackwardCursor, result.websafeResumeCursor, result.hasMore, result.hasPrior);
   }
@@ -0,0 +1,151 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.datamodel.BinaryContentManipulator.BlobManipulator;
+import org.opendatakit.datamodel.BinaryContentManipulator.BlobStreamer;
+import org.opendatakit.datamodel.BinaryContentRefBlob;
+import org.opendatakit.datamodel.BlobStore;
+import org.opendatakit.datamodel.DeleteHelper;
+import org.opendatakit.datamodel.RefBlob;
+import org.opendatakit.persistence.CommonFieldsBase;
+import org.opendatakit.persistence.Datastore;
+import org.opendatakit.persistence.EntityKey;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+import org.opendatakit.security.User;
+
+/**
+ * A {@link BlobStore} in the datastore, deduplicating attachment content across rows and tables.
+ * Content is kept as a chunk set in one shared pair of {@link BinaryContentRefBlob} and
+ * {@link RefBlob} relations, keyed by its SHA-256 hash; the references to each chunk set are
+ * counted in {@link org.opendatakit.odktables.relation.DbBlobStoreReference}.
+ *
+ * Content that arrives as a byte array is hashed first and, if already stored, only gains a
+ * reference. Streamed content is written as a staged chunk set, which is either re-pointed to its
+ * hash or, if that content is already stored, deleted again.
+ */
+public class DatastoreBlobStore extends ContentAddressedBlobStore<DatastoreBlobStore.StagedChunks> {
+
+  private static final Log logger = LogFactory.getLog(DatastoreBlobStore.class);
+
+  public static final String NAME = "db";
+
+  private static final String VREF_TABLE_NAME = "___blobstore_ref";
+  private static final String BLOB_TABLE_NAME = "___blobstore_blb";
+
+  static class StagedChunks extends ContentAddressedBlobStore.Staged {
+    private final BlobManipulator chunks;
+    private boolean installed = false;
+
+    StagedChunks(String id, long contentLength, String contentHash, BlobManipulator chunks) {
+      super(id, contentLength, contentHash);
+      this.chunks = chunks;
+    }
+  }
+
+  private BinaryContentRefBlob vrefRelation = null;
+  private RefBlob blobRelation = null;
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  protected StagedChunks stage(InputStream content, CallingContext cc)
+      throws ODKDatastoreException, IOException {
+    initialize(cc);
+    MessageDigest sha = newSHA256Digest();
+    String stagingUri = CommonFieldsBase.newUri();
+    BlobManipulator chunks = new BlobManipulator(new DigestInputStream(content, sha), stagingUri,
+        vrefRelation, blobRelation, stagingUri, cc);
+    return new StagedChunks(Hex.encodeHexString(sha.digest()), chunks.getContentLength(),
+        chunks.getContentHash(), chunks);
+  }
+
+  @Override
+  protected void install(StagedChunks staged, CallingContext cc) throws ODKDatastoreException {
+    // anything under the id was left by a release that failed part-way
+    remove(staged.getId(), cc);
+    staged.chunks.moveTo(staged.getId(), cc);
+    staged.installed = true;
+  }
+
+  @Override
+  protected void discard(StagedChunks staged, CallingContext cc) {
+    if (staged.installed) {
+      return;
+    }
+    List<EntityKey> keyList = new ArrayList<EntityKey>();
+    staged.chunks.recursivelyAddEntityKeysForDeletion(keyList);
+    try {
+      DeleteHelper.deleteEntities(keyList, cc);
+    } catch (ODKDatastoreException e) {
+      logger.warn("Unable to remove staged blob chunks", e);
+    }
+  }
+
+  @Override
+  protected boolean isStored(String id, CallingContext cc) {
+    // chunk sets are only removed together with their reference count
+    return true;
+  }
+
+  @Override
+  protected void remove(String id, CallingContext cc) throws ODKDatastoreException {
+    initialize(cc);
+    BlobManipulator chunks = new BlobManipulator(id, vrefRelation, blobRelation, false, cc);
+    List<EntityKey> keyList = new ArrayList<EntityKey>();
+    chunks.recursivelyAddEntityKeysForDeletion(keyList);
+    DeleteHelper.deleteEntities(keyList, cc);
+  }
+
+  @Override
+  public void writeTo(String key, OutputStream out, long offset, long length, CallingContext cc)
+      throws ODKDatastoreException, IOException {
+    initialize(cc);
+    Long contentLength = getContentLength(key, cc);
+    if (contentLength == null) {
+      throw new IOException("Blob " + key + " is not stored");
+    }
+    BlobStreamer streamer = new BlobStreamer(idOf(key), contentLength, vrefRelation, blobRelation,
+        cc);
+    streamer.writeTo(out, offset, length, cc);
+  }
+
+  private synchronized void initialize(CallingContext cc) throws ODKDatastoreException {
+    if (blobRelation != null) {
+      return;
+    }
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    String schemaName = ds.getDefaultSchemaName();
+    BinaryContentRefBlob protoVRefRelation = new BinaryContentRefBlob(schemaName, VREF_TABLE_NAME);
+    RefBlob protoRefBlobRelation = new RefBlob(schemaName, BLOB_TABLE_NAME);
+    ds.assertRelation(protoVRefRelation, user);
+    ds.assertRelation(protoRefBlobRelation, user);
+    vrefRelation = protoVRefRelation;
+    blobRelation = protoRefBlobRelation;
+  }
+}
@@ -15,12 +15,18 @@
  */
 package org.opendatakit.odktables;
 
+import org.opendatakit.datamodel.BinaryContentManipulator.BlobStreamer;
+
 public class FileContentInfo {
   public final String partialPath;
   public final String contentType;
   public final Long contentLength;
   public final String contentHash;
   public final byte[] fileBlob;
+  /**
+   * Set instead of fileBlob when the content is to be streamed.
+   */
+  public final BlobStreamer blobStreamer;
 
   public FileContentInfo(String partialPath, String contentType, Long contentLength, String contentHash, byte[] blob) {
     this.partialPath = partialPath;
@@ -28,5 +34,15 @@ public class FileContentInfo {
     this.contentLength = contentLength;
     this.contentHash = contentHash;
     this.fileBlob = blob;
+    this.blobStreamer = null;
+  }
+
+  public FileContentInfo(String partialPath, String contentType, Long contentLength, String contentHash, BlobStreamer blobStreamer) {
+    this.partialPath = partialPath;
+    this.contentType = contentType;
+    this.contentLength = contentLength;
+    this.contentHash = contentHash;
+    this.fileBlob = null;
+    this.blobStreamer = blobStreamer;
   }
 }
\ No newline at end of file
@@ -15,6 +15,8 @@
  */
 package org.opendatakit.odktables;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Locale;
 
@@ -23,6 +25,7 @@ import org.apache.commons.logging.LogFactory;
 import org.opendatakit.constants.BasicConsts;
 import org.opendatakit.context.CallingContext;
 import org.opendatakit.datamodel.BinaryContentManipulator.BlobSubmissionOutcome;
+import org.opendatakit.datamodel.BinaryContentManipulator.StagedContent;
 import org.opendatakit.ermodel.BlobEntitySet;
 import org.opendatakit.odktables.exception.FileNotFoundException;
 import org.opendatakit.odktables.relation.DbManifestETags;
@@ -132,6 +135,21 @@ public class FileManager {
 
   public FileContentInfo getFile(String odkClientVersion, String tableId, String wholePath)
       throws ODKDatastoreException, FileNotFoundException, ODKTaskLockException {
+    return getFile(odkClientVersion, tableId, wholePath, false);
+  }
+
+  /**
+   * As {@link #getFile(String, String, String)}, but the content is returned as a
+   * {@link FileContentInfo#blobStreamer} to be read after the lock is released.
+   */
+  public FileContentInfo getFileStream(String odkClientVersion, String tableId, String wholePath)
+      throws ODKDatastoreException, FileNotFoundException, ODKTaskLockException {
+    return getFile(odkClientVersion, tableId, wholePath, true);
+  }
+
+  private FileContentInfo getFile(String odkClientVersion, String tableId, String wholePath,
+      boolean streamed)
+      throws ODKDatastoreException, FileNotFoundException, ODKTaskLockException {
     // DbTableFileInfo.NO_TABLE_ID -- means that we are working with app-level
 
     if (wholePath == null) {
@@ -167,6 +185,11 @@ public class FileManager {
         throw new FileNotFoundException("No file found for path: " + wholePath);
       }
 
+      if (streamed) {
+        return new FileContentInfo(blobEntitySet.getUnrootedFilename(1, cc),
+            blobEntitySet.getContentType(1, cc), blobEntitySet.getContentLength(1, cc),
+            blobEntitySet.getContentHash(1, cc), blobEntitySet.getBlobStreamer(1, cc));
+      }
       FileContentInfo fo = new FileContentInfo(blobEntitySet.getUnrootedFilename(1, cc),
           blobEntitySet.getContentType(1, cc), blobEntitySet.getContentLength(1, cc),
           blobEntitySet.getContentHash(1, cc), blobEntitySet.getBlob(1, cc));
@@ -274,6 +297,101 @@ public class FileManager {
     }
   }
 
+  /**
+   * As {@link #putFile(String, String, FileContentInfo, TablesUserPermissions)}, but the content
+   * is read from a stream and written to the datastore as it arrives, outside of the lock, so it
+   * is never held in memory.
+   *
+   * @param odkClientVersion
+   * @param tableId
+   * @param partialPath
+   * @param contentType
+   * @param stream
+   *          read to its end (but not closed)
+   * @param userPermissions
+   * @return
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws IOException
+   *           if the stream could not be read; nothing is saved
+   */
+  public ConfigFileChangeDetail putFileStream(String odkClientVersion, String tableId,
+      String partialPath, String contentType, InputStream stream,
+      TablesUserPermissions userPermissions)
+      throws ODKDatastoreException, ODKTaskLockException, IOException {
+
+    if (partialPath == null) {
+      throw new IllegalArgumentException("partialPath cannot be null!");
+    }
+    if (contentType == null) {
+      throw new IllegalArgumentException("contentType cannot be null!");
+    }
+
+    // the entry is only persisted once its content is in place
+    EntityCreator ec = new EntityCreator();
+    DbTableFileInfoEntity tableFileInfoRow = ec.newTableFileInfoEntity(odkClientVersion, tableId,
+        partialPath, userPermissions, cc);
+    DbTableFiles dbTableFiles = new DbTableFiles(cc);
+    BlobEntitySet instance = dbTableFiles.newBlobEntitySet(tableFileInfoRow.getId(), cc);
+    StagedContent staged = instance.stageBlob(stream, cc);
+    try {
+      OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId, null,
+          ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES,
+          OdkTablesLockTemplate.DelayStrategy.MEDIUM, cc);
+      try {
+        propsLock.acquire();
+
+        // -1) clear the eTag for the manifest of this tableId
+        try {
+          DbManifestETagEntity etag;
+          if (DbTableFileInfo.NO_TABLE_ID.equals(tableId)) {
+            etag = DbManifestETags.getTableIdEntry(DbManifestETags.APP_LEVEL, cc);
+          } else {
+            etag = DbManifestETags.getTableIdEntry(tableId, cc);
+          }
+          etag.delete(cc);
+        } catch (ODKEntityNotFoundException e) {
+          // ignore...
+        }
+
+        // 0) Delete anything that is already stored
+        List<DbTableFileInfoEntity> entities = DbTableFileInfo.queryForEntity(odkClientVersion,
+            tableId, partialPath, cc);
+        for (DbTableFileInfoEntity entity : entities) {
+          BlobEntitySet blobEntitySet = dbTableFiles.getBlobEntitySet(entity.getId(), cc);
+          blobEntitySet.remove(cc);
+          entity.delete(cc);
+        }
+
+        // 1) attach the staged content and 2) persist the entry about it
+        BlobSubmissionOutcome outcome = instance.addStagedBlob(staged, contentType, null, true,
+            cc);
+        tableFileInfoRow.put(cc);
+
+        switch (outcome) {
+        case FILE_UNCHANGED:
+          return ConfigFileChangeDetail.FILE_NOT_CHANGED;
+        case NEW_FILE_VERSION:
+          return ConfigFileChangeDetail.FILE_UPDATED;
+        case COMPLETELY_NEW_FILE:
+          return ConfigFileChangeDetail.FILE_NEWLY_CREATED;
+        default:
+          throw new IllegalStateException("Unexpected extra status for BlobSubmissionOutcome");
+        }
+      } finally {
+        propsLock.release();
+      }
+    } finally {
+      // removed outside of the lock if it was not attached
+      try {
+        instance.discardStagedBlob(staged, cc);
+      } catch (ODKDatastoreException e) {
+        // leaves unreferenced content behind; not worth failing the upload for
+        e.printStackTrace();
+      }
+    }
+  }
+
   public void deleteFile(String odkClientVersion, String tableId, String wholePath)
       throws ODKDatastoreException, ODKTaskLockException {
 
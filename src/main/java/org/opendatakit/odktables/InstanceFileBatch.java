@@ -0,0 +1,167 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.odktables;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.opendatakit.ContextUtils;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+
+/**
+ * Writes the attachments of a batch download one after another, reading the content of the
+ * following files on the shared {@link InstanceFileReaders} pool while earlier ones are written.
+ *
+ * At most readAhead files of a batch are read ahead, and only files of up to prefetchMaxBytes;
+ * larger files are streamed part by part when their turn comes. Without a pool every file is
+ * streamed on the writing thread. The pool threads read with a daemon copy of the request's
+ * calling context, as they have no security context of their own.
+ *
+ * The entries come from
+ * {@link InstanceFileManager#getAttachmentStreams(String, java.util.Map, org.opendatakit.odktables.security.TablesUserPermissions)}
+ * and are read after the row locks have been released; attachments are never rewritten.
+ */
+public final class InstanceFileBatch {
+
+  /**
+   * One file of the batch.
+   */
+  public static final class Entry {
+    public final String rowId;
+    public final FileContentInfo content;
+
+    private Future<byte[]> prefetched = null;
+
+    public Entry(String rowId, FileContentInfo content) {
+      this.rowId = rowId;
+      this.content = content;
+    }
+  }
+
+  /**
+   * Writes out one file, calling {@link InstanceFileBatch#writeContent} for its content.
+   */
+  public interface EntryWriter {
+    public void writeEntry(Entry entry) throws IOException;
+  }
+
+  private final List<Entry> entries;
+  private final ExecutorService pool;
+  private final int readAhead;
+  private final long prefetchMaxBytes;
+  private final CallingContext cc;
+  // used on the pool threads
+  private final CallingContext readerContext;
+  private final ArrayDeque<Entry> inFlight = new ArrayDeque<Entry>();
+
+  /**
+   * @see InstanceFileReaders#newBatch(List, CallingContext)
+   */
+  InstanceFileBatch(List<Entry> entries, ExecutorService pool, int readAhead,
+      long prefetchMaxBytes, CallingContext cc) {
+    this.entries = entries;
+    this.pool = pool;
+    this.readAhead = readAhead;
+    this.prefetchMaxBytes = prefetchMaxBytes;
+    this.cc = cc;
+    if (pool == null) {
+      this.readerContext = null;
+    } else {
+      this.readerContext = ContextUtils.duplicateContext(cc);
+      this.readerContext.setAsDaemon(true);
+    }
+  }
+
+  /**
+   * Hand each entry, in order, to the writer.
+   *
+   * @param writer
+   * @throws IOException
+   *           if a file could not be read or written; the remaining reads are cancelled
+   */
+  public void writeTo(EntryWriter writer) throws IOException {
+    int next = 0;
+    try {
+      for (Entry entry : entries) {
+        while (next < entries.size() && inFlight.size() < readAhead) {
+          prefetch(entries.get(next++));
+        }
+        if (!inFlight.isEmpty() && inFlight.peek() == entry) {
+          inFlight.remove();
+        }
+        writer.writeEntry(entry);
+        entry.prefetched = null;
+      }
+    } finally {
+      for (Entry e : inFlight) {
+        e.prefetched.cancel(true);
+      }
+      inFlight.clear();
+    }
+  }
+
+  /**
+   * Write the content of the entry being written.
+   *
+   * @param entry
+   * @param out
+   *          not closed by this call
+   * @throws IOException
+   */
+  public void writeContent(Entry entry, OutputStream out) throws IOException {
+    if (entry.prefetched == null) {
+      try {
+        entry.content.blobStreamer.writeTo(out, cc);
+      } catch (ODKDatastoreException e) {
+        throw new IOException("Unable to read " + entry.content.partialPath, e);
+      }
+      return;
+    }
+    try {
+      out.write(entry.prefetched.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading " + entry.content.partialPath, e);
+    } catch (ExecutionException e) {
+      throw new IOException("Unable to read " + entry.content.partialPath, e.getCause());
+    }
+  }
+
+  private void prefetch(final Entry entry) {
+    final long length = entry.content.contentLength;
+    if (pool == null || length > prefetchMaxBytes) {
+      return;
+    }
+    try {
+      entry.prefetched = pool.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws ODKDatastoreException, IOException {
+          ByteArrayOutputStream out = new ByteArrayOutputStream((int) length);
+          entry.content.blobStreamer.writeTo(out, readerContext);
+          return out.toByteArray();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // shutting down; streamed on the writing thread instead
+      return;
+    }
+    inFlight.add(entry);
+  }
+}
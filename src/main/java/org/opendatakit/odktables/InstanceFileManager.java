@@ -16,12 +16,20 @@
 package org.opendatakit.odktables;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 import javax.ws.rs.core.MultivaluedMap;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.http.HeaderElement;
 import org.apache.http.message.BasicHeaderValueParser;
 import org.apache.http.message.HeaderValueParser;
@@ -31,16 +39,21 @@ import org.glassfish.jersey.media.multipart.MultiPart;
 import org.opendatakit.aggregate.odktables.rest.entity.TableRole.TablePermission;
 import org.opendatakit.api.odktables.InstanceFileService;
 import org.opendatakit.context.CallingContext;
+import org.opendatakit.datamodel.BinaryContentManipulator.BlobStreamer;
 import org.opendatakit.datamodel.BinaryContentManipulator.BlobSubmissionOutcome;
+import org.opendatakit.datamodel.BinaryContentManipulator.StagedContent;
 import org.opendatakit.ermodel.BlobEntitySet;
+import org.opendatakit.odktables.exception.FileNotFoundException;
 import org.opendatakit.odktables.exception.InstanceFileModificationException;
 import org.opendatakit.odktables.exception.ODKTablesException;
 import org.opendatakit.odktables.exception.PermissionDeniedException;
+import org.opendatakit.odktables.exception.UploadOffsetMismatchException;
+import org.opendatakit.odktables.relation.DbInstanceFileUpload;
+import org.opendatakit.odktables.relation.DbInstanceFileUpload.DbInstanceFileUploadEntity;
 import org.opendatakit.odktables.relation.DbTableInstanceFiles;
 import org.opendatakit.odktables.relation.DbTableInstanceManifestETags;
 import org.opendatakit.odktables.relation.DbTableInstanceManifestETags.DbTableInstanceManifestETagEntity;
 import org.opendatakit.odktables.security.TablesUserPermissions;
-import org.opendatakit.persistence.PersistenceUtils;
 import org.opendatakit.persistence.exception.ODKDatastoreException;
 import org.opendatakit.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.persistence.exception.ODKTaskLockException;
@@ -63,6 +76,12 @@ public class InstanceFileManager {
   };
 
   private static final String ERROR_FILE_VERSION_DIFFERS = "File on server does not match file being uploaded. Aborting upload. ";
+  private static final String ERROR_UPLOAD_HASH_DIFFERS = "Uploaded content does not match its md5 hash. Aborting upload. ";
+  private static final String ERROR_UPLOAD_INCOMPLETE = "Uploaded content could not be read back. Aborting upload. ";
+  private static final String ERROR_UPLOAD_NOT_FOUND = "No upload in progress with id: ";
+
+  private static volatile long uploadExpiryMillis = 24L * 60L * 60L * 1000L;
+  private static volatile long maxUploadChunkBytes = Long.MAX_VALUE;
 
   private String appId;
 
@@ -73,6 +92,18 @@ public class InstanceFileManager {
     this.cc = cc;
   }
 
+  /**
+   * @param expiryMillis
+   *          how long a resumable upload is kept after it was last appended to
+   * @param maxChunkBytes
+   *          the most bytes read by a single append; the client resumes after
+   *          them
+   */
+  public static void configureUploads(long expiryMillis, long maxChunkBytes) {
+    uploadExpiryMillis = expiryMillis;
+    maxUploadChunkBytes = maxChunkBytes;
+  }
+
   /**
    * Retrieve the content info for a given file. Access to the blob entity set
    * needs to be guarded by a task lock.
@@ -89,6 +120,23 @@ public class InstanceFileManager {
   public FileContentInfo getFile(String tableId, String rowId, String partialPath,
       TablesUserPermissions userPermissions)
       throws ODKDatastoreException, ODKTaskLockException, PermissionDeniedException {
+    return getFile(tableId, rowId, partialPath, userPermissions, false);
+  }
+
+  /**
+   * As {@link #getFile(String, String, String, TablesUserPermissions)}, but the
+   * content is returned as a {@link FileContentInfo#blobStreamer}. Its parts are
+   * only fetched as it is written out, after the task lock is released.
+   */
+  public FileContentInfo getFileStream(String tableId, String rowId, String partialPath,
+      TablesUserPermissions userPermissions)
+      throws ODKDatastoreException, ODKTaskLockException, PermissionDeniedException {
+    return getFile(tableId, rowId, partialPath, userPermissions, true);
+  }
+
+  private FileContentInfo getFile(String tableId, String rowId, String partialPath,
+      TablesUserPermissions userPermissions, boolean streamed)
+      throws ODKDatastoreException, ODKTaskLockException, PermissionDeniedException {
 
     try {
       if (tableId == null) {
@@ -117,11 +165,23 @@ public class InstanceFileManager {
         for (int i = 1; i <= count; ++i) {
           String path = instance.getUnrootedFilename(i, cc);
           if (path != null && path.equals(partialPath)) {
-            byte[] fileBlob = instance.getBlob(i, cc);
             String contentType = instance.getContentType(i, cc);
             String contentHash = instance.getContentHash(i, cc);
             Long contentLength = instance.getContentLength(i, cc);
 
+            if (streamed) {
+              BlobStreamer blobStreamer = instance.getBlobStreamer(i, cc);
+              if (blobStreamer != null && contentType != null && contentLength != null
+                  && contentLength != 0L) {
+                return new FileContentInfo(path, contentType, contentLength, contentHash,
+                    blobStreamer);
+              } else {
+                return null;
+              }
+            }
+
+            byte[] fileBlob = instance.getBlob(i, cc);
+
             // And now prepare everything to be returned to the caller.
             if (fileBlob != null && contentType != null && contentLength != null
                 && contentLength != 0L) {
@@ -161,22 +221,29 @@ public class InstanceFileManager {
   }
 
   /**
-   * Save a given file content under this tableId and rowId. Manipulations of
-   * the blob entity set (which is being updated) needs to be guarded by a task
-   * lock.
+   * Save a given file content under this tableId and rowId. The content is
+   * streamed into the store, hashing it as it goes, outside of the lock;
+   * manipulations of the blob entity set (which is being updated) are guarded
+   * by a task lock.
    * 
    * @param tableId
    * @param rowId
-   * @param fi
+   * @param partialPath
+   * @param contentType
+   * @param stream
+   *          read to its end (but not closed)
    * @param userPermissions
    * @return
+   * @throws IOException
+   *           if the stream could not be read; nothing is saved
    * @throws ODKDatastoreException
    * @throws ODKTaskLockException
    * @throws PermissionDeniedException
    */
-  public InstanceFileChangeDetail putFile(String tableId, String rowId, FileContentInfo fi,
-      TablesUserPermissions userPermissions)
-      throws ODKDatastoreException, ODKTaskLockException, PermissionDeniedException {
+  public InstanceFileChangeDetail putFile(String tableId, String rowId, String partialPath,
+      String contentType, InputStream stream, TablesUserPermissions userPermissions)
+      throws IOException, ODKDatastoreException, ODKTaskLockException,
+      PermissionDeniedException {
 
     try {
       if (tableId == null) {
@@ -187,14 +254,18 @@ public class InstanceFileManager {
         throw new IllegalArgumentException("rowId cannot be null!");
       }
 
-      if (fi.partialPath == null) {
+      if (partialPath == null) {
         throw new IllegalArgumentException("partialPath cannot be null!");
       }
 
       userPermissions.checkPermission(appId, tableId, TablePermission.WRITE_ROW);
 
+      DbTableInstanceFiles blobStore = new DbTableInstanceFiles(tableId, cc);
+      BlobEntitySet instance = blobStore.newBlobEntitySet(rowId, cc);
+      StagedContent staged = instance.stageBlob(stream, cc);
+
       OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId, rowId,
-          ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES, OdkTablesLockTemplate.DelayStrategy.LONG, cc);
+          ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES, OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
       try {
         propsLock.acquire();
 
@@ -208,23 +279,10 @@ public class InstanceFileManager {
           // ignore...
         }
 
-        DbTableInstanceFiles blobStore = new DbTableInstanceFiles(tableId, cc);
-        BlobEntitySet instance = blobStore.newBlobEntitySet(rowId, cc);
-        int count = instance.getAttachmentCount(cc);
-        for (int i = 1; i <= count; ++i) {
-          String path = instance.getUnrootedFilename(i, cc);
-          if (path != null && path.equals(fi.partialPath)) {
-            // we already have this in our store -- check that it is identical.
-            // if not, we have a problem!!!
-            if (fi.contentHash.equals(instance.getContentHash(i, cc))) {
-              return InstanceFileChangeDetail.FILE_PRESENT;
-            } else {
-              return InstanceFileChangeDetail.FILE_INCOMPATIBLE;
-            }
-          }
-        }
-        BlobSubmissionOutcome outcome = instance.addBlob(fi.fileBlob, fi.contentType,
-            fi.partialPath, false, cc);
+        // if we already have this file, the staged copy is dropped --
+        // if it differs, we have a problem!!!
+        BlobSubmissionOutcome outcome = instance.addStagedBlob(staged, contentType,
+            partialPath, false, cc);
 
         switch (outcome) {
         case FILE_UNCHANGED:
@@ -239,6 +297,13 @@ public class InstanceFileManager {
 
       } finally {
         propsLock.release();
+        // removed outside of the lock if it was not added
+        try {
+          instance.discardStagedBlob(staged, cc);
+        } catch (ODKDatastoreException ex) {
+          // leaves unreferenced content behind; not worth failing the upload for
+          ex.printStackTrace();
+        }
       }
     } catch (NullPointerException e) {
       e.printStackTrace();
@@ -309,7 +374,7 @@ public class InstanceFileManager {
           final int iSafe = i;
           FileContentInfo info = new FileContentInfo(instance.getUnrootedFilename(i, cc),
               instance.getContentType(i, cc), instance.getContentLength(i, cc),
-              instance.getContentHash(i, cc), null);
+              instance.getContentHash(i, cc), (byte[]) null);
 
           cb.processFileContent(info, new FetchBlobHandler() {
             @Override
@@ -342,6 +407,133 @@ public class InstanceFileManager {
     }
   }
 
+  /**
+   * Retrieve the content info of the attachments of several rows for a batch
+   * download. The rows are grouped by lock bucket, and each bucket's lock is
+   * acquired once to read the attachment lists of all of its rows. The content
+   * is returned as {@link FileContentInfo#blobStreamer}s, to be read after the
+   * locks are released.
+   *
+   * @param tableId
+   * @param requested
+   *          map of rowId to the instance-relative paths to return for that
+   *          row, or to null for all of its attachments. Iterated in the order
+   *          the files are to be returned.
+   * @param userPermissions
+   * @return the files found, in row order and then attachment order. Files
+   *         without content are skipped.
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws PermissionDeniedException
+   */
+  public List<InstanceFileBatch.Entry> getAttachmentStreams(String tableId,
+      Map<String, Set<String>> requested, TablesUserPermissions userPermissions)
+      throws ODKDatastoreException, ODKTaskLockException, PermissionDeniedException {
+
+    try {
+      if (tableId == null) {
+        throw new IllegalArgumentException("tableId cannot be null!");
+      }
+
+      userPermissions.checkPermission(appId, tableId, TablePermission.READ_ROW);
+
+      Map<String, List<String>> buckets = new TreeMap<String, List<String>>();
+      for (String rowId : requested.keySet()) {
+        if (rowId == null || rowId.length() == 0) {
+          throw new IllegalArgumentException("rowId cannot be null!");
+        }
+        String bucket = OdkTablesLockTemplate.getRowBucket(rowId);
+        List<String> rowIds = buckets.get(bucket);
+        if (rowIds == null) {
+          rowIds = new ArrayList<String>();
+          buckets.put(bucket, rowIds);
+        }
+        rowIds.add(rowId);
+      }
+
+      DbTableInstanceFiles blobStore = new DbTableInstanceFiles(tableId, cc);
+      Map<String, List<InstanceFileBatch.Entry>> rowEntries =
+          new HashMap<String, List<InstanceFileBatch.Entry>>();
+      for (List<String> rowIds : buckets.values()) {
+        // any row of the bucket names its lock
+        OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId, rowIds.get(0),
+            ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES, OdkTablesLockTemplate.DelayStrategy.LONG, cc);
+        try {
+          propsLock.acquire();
+
+          for (String rowId : rowIds) {
+            Set<String> paths = requested.get(rowId);
+            BlobEntitySet instance = blobStore.getBlobEntitySet(rowId, cc);
+            List<InstanceFileBatch.Entry> entries = new ArrayList<InstanceFileBatch.Entry>();
+            int count = instance.getAttachmentCount(cc);
+            for (int i = 1; i <= count; ++i) {
+              String path = instance.getUnrootedFilename(i, cc);
+              if (path == null || (paths != null && !paths.contains(path))) {
+                continue;
+              }
+              String contentType = instance.getContentType(i, cc);
+              Long contentLength = instance.getContentLength(i, cc);
+              if (contentType == null || contentLength == null || contentLength == 0L) {
+                continue;
+              }
+              BlobStreamer blobStreamer = instance.getBlobStreamer(i, cc);
+              if (blobStreamer != null) {
+                entries.add(new InstanceFileBatch.Entry(rowId, new FileContentInfo(path,
+                    contentType, contentLength, instance.getContentHash(i, cc), blobStreamer)));
+              }
+            }
+            rowEntries.put(rowId, entries);
+          }
+        } finally {
+          propsLock.release();
+        }
+      }
+
+      List<InstanceFileBatch.Entry> entries = new ArrayList<InstanceFileBatch.Entry>();
+      for (String rowId : requested.keySet()) {
+        entries.addAll(rowEntries.get(rowId));
+      }
+      return entries;
+    } catch (NullPointerException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (IllegalArgumentException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (IndexOutOfBoundsException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (ODKTaskLockException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (PermissionDeniedException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (ODKDatastoreException e) {
+      e.printStackTrace();
+      throw e;
+    }
+  }
+
+  /**
+   * Save the files of a multipart form under this tableId and rowId. Each part
+   * is read, hashed and written as staged content before the task lock is
+   * acquired; holding the lock, the row's attachment list is loaded once and
+   * the staged files are added to it, which only writes their records. Staged
+   * files that are not added (unchanged, or in conflict) are removed again
+   * after the lock is released.
+   *
+   * @param tableId
+   * @param rowId
+   * @param multiPart
+   * @param userPermissions
+   * @throws IOException
+   * @throws ODKTaskLockException
+   * @throws ODKTablesException
+   *           if a part is not a file, or differs from the file already saved
+   *           under its name; the other files are still saved
+   * @throws ODKDatastoreException
+   */
   public void postFiles(String tableId, String rowId, MultiPart multiPart,
       TablesUserPermissions userPermissions)
       throws IOException, ODKTaskLockException, ODKTablesException, ODKDatastoreException {
@@ -357,19 +549,17 @@ public class InstanceFileManager {
 
       userPermissions.checkPermission(appId, tableId, TablePermission.WRITE_ROW);
 
-      OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId, rowId,
-          ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES, OdkTablesLockTemplate.DelayStrategy.LONG, cc);
+      // fetch these once and then continue to re-use them.
+      DbTableInstanceFiles blobStore = new DbTableInstanceFiles(tableId, cc);
+      BlobEntitySet instance = blobStore.newBlobEntitySet(rowId, cc);
 
+      ODKTablesException e = null;
+      List<String> partialPaths = new ArrayList<String>();
+      List<String> contentTypes = new ArrayList<String>();
+      List<StagedContent> stagedFiles = new ArrayList<StagedContent>();
       try {
-        propsLock.acquire();
-
-        // fetch these once and then continue to re-use them.
-        DbTableInstanceFiles blobStore = new DbTableInstanceFiles(tableId, cc);
-        BlobEntitySet instance = blobStore.newBlobEntitySet(rowId, cc);
-
-        ODKTablesException e = null;
-        // Parse the request
-        for ( BodyPart bodyPart : multiPart.getBodyParts()) {
+        // Parse the request and stage its files, outside of the lock
+        for (BodyPart bodyPart : multiPart.getBodyParts()) {
 
           MultivaluedMap<String, String> headers = bodyPart.getHeaders();
           String disposition = (headers != null) ? headers.getFirst("Content-Disposition") : null;
@@ -396,70 +586,63 @@ public class InstanceFileManager {
 
           String contentType = (headers != null) ? headers.getFirst("Content-Type") : null;
 
-          ByteArrayOutputStream bo = new ByteArrayOutputStream();
-          InputStream bi = null;
+          // stream the part into the store, hashing it as it goes
           BodyPartEntity bodyPartEntity = (BodyPartEntity) bodyPart.getEntity();
+          InputStream bi = new BufferedInputStream(bodyPartEntity.getInputStream());
           try {
-            bi = new BufferedInputStream(bodyPartEntity.getInputStream());
-            int length = 1024;
-            // Transfer bytes from in to out
-            byte[] data = new byte[length];
-            int len;
-            while ((len = bi.read(data, 0, length)) >= 0) {
-              if (len != 0) {
-                bo.write(data, 0, len);
-              }
-            }
+            stagedFiles.add(instance.stageBlob(bi, cc));
           } finally {
             bi.close();
           }
-          byte[] content = bo.toByteArray();
-          String md5Hash = PersistenceUtils.newMD5HashUri(content);
+          partialPaths.add(partialPath);
+          contentTypes.add(contentType);
+        }
+
+        if (!stagedFiles.isEmpty()) {
+          OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId, rowId,
+              ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES, OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
 
-          // we are adding one or more files -- delete any cached ETag value for
-          // this row's attachments manifest
           try {
-            DbTableInstanceManifestETagEntity entity = DbTableInstanceManifestETags
-                .getRowIdEntry(tableId, rowId, cc);
-            entity.delete(cc);
-          } catch (ODKEntityNotFoundException ex) {
-            // ignore... it might already be deleted or have never existed
-          }
+            propsLock.acquire();
+
+            // we are adding one or more files -- delete any cached ETag value for
+            // this row's attachments manifest
+            try {
+              DbTableInstanceManifestETagEntity entity = DbTableInstanceManifestETags
+                  .getRowIdEntry(tableId, rowId, cc);
+              entity.delete(cc);
+            } catch (ODKEntityNotFoundException ex) {
+              // ignore... it might already be deleted or have never existed
+            }
 
-          int count = instance.getAttachmentCount(cc);
-          boolean found = false;
-          for (int i = 1; i <= count; ++i) {
-            String path = instance.getUnrootedFilename(i, cc);
-            if (path != null && path.equals(partialPath)) {
-              // we already have this in our store -- check that it is
-              // identical.
-              // if not, we have a problem!!!
-              if (md5Hash.equals(instance.getContentHash(i, cc))) {
-                // no-op
-                found = true;
-              } else {
+            for (int i = 0; i < stagedFiles.size(); ++i) {
+              // if we already have this file, the staged copy is dropped --
+              // if it differs, we have a problem!!!
+              BlobSubmissionOutcome outcome = instance.addStagedBlob(stagedFiles.get(i),
+                  contentTypes.get(i), partialPaths.get(i), false, cc);
+              if (outcome == BlobSubmissionOutcome.NEW_FILE_VERSION) {
                 // this is an error case; indicated by setting exception
-                found = true;
                 e = new InstanceFileModificationException(
-                    ERROR_FILE_VERSION_DIFFERS + "\n" + partialPath);
-                break;
+                    ERROR_FILE_VERSION_DIFFERS + "\n" + partialPaths.get(i));
               }
             }
-          }
-          if (!found) {
-            BlobSubmissionOutcome outcome = instance.addBlob(content, contentType, partialPath,
-                false, cc);
-            if (outcome == BlobSubmissionOutcome.NEW_FILE_VERSION) {
-              e = new InstanceFileModificationException(
-                  ERROR_FILE_VERSION_DIFFERS + "\n" + partialPath);
-            }
+          } finally {
+            propsLock.release();
           }
         }
-        if (e != null) {
-          throw e;
-        }
       } finally {
-        propsLock.release();
+        // anything not added (or left over by a failure) is removed outside of the lock
+        for (StagedContent staged : stagedFiles) {
+          try {
+            instance.discardStagedBlob(staged, cc);
+          } catch (ODKDatastoreException ex) {
+            // leaves unreferenced content behind; not worth failing the upload for
+            ex.printStackTrace();
+          }
+        }
+      }
+      if (e != null) {
+        throw e;
       }
     } catch (NullPointerException e) {
       e.printStackTrace();
@@ -481,4 +664,334 @@ public class InstanceFileManager {
       throw e;
     }
   }
+
+  /**
+   * Start a resumable upload of a file under this tableId and rowId. Nothing is
+   * locked: the upload only touches the row when it is complete.
+   *
+   * @param tableId
+   * @param rowId
+   * @param partialPath
+   * @param contentType
+   * @param contentHash
+   *          the md5 hash uri the completed content must match
+   * @param uploadLength
+   *          the length of the file
+   * @param userPermissions
+   * @return the new upload
+   * @throws ODKDatastoreException
+   * @throws PermissionDeniedException
+   */
+  public DbInstanceFileUploadEntity createUpload(String tableId, String rowId,
+      String partialPath, String contentType, String contentHash, long uploadLength,
+      TablesUserPermissions userPermissions)
+      throws ODKDatastoreException, PermissionDeniedException {
+
+    try {
+      if (tableId == null) {
+        throw new IllegalArgumentException("tableId cannot be null!");
+      }
+
+      if (rowId == null) {
+        throw new IllegalArgumentException("rowId cannot be null!");
+      }
+
+      if (partialPath == null) {
+        throw new IllegalArgumentException("partialPath cannot be null!");
+      }
+
+      if (contentHash == null) {
+        throw new IllegalArgumentException("contentHash cannot be null!");
+      }
+
+      if (uploadLength < 0L) {
+        throw new IllegalArgumentException("uploadLength cannot be negative!");
+      }
+
+      userPermissions.checkPermission(appId, tableId, TablePermission.WRITE_ROW);
+
+      DbInstanceFileUploadEntity upload = DbInstanceFileUpload.createNewEntity(cc);
+      upload.setTableId(tableId);
+      upload.setRowId(rowId);
+      upload.setFilePath(partialPath);
+      upload.setContentType(contentType);
+      upload.setContentHash(contentHash);
+      upload.setUploadLength(uploadLength);
+      upload.setUploadOffset(0L);
+      upload.setCreator(userPermissions.getOdkTablesUserId());
+      upload.setExpires(new Date(System.currentTimeMillis() + uploadExpiryMillis));
+      upload.put(cc);
+      return upload;
+    } catch (NullPointerException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (IllegalArgumentException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (PermissionDeniedException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (ODKDatastoreException e) {
+      e.printStackTrace();
+      throw e;
+    }
+  }
+
+  /**
+   * @param tableId
+   * @param rowId
+   * @param uploadId
+   * @param userPermissions
+   * @return the resumable upload
+   * @throws ODKDatastoreException
+   * @throws PermissionDeniedException
+   * @throws FileNotFoundException
+   *           if there is no such upload of a file of this row by this user
+   */
+  public DbInstanceFileUploadEntity getUpload(String tableId, String rowId, String uploadId,
+      TablesUserPermissions userPermissions)
+      throws ODKDatastoreException, PermissionDeniedException, FileNotFoundException {
+
+    userPermissions.checkPermission(appId, tableId, TablePermission.WRITE_ROW);
+    return findUpload(tableId, rowId, uploadId, userPermissions);
+  }
+
+  /**
+   * Append the content of a request to a resumable upload. The bytes are
+   * written straight into the row's blob relations as they arrive; if the
+   * stream fails, those received are kept and counted, so that the client can
+   * resume after them. At most the configured chunk size is read.
+   *
+   * Once all of the file is received, it is read back to verify its md5 hash
+   * and, holding the row's task lock only for that, attached to the row. A
+   * completed upload whose attachment failed is attached by appending nothing
+   * to it.
+   *
+   * Appends to the same upload are serialized by their own task lock, which is
+   * held while the request body is read.
+   *
+   * @param tableId
+   * @param rowId
+   * @param uploadId
+   * @param uploadOffset
+   *          the offset the client resumes from
+   * @param stream
+   *          the bytes to append (not closed)
+   * @param userPermissions
+   * @return the upload, with its new offset
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws PermissionDeniedException
+   * @throws FileNotFoundException
+   *           if there is no such upload of a file of this row by this user
+   * @throws UploadOffsetMismatchException
+   *           if uploadOffset is not the length received so far
+   * @throws InstanceFileModificationException
+   *           if the completed file does not match its md5 hash, or differs
+   *           from the file already saved under its name; the upload is
+   *           removed
+   */
+  public DbInstanceFileUploadEntity appendToUpload(String tableId, String rowId,
+      String uploadId, long uploadOffset, InputStream stream,
+      TablesUserPermissions userPermissions) throws ODKDatastoreException, ODKTaskLockException,
+      PermissionDeniedException, ODKTablesException {
+
+    try {
+      if (tableId == null) {
+        throw new IllegalArgumentException("tableId cannot be null!");
+      }
+
+      if (rowId == null) {
+        throw new IllegalArgumentException("rowId cannot be null!");
+      }
+
+      userPermissions.checkPermission(appId, tableId, TablePermission.WRITE_ROW);
+
+      OdkTablesLockTemplate uploadLock = new OdkTablesLockTemplate("upload|" + uploadId,
+          ODKTablesTaskLockType.TABLES_RESUMABLE_UPLOAD, OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+      try {
+        uploadLock.acquire();
+
+        DbInstanceFileUploadEntity upload = findUpload(tableId, rowId, uploadId, userPermissions);
+        long offset = upload.getUploadOffset();
+        long length = upload.getUploadLength();
+        if (offset != uploadOffset) {
+          throw new UploadOffsetMismatchException(offset);
+        }
+
+        DbTableInstanceFiles blobStore = new DbTableInstanceFiles(tableId, cc);
+        BlobEntitySet instance = blobStore.newBlobEntitySet(rowId, cc);
+
+        if (offset < length) {
+          long appended = instance.appendToStagedBlob(uploadId, stream, offset,
+              Math.min(length - offset, maxUploadChunkBytes), cc);
+          offset += appended;
+          upload.setUploadOffset(offset);
+          upload.setExpires(new Date(System.currentTimeMillis() + uploadExpiryMillis));
+          upload.put(cc);
+        }
+        if (offset == length) {
+          completeUpload(upload, instance);
+        }
+        return upload;
+      } finally {
+        uploadLock.release();
+      }
+    } catch (NullPointerException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (IllegalArgumentException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (ODKTaskLockException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (PermissionDeniedException e) {
+      e.printStackTrace();
+      throw e;
+    } catch (ODKDatastoreException e) {
+      e.printStackTrace();
+      throw e;
+    }
+  }
+
+  /**
+   * Abandon a resumable upload, removing what was received.
+   *
+   * @param tableId
+   * @param rowId
+   * @param uploadId
+   * @param userPermissions
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws PermissionDeniedException
+   * @throws FileNotFoundException
+   *           if there is no such upload of a file of this row by this user
+   */
+  public void deleteUpload(String tableId, String rowId, String uploadId,
+      TablesUserPermissions userPermissions) throws ODKDatastoreException,
+      ODKTaskLockException, PermissionDeniedException, FileNotFoundException {
+
+    userPermissions.checkPermission(appId, tableId, TablePermission.WRITE_ROW);
+
+    OdkTablesLockTemplate uploadLock = new OdkTablesLockTemplate("upload|" + uploadId,
+        ODKTablesTaskLockType.TABLES_RESUMABLE_UPLOAD, OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+    try {
+      uploadLock.acquire();
+
+      DbInstanceFileUploadEntity upload = findUpload(tableId, rowId, uploadId, userPermissions);
+      DbTableInstanceFiles blobStore = new DbTableInstanceFiles(tableId, cc);
+      blobStore.newBlobEntitySet(rowId, cc).discardStagedBlob(uploadId, cc);
+      upload.delete(cc);
+    } finally {
+      uploadLock.release();
+    }
+  }
+
+  /**
+   * Remove the resumable uploads that have expired, and what they received.
+   * Uploads that are being appended to are left for a later pass.
+   *
+   * @param cc
+   * @return the number of uploads removed
+   * @throws ODKDatastoreException
+   */
+  public static int deleteExpiredUploads(CallingContext cc) throws ODKDatastoreException {
+    Log log = LogFactory.getLog(InstanceFileManager.class);
+    int count = 0;
+    for (DbInstanceFileUploadEntity upload : DbInstanceFileUpload
+        .getExpiredUploads(new Date(), cc)) {
+      OdkTablesLockTemplate uploadLock = new OdkTablesLockTemplate("upload|" + upload.getId(),
+          ODKTablesTaskLockType.TABLES_RESUMABLE_UPLOAD, OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+      try {
+        uploadLock.acquire();
+      } catch (ODKTaskLockException e) {
+        continue;
+      }
+      try {
+        DbTableInstanceFiles blobStore = new DbTableInstanceFiles(upload.getTableId(), cc);
+        blobStore.newBlobEntitySet(upload.getRowId(), cc).discardStagedBlob(upload.getId(), cc);
+        upload.delete(cc);
+        ++count;
+      } catch (ODKDatastoreException e) {
+        log.warn("Unable to remove expired upload " + upload.getId(), e);
+      } finally {
+        try {
+          uploadLock.release();
+        } catch (ODKTaskLockException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the upload, if it is of a file of this row and was started by this
+   *         user; another user's upload is reported as not found
+   */
+  private DbInstanceFileUploadEntity findUpload(String tableId, String rowId, String uploadId,
+      TablesUserPermissions userPermissions) throws ODKDatastoreException, FileNotFoundException {
+    DbInstanceFileUploadEntity upload = (uploadId == null) ? null
+        : DbInstanceFileUpload.getUpload(uploadId, cc);
+    if (upload == null || !upload.getTableId().equals(tableId)
+        || !upload.getRowId().equals(rowId)
+        || !upload.getCreator().equals(userPermissions.getOdkTablesUserId())) {
+      throw new FileNotFoundException(ERROR_UPLOAD_NOT_FOUND + uploadId);
+    }
+    return upload;
+  }
+
+  /**
+   * Verify and attach the content of a completed upload, then remove the
+   * upload. If the row's lock cannot be acquired, the upload is kept.
+   */
+  private void completeUpload(DbInstanceFileUploadEntity upload, BlobEntitySet instance)
+      throws ODKDatastoreException, ODKTaskLockException, InstanceFileModificationException {
+    String uploadId = upload.getId();
+    String partialPath = upload.getFilePath();
+
+    // read back and hash what was received, outside of the row's lock
+    StagedContent staged;
+    try {
+      staged = instance.getStagedBlob(uploadId, upload.getUploadLength(), cc);
+    } catch (IOException e) {
+      instance.discardStagedBlob(uploadId, cc);
+      upload.delete(cc);
+      throw new InstanceFileModificationException(ERROR_UPLOAD_INCOMPLETE + "\n" + partialPath, e);
+    }
+    if (!staged.getContentHash().equals(upload.getContentHash())) {
+      instance.discardStagedBlob(staged, cc);
+      upload.delete(cc);
+      throw new InstanceFileModificationException(ERROR_UPLOAD_HASH_DIFFERS + "\n" + partialPath);
+    }
+
+    OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(upload.getTableId(),
+        upload.getRowId(), ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES,
+        OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+    BlobSubmissionOutcome outcome;
+    try {
+      propsLock.acquire();
+
+      // we are adding a file -- delete any cached ETag value for this row's
+      // attachments manifest
+      try {
+        DbTableInstanceManifestETagEntity entity = DbTableInstanceManifestETags
+            .getRowIdEntry(upload.getTableId(), upload.getRowId(), cc);
+        entity.delete(cc);
+      } catch (ODKEntityNotFoundException e) {
+        // ignore... it might already be deleted or have never existed
+      }
+
+      // the received parts become the content of the attachment; if we already
+      // have this file, they are dropped -- if it differs, we have a problem!!!
+      outcome = instance.addStagedBlob(staged, upload.getContentType(), partialPath, false, cc);
+    } finally {
+      propsLock.release();
+    }
+    upload.delete(cc);
+    if (outcome == BlobSubmissionOutcome.NEW_FILE_VERSION) {
+      throw new InstanceFileModificationException(ERROR_FILE_VERSION_DIFFERS + "\n" + partialPath);
+    }
+  }
 }
@@ -0,0 +1,81 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.odktables;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.opendatakit.context.CallingContext;
+
+/**
+ * The pool that reads the files of batch attachment downloads ahead of the response, and the
+ * limits on those downloads. One instance, owning its pool, is shared by every batch download
+ * (see SyncConfiguration).
+ */
+public final class InstanceFileReaders {
+
+  /**
+   * Reads every file on the writing thread.
+   */
+  public static final InstanceFileReaders SEQUENTIAL =
+      new InstanceFileReaders(null, 0, 0L, Integer.MAX_VALUE);
+
+  private final ExecutorService pool;
+  private final int readAhead;
+  private final long prefetchMaxBytes;
+  private final int maxRows;
+
+  /**
+   * @param pool
+   *          the pool that reads files ahead of the writers; null to read every file on the
+   *          writing thread
+   * @param readAhead
+   *          the number of files of a batch that may be read ahead
+   * @param prefetchMaxBytes
+   *          the largest file that is read ahead; it is held in memory until written
+   * @param maxRows
+   *          the largest number of rows accepted in a single batch download
+   */
+  public InstanceFileReaders(ExecutorService pool, int readAhead, long prefetchMaxBytes,
+      int maxRows) {
+    this.pool = pool;
+    this.readAhead = (pool == null) ? 0 : Math.max(readAhead, 0);
+    this.prefetchMaxBytes = prefetchMaxBytes;
+    this.maxRows = maxRows;
+  }
+
+  /**
+   * Stop the pool, if there is one, cancelling the reads in progress.
+   */
+  public void shutdown() {
+    if (pool != null) {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * @return the largest number of rows accepted in a single batch download.
+   */
+  public int getMaxRows() {
+    return maxRows;
+  }
+
+  /**
+   * @param entries
+   *          the files to write, in order
+   * @param cc
+   *          the calling context of the request
+   * @return the batch
+   */
+  public InstanceFileBatch newBatch(List<InstanceFileBatch.Entry> entries, CallingContext cc) {
+    return new InstanceFileBatch(entries, pool, readAhead, prefetchMaxBytes, cc);
+  }
+}
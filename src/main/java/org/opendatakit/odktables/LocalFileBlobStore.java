@@ -0,0 +1,180 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.datamodel.BlobStore;
+import org.opendatakit.persistence.CommonFieldsBase;
+
+/**
+ * A {@link BlobStore} on the local filesystem (or a mounted volume shared by the servers). Content
+ * is addressed by its SHA-256 hash, under root/ab/cd/abcd..., so identical content is stored once.
+ *
+ * Content is written to root/tmp, synced, and renamed into place, so a file under its hash is
+ * always complete. A whole file is sent with {@link FileChannel#transferTo}; a range of it is
+ * memory-mapped a window at a time.
+ */
+public class LocalFileBlobStore extends ContentAddressedBlobStore<LocalFileBlobStore.StagedFile> {
+
+  private static final Log logger = LogFactory.getLog(LocalFileBlobStore.class);
+
+  public static final String NAME = "fs";
+
+  private static final String TMP_DIR = "tmp";
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final long MAP_WINDOW = 8L * 1024L * 1024L;
+
+  static class StagedFile extends ContentAddressedBlobStore.Staged {
+    private final Path tmp;
+
+    StagedFile(String id, long contentLength, String contentHash, Path tmp) {
+      super(id, contentLength, contentHash);
+      this.tmp = tmp;
+    }
+  }
+
+  private final Path root;
+  private final Path tmpDir;
+
+  /**
+   * @param root
+   *          the directory holding the content; created if missing
+   * @throws IOException
+   */
+  public LocalFileBlobStore(Path root) throws IOException {
+    this.root = root.toAbsolutePath();
+    this.tmpDir = this.root.resolve(TMP_DIR);
+    Files.createDirectories(tmpDir);
+  }
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  protected StagedFile stage(InputStream content, CallingContext cc) throws IOException {
+    MessageDigest md5 = CommonFieldsBase.newMD5Digest();
+    MessageDigest sha = newSHA256Digest();
+    Path tmp = Files.createTempFile(tmpDir, "blob", ".part");
+    boolean success = false;
+    try {
+      long length = 0L;
+      try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int len;
+        while ((len = content.read(buffer)) != -1) {
+          md5.update(buffer, 0, len);
+          sha.update(buffer, 0, len);
+          out.write(buffer, 0, len);
+          length += len;
+        }
+        out.getFD().sync();
+      }
+      success = true;
+      return new StagedFile(Hex.encodeHexString(sha.digest()), length,
+          CommonFieldsBase.newMD5HashUri(md5), tmp);
+    } finally {
+      if (!success) {
+        Files.deleteIfExists(tmp);
+      }
+    }
+  }
+
+  @Override
+  protected void install(StagedFile staged, CallingContext cc) throws IOException {
+    Path path = pathOf(staged.getId());
+    Files.createDirectories(path.getParent());
+    Files.move(staged.tmp, path, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  @Override
+  protected void discard(StagedFile staged, CallingContext cc) {
+    try {
+      Files.deleteIfExists(staged.tmp);
+    } catch (IOException e) {
+      logger.warn("Unable to remove " + staged.tmp, e);
+    }
+  }
+
+  @Override
+  protected boolean isStored(String id, CallingContext cc) {
+    return Files.exists(pathOf(id));
+  }
+
+  @Override
+  protected void remove(String id, CallingContext cc) {
+    try {
+      Files.deleteIfExists(pathOf(id));
+    } catch (IOException e) {
+      // unreferenced; a later put of the same content overwrites it
+      logger.warn("Unable to remove blob " + id, e);
+    }
+  }
+
+  @Override
+  public void writeTo(String key, OutputStream out, long offset, long length, CallingContext cc)
+      throws IOException {
+    Path path = pathOf(idOf(key));
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (offset < 0L || length < 0L || offset + length > size) {
+        throw new IOException("Blob " + key + " holds " + size + " bytes, not " + offset + "+"
+            + length);
+      }
+      // not closed: that would close out
+      WritableByteChannel target = Channels.newChannel(out);
+      if (offset == 0L && length == size) {
+        long position = 0L;
+        while (position < length) {
+          long n = channel.transferTo(position, length - position, target);
+          if (n <= 0L) {
+            throw new IOException("Unable to send blob " + key);
+          }
+          position += n;
+        }
+      } else {
+        long position = offset;
+        long end = offset + length;
+        while (position < end) {
+          long n = Math.min(MAP_WINDOW, end - position);
+          MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, n);
+          while (window.hasRemaining()) {
+            target.write(window);
+          }
+          position += n;
+        }
+      }
+    }
+  }
+
+  private Path pathOf(String id) {
+    return root.resolve(id.substring(0, 2)).resolve(id.substring(2, 4)).resolve(id);
+  }
+}
@@ -0,0 +1,285 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.odktables;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.ermodel.Entity;
+import org.opendatakit.ermodel.Query;
+import org.opendatakit.ermodel.Relation;
+import org.opendatakit.odktables.relation.DbColumnDefinitions;
+import org.opendatakit.odktables.relation.DbColumnDefinitions.DbColumnDefinitionsEntity;
+import org.opendatakit.odktables.relation.DbLogCheckpoint;
+import org.opendatakit.odktables.relation.DbLogCheckpoint.DbLogCheckpointEntity;
+import org.opendatakit.odktables.relation.DbLogTable;
+import org.opendatakit.odktables.relation.DbTable;
+import org.opendatakit.odktables.relation.DbTableDefinitions;
+import org.opendatakit.odktables.relation.DbTableDefinitions.DbTableDefinitionsEntity;
+import org.opendatakit.odktables.relation.DbTableEntry;
+import org.opendatakit.odktables.relation.DbTableEntry.DbTableEntryEntity;
+import org.opendatakit.persistence.CommonFieldsBase;
+import org.opendatakit.persistence.DataField;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+import org.opendatakit.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.persistence.exception.ODKTaskLockException;
+
+/**
+ * Removes superseded versions of rows from the {@link DbLogTable}s.
+ *
+ * A log entry is superseded when a later entry exists for the same row, i.e., when it is not the
+ * entry for the row's current rowETag. Only superseded entries older than the table's retention
+ * horizon are removed; the current-state entry of every row is always kept, so getRowsSince from
+ * any dataETag still returns every row that changed after it. Removing entries records a
+ * {@link DbLogCheckpoint} of where their dataETag was, which is used once no entry carrying that
+ * dataETag remains, so that clients syncing from it do not fall back to a full resync.
+ *
+ * The removed versions are gone for good: past the horizon, the change sets listed by
+ * {@link DataManager#getChangeSetsSince} and the rows of {@link DataManager#getChangeSetRows} and
+ * {@link DataManager#getRowsInTimeRange} only include the versions that are still current.
+ *
+ * Tables are compacted in batches, each under its own acquisition of the table lock, with a pause
+ * between batches so that sync requests are never held off for long.
+ */
+public class LogCompactor implements Runnable {
+
+  private static final Log logger = LogFactory.getLog(LogCompactor.class);
+
+  /**
+   * What a compaction run removed.
+   */
+  public static class Result {
+    private long rows = 0L;
+    private long bytes = 0L;
+
+    public long getRows() {
+      return rows;
+    }
+
+    /**
+     * @return the approximate size of the removed entries' values
+     */
+    public long getBytes() {
+      return bytes;
+    }
+
+    private void add(Result other) {
+      rows += other.rows;
+      bytes += other.bytes;
+    }
+  }
+
+  private final CallingContext cc;
+  private final long defaultRetainMillis;
+  private final Map<String, Long> tableRetainMillis;
+  private final int batchSize;
+  private final long pauseMillis;
+
+  private volatile Result lastResult = null;
+
+  /**
+   * @param cc
+   *          a daemon calling context
+   * @param defaultRetainMillis
+   *          how long superseded entries are kept; negative to leave tables without an override
+   *          alone
+   * @param tableRetainMillis
+   *          per-tableId overrides of defaultRetainMillis; negative to leave that table alone
+   * @param batchSize
+   *          the most log entries examined under one acquisition of the table lock
+   * @param pauseMillis
+   *          the pause between batches
+   */
+  public LogCompactor(CallingContext cc, long defaultRetainMillis,
+      Map<String, Long> tableRetainMillis, int batchSize, long pauseMillis) {
+    this.cc = cc;
+    this.defaultRetainMillis = defaultRetainMillis;
+    this.tableRetainMillis = tableRetainMillis;
+    this.batchSize = Math.max(1, batchSize);
+    this.pauseMillis = pauseMillis;
+  }
+
+  /**
+   * @return the totals of the last completed run, or null if none has completed
+   */
+  public Result getLastResult() {
+    return lastResult;
+  }
+
+  @Override
+  public void run() {
+    try {
+      Result total = new Result();
+      for (DbTableEntryEntity entry : DbTableEntry.query(cc)) {
+        try {
+          total.add(compactTable(entry.getId()));
+        } catch (ODKTaskLockException e) {
+          logger.warn("Log compaction of table " + entry.getId() + " could not get the lock");
+        } catch (ODKDatastoreException e) {
+          logger.error("Log compaction of table " + entry.getId() + " failed", e);
+        }
+      }
+      lastResult = total;
+      logger.info("Log compaction reclaimed " + total.getRows() + " rows, about "
+          + total.getBytes() + " bytes");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      // keep the scheduled job alive
+      logger.error("Log compaction failed", e);
+    }
+  }
+
+  /**
+   * Compact one table's log.
+   *
+   * @param tableId
+   * @return what was removed
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws InterruptedException
+   */
+  public Result compactTable(String tableId)
+      throws ODKDatastoreException, ODKTaskLockException, InterruptedException {
+    Result result = new Result();
+    Long retain = tableRetainMillis.get(tableId);
+    long retainMillis = (retain == null) ? defaultRetainMillis : retain;
+    if (retainMillis < 0L) {
+      return result;
+    }
+    Date horizon = new Date(System.currentTimeMillis() - retainMillis);
+
+    String lastSequenceValue = null;
+    boolean more = true;
+    while (more) {
+      OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId,
+          ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES,
+          OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+      propsLock.acquire();
+      try {
+        DbTableEntryEntity entry;
+        try {
+          entry = DbTableEntry.getTableIdEntry(tableId, cc);
+        } catch (ODKEntityNotFoundException e) {
+          // deleted in the meantime
+          break;
+        }
+        String schemaETag = entry.getSchemaETag();
+        if (schemaETag == null || entry.getPendingDataETag() != null) {
+          // not yet defined, or a change is in progress; it will be reverted by the next request
+          break;
+        }
+        DbTableDefinitionsEntity tableDefn = DbTableDefinitions.getDefinition(tableId,
+            schemaETag, cc);
+        List<DbColumnDefinitionsEntity> columns = DbColumnDefinitions.query(tableId, schemaETag,
+            cc);
+        DbTable table = DbTable.getRelation(tableDefn, columns, cc);
+        DbLogTable logTable = DbLogTable.getRelation(tableDefn, columns, cc);
+
+        Query query = logTable.query("LogCompactor.compactTable", cc);
+        query.lessThan(DbLogTable.LAST_UPDATE_DATE_COLUMN_NAME, horizon);
+        if (lastSequenceValue != null) {
+          query.greaterThan(DbLogTable.SEQUENCE_VALUE, lastSequenceValue);
+        }
+        query.sortAscending(DbLogTable.SEQUENCE_VALUE);
+        Query.WebsafeQueryResult page = query.execute(null, batchSize);
+        if (page.entities.isEmpty()) {
+          break;
+        }
+        more = page.hasMore;
+        lastSequenceValue = page.entities.get(page.entities.size() - 1)
+            .getString(DbLogTable.SEQUENCE_VALUE);
+
+        result.add(removeSuperseded(tableId, table, logTable, page.entities));
+      } finally {
+        propsLock.release();
+      }
+      if (more && pauseMillis > 0L) {
+        Thread.sleep(pauseMillis);
+      }
+    }
+    if (result.getRows() != 0L) {
+      logger.info("Log compaction of table " + tableId + " reclaimed " + result.getRows()
+          + " rows, about " + result.getBytes() + " bytes");
+    }
+    return result;
+  }
+
+  private Result removeSuperseded(String tableId, DbTable table, DbLogTable logTable,
+      List<Entity> logEntities) throws ODKDatastoreException {
+    Set<String> rowIds = new HashSet<String>();
+    for (Entity logEntity : logEntities) {
+      rowIds.add(logEntity.getString(DbLogTable.ROW_ID));
+    }
+
+    // the rowETag of each row's current state is the PK of its current log entry
+    Map<String, String> currentRowETags = new HashMap<String, String>();
+    Query query = table.query("LogCompactor.removeSuperseded", cc);
+    query.include(CommonFieldsBase.URI_COLUMN_NAME, rowIds);
+    for (Entity row : query.execute()) {
+      currentRowETags.put(row.getId(), row.getString(DbTable.ROW_ETAG));
+    }
+
+    Result result = new Result();
+    List<Entity> superseded = new ArrayList<Entity>();
+    // the highest sequence value of the removed entries of each dataETag
+    Map<String, String> checkpoints = new HashMap<String, String>();
+    for (Entity logEntity : logEntities) {
+      String current = currentRowETags.get(logEntity.getString(DbLogTable.ROW_ID));
+      if (current == null || current.equals(logEntity.getId())) {
+        continue;
+      }
+      superseded.add(logEntity);
+      result.rows++;
+      result.bytes += sizeOf(logTable, logEntity);
+      String dataETag = logEntity.getString(DbLogTable.DATA_ETAG_AT_MODIFICATION);
+      String sequenceValue = logEntity.getString(DbLogTable.SEQUENCE_VALUE);
+      String prior = checkpoints.get(dataETag);
+      if (prior == null || prior.compareTo(sequenceValue) < 0) {
+        checkpoints.put(dataETag, sequenceValue);
+      }
+    }
+    if (superseded.isEmpty()) {
+      return result;
+    }
+
+    // record the checkpoints before the entries go away
+    for (Map.Entry<String, String> checkpoint : checkpoints.entrySet()) {
+      DbLogCheckpointEntity e = DbLogCheckpoint.createNewEntity(cc);
+      e.setTableId(tableId);
+      e.setDataETag(checkpoint.getKey());
+      e.setSequenceValue(checkpoint.getValue());
+      e.put(cc);
+    }
+    Relation.deleteEntities(superseded, cc);
+    return result;
+  }
+
+  private static long sizeOf(DbLogTable logTable, Entity logEntity) {
+    long size = logEntity.getId().getBytes(StandardCharsets.UTF_8).length;
+    for (DataField f : logTable.getDataFields()) {
+      String value = logEntity.getAsString(f.getName());
+      if (value != null) {
+        size += value.getBytes(StandardCharsets.UTF_8).length;
+      }
+    }
+    return size;
+  }
+}
@@ -27,7 +27,9 @@ import org.opendatakit.persistence.PersistConsts;
  */
 public enum ODKTablesTaskLockType implements ITaskLockType {
   TABLES_NON_PERMISSIONS_CHANGES(66000, PersistConsts.MIN_SETTLE_MILLISECONDS),
-  TABLES_USER_PERMISSION_CREATION(66000, PersistConsts.MIN_SETTLE_MILLISECONDS);
+  TABLES_USER_PERMISSION_CREATION(66000, PersistConsts.MIN_SETTLE_MILLISECONDS),
+  // held while the body of a resumable upload request is received
+  TABLES_RESUMABLE_UPLOAD(600000, PersistConsts.MIN_SETTLE_MILLISECONDS);
 
   private long timeout;
   private long minSettleTime;
@@ -88,7 +88,7 @@ public class OdkTablesLockTemplate {
         tmpTableId = "table-level|" + tableId;
       }
     } else {
-      tmpTableId = "row-level|" + tableId + "|" + Integer.toHexString(rowId.hashCode() & 0xff);
+      tmpTableId = "row-level|" + tableId + "|" + getRowBucket(rowId);
     }
 
     constructorHelper(tmpTableId, type, cc, delay);
@@ -99,6 +99,15 @@ public class OdkTablesLockTemplate {
     constructorHelper(tableId, type, cc, delay);
   }
 
+  /**
+   * @param rowId
+   * @return the bucket whose instance-level file lock guards the row. Rows in the same bucket
+   *         share a lock.
+   */
+  public static String getRowBucket(String rowId) {
+    return Integer.toHexString(rowId.hashCode() & 0xff);
+  }
+
   private void constructorHelper(String tableId, ODKTablesTaskLockType type, CallingContext cc,
       DelayStrategy delay) {
     this.tableId = tableId;
@@ -0,0 +1,189 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.ermodel.Entity;
+import org.opendatakit.odktables.relation.DbColumnDefinitions.DbColumnDefinitionsEntity;
+import org.opendatakit.odktables.relation.EntityConverter;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+
+/**
+ * Converts a page of query results into {@link Row}s, dropping the rows the user may not read.
+ *
+ * Pages of at least the threshold are split into chunks that are converted on a
+ * {@link ForkJoinPool}; the chunks are joined back in query order. Smaller pages, and every page
+ * of a converter without a pool, are converted on the calling thread. One converter, owning its
+ * pool, is shared by every row read (see SyncConfiguration).
+ */
+public final class ParallelRowConverter {
+
+  /**
+   * Decides whether the user may read a converted row. Called on pool threads, so it must not
+   * depend on thread-local state such as the security context.
+   */
+  public interface ReadCheck {
+    public boolean isReadable(Row row) throws ODKDatastoreException;
+  }
+
+  private static final int MIN_CHUNK_SIZE = 64;
+
+  /**
+   * Converts every page on the calling thread.
+   */
+  public static final ParallelRowConverter SEQUENTIAL =
+      new ParallelRowConverter(null, Integer.MAX_VALUE);
+
+  private final ForkJoinPool pool;
+  private final int threshold;
+
+  /**
+   * @param pool
+   *          the pool for large pages; null to convert every page on the calling thread
+   * @param threshold
+   *          the smallest page that is converted in parallel
+   */
+  public ParallelRowConverter(ForkJoinPool pool, int threshold) {
+    this.pool = pool;
+    this.threshold = Math.max(threshold, 2 * MIN_CHUNK_SIZE);
+  }
+
+  /**
+   * Stop the pool, if there is one. Pages submitted afterwards fail.
+   */
+  public void shutdown() {
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * @param size
+   *          the number of entities in the page
+   * @return true if a page of this size would be converted in parallel
+   */
+  public boolean isParallel(int size) {
+    return pool != null && size >= threshold;
+  }
+
+  /**
+   * @param converter
+   * @param entities
+   *          the query result, in the order the rows are to be returned
+   * @param columns
+   *          the column definitions of the table
+   * @param fromLogTable
+   *          true if the entities are DbLogTable entries
+   * @param check
+   *          null if the user may read every row
+   * @return the readable rows, in query order
+   * @throws ODKDatastoreException
+   *           if the read check fails
+   */
+  public List<Row> toRows(EntityConverter converter, List<Entity> entities,
+      List<DbColumnDefinitionsEntity> columns, boolean fromLogTable, ReadCheck check)
+      throws ODKDatastoreException {
+    ForkJoinPool current = pool;
+    try {
+      if (current == null || entities.size() < threshold) {
+        return new ConvertTask(converter, entities, columns, fromLogTable, check, 0,
+            entities.size(), entities.size()).compute();
+      }
+      int chunkSize = Math.max(MIN_CHUNK_SIZE,
+          entities.size() / (4 * current.getParallelism()));
+      return current.invoke(new ConvertTask(converter, entities, columns, fromLogTable, check, 0,
+          entities.size(), chunkSize));
+    } catch (RuntimeException e) {
+      // a failure on a pool thread may arrive re-wrapped; find the datastore failure, if any
+      for (Throwable t = e; t != null; t = t.getCause()) {
+        if (t instanceof ODKDatastoreException) {
+          throw (ODKDatastoreException) t;
+        }
+      }
+      throw e;
+    }
+  }
+
+  private static class ReadCheckFailure extends RuntimeException {
+
+    private static final long serialVersionUID = -4817207314935093311L;
+
+    ReadCheckFailure(ODKDatastoreException cause) {
+      super(cause);
+    }
+  }
+
+  private static class ConvertTask extends RecursiveTask<List<Row>> {
+
+    private static final long serialVersionUID = 6019563217384640172L;
+
+    private final EntityConverter converter;
+    private final List<Entity> entities;
+    private final List<DbColumnDefinitionsEntity> columns;
+    private final boolean fromLogTable;
+    private final ReadCheck check;
+    private final int start;
+    private final int end;
+    private final int chunkSize;
+
+    ConvertTask(EntityConverter converter, List<Entity> entities,
+        List<DbColumnDefinitionsEntity> columns, boolean fromLogTable, ReadCheck check,
+        int start, int end, int chunkSize) {
+      this.converter = converter;
+      this.entities = entities;
+      this.columns = columns;
+      this.fromLogTable = fromLogTable;
+      this.check = check;
+      this.start = start;
+      this.end = end;
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    protected List<Row> compute() {
+      if (end - start <= chunkSize) {
+        return convertChunk();
+      }
+      int middle = (start + end) >>> 1;
+      ConvertTask head = new ConvertTask(converter, entities, columns, fromLogTable, check, start,
+          middle, chunkSize);
+      ConvertTask tail = new ConvertTask(converter, entities, columns, fromLogTable, check,
+          middle, end, chunkSize);
+      head.fork();
+      List<Row> tailRows = tail.compute();
+      List<Row> rows = head.join();
+      rows.addAll(tailRows);
+      return rows;
+    }
+
+    private List<Row> convertChunk() {
+      ArrayList<Row> rows = new ArrayList<Row>(end - start);
+      for (Entity entity : entities.subList(start, end)) {
+        Row row = fromLogTable ? converter.toRowFromLogTable(entity, columns)
+            : converter.toRow(entity, columns);
+        try {
+          if (check == null || check.isReadable(row)) {
+            rows.add(row);
+          }
+        } catch (ODKDatastoreException e) {
+          throw new ReadCheckFailure(e);
+        }
+      }
+      return rows;
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.odktables.entity.TableChangeEvent;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Carries table change events between servers over PostgreSQL LISTEN/NOTIFY.
+ *
+ * Notifications are sent with pg_notify on a pooled connection. One connection is held open to
+ * LISTEN on the channel; a background thread blocks on it waiting for notifications, waking at
+ * least every wait interval to notice that it has been stopped. No queries are issued while idle.
+ * Each server tags its own notifications so that it does not deliver its local events twice.
+ */
+public class PostgresTableChangeTransport implements TableChangeNotifier.Transport, Runnable {
+
+  private static final Log logger = LogFactory.getLog(PostgresTableChangeTransport.class);
+
+  private static final String ORIGIN = "origin";
+  private static final String APP_ID = "appId";
+  private static final String TABLE_ID = "tableId";
+  private static final String DATA_ETAG = "dataETag";
+  private static final String SEQUENCE_VALUE = "sequenceValue";
+
+  private static final long RECONNECT_DELAY_MILLIS = 5000L;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final DataSource dataSource;
+  private final String channel;
+  private final int waitMillis;
+  private final String origin = UUID.randomUUID().toString();
+
+  private volatile boolean running = false;
+  private Thread listener = null;
+
+  /**
+   * @param dataSource
+   * @param channel
+   *          the notification channel; servers sharing it see each other's changes
+   * @param waitMillis
+   *          the longest a single wait for notifications from other servers may block
+   */
+  public PostgresTableChangeTransport(DataSource dataSource, String channel, int waitMillis) {
+    this.dataSource = dataSource;
+    this.channel = channel;
+    this.waitMillis = Math.max(1, waitMillis);
+  }
+
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+    running = true;
+    listener = new Thread(this, "table-change-listener");
+    listener.setDaemon(true);
+    listener.start();
+  }
+
+  public synchronized void stop() {
+    running = false;
+    if (listener != null) {
+      listener.interrupt();
+      listener = null;
+    }
+  }
+
+  @Override
+  public void send(TableChangeEvent event) {
+    Map<String, String> payload = new HashMap<String, String>();
+    payload.put(ORIGIN, origin);
+    payload.put(APP_ID, event.getAppId());
+    payload.put(TABLE_ID, event.getTableId());
+    payload.put(DATA_ETAG, event.getDataETag());
+    payload.put(SEQUENCE_VALUE, event.getSequenceValue());
+    try (Connection connection = dataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement("SELECT pg_notify(?, ?)")) {
+      statement.setString(1, channel);
+      statement.setString(2, mapper.writeValueAsString(payload));
+      statement.execute();
+      if (!connection.getAutoCommit()) {
+        connection.commit();
+      }
+    } catch (SQLException | IOException e) {
+      logger.warn("Unable to send change notification for table " + event.getTableId() + ": "
+          + e.toString());
+    }
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      try (Connection connection = dataSource.getConnection()) {
+        listen(connection);
+      } catch (SQLException e) {
+        if (running) {
+          logger.warn("Change notification listener failed; reconnecting: " + e.toString());
+        }
+      }
+      if (running) {
+        try {
+          Thread.sleep(RECONNECT_DELAY_MILLIS);
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+    }
+  }
+
+  private void listen(Connection connection) throws SQLException {
+    connection.setAutoCommit(true);
+    PGConnection pgConnection = connection.unwrap(PGConnection.class);
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("LISTEN \"" + channel.replace("\"", "\"\"") + "\"");
+      logger.info("Listening for table changes on " + channel);
+      try {
+        while (running) {
+          // blocks on the socket until a notification arrives or the wait times out
+          PGNotification[] notifications = pgConnection.getNotifications(waitMillis);
+          if (notifications != null) {
+            for (PGNotification notification : notifications) {
+              if (channel.equals(notification.getName())) {
+                receive(notification.getParameter());
+              }
+            }
+          }
+        }
+      } finally {
+        // the connection goes back to the pool
+        try {
+          statement.execute("UNLISTEN *");
+        } catch (SQLException e) {
+          // connection is already broken
+        }
+      }
+    }
+  }
+
+  private void receive(String parameter) {
+    Map<String, String> payload;
+    try {
+      payload = mapper.readValue(parameter, new TypeReference<HashMap<String, String>>() {
+      });
+    } catch (IOException e) {
+      logger.warn("Ignoring malformed change notification: " + parameter);
+      return;
+    }
+    if (origin.equals(payload.get(ORIGIN))) {
+      // already delivered when it was published
+      return;
+    }
+    TableChangeNotifier.deliver(new TableChangeEvent(payload.get(APP_ID), payload.get(TABLE_ID),
+        payload.get(DATA_ETAG), payload.get(SEQUENCE_VALUE)));
+  }
+}
@@ -0,0 +1,317 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.opendatakit.ermodel.Query;
+import org.opendatakit.ermodel.Relation;
+import org.opendatakit.odktables.exception.BadColumnNameException;
+import org.opendatakit.odktables.exception.BadFilterException;
+import org.opendatakit.odktables.relation.DbColumnDefinitions.DbColumnDefinitionsEntity;
+import org.opendatakit.persistence.DataField;
+import org.opendatakit.persistence.Query.FilterOperation;
+import org.opendatakit.persistence.WrappedBigDecimal;
+
+/**
+ * A conjunction of comparisons on the user columns of a table, compiled into filters on an
+ * ermodel {@link Query} so that PostgreSQL does the filtering.
+ *
+ * <pre>
+ * filter     := comparison ( AND comparison )*
+ * comparison := column op value | column IN ( value [, value]* )
+ * op         := = | != | &lt; | &lt;= | &gt; | &gt;=
+ * value      := 'quoted string' | bare-word | null
+ * </pre>
+ *
+ * Columns are elementKeys. Keywords are case-insensitive; a single quote inside a quoted string is
+ * written twice. null may only be compared with = or !=. Values are checked against the column's
+ * type when the filter is applied. For example:
+ *
+ * <pre>
+ * age &gt;= 18 AND age &lt; 65 AND region IN ('north', 'east')
+ * </pre>
+ */
+public class RowFilter {
+
+  private static final int MAX_COMPARISONS = 32;
+
+  private static final String AND = "AND";
+  private static final String IN = "IN";
+  private static final String NULL = "NULL";
+
+  private static class Comparison {
+    final String column;
+    final FilterOperation op;
+    // null when this is an IN comparison
+    final String value;
+    final List<String> values;
+
+    Comparison(String column, FilterOperation op, String value, List<String> values) {
+      this.column = column;
+      this.op = op;
+      this.value = value;
+      this.values = values;
+    }
+  }
+
+  private final List<Comparison> comparisons;
+
+  private RowFilter(List<Comparison> comparisons) {
+    this.comparisons = comparisons;
+  }
+
+  /**
+   * Parse a filter expression. Only the syntax is checked here; column names and value types are
+   * checked by {@link #apply(Query, Relation, List)}.
+   *
+   * @param expression
+   * @return the filter, or null if the expression is null or blank
+   * @throws BadFilterException
+   *           if the expression is malformed
+   */
+  public static RowFilter parse(String expression) throws BadFilterException {
+    if (expression == null || expression.trim().length() == 0) {
+      return null;
+    }
+    return new Parser(expression).parse();
+  }
+
+  /**
+   * Add this filter to a query on a table (or its log table).
+   *
+   * @param query
+   * @param relation
+   *          the relation being queried
+   * @param columns
+   *          the column definitions of the table
+   * @throws BadColumnNameException
+   *           if a column is not a user column of the table
+   * @throws BadFilterException
+   *           if a value does not match the type of its column
+   */
+  public void apply(Query query, Relation relation, List<DbColumnDefinitionsEntity> columns)
+      throws BadColumnNameException, BadFilterException {
+    for (Comparison c : comparisons) {
+      DataField field = getField(relation, columns, c.column);
+      if (c.values != null) {
+        List<Object> values = new ArrayList<Object>();
+        for (String v : c.values) {
+          values.add(toValue(field, c.column, v));
+        }
+        query.include(field, values);
+      } else {
+        if (c.value == null && c.op != FilterOperation.EQUAL
+            && c.op != FilterOperation.NOT_EQUAL) {
+          throw new BadFilterException("null can only be compared with = or != (" + c.column
+              + ")");
+        }
+        query.addFilter(field, c.op, (c.value == null) ? null : toValue(field, c.column, c.value));
+      }
+    }
+  }
+
+  private static DataField getField(Relation relation, List<DbColumnDefinitionsEntity> columns,
+      String column) throws BadColumnNameException {
+    for (DbColumnDefinitionsEntity def : columns) {
+      if (def.isUnitOfRetention() && def.getElementKey().equals(column)) {
+        return relation.getDataField(column.toUpperCase());
+      }
+    }
+    throw new BadColumnNameException("Filter column " + column + " is not a column of this table");
+  }
+
+  private static Object toValue(DataField field, String column, String value)
+      throws BadFilterException {
+    try {
+      switch (field.getDataType()) {
+      case BOOLEAN:
+        if (value.equalsIgnoreCase("true")) {
+          return Boolean.TRUE;
+        } else if (value.equalsIgnoreCase("false")) {
+          return Boolean.FALSE;
+        }
+        throw new BadFilterException("Expected true or false for " + column + ", got " + value);
+      case INTEGER:
+        return Long.valueOf(value);
+      case DECIMAL:
+        return new WrappedBigDecimal(value);
+      default:
+        return value;
+      }
+    } catch (NumberFormatException e) {
+      throw new BadFilterException("Expected a number for " + column + ", got " + value);
+    }
+  }
+
+  /**
+   * Recursive-descent parser over a simple tokenizer.
+   */
+  private static class Parser {
+    private final String text;
+    private int pos = 0;
+
+    Parser(String text) {
+      this.text = text;
+    }
+
+    RowFilter parse() throws BadFilterException {
+      List<Comparison> comparisons = new ArrayList<Comparison>();
+      comparisons.add(comparison());
+      while (true) {
+        skipWhitespace();
+        if (pos == text.length()) {
+          break;
+        }
+        expectKeyword(AND);
+        comparisons.add(comparison());
+        if (comparisons.size() > MAX_COMPARISONS) {
+          throw new BadFilterException("Too many comparisons in filter; limit is "
+              + MAX_COMPARISONS);
+        }
+      }
+      return new RowFilter(Collections.unmodifiableList(comparisons));
+    }
+
+    private Comparison comparison() throws BadFilterException {
+      String column = word();
+      if (column == null) {
+        throw error("column name");
+      }
+      skipWhitespace();
+      FilterOperation op = operator();
+      if (op != null) {
+        return new Comparison(column, op, value(), null);
+      }
+      expectKeyword(IN);
+      expect('(');
+      List<String> values = new ArrayList<String>();
+      do {
+        String v = value();
+        if (v == null) {
+          throw new BadFilterException("null is not allowed in an IN list (" + column + ")");
+        }
+        values.add(v);
+        skipWhitespace();
+      } while (accept(','));
+      expect(')');
+      return new Comparison(column, null, null, values);
+    }
+
+    private FilterOperation operator() {
+      if (text.startsWith("<=", pos)) {
+        pos += 2;
+        return FilterOperation.LESS_THAN_OR_EQUAL;
+      } else if (text.startsWith(">=", pos)) {
+        pos += 2;
+        return FilterOperation.GREATER_THAN_OR_EQUAL;
+      } else if (text.startsWith("!=", pos)) {
+        pos += 2;
+        return FilterOperation.NOT_EQUAL;
+      } else if (text.startsWith("<", pos)) {
+        pos += 1;
+        return FilterOperation.LESS_THAN;
+      } else if (text.startsWith(">", pos)) {
+        pos += 1;
+        return FilterOperation.GREATER_THAN;
+      } else if (text.startsWith("=", pos)) {
+        pos += 1;
+        return FilterOperation.EQUAL;
+      }
+      return null;
+    }
+
+    /**
+     * @return the literal, or null for the null keyword
+     */
+    private String value() throws BadFilterException {
+      skipWhitespace();
+      if (accept('\'')) {
+        StringBuilder b = new StringBuilder();
+        while (true) {
+          if (pos == text.length()) {
+            throw new BadFilterException("Unterminated string in filter");
+          }
+          char ch = text.charAt(pos++);
+          if (ch == '\'') {
+            if (pos < text.length() && text.charAt(pos) == '\'') {
+              ++pos;
+            } else {
+              return b.toString();
+            }
+          }
+          b.append(ch);
+        }
+      }
+      String v = word();
+      if (v == null) {
+        throw error("value");
+      }
+      return v.equalsIgnoreCase(NULL) ? null : v;
+    }
+
+    /**
+     * @return the next run of identifier or number characters, or null if there is none
+     */
+    private String word() {
+      skipWhitespace();
+      int start = pos;
+      while (pos < text.length()) {
+        char ch = text.charAt(pos);
+        if (Character.isLetterOrDigit(ch) || ch == '_' || ch == '.' || ch == '-' || ch == '+'
+            || ch == ':') {
+          ++pos;
+        } else {
+          break;
+        }
+      }
+      return (pos == start) ? null : text.substring(start, pos);
+    }
+
+    private void expectKeyword(String keyword) throws BadFilterException {
+      int start = pos;
+      String w = word();
+      if (w == null || !w.equalsIgnoreCase(keyword)) {
+        pos = start;
+        throw error(keyword);
+      }
+    }
+
+    private void expect(char ch) throws BadFilterException {
+      skipWhitespace();
+      if (!accept(ch)) {
+        throw error("'" + ch + "'");
+      }
+    }
+
+    private boolean accept(char ch) {
+      if (pos < text.length() && text.charAt(pos) == ch) {
+        ++pos;
+        return true;
+      }
+      return false;
+    }
+
+    private void skipWhitespace() {
+      while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+        ++pos;
+      }
+    }
+
+    private BadFilterException error(String expected) {
+      return new BadFilterException("Expected " + expected + " at position " + pos
+          + " of filter: " + text);
+    }
+  }
+}
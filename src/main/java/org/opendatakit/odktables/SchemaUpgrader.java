@@ -0,0 +1,143 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables;
+
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.odktables.relation.DbColumnDefinitions;
+import org.opendatakit.odktables.relation.DbColumnDefinitions.DbColumnDefinitionsEntity;
+import org.opendatakit.odktables.relation.DbLogTable;
+import org.opendatakit.odktables.relation.DbTable;
+import org.opendatakit.odktables.relation.DbTableDefinitions;
+import org.opendatakit.odktables.relation.DbTableDefinitions.DbTableDefinitionsEntity;
+import org.opendatakit.odktables.relation.DbTableEntry;
+import org.opendatakit.odktables.relation.DbTableEntry.DbTableEntryEntity;
+import org.opendatakit.odktables.relation.DbTableFiles;
+import org.opendatakit.odktables.relation.DbTableInstanceFiles;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+
+/**
+ * Brings the tables created by an earlier release up to the current data model: the row and log
+ * tables of every ODK Tables table gain _ROW_HASH, and the app file and attachment blob tables
+ * gain BLOB_KEY. These are the only columns that are added to existing tables; anything else a
+ * relation lacks is still an error.
+ *
+ * {@link #run()} adds the columns once, at startup, before requests are served. Adding a nullable
+ * column without a default does not rewrite the table, and tables that are already up to date are
+ * not altered. A table that cannot be upgraded is logged and skipped; it is retried at the next
+ * startup.
+ *
+ * {@link #buildIndexes()} then adds the (timestamp, sequence) indexes of the log tables in the
+ * background, as that can take a long time on a large table. They are built concurrently, so
+ * writes are not blocked, and the queries that use them work, more slowly, until they are there.
+ */
+public class SchemaUpgrader implements Runnable {
+
+  private static final Log logger = LogFactory.getLog(SchemaUpgrader.class);
+
+  private final CallingContext cc;
+
+  /**
+   * @param cc
+   *          a daemon calling context
+   */
+  public SchemaUpgrader(CallingContext cc) {
+    this.cc = cc;
+  }
+
+  @Override
+  public void run() {
+    long startTime = System.currentTimeMillis();
+    int failed = 0;
+    try {
+      new DbTableFiles(cc).upgradeBlobRelationSet(cc);
+    } catch (ODKDatastoreException e) {
+      ++failed;
+      logger.error("Unable to upgrade the app file tables", e);
+    }
+    List<DbTableEntryEntity> entries;
+    try {
+      entries = DbTableEntry.query(cc);
+    } catch (ODKDatastoreException e) {
+      logger.error("Unable to list the tables to upgrade", e);
+      return;
+    }
+    for (DbTableEntryEntity entry : entries) {
+      try {
+        upgradeTable(entry);
+      } catch (ODKDatastoreException e) {
+        ++failed;
+        logger.error("Unable to upgrade table " + entry.getId(), e);
+      }
+    }
+    logger.info("Checked " + entries.size() + " tables for upgrades in "
+        + (System.currentTimeMillis() - startTime) + " ms; " + failed + " could not be upgraded");
+  }
+
+  /**
+   * Build the indexes that the log tables lack, one table at a time.
+   */
+  public void buildIndexes() {
+    long startTime = System.currentTimeMillis();
+    List<DbTableEntryEntity> entries;
+    try {
+      entries = DbTableEntry.query(cc);
+    } catch (ODKDatastoreException e) {
+      logger.error("Unable to list the tables to index", e);
+      return;
+    }
+    int failed = 0;
+    for (DbTableEntryEntity entry : entries) {
+      if (Thread.currentThread().isInterrupted()) {
+        // shutting down
+        return;
+      }
+      String schemaETag = entry.getSchemaETag();
+      if (schemaETag == null) {
+        continue;
+      }
+      try {
+        DbTableDefinitionsEntity tableDefn = DbTableDefinitions.getDefinition(entry.getId(),
+            schemaETag, cc);
+        List<DbColumnDefinitionsEntity> columns = DbColumnDefinitions.query(entry.getId(),
+            schemaETag, cc);
+        if (!DbLogTable.getRelation(tableDefn, columns, cc).buildIndexes(cc)) {
+          ++failed;
+        }
+      } catch (ODKDatastoreException e) {
+        ++failed;
+        logger.error("Unable to index table " + entry.getId(), e);
+      }
+    }
+    logger.info("Checked the indexes of " + entries.size() + " tables in "
+        + (System.currentTimeMillis() - startTime) + " ms; " + failed
+        + " could not be indexed");
+  }
+
+  private void upgradeTable(DbTableEntryEntity entry) throws ODKDatastoreException {
+    String tableId = entry.getId();
+    new DbTableInstanceFiles(tableId, cc).upgradeBlobRelationSet(cc);
+
+    String schemaETag = entry.getSchemaETag();
+    if (schemaETag == null) {
+      // no row or log table yet
+      return;
+    }
+    DbTableDefinitionsEntity tableDefn = DbTableDefinitions.getDefinition(tableId, schemaETag, cc);
+    List<DbColumnDefinitionsEntity> columns = DbColumnDefinitions.query(tableId, schemaETag, cc);
+    DbTable.getRelation(tableDefn, columns, cc).upgradeRelation(cc);
+    DbLogTable.getRelation(tableDefn, columns, cc).upgradeRelation(cc);
+  }
+}
@@ -73,4 +73,15 @@ public class Sequencer {
     ++counter;
     return sequenceBase + "." + StringUtils.leftPad(Integer.toString(counter), DECIMAL_PLACES, '0');
   }
+
+  /**
+   * @return the value most recently returned by {@link #getNextSequenceValue()}, or null if none
+   *         has been generated.
+   */
+  public String getLastSequenceValue() {
+    if (counter == 0) {
+      return null;
+    }
+    return sequenceBase + "." + StringUtils.leftPad(Integer.toString(counter), DECIMAL_PLACES, '0');
+  }
 }
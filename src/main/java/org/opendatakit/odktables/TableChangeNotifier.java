@@ -0,0 +1,168 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.odktables.entity.TableChangeEvent;
+
+/**
+ * Fans out notices of committed table changes to the subscribers on this server and, through the
+ * configured {@link Transport}, to the other servers sharing the database.
+ *
+ * The registry is made of concurrent sets, so publishing never blocks on subscription changes.
+ * Each subscriber is called on the dispatch executor rather than on the publishing thread, so a
+ * slow client cannot hold up the request that committed the change.
+ */
+public final class TableChangeNotifier {
+
+  private static final Log logger = LogFactory.getLog(TableChangeNotifier.class);
+
+  /**
+   * Receives change events. Called on a dispatch thread; must not block for long.
+   */
+  public interface Subscriber {
+    public void onChange(TableChangeEvent event);
+  }
+
+  /**
+   * Forwards locally published events to the other servers. Events arriving from other servers
+   * are handed to {@link TableChangeNotifier#deliver(TableChangeEvent)}.
+   */
+  public interface Transport {
+    public void send(TableChangeEvent event);
+  }
+
+  private static final Executor DIRECT = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  private static final Set<Subscriber> allTableSubscribers = ConcurrentHashMap.newKeySet();
+  // the per-table sets are never removed; there are only as many as there are tables
+  private static final ConcurrentHashMap<String, Set<Subscriber>> tableSubscribers =
+      new ConcurrentHashMap<String, Set<Subscriber>>();
+
+  private static volatile Transport transport = null;
+  private static volatile Executor dispatcher = DIRECT;
+
+  private TableChangeNotifier() {
+  }
+
+  public static void setTransport(Transport newTransport) {
+    transport = newTransport;
+  }
+
+  public static void setDispatcher(Executor newDispatcher) {
+    dispatcher = (newDispatcher == null) ? DIRECT : newDispatcher;
+  }
+
+  /**
+   * @param subscriber
+   * @param tableIds
+   *          the tables of interest; null or empty for every table
+   */
+  public static void subscribe(Subscriber subscriber, Collection<String> tableIds) {
+    if (tableIds == null || tableIds.isEmpty()) {
+      allTableSubscribers.add(subscriber);
+      return;
+    }
+    for (String tableId : tableIds) {
+      Set<Subscriber> subscribers = tableSubscribers.get(tableId);
+      if (subscribers == null) {
+        Set<Subscriber> created = ConcurrentHashMap.newKeySet();
+        subscribers = tableSubscribers.putIfAbsent(tableId, created);
+        if (subscribers == null) {
+          subscribers = created;
+        }
+      }
+      subscribers.add(subscriber);
+    }
+  }
+
+  /**
+   * @param subscriber
+   * @param tableIds
+   *          the same tables that were passed to
+   *          {@link #subscribe(Subscriber, Collection)}
+   */
+  public static void unsubscribe(Subscriber subscriber, Collection<String> tableIds) {
+    if (tableIds == null || tableIds.isEmpty()) {
+      allTableSubscribers.remove(subscriber);
+      return;
+    }
+    for (String tableId : tableIds) {
+      Set<Subscriber> subscribers = tableSubscribers.get(tableId);
+      if (subscribers != null) {
+        subscribers.remove(subscriber);
+      }
+    }
+  }
+
+  /**
+   * Announce a change committed on this server.
+   *
+   * @param event
+   */
+  public static void publish(TableChangeEvent event) {
+    deliver(event);
+    Transport current = transport;
+    if (current != null) {
+      try {
+        current.send(event);
+      } catch (RuntimeException e) {
+        logger.warn("Unable to forward change to table " + event.getTableId(), e);
+      }
+    }
+  }
+
+  /**
+   * Hand an event to the subscribers on this server.
+   *
+   * @param event
+   */
+  public static void deliver(TableChangeEvent event) {
+    Set<Subscriber> subscribers = tableSubscribers.get(event.getTableId());
+    if (subscribers != null) {
+      dispatch(subscribers, event);
+    }
+    dispatch(allTableSubscribers, event);
+  }
+
+  private static void dispatch(Set<Subscriber> subscribers, final TableChangeEvent event) {
+    Executor executor = dispatcher;
+    for (final Subscriber subscriber : subscribers) {
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              subscriber.onChange(event);
+            } catch (RuntimeException e) {
+              logger.warn("Change subscriber failed", e);
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        logger.warn("Dropped change to table " + event.getTableId() + ": " + e.getMessage());
+      }
+    }
+  }
+}
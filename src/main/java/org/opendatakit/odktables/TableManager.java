@@ -34,6 +34,7 @@ import org.opendatakit.odktables.exception.PermissionDeniedException;
 import org.opendatakit.odktables.exception.TableAlreadyExistsException;
 import org.opendatakit.odktables.relation.DbColumnDefinitions;
 import org.opendatakit.odktables.relation.DbColumnDefinitions.DbColumnDefinitionsEntity;
+import org.opendatakit.odktables.relation.DbLogCheckpoint;
 import org.opendatakit.odktables.relation.DbLogTable;
 import org.opendatakit.odktables.relation.DbManifestETags;
 import org.opendatakit.odktables.relation.DbManifestETags.DbManifestETagEntity;
@@ -49,6 +50,7 @@ import org.opendatakit.odktables.relation.DbTableFileInfo.DbTableFileInfoEntity;
 import org.opendatakit.odktables.relation.DbTableFiles;
 import org.opendatakit.odktables.relation.DbTableInstanceFiles;
 import org.opendatakit.odktables.relation.DbTableInstanceManifestETags;
+import org.opendatakit.odktables.relation.DbTableSnapshot;
 import org.opendatakit.odktables.relation.EntityConverter;
 import org.opendatakit.odktables.relation.EntityCreator;
 import org.opendatakit.odktables.relation.RUtil;
@@ -556,6 +558,10 @@ public class TableManager {
         if (logTableRelation != null) {
           logTableRelation.dropRelation(cc);
         }
+        // and the checkpoints left by compacting it
+        DbLogCheckpoint.deleteForTable(tableEntry.getId(), cc);
+        // and its snapshot
+        DbTableSnapshot.deleteForTable(tableEntry.getId(), cc);
 
         // drop the manifest ETags table for instance attachments
         final DbTableInstanceManifestETags instanceManifestETagsRelation =
@@ -0,0 +1,702 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.aggregate.odktables.rest.entity.RowList;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.ermodel.BlobEntitySet;
+import org.opendatakit.ermodel.Entity;
+import org.opendatakit.ermodel.Query;
+import org.opendatakit.odktables.entity.TableChangeEvent;
+import org.opendatakit.odktables.relation.DbColumnDefinitions;
+import org.opendatakit.odktables.relation.DbColumnDefinitions.DbColumnDefinitionsEntity;
+import org.opendatakit.odktables.relation.DbLogTable;
+import org.opendatakit.odktables.relation.DbTable;
+import org.opendatakit.odktables.relation.DbTableDefinitions;
+import org.opendatakit.odktables.relation.DbTableDefinitions.DbTableDefinitionsEntity;
+import org.opendatakit.odktables.relation.DbTableEntry;
+import org.opendatakit.odktables.relation.DbTableEntry.DbTableEntryEntity;
+import org.opendatakit.odktables.relation.DbTableSnapshot;
+import org.opendatakit.odktables.relation.DbTableSnapshot.DbTableSnapshotEntity;
+import org.opendatakit.odktables.relation.DbTableSnapshotFiles;
+import org.opendatakit.odktables.relation.DbTableSnapshotPage;
+import org.opendatakit.odktables.relation.DbTableSnapshotPage.DbTableSnapshotPageEntity;
+import org.opendatakit.odktables.relation.EntityConverter;
+import org.opendatakit.persistence.CommonFieldsBase;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+import org.opendatakit.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.persistence.exception.ODKTaskLockException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Keeps a {@link DbTableSnapshot} of each table for bootstrapping new devices.
+ *
+ * A snapshot is taken as of the dataETag and last log sequence value that the table has when the
+ * build starts. Each row is stored in its latest logged state at or before that sequence value, so
+ * every version in the snapshot was committed by then; a row that has changed since is returned by
+ * getRowsSince(dataETag), which a device calls once it has loaded the snapshot. The rows are read
+ * without holding the table lock, which is only taken to capture the starting point and to swap
+ * the finished snapshot in.
+ *
+ * Builds are started by table changes once the table has been quiet for the settle time (or has
+ * been busy for the maximum delay). When the previous snapshot has the same schema and fewer than
+ * maxIncrementalChanges log entries have been written since it, only the pages holding the
+ * changed rows are rewritten; the other pages are carried over as they are.
+ *
+ * The pages of a replaced snapshot are kept for retainMillis after it is replaced, so that a device
+ * part way through downloading it can finish; {@link #dropSuperseded()} removes them after that.
+ * Each set of pages is timed from its own replacement, so a table that is rebuilt more often than
+ * that still has its older page sets removed.
+ *
+ * Rows are placed into pages in rowId order as Java compares Strings, whatever the collation of
+ * the database, so that a changed row is merged into the page that already holds it.
+ */
+public class TableSnapshotBuilder implements TableChangeNotifier.Subscriber {
+
+  private static final Log logger = LogFactory.getLog(TableSnapshotBuilder.class);
+
+  public static final String PAGE_CONTENT_TYPE = "application/gzip";
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static class PendingBuild {
+    final long firstChange;
+    ScheduledFuture<?> future = null;
+
+    PendingBuild(long firstChange) {
+      this.firstChange = firstChange;
+    }
+  }
+
+  /**
+   * A page of the snapshot being built.
+   */
+  private static class PageDraft {
+    String blobSetUri;
+    String lastRowId;
+    int rowCount;
+    Long contentLength;
+    String contentHash;
+    // false if carried over from the previous snapshot
+    boolean created;
+  }
+
+  private final CallingContext cc;
+  private final ScheduledExecutorService executor;
+  private final long settleMillis;
+  private final long maxDelayMillis;
+  private final int pageSize;
+  private final int maxIncrementalChanges;
+  private final long retainMillis;
+  private final EntityConverter converter = new EntityConverter();
+
+  // tableId to the build waiting for that table's writes to settle
+  private final Map<String, PendingBuild> pending = new HashMap<String, PendingBuild>();
+
+  /**
+   * @param cc
+   *          a daemon calling context
+   * @param executor
+   *          runs the builds; a single thread keeps them from competing with sync requests
+   * @param settleMillis
+   *          how long a table must go without changes before its snapshot is rebuilt
+   * @param maxDelayMillis
+   *          the longest a rebuild is put off by a steady stream of changes
+   * @param pageSize
+   *          the number of rows in a page
+   * @param maxIncrementalChanges
+   *          the most log entries merged into the previous snapshot before a full rebuild is
+   *          done instead
+   * @param retainMillis
+   *          how long the pages of a replaced snapshot are kept
+   */
+  public TableSnapshotBuilder(CallingContext cc, ScheduledExecutorService executor,
+      long settleMillis, long maxDelayMillis, int pageSize, int maxIncrementalChanges,
+      long retainMillis) {
+    this.cc = cc;
+    this.executor = executor;
+    this.settleMillis = settleMillis;
+    this.maxDelayMillis = Math.max(settleMillis, maxDelayMillis);
+    this.pageSize = Math.max(1, pageSize);
+    this.maxIncrementalChanges = maxIncrementalChanges;
+    this.retainMillis = retainMillis;
+  }
+
+  @Override
+  public void onChange(TableChangeEvent event) {
+    schedule(event.getTableId());
+  }
+
+  /**
+   * Schedule a rebuild of every table's snapshot, e.g., at startup. Snapshots that are up to date
+   * are left alone.
+   *
+   * @throws ODKDatastoreException
+   */
+  public void scheduleAll() throws ODKDatastoreException {
+    for (DbTableEntryEntity entry : DbTableEntry.query(cc)) {
+      schedule(entry.getId());
+    }
+  }
+
+  /**
+   * Rebuild the table's snapshot once its writes settle.
+   *
+   * @param tableId
+   */
+  public synchronized void schedule(final String tableId) {
+    long now = System.currentTimeMillis();
+    PendingBuild build = pending.get(tableId);
+    if (build == null) {
+      build = new PendingBuild(now);
+      pending.put(tableId, build);
+    } else if (now - build.firstChange >= maxDelayMillis) {
+      // busy for too long; let the scheduled build run
+      return;
+    } else {
+      build.future.cancel(false);
+    }
+    long delay = Math.min(settleMillis, build.firstChange + maxDelayMillis - now);
+    try {
+      build.future = executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          runBuild(tableId);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // shutting down
+      pending.remove(tableId);
+    }
+  }
+
+  /**
+   * Remove the pages of the snapshots that were replaced more than retainMillis ago.
+   *
+   * @throws ODKDatastoreException
+   */
+  public void dropSuperseded() throws ODKDatastoreException {
+    for (DbTableEntryEntity entry : DbTableEntry.query(cc)) {
+      String tableId = entry.getId();
+      try {
+        dropSuperseded(tableId);
+      } catch (ODKTaskLockException e) {
+        logger.warn("Replaced snapshot pages of table " + tableId + " could not get the lock");
+      } catch (ODKDatastoreException e) {
+        logger.error("Unable to remove the replaced snapshot pages of table " + tableId, e);
+      }
+    }
+  }
+
+  private void dropSuperseded(String tableId)
+      throws ODKDatastoreException, ODKTaskLockException {
+    Date supersededBefore = new Date(System.currentTimeMillis() - retainMillis);
+    if (!DbTableSnapshotPage.hasSupersededBefore(tableId, supersededBefore, cc)) {
+      return;
+    }
+    // under the lock, so that the blob sets carried over by a snapshot being stored are kept
+    OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId,
+        ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES,
+        OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+    propsLock.acquire();
+    try {
+      DbTableSnapshot.deleteSupersededPages(tableId, supersededBefore, cc);
+    } finally {
+      propsLock.release();
+    }
+  }
+
+  private void runBuild(String tableId) {
+    synchronized (this) {
+      pending.remove(tableId);
+    }
+    try {
+      buildSnapshot(tableId);
+    } catch (ODKTaskLockException e) {
+      logger.warn("Snapshot of table " + tableId + " could not get the lock");
+    } catch (Exception e) {
+      logger.error("Snapshot of table " + tableId + " failed", e);
+    }
+  }
+
+  /**
+   * Bring the table's snapshot up to date.
+   *
+   * @param tableId
+   * @return true if a new snapshot was stored
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws IOException
+   */
+  public boolean buildSnapshot(String tableId)
+      throws ODKDatastoreException, ODKTaskLockException, IOException {
+    String schemaETag;
+    String dataETag;
+    String sequenceValue;
+    DbTableSnapshotEntity prior;
+    List<DbColumnDefinitionsEntity> columns;
+    DbTable table;
+    DbLogTable logTable;
+
+    OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId,
+        ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES,
+        OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+    propsLock.acquire();
+    try {
+      DbTableEntryEntity entry;
+      try {
+        entry = DbTableEntry.getTableIdEntry(tableId, cc);
+      } catch (ODKEntityNotFoundException e) {
+        // deleted in the meantime
+        return false;
+      }
+      schemaETag = entry.getSchemaETag();
+      dataETag = entry.getDataETag();
+      if (schemaETag == null || dataETag == null || entry.getPendingDataETag() != null) {
+        // not yet defined, or a change is in progress and will announce itself when done
+        return false;
+      }
+      prior = DbTableSnapshot.getSnapshot(tableId, cc);
+      if (prior != null && schemaETag.equals(prior.getSchemaETag())
+          && dataETag.equals(prior.getDataETag())) {
+        return false;
+      }
+      DbTableDefinitionsEntity tableDefn = DbTableDefinitions.getDefinition(tableId, schemaETag,
+          cc);
+      columns = DbColumnDefinitions.query(tableId, schemaETag, cc);
+      table = DbTable.getRelation(tableDefn, columns, cc);
+      logTable = DbLogTable.getRelation(tableDefn, columns, cc);
+      sequenceValue = getLastSequenceValue(logTable);
+    } finally {
+      propsLock.release();
+    }
+
+    long startTime = System.currentTimeMillis();
+    // each of these removes the pages it wrote if it fails
+    List<PageDraft> pages = null;
+    boolean incremental = false;
+    if (prior != null && schemaETag.equals(prior.getSchemaETag())
+        && prior.getSequenceValue() != null && sequenceValue != null) {
+      TreeMap<String, Entity> changes = getChanges(logTable, prior.getSequenceValue(),
+          sequenceValue);
+      if (changes != null) {
+        pages = mergePages(tableId, prior.getDataETag(), columns, changes);
+        incremental = true;
+      }
+    }
+    if (pages == null) {
+      pages = buildPages(table, logTable, columns, sequenceValue);
+    }
+
+    if (!storeSnapshot(tableId, schemaETag, dataETag, sequenceValue, prior, pages)) {
+      discard(pages);
+      return false;
+    }
+    int rowCount = 0;
+    for (PageDraft page : pages) {
+      rowCount += page.rowCount;
+    }
+    logger.info((incremental ? "Updated" : "Built") + " snapshot of table " + tableId + " at "
+        + dataETag + ": " + rowCount + " rows in " + pages.size() + " pages, "
+        + (System.currentTimeMillis() - startTime) + " ms");
+    return true;
+  }
+
+  private String getLastSequenceValue(DbLogTable logTable) throws ODKDatastoreException {
+    Query query = logTable.query("TableSnapshotBuilder.getLastSequenceValue", cc);
+    query.sortDescending(DbLogTable.SEQUENCE_VALUE);
+    Query.WebsafeQueryResult result = query.execute(null, 1);
+    if (result.entities.isEmpty()) {
+      return null;
+    }
+    return result.entities.get(0).getString(DbLogTable.SEQUENCE_VALUE);
+  }
+
+  /**
+   * @return the latest log entry of each row changed after fromSequenceValue, up to and including
+   *         toSequenceValue, by rowId; or null if there are more than maxIncrementalChanges
+   */
+  private TreeMap<String, Entity> getChanges(DbLogTable logTable, String fromSequenceValue,
+      String toSequenceValue) throws ODKDatastoreException {
+    TreeMap<String, Entity> changes = new TreeMap<String, Entity>();
+    String lastSequenceValue = fromSequenceValue;
+    int count = 0;
+    boolean more = true;
+    while (more) {
+      Query query = logTable.query("TableSnapshotBuilder.getChanges", cc);
+      query.greaterThan(DbLogTable.SEQUENCE_VALUE, lastSequenceValue);
+      query.lessThanOrEqual(DbLogTable.SEQUENCE_VALUE, toSequenceValue);
+      query.sortAscending(DbLogTable.SEQUENCE_VALUE);
+      Query.WebsafeQueryResult result = query.execute(null, DataManager.ROW_CHUNK_SIZE);
+      for (Entity entity : result.entities) {
+        changes.put(entity.getString(DbLogTable.ROW_ID), entity);
+      }
+      count += result.entities.size();
+      if (count > maxIncrementalChanges) {
+        return null;
+      }
+      if (result.entities.isEmpty()) {
+        break;
+      }
+      lastSequenceValue = result.entities.get(result.entities.size() - 1)
+          .getString(DbLogTable.SEQUENCE_VALUE);
+      more = result.hasMore;
+    }
+    return changes;
+  }
+
+  /**
+   * Build the snapshot from every row of the table, in rowId order.
+   */
+  private List<PageDraft> buildPages(DbTable table, DbLogTable logTable,
+      List<DbColumnDefinitionsEntity> columns, String sequenceValue)
+      throws ODKDatastoreException, IOException {
+    List<PageDraft> pages = new ArrayList<PageDraft>();
+    if (sequenceValue == null) {
+      // nothing has ever been written
+      return pages;
+    }
+    try {
+      // the database may sort them differently from mergePages()
+      List<String> rowIds = getRowIds(table);
+      Collections.sort(rowIds);
+      List<Row> rows = new ArrayList<Row>();
+      for (int i = 0; i < rowIds.size(); i += DataManager.ROW_CHUNK_SIZE) {
+        List<Entity> tableRows = getTableRows(table,
+            rowIds.subList(i, Math.min(i + DataManager.ROW_CHUNK_SIZE, rowIds.size())));
+        rows.addAll(getRowsAsOf(logTable, columns, tableRows, sequenceValue));
+        while (rows.size() >= pageSize) {
+          List<Row> page = rows.subList(0, pageSize);
+          pages.add(writePage(new ArrayList<Row>(page)));
+          page.clear();
+        }
+      }
+      if (!rows.isEmpty()) {
+        pages.add(writePage(rows));
+      }
+      return pages;
+    } catch (ODKDatastoreException | IOException | RuntimeException e) {
+      discard(pages);
+      throw e;
+    }
+  }
+
+  /**
+   * @return the rowIds of every row of the table, in no particular order
+   */
+  private List<String> getRowIds(DbTable table) throws ODKDatastoreException {
+    List<String> rowIds = new ArrayList<String>();
+    String lastRowId = null;
+    boolean more = true;
+    while (more) {
+      Query query = table.query("TableSnapshotBuilder.getRowIds", cc);
+      if (lastRowId != null) {
+        query.greaterThan(CommonFieldsBase.URI_COLUMN_NAME, lastRowId);
+      }
+      query.sortAscending(CommonFieldsBase.URI_COLUMN_NAME);
+      Query.WebsafeQueryResult result = query.execute(null, DataManager.ROW_CHUNK_SIZE);
+      if (result.entities.isEmpty()) {
+        break;
+      }
+      more = result.hasMore;
+      for (Entity entity : result.entities) {
+        rowIds.add(entity.getId());
+      }
+      lastRowId = result.entities.get(result.entities.size() - 1).getId();
+    }
+    return rowIds;
+  }
+
+  /**
+   * @return the {@link DbTable} entities of the rows, in the order of rowIds
+   */
+  private List<Entity> getTableRows(DbTable table, List<String> rowIds)
+      throws ODKDatastoreException {
+    Map<String, Entity> byId = new HashMap<String, Entity>();
+    Query query = table.query("TableSnapshotBuilder.getTableRows", cc);
+    query.include(CommonFieldsBase.URI_COLUMN_NAME, rowIds);
+    for (Entity entity : query.execute()) {
+      byId.put(entity.getId(), entity);
+    }
+    List<Entity> tableRows = new ArrayList<Entity>();
+    for (String rowId : rowIds) {
+      Entity entity = byId.get(rowId);
+      if (entity != null) {
+        tableRows.add(entity);
+      }
+    }
+    return tableRows;
+  }
+
+  /**
+   * @param tableRows
+   *          {@link DbTable} entities
+   * @return the rows in their latest state at or before sequenceValue, without those that were
+   *         deleted or not yet created by then
+   */
+  private List<Row> getRowsAsOf(DbLogTable logTable, List<DbColumnDefinitionsEntity> columns,
+      List<Entity> tableRows, String sequenceValue) throws ODKDatastoreException {
+    // the rowETag of each row's current state is the PK of its current log entry
+    List<String> rowETags = new ArrayList<String>();
+    for (Entity row : tableRows) {
+      rowETags.add(row.getString(DbTable.ROW_ETAG));
+    }
+    Map<String, Entity> currentEntries = new HashMap<String, Entity>();
+    Query query = logTable.query("TableSnapshotBuilder.getRowsAsOf", cc);
+    query.include(CommonFieldsBase.URI_COLUMN_NAME, rowETags);
+    for (Entity logEntity : query.execute()) {
+      currentEntries.put(logEntity.getId(), logEntity);
+    }
+
+    List<Row> rows = new ArrayList<Row>();
+    for (Entity row : tableRows) {
+      Entity logEntity = currentEntries.get(row.getString(DbTable.ROW_ETAG));
+      if (logEntity == null
+          || logEntity.getString(DbLogTable.SEQUENCE_VALUE).compareTo(sequenceValue) > 0) {
+        // changed since the snapshot was started
+        logEntity = getLogEntryAsOf(logTable, row.getId(), sequenceValue);
+      }
+      if (logEntity == null || logEntity.getBoolean(DbLogTable.DELETED)) {
+        continue;
+      }
+      rows.add(converter.toRowFromLogTable(logEntity, columns));
+    }
+    return rows;
+  }
+
+  private Entity getLogEntryAsOf(DbLogTable logTable, String rowId, String sequenceValue)
+      throws ODKDatastoreException {
+    Query query = logTable.query("TableSnapshotBuilder.getLogEntryAsOf", cc);
+    query.equal(DbLogTable.ROW_ID, rowId);
+    query.lessThanOrEqual(DbLogTable.SEQUENCE_VALUE, sequenceValue);
+    query.sortDescending(DbLogTable.SEQUENCE_VALUE);
+    Query.WebsafeQueryResult result = query.execute(null, 1);
+    return result.entities.isEmpty() ? null : result.entities.get(0);
+  }
+
+  /**
+   * Apply the changes to the pages of the previous snapshot. Pages without changes are carried
+   * over; the others are rewritten, and split if they have grown to twice the page size.
+   */
+  private List<PageDraft> mergePages(String tableId, String priorDataETag,
+      List<DbColumnDefinitionsEntity> columns, TreeMap<String, Entity> changes)
+      throws ODKDatastoreException, IOException {
+    List<PageDraft> pages = new ArrayList<PageDraft>();
+    try {
+      List<DbTableSnapshotPageEntity> priorPages = DbTableSnapshotPage.query(tableId,
+          priorDataETag, cc);
+      if (priorPages.isEmpty()) {
+        writePages(applyChanges(new TreeMap<String, Row>(), changes, columns), pages);
+        return pages;
+      }
+      for (int i = 0; i < priorPages.size(); ++i) {
+        DbTableSnapshotPageEntity priorPage = priorPages.get(i);
+        // the last page also takes the rows after it
+        SortedMap<String, Entity> pageChanges = (i == priorPages.size() - 1) ? changes
+            : changes.headMap(priorPage.getLastRowId(), true);
+        if (pageChanges.isEmpty()) {
+          pages.add(carryOver(priorPage));
+          continue;
+        }
+        TreeMap<String, Row> rows = new TreeMap<String, Row>();
+        for (Row row : readPage(priorPage.getBlobSetUri())) {
+          rows.put(row.getRowId(), row);
+        }
+        writePages(applyChanges(rows, pageChanges, columns), pages);
+        pageChanges.clear();
+      }
+      return pages;
+    } catch (ODKDatastoreException | IOException | RuntimeException e) {
+      discard(pages);
+      throw e;
+    }
+  }
+
+  private List<Row> applyChanges(TreeMap<String, Row> rows, SortedMap<String, Entity> changes,
+      List<DbColumnDefinitionsEntity> columns) {
+    for (Map.Entry<String, Entity> change : changes.entrySet()) {
+      if (change.getValue().getBoolean(DbLogTable.DELETED)) {
+        rows.remove(change.getKey());
+      } else {
+        rows.put(change.getKey(), converter.toRowFromLogTable(change.getValue(), columns));
+      }
+    }
+    return new ArrayList<Row>(rows.values());
+  }
+
+  private void writePages(List<Row> rows, List<PageDraft> pages) throws ODKDatastoreException,
+      IOException {
+    if (rows.size() < 2 * pageSize) {
+      if (!rows.isEmpty()) {
+        pages.add(writePage(rows));
+      }
+      return;
+    }
+    for (int i = 0; i < rows.size(); i += pageSize) {
+      pages.add(writePage(new ArrayList<Row>(rows.subList(i, Math.min(i + pageSize,
+          rows.size())))));
+    }
+  }
+
+  private PageDraft writePage(List<Row> rows) throws ODKDatastoreException, IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+    try {
+      // the pages of a snapshot may come from earlier snapshots; the manifest gives the dataETag
+      mapper.writeValue(gzip, new RowList(new ArrayList<Row>(rows), null));
+    } finally {
+      gzip.close();
+    }
+    byte[] content = bytes.toByteArray();
+
+    BlobEntitySet blobs = new DbTableSnapshotFiles(cc).newBlobEntitySet(cc);
+    blobs.addBlob(content, PAGE_CONTENT_TYPE, null, true, cc);
+
+    PageDraft page = new PageDraft();
+    page.blobSetUri = blobs.getUri();
+    page.lastRowId = rows.get(rows.size() - 1).getRowId();
+    page.rowCount = rows.size();
+    page.contentLength = Long.valueOf(content.length);
+    page.contentHash = blobs.getContentHash(1, cc);
+    page.created = true;
+    return page;
+  }
+
+  private static PageDraft carryOver(DbTableSnapshotPageEntity priorPage) {
+    PageDraft page = new PageDraft();
+    page.blobSetUri = priorPage.getBlobSetUri();
+    page.lastRowId = priorPage.getLastRowId();
+    page.rowCount = priorPage.getRowCount();
+    page.contentLength = priorPage.getContentLength();
+    page.contentHash = priorPage.getContentHash();
+    page.created = false;
+    return page;
+  }
+
+  private List<Row> readPage(String blobSetUri) throws ODKDatastoreException, IOException {
+    byte[] content = new DbTableSnapshotFiles(cc).getBlobEntitySet(blobSetUri, cc).getBlob(1, cc);
+    GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(content));
+    try {
+      RowList rowList = mapper.readValue(gzip, RowList.class);
+      return (rowList.getRows() == null) ? new ArrayList<Row>() : rowList.getRows();
+    } finally {
+      gzip.close();
+    }
+  }
+
+  /**
+   * Swap the new snapshot in, unless the table or its snapshot changed under us.
+   *
+   * @return true if the snapshot was stored
+   */
+  private boolean storeSnapshot(String tableId, String schemaETag, String dataETag,
+      String sequenceValue, DbTableSnapshotEntity prior, List<PageDraft> pages)
+      throws ODKDatastoreException, ODKTaskLockException {
+    OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId,
+        ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES,
+        OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+    propsLock.acquire();
+    try {
+      DbTableEntryEntity entry;
+      try {
+        entry = DbTableEntry.getTableIdEntry(tableId, cc);
+      } catch (ODKEntityNotFoundException e) {
+        return false;
+      }
+      if (!schemaETag.equals(entry.getSchemaETag())) {
+        return false;
+      }
+      DbTableSnapshotEntity current = DbTableSnapshot.getSnapshot(tableId, cc);
+      String priorDataETag = (prior == null) ? null : prior.getDataETag();
+      String currentDataETag = (current == null) ? null : current.getDataETag();
+      if ((priorDataETag == null) ? (currentDataETag != null)
+          : !priorDataETag.equals(currentDataETag)) {
+        // replaced by another server
+        return false;
+      }
+      if (dataETag.equals(currentDataETag)) {
+        // same data under an earlier schema; its pages would share our dataETag
+        DbTableSnapshot.deletePages(tableId, dataETag, cc);
+      }
+
+      int rowCount = 0;
+      for (int i = 0; i < pages.size(); ++i) {
+        PageDraft page = pages.get(i);
+        DbTableSnapshotPageEntity e = DbTableSnapshotPage.createNewEntity(cc);
+        e.setTableId(tableId);
+        e.setDataETag(dataETag);
+        e.setOrdinal(i + 1);
+        e.setLastRowId(page.lastRowId);
+        e.setRowCount(page.rowCount);
+        e.setBlobSetUri(page.blobSetUri);
+        e.setContentLength(page.contentLength);
+        e.setContentHash(page.contentHash);
+        e.put(cc);
+        rowCount += page.rowCount;
+      }
+      if (current == null) {
+        current = DbTableSnapshot.createNewEntity(tableId, cc);
+      }
+      current.setSchemaETag(schemaETag);
+      current.setDataETag(dataETag);
+      current.setSequenceValue(sequenceValue);
+      current.setRowCount(rowCount);
+      current.setPageCount(pages.size());
+      current.put(cc);
+      if (currentDataETag != null && !dataETag.equals(currentDataETag)) {
+        // left for dropSuperseded()
+        DbTableSnapshot.markPagesSuperseded(tableId, currentDataETag, new Date(), cc);
+      }
+      return true;
+    } finally {
+      propsLock.release();
+    }
+  }
+
+  /**
+   * Remove the blobs written for a snapshot that will not be stored.
+   */
+  private void discard(List<PageDraft> pages) {
+    try {
+      DbTableSnapshotFiles files = new DbTableSnapshotFiles(cc);
+      for (PageDraft page : pages) {
+        if (page.created) {
+          files.getBlobEntitySet(page.blobSetUri, cc).remove(cc);
+        }
+      }
+    } catch (ODKDatastoreException e) {
+      logger.warn("Unable to remove the pages of an abandoned snapshot", e);
+    }
+  }
+}
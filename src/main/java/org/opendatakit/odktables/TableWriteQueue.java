@@ -0,0 +1,445 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.configuration.DaemonThreadFactory;
+import org.opendatakit.odktables.DataManager.RowOutcomeSink;
+import org.opendatakit.odktables.DataManager.RowWriteSession;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Per-table queues of bulk row changes (alterRows). A single writer per table drains its queue,
+ * applying up to maxBatch queued changes under one acquisition of the table lock (group commit).
+ * Concurrent uploads to a hot table then cost one lock hand-off per batch rather than one per
+ * upload, and share the schema reads and the sequencer round trip.
+ *
+ * The table lock is a lease that is not renewed, so a batch also ends, and the lock is released
+ * and acquired again for the next change, once it has written maxBatchRows rows or held the lock
+ * for maxBatchMillis. Both should leave the lease ample room for one more change.
+ *
+ * Each change is still applied on its own: it is checked against the dataETag the table has when
+ * its turn comes, gets its own dataETag and its own outcomes, and runs with the permissions and
+ * security context of the user who submitted it. The result is the same as if the uploads had
+ * taken the lock one after the other in queue order.
+ *
+ * Finished jobs are kept for a while so that a client that was answered 202 (Accepted) can poll
+ * for the outcome. Those that are not collected in time are discarded by a periodic sweep, or
+ * when the queue is next used. One queue is shared by every table (see SyncConfiguration).
+ */
+public final class TableWriteQueue {
+
+  private static final Log logger = LogFactory.getLog(TableWriteQueue.class);
+
+  public enum State {
+    QUEUED, RUNNING, SUCCEEDED, FAILED
+  }
+
+  /**
+   * One queued bulk change. Closing the job forgets it and releases the resources it owns.
+   */
+  public static class Job implements Closeable {
+    private final String id = UUID.randomUUID().toString();
+    private final TableWriteQueue owner;
+    private final DataManager dm;
+    private final String userId;
+    private final String rowsDataETag;
+    private final String deviceId;
+    private final String officeId;
+    private final Iterable<Row> rows;
+    private final RowOutcomeSink outcomes;
+    private final List<Closeable> resources;
+    private final SecurityContext securityContext;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile State state = State.QUEUED;
+    private volatile String dataETag = null;
+    private volatile Exception failure = null;
+    private volatile long finishedAt = 0L;
+
+    private Job(TableWriteQueue owner, DataManager dm, String userId, String rowsDataETag,
+        String deviceId, String officeId, Iterable<Row> rows, RowOutcomeSink outcomes,
+        List<Closeable> resources) {
+      this.owner = owner;
+      this.dm = dm;
+      this.userId = userId;
+      this.rowsDataETag = rowsDataETag;
+      this.deviceId = deviceId;
+      this.officeId = officeId;
+      this.rows = rows;
+      this.outcomes = outcomes;
+      this.resources = resources;
+      this.securityContext = SecurityContextHolder.getContext();
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getAppId() {
+      return dm.getAppId();
+    }
+
+    public String getTableId() {
+      return dm.getTableId();
+    }
+
+    /**
+     * @return the odkTablesUserId of the submitter
+     */
+    public String getUserId() {
+      return userId;
+    }
+
+    public State getState() {
+      return state;
+    }
+
+    /**
+     * @return true once the change has succeeded or failed
+     */
+    public boolean isDone() {
+      return done.getCount() == 0;
+    }
+
+    /**
+     * @return the sink given to {@link TableWriteQueue#submit}
+     */
+    public RowOutcomeSink getOutcomes() {
+      return outcomes;
+    }
+
+    /**
+     * @return the dataETag of the table after this change, once it has succeeded
+     */
+    public String getDataETag() {
+      return dataETag;
+    }
+
+    /**
+     * @return why the change failed, once it has failed
+     */
+    public Exception getFailure() {
+      return failure;
+    }
+
+    /**
+     * @param timeout
+     * @param unit
+     * @return true if the job finished within the timeout
+     * @throws InterruptedException
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+      return done.await(timeout, unit);
+    }
+
+    private void finish(String newDataETag, Exception e) {
+      dataETag = newDataETag;
+      failure = e;
+      finishedAt = System.currentTimeMillis();
+      state = (e == null) ? State.SUCCEEDED : State.FAILED;
+      done.countDown();
+    }
+
+    @Override
+    public void close() {
+      owner.jobs.remove(id);
+      for (Closeable resource : resources) {
+        try {
+          resource.close();
+        } catch (IOException e) {
+          logger.warn("Unable to release write job resource", e);
+        }
+      }
+    }
+  }
+
+  private static class TableQueue {
+    final Queue<Job> pending = new ConcurrentLinkedQueue<Job>();
+    final AtomicBoolean draining = new AtomicBoolean(false);
+  }
+
+  private final ConcurrentHashMap<String, TableQueue> queues =
+      new ConcurrentHashMap<String, TableQueue>();
+  private final ConcurrentHashMap<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+
+  private final Executor writers;
+  private final int maxBatch;
+  private final long maxBatchRows;
+  private final long maxBatchMillis;
+  private final long waitMillis;
+  private final long retainMillis;
+  private ScheduledExecutorService sweeper;
+
+  /**
+   * @param writers
+   *          runs the per-table writers; null to drain on the submitting thread
+   * @param maxBatch
+   *          the most changes applied under one acquisition of the table lock
+   * @param maxBatchRows
+   *          no further change joins a batch once it has written this many rows
+   * @param maxBatchMillis
+   *          no further change joins a batch once it has held the table lock this long
+   * @param waitMillis
+   *          how long a request waits for its change before answering 202 (Accepted)
+   * @param retainMillis
+   *          how long a finished job waits to be collected before it is discarded
+   */
+  public TableWriteQueue(Executor writers, int maxBatch, long maxBatchRows, long maxBatchMillis,
+      long waitMillis, long retainMillis) {
+    this.writers = writers;
+    this.maxBatch = Math.max(1, maxBatch);
+    this.maxBatchRows = maxBatchRows;
+    this.maxBatchMillis = maxBatchMillis;
+    this.waitMillis = waitMillis;
+    this.retainMillis = retainMillis;
+  }
+
+  /**
+   * Discard the finished jobs that are not collected in time, every sweepMillis.
+   *
+   * @param sweepMillis
+   */
+  public synchronized void startSweep(long sweepMillis) {
+    if (sweeper != null) {
+      return;
+    }
+    sweeper = Executors
+        .newSingleThreadScheduledExecutor(new DaemonThreadFactory("table-write-expiry-"));
+    sweeper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          discardExpiredJobs();
+        } catch (RuntimeException e) {
+          logger.error("Unable to discard expired write jobs", e);
+        }
+      }
+    }, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop the sweep. Queued changes still drain, on the threads that submit after this if the
+   * writers are shut down too.
+   */
+  public synchronized void shutdown() {
+    if (sweeper != null) {
+      sweeper.shutdownNow();
+      sweeper = null;
+    }
+  }
+
+  /**
+   * @return how long a request waits for its change before answering 202 (Accepted)
+   */
+  public long getWaitMillis() {
+    return waitMillis;
+  }
+
+  /**
+   * Queue a bulk change. The caller must already hold WRITE_ROW on the table.
+   *
+   * @param dm
+   *          the DataManager of the submitting request
+   * @param userId
+   *          the odkTablesUserId of the submitter
+   * @param rowsDataETag
+   *          the dataETag the client based its changes upon
+   * @param deviceId
+   * @param officeId
+   * @param rows
+   *          the rows to insert, update or delete; iterated once, on the writer thread
+   * @param outcomes
+   *          receives the outcome of every row, on the writer thread
+   * @param resources
+   *          closed when the job is closed or discarded
+   * @return the queued job
+   */
+  public Job submit(DataManager dm, String userId, String rowsDataETag, String deviceId,
+      String officeId, Iterable<Row> rows, RowOutcomeSink outcomes, List<Closeable> resources) {
+    discardExpiredJobs();
+    Job job = new Job(this, dm, userId, rowsDataETag, deviceId, officeId, rows, outcomes,
+        resources);
+    jobs.put(job.getId(), job);
+
+    TableQueue queue = queues.get(dm.getTableId());
+    if (queue == null) {
+      TableQueue created = new TableQueue();
+      queue = queues.putIfAbsent(dm.getTableId(), created);
+      if (queue == null) {
+        queue = created;
+      }
+    }
+    queue.pending.add(job);
+    startWriter(queue);
+    return job;
+  }
+
+  /**
+   * @param id
+   * @return the job, or null if it is unknown or has been discarded
+   */
+  public Job getJob(String id) {
+    discardExpiredJobs();
+    return jobs.get(id);
+  }
+
+  private void startWriter(final TableQueue queue) {
+    if (!queue.draining.compareAndSet(false, true)) {
+      // the running writer will pick it up
+      return;
+    }
+    Runnable writer = new Runnable() {
+      @Override
+      public void run() {
+        drain(queue);
+      }
+    };
+    if (writers == null) {
+      writer.run();
+      return;
+    }
+    try {
+      writers.execute(writer);
+    } catch (RejectedExecutionException e) {
+      logger.warn("Write queue executor unavailable; writing on the request thread");
+      writer.run();
+    }
+  }
+
+  private void drain(TableQueue queue) {
+    do {
+      try {
+        Job first;
+        while ((first = queue.pending.poll()) != null) {
+          writeBatch(queue, first);
+        }
+      } finally {
+        queue.draining.set(false);
+      }
+      // a job queued after the last poll but before draining was cleared would otherwise wait
+    } while (!queue.pending.isEmpty() && queue.draining.compareAndSet(false, true));
+  }
+
+  /**
+   * Apply the first job, then further queued jobs while the batch is within its bounds, under
+   * one acquisition of the table lock.
+   */
+  private void writeBatch(TableQueue queue, Job first) {
+    List<Job> batch = new ArrayList<Job>();
+    List<String> dataETags = new ArrayList<String>();
+    List<Exception> failures = new ArrayList<Exception>();
+    RowWriteSession session = null;
+    SecurityContext original = SecurityContextHolder.getContext();
+    long startedAt = System.currentTimeMillis();
+    try {
+      SecurityContextHolder.setContext(first.securityContext);
+      try {
+        session = first.dm.openWriteSession();
+      } catch (Exception e) {
+        // could not open the session; nothing was written
+        batch.add(first);
+        dataETags.add(null);
+        failures.add(e);
+        return;
+      }
+      long rowCount = 0L;
+      Job job = first;
+      do {
+        batch.add(job);
+        job.state = State.RUNNING;
+        SecurityContextHolder.setContext(job.securityContext);
+        CountingIterator rows = new CountingIterator(job.rows.iterator());
+        try {
+          dataETags.add(job.dm.applyRows(session, job.rowsDataETag, job.deviceId, job.officeId,
+              rows, job.outcomes));
+          failures.add(null);
+        } catch (Exception e) {
+          dataETags.add(null);
+          failures.add(e);
+        }
+        rowCount += rows.count;
+      } while (batch.size() < maxBatch && rowCount < maxBatchRows
+          && System.currentTimeMillis() - startedAt < maxBatchMillis
+          && (job = queue.pending.poll()) != null);
+    } finally {
+      if (session != null) {
+        try {
+          session.close();
+        } catch (Exception e) {
+          logger.warn("Unable to release the lock on table " + first.getTableId(), e);
+        }
+      }
+      SecurityContextHolder.setContext(original);
+      // answered only once the lock is released and the changes announced
+      for (int i = 0; i < batch.size(); ++i) {
+        batch.get(i).finish(dataETags.get(i), failures.get(i));
+      }
+    }
+    if (batch.size() > 1) {
+      logger.info("Group commit of " + batch.size() + " changes to table " + first.getTableId()
+          + " in " + (System.currentTimeMillis() - startedAt) + " ms");
+    }
+  }
+
+  private static class CountingIterator implements Iterator<Row> {
+    private final Iterator<Row> rows;
+    long count = 0L;
+
+    CountingIterator(Iterator<Row> rows) {
+      this.rows = rows;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return rows.hasNext();
+    }
+
+    @Override
+    public Row next() {
+      Row row = rows.next();
+      ++count;
+      return row;
+    }
+  }
+
+  private void discardExpiredJobs() {
+    long cutoff = System.currentTimeMillis() - retainMillis;
+    for (Job job : jobs.values()) {
+      if (job.finishedAt != 0L && job.finishedAt < cutoff) {
+        logger.info("Discarding uncollected write job " + job.getId() + " for table "
+            + job.getTableId());
+        job.close();
+      }
+    }
+  }
+}
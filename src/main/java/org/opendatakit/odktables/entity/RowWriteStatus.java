@@ -0,0 +1,61 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables.entity;
+
+/**
+ * The state of a bulk row change that was accepted (202) rather than applied within the request.
+ * Poll statusUri until it answers with the RowOutcomeList.
+ */
+public class RowWriteStatus {
+
+  private String jobId;
+
+  /**
+   * QUEUED or RUNNING.
+   */
+  private String state;
+
+  private String statusUri;
+
+  public RowWriteStatus() {
+  }
+
+  public RowWriteStatus(String jobId, String state, String statusUri) {
+    this.jobId = jobId;
+    this.state = state;
+    this.statusUri = statusUri;
+  }
+
+  public String getJobId() {
+    return jobId;
+  }
+
+  public void setJobId(String jobId) {
+    this.jobId = jobId;
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  public void setState(String state) {
+    this.state = state;
+  }
+
+  public String getStatusUri() {
+    return statusUri;
+  }
+
+  public void setStatusUri(String statusUri) {
+    this.statusUri = statusUri;
+  }
+}
@@ -0,0 +1,45 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables.entity;
+
+/**
+ * A response entity whose "rows" array is produced while it is being written. The JSON writer emits
+ * the fields of {@link #getHeader()} and then the elements of {@link #getRows()} one at a time;
+ * writers that cannot stream serialize {@link #toEntity()} instead.
+ *
+ * @param <T>
+ *          the type of the elements of the rows array
+ */
+public interface StreamingRowList<T> {
+
+  /**
+   * @return the equivalent entity with every field set except the rows, which are left empty.
+   */
+  public Object getHeader();
+
+  /**
+   * @return the name of the field of the header that holds the streamed elements.
+   */
+  public String getRowsProperty();
+
+  /**
+   * @return the rows; may only be iterated once.
+   */
+  public Iterable<T> getRows();
+
+  /**
+   * Consume the rows and return the fully materialized entity.
+   *
+   * @return the equivalent entity
+   */
+  public Object toEntity();
+}
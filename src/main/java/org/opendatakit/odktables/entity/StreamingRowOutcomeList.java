@@ -0,0 +1,65 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables.entity;
+
+import java.util.ArrayList;
+
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcome;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
+
+/**
+ * A {@link RowOutcomeList} whose outcomes are read from their source (typically a spool file) only
+ * as they are written out.
+ */
+public class StreamingRowOutcomeList implements StreamingRowList<RowOutcome> {
+
+  private final Iterable<RowOutcome> outcomes;
+  private final String dataETag;
+  private final String tableUri;
+
+  public StreamingRowOutcomeList(Iterable<RowOutcome> outcomes, String dataETag,
+      String tableUri) {
+    this.outcomes = outcomes;
+    this.dataETag = dataETag;
+    this.tableUri = tableUri;
+  }
+
+  @Override
+  public RowOutcomeList getHeader() {
+    return newRowOutcomeList(new ArrayList<RowOutcome>());
+  }
+
+  @Override
+  public String getRowsProperty() {
+    return "rows";
+  }
+
+  @Override
+  public Iterable<RowOutcome> getRows() {
+    return outcomes;
+  }
+
+  @Override
+  public RowOutcomeList toEntity() {
+    ArrayList<RowOutcome> list = new ArrayList<RowOutcome>();
+    for (RowOutcome outcome : outcomes) {
+      list.add(outcome);
+    }
+    return newRowOutcomeList(list);
+  }
+
+  private RowOutcomeList newRowOutcomeList(ArrayList<RowOutcome> list) {
+    RowOutcomeList outcomeList = new RowOutcomeList(list, dataETag);
+    outcomeList.setTableUri(tableUri);
+    return outcomeList;
+  }
+}
@@ -0,0 +1,107 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables.entity;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
+import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
+
+/**
+ * A {@link RowResourceList} whose rows are mapped to {@link RowResource} objects only as they are
+ * written out. The JSON writer serializes the rows one at a time straight to the response stream;
+ * other writers call {@link #toEntity()} to obtain the ordinary entity.
+ *
+ * The row source may only be iterated once.
+ */
+public abstract class StreamingRowResourceList implements StreamingRowList<RowResource> {
+
+  private final Iterable<Row> rows;
+  private final String dataETag;
+  private final String tableUri;
+  private final String webSafeRefetchCursor;
+  private final String webSafeBackwardCursor;
+  private final String webSafeResumeCursor;
+  private final boolean hasMoreResults;
+  private final boolean hasPriorResults;
+
+  public StreamingRowResourceList(Iterable<Row> rows, String dataETag, String tableUri,
+      String webSafeRefetchCursor, String webSafeBackwardCursor, String webSafeResumeCursor,
+      boolean hasMoreResults, boolean hasPriorResults) {
+    this.rows = rows;
+    this.dataETag = dataETag;
+    this.tableUri = tableUri;
+    this.webSafeRefetchCursor = webSafeRefetchCursor;
+    this.webSafeBackwardCursor = webSafeBackwardCursor;
+    this.webSafeResumeCursor = webSafeResumeCursor;
+    this.hasMoreResults = hasMoreResults;
+    this.hasPriorResults = hasPriorResults;
+  }
+
+  /**
+   * Build the resource (selfUri etc.) for a single row.
+   *
+   * @param row
+   * @return the resource to serialize for this row
+   */
+  protected abstract RowResource toResource(Row row);
+
+  @Override
+  public RowResourceList getHeader() {
+    return newRowResourceList(new ArrayList<RowResource>());
+  }
+
+  @Override
+  public String getRowsProperty() {
+    return "rows";
+  }
+
+  /**
+   * @return the rows, mapped to resources as the iteration advances.
+   */
+  @Override
+  public Iterable<RowResource> getRows() {
+    return new Iterable<RowResource>() {
+      @Override
+      public Iterator<RowResource> iterator() {
+        final Iterator<Row> source = rows.iterator();
+        return new Iterator<RowResource>() {
+          @Override
+          public boolean hasNext() {
+            return source.hasNext();
+          }
+
+          @Override
+          public RowResource next() {
+            return toResource(source.next());
+          }
+        };
+      }
+    };
+  }
+
+  @Override
+  public RowResourceList toEntity() {
+    ArrayList<RowResource> resources = new ArrayList<RowResource>();
+    for (RowResource resource : getRows()) {
+      resources.add(resource);
+    }
+    return newRowResourceList(resources);
+  }
+
+  private RowResourceList newRowResourceList(ArrayList<RowResource> resources) {
+    return new RowResourceList(resources, dataETag, tableUri, webSafeRefetchCursor,
+        webSafeBackwardCursor, webSafeResumeCursor, hasMoreResults, hasPriorResults);
+  }
+}
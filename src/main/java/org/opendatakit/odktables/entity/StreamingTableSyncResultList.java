@@ -0,0 +1,53 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.odktables.entity;
+
+import java.util.ArrayList;
+
+/**
+ * A {@link TableSyncResultList} whose per-table results are computed while the response is being
+ * written, so that the first tables go out while later ones are still being read.
+ */
+public class StreamingTableSyncResultList implements StreamingRowList<TableSyncResult> {
+
+  private final Iterable<TableSyncResult> results;
+  private final String appLevelManifestETag;
+
+  public StreamingTableSyncResultList(Iterable<TableSyncResult> results,
+      String appLevelManifestETag) {
+    this.results = results;
+    this.appLevelManifestETag = appLevelManifestETag;
+  }
+
+  @Override
+  public TableSyncResultList getHeader() {
+    return new TableSyncResultList(new ArrayList<TableSyncResult>(), appLevelManifestETag);
+  }
+
+  @Override
+  public String getRowsProperty() {
+    return "tables";
+  }
+
+  @Override
+  public Iterable<TableSyncResult> getRows() {
+    return results;
+  }
+
+  @Override
+  public TableSyncResultList toEntity() {
+    ArrayList<TableSyncResult> list = new ArrayList<TableSyncResult>();
+    for (TableSyncResult result : results) {
+      list.add(result);
+    }
+    return new TableSyncResultList(list, appLevelManifestETag);
+  }
+}
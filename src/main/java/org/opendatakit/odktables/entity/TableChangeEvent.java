@@ -0,0 +1,73 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.odktables.entity;
+
+/**
+ * Notice that a change to the rows of a table has been committed. Clients that receive it can call
+ * getRowsSince or changeSets to fetch the change itself.
+ */
+public class TableChangeEvent {
+
+  private String appId;
+  private String tableId;
+
+  /**
+   * The dataETag of the table after the change.
+   */
+  private String dataETag;
+
+  /**
+   * The last sequence value written to the log table by the change; null if unknown.
+   */
+  private String sequenceValue;
+
+  public TableChangeEvent() {
+  }
+
+  public TableChangeEvent(String appId, String tableId, String dataETag, String sequenceValue) {
+    this.appId = appId;
+    this.tableId = tableId;
+    this.dataETag = dataETag;
+    this.sequenceValue = sequenceValue;
+  }
+
+  public String getAppId() {
+    return appId;
+  }
+
+  public void setAppId(String appId) {
+    this.appId = appId;
+  }
+
+  public String getTableId() {
+    return tableId;
+  }
+
+  public void setTableId(String tableId) {
+    this.tableId = tableId;
+  }
+
+  public String getDataETag() {
+    return dataETag;
+  }
+
+  public void setDataETag(String dataETag) {
+    this.dataETag = dataETag;
+  }
+
+  public String getSequenceValue() {
+    return sequenceValue;
+  }
+
+  public void setSequenceValue(String sequenceValue) {
+    this.sequenceValue = sequenceValue;
+  }
+}
@@ -0,0 +1,78 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.odktables.entity;
+
+import java.util.ArrayList;
+
+import org.opendatakit.aggregate.odktables.rest.entity.OdkTablesFileManifestEntry;
+
+/**
+ * Describes the current snapshot of a table. A new device downloads every page (each a
+ * gzip-compressed RowList, in rowId order) and then calls getRowsSince with the dataETag given
+ * here to pick up the changes made since.
+ */
+public class TableSnapshotManifest {
+
+  private String schemaETag;
+
+  /**
+   * The dataETag to sync from once the pages are loaded.
+   */
+  private String dataETag;
+
+  private int rowCount;
+
+  private ArrayList<OdkTablesFileManifestEntry> pages;
+
+  public TableSnapshotManifest() {
+    this.pages = new ArrayList<OdkTablesFileManifestEntry>();
+  }
+
+  public TableSnapshotManifest(String schemaETag, String dataETag, int rowCount,
+      ArrayList<OdkTablesFileManifestEntry> pages) {
+    this.schemaETag = schemaETag;
+    this.dataETag = dataETag;
+    this.rowCount = rowCount;
+    this.pages = pages;
+  }
+
+  public String getSchemaETag() {
+    return schemaETag;
+  }
+
+  public void setSchemaETag(String schemaETag) {
+    this.schemaETag = schemaETag;
+  }
+
+  public String getDataETag() {
+    return dataETag;
+  }
+
+  public void setDataETag(String dataETag) {
+    this.dataETag = dataETag;
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  public void setRowCount(int rowCount) {
+    this.rowCount = rowCount;
+  }
+
+  public ArrayList<OdkTablesFileManifestEntry> getPages() {
+    return pages;
+  }
+
+  public void setPages(ArrayList<OdkTablesFileManifestEntry> pages) {
+    this.pages = pages;
+  }
+}
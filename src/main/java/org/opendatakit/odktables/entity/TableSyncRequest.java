@@ -0,0 +1,66 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.odktables.entity;
+
+/**
+ * One table of a batch sync request: the table and the point from which the device wants its
+ * changes.
+ */
+public class TableSyncRequest {
+
+  /**
+   * The table to sync.
+   */
+  private String tableId;
+
+  /**
+   * The dataETag the device last synced to; null to fetch the table from the beginning.
+   */
+  private String dataETag;
+
+  /**
+   * A resume cursor from the previous page of this table, or null.
+   */
+  private String cursor;
+
+  public TableSyncRequest() {
+  }
+
+  public TableSyncRequest(String tableId, String dataETag, String cursor) {
+    this.tableId = tableId;
+    this.dataETag = dataETag;
+    this.cursor = cursor;
+  }
+
+  public String getTableId() {
+    return tableId;
+  }
+
+  public void setTableId(String tableId) {
+    this.tableId = tableId;
+  }
+
+  public String getDataETag() {
+    return dataETag;
+  }
+
+  public void setDataETag(String dataETag) {
+    this.dataETag = dataETag;
+  }
+
+  public String getCursor() {
+    return cursor;
+  }
+
+  public void setCursor(String cursor) {
+    this.cursor = cursor;
+  }
+}
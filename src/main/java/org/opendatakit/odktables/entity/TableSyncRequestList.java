@@ -0,0 +1,51 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.odktables.entity;
+
+import java.util.ArrayList;
+
+/**
+ * The body of a batch sync request.
+ */
+public class TableSyncRequestList {
+
+  private ArrayList<TableSyncRequest> tables;
+
+  /**
+   * The page size to use for each table; null lets the server choose.
+   */
+  private Integer fetchLimit;
+
+  public TableSyncRequestList() {
+    this.tables = new ArrayList<TableSyncRequest>();
+  }
+
+  public TableSyncRequestList(ArrayList<TableSyncRequest> tables, Integer fetchLimit) {
+    this.tables = tables;
+    this.fetchLimit = fetchLimit;
+  }
+
+  public ArrayList<TableSyncRequest> getTables() {
+    return tables;
+  }
+
+  public void setTables(ArrayList<TableSyncRequest> tables) {
+    this.tables = tables;
+  }
+
+  public Integer getFetchLimit() {
+    return fetchLimit;
+  }
+
+  public void setFetchLimit(Integer fetchLimit) {
+    this.fetchLimit = fetchLimit;
+  }
+}
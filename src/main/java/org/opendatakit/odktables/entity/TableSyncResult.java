@@ -0,0 +1,132 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.odktables.entity;
+
+import java.util.ArrayList;
+
+import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
+
+/**
+ * The changes to one table of a batch sync request, together with the table's current ETags. The
+ * paging fields have the same meaning as in a RowResourceList; a failure for this table alone is
+ * reported in {@link #getError()} with the remaining fields left null.
+ */
+public class TableSyncResult {
+
+  private String tableId;
+  private String schemaETag;
+  private String dataETag;
+  private String tableLevelManifestETag;
+  private ArrayList<RowResource> rows;
+  private String webSafeRefetchCursor;
+  private String webSafeBackwardCursor;
+  private String webSafeResumeCursor;
+  private boolean hasMoreResults;
+  private boolean hasPriorResults;
+  private String error;
+
+  public TableSyncResult() {
+    this.rows = new ArrayList<RowResource>();
+  }
+
+  public TableSyncResult(String tableId) {
+    this();
+    this.tableId = tableId;
+  }
+
+  public String getTableId() {
+    return tableId;
+  }
+
+  public void setTableId(String tableId) {
+    this.tableId = tableId;
+  }
+
+  public String getSchemaETag() {
+    return schemaETag;
+  }
+
+  public void setSchemaETag(String schemaETag) {
+    this.schemaETag = schemaETag;
+  }
+
+  public String getDataETag() {
+    return dataETag;
+  }
+
+  public void setDataETag(String dataETag) {
+    this.dataETag = dataETag;
+  }
+
+  public String getTableLevelManifestETag() {
+    return tableLevelManifestETag;
+  }
+
+  public void setTableLevelManifestETag(String tableLevelManifestETag) {
+    this.tableLevelManifestETag = tableLevelManifestETag;
+  }
+
+  public ArrayList<RowResource> getRows() {
+    return rows;
+  }
+
+  public void setRows(ArrayList<RowResource> rows) {
+    this.rows = rows;
+  }
+
+  public String getWebSafeRefetchCursor() {
+    return webSafeRefetchCursor;
+  }
+
+  public void setWebSafeRefetchCursor(String webSafeRefetchCursor) {
+    this.webSafeRefetchCursor = webSafeRefetchCursor;
+  }
+
+  public String getWebSafeBackwardCursor() {
+    return webSafeBackwardCursor;
+  }
+
+  public void setWebSafeBackwardCursor(String webSafeBackwardCursor) {
+    this.webSafeBackwardCursor = webSafeBackwardCursor;
+  }
+
+  public String getWebSafeResumeCursor() {
+    return webSafeResumeCursor;
+  }
+
+  public void setWebSafeResumeCursor(String webSafeResumeCursor) {
+    this.webSafeResumeCursor = webSafeResumeCursor;
+  }
+
+  public boolean isHasMoreResults() {
+    return hasMoreResults;
+  }
+
+  public void setHasMoreResults(boolean hasMoreResults) {
+    this.hasMoreResults = hasMoreResults;
+  }
+
+  public boolean isHasPriorResults() {
+    return hasPriorResults;
+  }
+
+  public void setHasPriorResults(boolean hasPriorResults) {
+    this.hasPriorResults = hasPriorResults;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  public void setError(String error) {
+    this.error = error;
+  }
+}
@@ -0,0 +1,48 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.odktables.entity;
+
+import java.util.ArrayList;
+
+/**
+ * The response to a batch sync request: one {@link TableSyncResult} per requested table, in
+ * request order.
+ */
+public class TableSyncResultList {
+
+  private String appLevelManifestETag;
+  private ArrayList<TableSyncResult> tables;
+
+  public TableSyncResultList() {
+    this.tables = new ArrayList<TableSyncResult>();
+  }
+
+  public TableSyncResultList(ArrayList<TableSyncResult> tables, String appLevelManifestETag) {
+    this.tables = tables;
+    this.appLevelManifestETag = appLevelManifestETag;
+  }
+
+  public String getAppLevelManifestETag() {
+    return appLevelManifestETag;
+  }
+
+  public void setAppLevelManifestETag(String appLevelManifestETag) {
+    this.appLevelManifestETag = appLevelManifestETag;
+  }
+
+  public ArrayList<TableSyncResult> getTables() {
+    return tables;
+  }
+
+  public void setTables(ArrayList<TableSyncResult> tables) {
+    this.tables = tables;
+  }
+}
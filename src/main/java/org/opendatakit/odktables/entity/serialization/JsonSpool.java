@@ -0,0 +1,129 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables.entity.serialization;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * A sequence of JSON values buffered in a temporary file rather than on the heap. Values are
+ * appended with {@link #add(Object)} or {@link #addArrayElements(JsonParser)} and then read back,
+ * once, through {@link #iterator()}. {@link #close()} removes the file.
+ *
+ * @param <T>
+ *          the type of the spooled values
+ */
+public class JsonSpool<T> implements Iterable<T>, Closeable {
+
+  private static final Log logger = LogFactory.getLog(JsonSpool.class);
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final ObjectWriter writer =
+      mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+  private final Class<T> type;
+  private final File file;
+  private JsonGenerator generator;
+  private MappingIterator<T> reader;
+  private int size = 0;
+
+  public JsonSpool(Class<T> type) throws IOException {
+    this.type = type;
+    this.file = File.createTempFile("odktables-spool", ".json");
+    this.generator = mapper.getFactory().createGenerator(file, JsonEncoding.UTF8);
+  }
+
+  /**
+   * Append a single value.
+   *
+   * @param value
+   * @throws IOException
+   */
+  public void add(T value) throws IOException {
+    writer.writeValue(generator, value);
+    ++size;
+  }
+
+  /**
+   * Copy the elements of the array the parser is positioned on without binding them. On return the
+   * parser is positioned on the closing END_ARRAY token.
+   *
+   * @param parser
+   *          a parser whose current token is START_ARRAY
+   * @throws IOException
+   */
+  public void addArrayElements(JsonParser parser) throws IOException {
+    if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+      throw new IOException("Expected a JSON array but found " + parser.getCurrentToken());
+    }
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      generator.copyCurrentStructure(parser);
+      ++size;
+    }
+  }
+
+  /**
+   * @return the number of values spooled so far
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Finish writing and iterate over the spooled values. Read failures surface as
+   * {@link UncheckedIOException} or Jackson's runtime mapping exceptions.
+   */
+  @Override
+  public Iterator<T> iterator() {
+    if (reader != null) {
+      throw new IllegalStateException("JsonSpool may only be iterated once");
+    }
+    try {
+      generator.close();
+      JsonParser parser = mapper.getFactory().createParser(file);
+      reader = mapper.readValues(parser, type);
+      return reader;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      generator.close();
+      if (reader != null) {
+        reader.close();
+      }
+    } catch (IOException e) {
+      logger.warn("Unable to close spool file " + file.getAbsolutePath(), e);
+    }
+    if (!file.delete() && file.exists()) {
+      logger.warn("Unable to delete spool file " + file.getAbsolutePath());
+    }
+  }
+}
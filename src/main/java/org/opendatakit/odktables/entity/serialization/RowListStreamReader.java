@@ -0,0 +1,239 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables.entity.serialization;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.ws.rs.core.MediaType;
+
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.aggregate.odktables.rest.entity.RowList;
+import org.opendatakit.odktables.exception.BadRowListException;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.RuntimeJsonMappingException;
+
+/**
+ * Incremental reader for a JSON or Smile {@link RowList}. The top-level fields (dataETag, deviceId,
+ * officeId) are available as soon as the reader is constructed; the rows are bound one at a time as
+ * {@link #getRows()} is iterated, so heap use does not grow with the size of the upload.
+ *
+ * The top-level fields are needed before any row can be applied. If the rows array arrives first
+ * it is copied, unbound, to a temporary file and read back from there.
+ */
+public class RowListStreamReader implements Closeable {
+
+  private static final ObjectMapper jsonMapper = new ObjectMapper();
+
+  private static final String ROWS = "rows";
+  private static final String DATA_ETAG = "dataETag";
+  private static final String DEVICE_ID = "deviceId";
+  private static final String OFFICE_ID = "officeId";
+
+  private final ObjectMapper mapper;
+  private final JsonParser parser;
+  private JsonSpool<Row> spool = null;
+  private boolean rowsPending = false;
+  private boolean iterated = false;
+
+  private boolean hasDataETag = false;
+  private String dataETag = null;
+  private boolean hasDeviceId = false;
+  private String deviceId = null;
+  private boolean hasOfficeId = false;
+  private String officeId = null;
+
+  /**
+   * Read the upload up to the point where the rows can be iterated.
+   *
+   * @param stream
+   *          the request body (already decompressed)
+   * @param mediaType
+   *          the Content-Type of the body; JSON unless it is Smile
+   * @throws IOException
+   *           if the body cannot be read
+   * @throws BadRowListException
+   *           if the body is not a well-formed RowList
+   */
+  public RowListStreamReader(InputStream stream, MediaType mediaType)
+      throws IOException, BadRowListException {
+    mapper = SimpleSmileMessageReaderWriter.isSmile(mediaType)
+        ? SimpleSmileMessageReaderWriter.mapper : jsonMapper;
+    parser = mapper.getFactory().createParser(stream);
+    try {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new JsonParseException(parser, "Expected a JSON RowList object");
+      }
+      readFields();
+    } catch (JsonProcessingException e) {
+      throw new BadRowListException("Malformed JSON RowList: " + e.getOriginalMessage(), e);
+    }
+  }
+
+  /**
+   * Read the remaining rows of the upload into a spool, so that a malformed or truncated body is
+   * detected before any of it is applied.
+   *
+   * @param rows
+   *          the spool to append the rows to
+   * @throws IOException
+   *           if the body or the spool cannot be read or written
+   * @throws BadRowListException
+   *           if the body is not a well-formed RowList
+   */
+  public void spoolRows(JsonSpool<Row> rows) throws IOException, BadRowListException {
+    Iterator<Row> source = getRows();
+    try {
+      while (source.hasNext()) {
+        rows.add(source.next());
+      }
+    } catch (JsonProcessingException e) {
+      throw new BadRowListException("Malformed JSON RowList: " + e.getOriginalMessage(), e);
+    } catch (UncheckedIOException e) {
+      if (e.getCause() instanceof JsonProcessingException) {
+        JsonProcessingException cause = (JsonProcessingException) e.getCause();
+        throw new BadRowListException("Malformed JSON RowList: " + cause.getOriginalMessage(),
+            cause);
+      }
+      throw e.getCause();
+    } catch (RuntimeJsonMappingException e) {
+      // a row read back from the spool (rows before the fields) that does not bind
+      throw new BadRowListException("Malformed JSON RowList: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Advance through top-level fields until the rows can be streamed directly (all other fields
+   * seen) or the end of the object is reached.
+   */
+  private void readFields() throws IOException {
+    JsonToken token;
+    while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      if (DATA_ETAG.equals(name)) {
+        dataETag = parser.getValueAsString();
+        hasDataETag = true;
+      } else if (DEVICE_ID.equals(name)) {
+        deviceId = parser.getValueAsString();
+        hasDeviceId = true;
+      } else if (OFFICE_ID.equals(name)) {
+        officeId = parser.getValueAsString();
+        hasOfficeId = true;
+      } else if (ROWS.equals(name)) {
+        if (parser.getCurrentToken() == JsonToken.VALUE_NULL) {
+          continue;
+        }
+        if (hasDataETag && hasDeviceId && hasOfficeId) {
+          // nothing left that the rows depend upon; bind them straight off the wire
+          rowsPending = true;
+          return;
+        }
+        spool = new JsonSpool<Row>(Row.class);
+        spool.addArrayElements(parser);
+      } else {
+        parser.skipChildren();
+      }
+    }
+    if (token != JsonToken.END_OBJECT) {
+      throw new JsonParseException(parser, "Malformed JSON RowList");
+    }
+  }
+
+  public String getDataETag() {
+    return dataETag;
+  }
+
+  public String getDeviceId() {
+    return deviceId;
+  }
+
+  public String getOfficeId() {
+    return officeId;
+  }
+
+  /**
+   * @return the uploaded rows, bound as the iteration advances. May only be iterated once. Read
+   *         failures surface as {@link UncheckedIOException}; use {@link #spoolRows(JsonSpool)}
+   *         to have a malformed body reported as a {@link BadRowListException}.
+   */
+  public Iterator<Row> getRows() {
+    if (iterated) {
+      throw new IllegalStateException("RowListStreamReader may only be iterated once");
+    }
+    iterated = true;
+    if (spool != null) {
+      return spool.iterator();
+    }
+    if (!rowsPending) {
+      return Collections.<Row> emptyIterator();
+    }
+    return new Iterator<Row>() {
+      private boolean done = false;
+      // true when the parser is positioned on the first token of the next row
+      private boolean ready = false;
+
+      @Override
+      public boolean hasNext() {
+        if (done) {
+          return false;
+        }
+        if (ready) {
+          return true;
+        }
+        try {
+          if (parser.nextToken() == JsonToken.END_ARRAY) {
+            done = true;
+            // consume any trailing fields so that the body is fully read
+            readFields();
+            return false;
+          }
+          ready = true;
+          return true;
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+
+      @Override
+      public Row next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        ready = false;
+        try {
+          return mapper.readValue(parser, Row.class);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    parser.close();
+    if (spool != null) {
+      spool.close();
+    }
+  }
+}
@@ -32,6 +32,7 @@ import javax.ws.rs.ext.MessageBodyWriter;
 import javax.ws.rs.ext.Provider;
 
 import org.opendatakit.aggregate.odktables.rest.ApiConstants;
+import org.opendatakit.odktables.entity.StreamingRowList;
 
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 
@@ -62,7 +63,11 @@ public class SimpleHTMLMessageWriter<T> implements MessageBodyWriter<T> {
       OutputStreamWriter w = new OutputStreamWriter(bas,
           Charset.forName(ApiConstants.UTF8_ENCODE));
       w.write("<html><head></head><body>");
-      w.write(mapper.writeValueAsString(o));
+      if (o instanceof StreamingRowList) {
+        w.write(mapper.writeValueAsString(((StreamingRowList<?>) o).toEntity()));
+      } else {
+        w.write(mapper.writeValueAsString(o));
+      }
       w.write("</body></html>");
       w.flush();
       w.close();
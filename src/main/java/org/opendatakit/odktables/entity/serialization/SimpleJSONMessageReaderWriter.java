@@ -14,12 +14,10 @@
 
 package org.opendatakit.odktables.entity.serialization;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
 import java.nio.charset.Charset;
@@ -37,6 +35,8 @@ import javax.ws.rs.ext.Provider;
 
 import org.opendatakit.aggregate.odktables.rest.ApiConstants;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 @Consumes({MediaType.APPLICATION_JSON})
@@ -46,22 +46,19 @@ public class SimpleJSONMessageReaderWriter<T>
     implements MessageBodyReader<T>, MessageBodyWriter<T> {
 
   private static final ObjectMapper mapper = new ObjectMapper();
+  private static final StreamingRowListWriter entityWriter = new StreamingRowListWriter(mapper);
   private static final String DEFAULT_ENCODING = "utf-8";
 
-  public static class JSONWrapper {
-    byte[] buffer;
-
-    public JSONWrapper(byte[] buffer) {
-      this.buffer = buffer;
-    }
-  };
-
   @Context
   ServletContext context;
 
   @Override
   public boolean isReadable(Class<?> type, Type genericType, Annotation annotations[],
       MediaType mediaType) {
+    // raw streams are left to Jersey so that resources can parse them incrementally
+    if (InputStream.class.isAssignableFrom(type)) {
+      return false;
+    }
     return mediaType.getType().equals(MediaType.APPLICATION_JSON_TYPE.getType())
         && mediaType.getSubtype().equals(MediaType.APPLICATION_JSON_TYPE.getSubtype());
   }
@@ -101,27 +98,16 @@ public class SimpleJSONMessageReaderWriter<T>
       }
 
       /**
-       * This is an optimization because of the weird way Wink handles request/response processing.
-       * I'd like to do post-processing on the constructed response, but am forced to do
-       * pre-processing. We only do this for JSON response path.
-       */
-      byte[] bytes = null;
-
-      // write object to a byte array
-      ByteArrayOutputStream bas = new ByteArrayOutputStream(8192);
-      OutputStreamWriter w = new OutputStreamWriter(bas, Charset.forName(ApiConstants.UTF8_ENCODE));
-      mapper.writeValue(w, o);
-      // get the array
-      bytes = bas.toByteArray();
-
-      /**
-       * OK. At this point, bytes[] holds the serialized response entity.
+       * Headers must be in place before the first byte is written; the entity is then serialized
+       * directly onto the response stream rather than buffered in memory.
        */
       map.putSingle(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION);
       map.putSingle("Access-Control-Allow-Origin", "*");
       map.putSingle("Access-Control-Allow-Credentials", "true");
 
-      rawStream.write(bytes);
+      JsonGenerator generator = mapper.getFactory().createGenerator(rawStream, JsonEncoding.UTF8);
+      entityWriter.writeValue(generator, o);
+      generator.flush();
       rawStream.flush();
       rawStream.close();
 
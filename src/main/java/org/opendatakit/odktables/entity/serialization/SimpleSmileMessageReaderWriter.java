@@ -0,0 +1,113 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables.entity.serialization;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import org.opendatakit.aggregate.odktables.rest.ApiConstants;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+/**
+ * Binary (Smile) encoding of the same Jackson entity model as {@link SimpleJSONMessageReaderWriter}.
+ * Shared-name and shared-string back-references are enabled, so the column names and repeated
+ * values in a list of rows are sent once and then referenced.
+ */
+@Consumes({SimpleSmileMessageReaderWriter.MEDIA_APPLICATION_SMILE})
+@Produces({SimpleSmileMessageReaderWriter.MEDIA_APPLICATION_SMILE})
+@Provider
+public class SimpleSmileMessageReaderWriter<T>
+    implements MessageBodyReader<T>, MessageBodyWriter<T> {
+
+  public static final String MEDIA_APPLICATION_SMILE = "application/x-jackson-smile";
+  public static final MediaType MEDIA_APPLICATION_SMILE_TYPE =
+      MediaType.valueOf(MEDIA_APPLICATION_SMILE);
+
+  static final ObjectMapper mapper = new ObjectMapper(
+      new SmileFactory().enable(SmileGenerator.Feature.CHECK_SHARED_NAMES)
+          .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES));
+  private static final StreamingRowListWriter entityWriter = new StreamingRowListWriter(mapper);
+
+  static boolean isSmile(MediaType mediaType) {
+    return mediaType != null
+        && mediaType.getType().equals(MEDIA_APPLICATION_SMILE_TYPE.getType())
+        && mediaType.getSubtype().equals(MEDIA_APPLICATION_SMILE_TYPE.getSubtype());
+  }
+
+  @Override
+  public boolean isReadable(Class<?> type, Type genericType, Annotation annotations[],
+      MediaType mediaType) {
+    // raw streams are left to Jersey so that resources can parse them incrementally
+    if (InputStream.class.isAssignableFrom(type)) {
+      return false;
+    }
+    return isSmile(mediaType);
+  }
+
+  @Override
+  public boolean isWriteable(Class<?> type, Type genericType, Annotation annotations[],
+      MediaType mediaType) {
+    return isSmile(mediaType);
+  }
+
+  @Override
+  public T readFrom(Class<T> aClass, Type genericType, Annotation[] annotations,
+      MediaType mediaType, MultivaluedMap<String, String> map, InputStream stream)
+      throws IOException, WebApplicationException {
+    try {
+      return mapper.readValue(stream, aClass);
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public void writeTo(T o, Class<?> aClass, Type type, Annotation[] annotations,
+      MediaType mediaType, MultivaluedMap<String, Object> map, OutputStream rawStream)
+      throws IOException, WebApplicationException {
+    try {
+      map.putSingle(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION);
+      map.putSingle("Access-Control-Allow-Origin", "*");
+      map.putSingle("Access-Control-Allow-Credentials", "true");
+
+      JsonGenerator generator = mapper.getFactory().createGenerator(rawStream);
+      entityWriter.writeValue(generator, o);
+      generator.flush();
+      rawStream.flush();
+      rawStream.close();
+
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public long getSize(T arg0, Class<?> arg1, Type arg2, Annotation[] arg3, MediaType arg4) {
+    return -1;
+  }
+}
@@ -36,6 +36,7 @@ import javax.ws.rs.ext.MessageBodyWriter;
 import javax.ws.rs.ext.Provider;
 
 import org.opendatakit.aggregate.odktables.rest.ApiConstants;
+import org.opendatakit.odktables.entity.StreamingRowList;
 
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 
@@ -92,7 +93,11 @@ public class SimpleXMLMessageReaderWriter<T> implements MessageBodyReader<T>,
       ByteArrayOutputStream bas = new ByteArrayOutputStream(8192);
       OutputStreamWriter w = new OutputStreamWriter(bas,
           Charset.forName(ApiConstants.UTF8_ENCODE));
-      mapper.writeValue(w, o);
+      if (o instanceof StreamingRowList) {
+        mapper.writeValue(w, ((StreamingRowList<?>) o).toEntity());
+      } else {
+        mapper.writeValue(w, o);
+      }
       // get the array and compute md5 hash
       byte[] bytes = bas.toByteArray();
       map.putSingle(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION);
@@ -0,0 +1,87 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables.entity.serialization;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.opendatakit.odktables.entity.StreamingRowList;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Writes an entity onto a {@link JsonGenerator} of any Jackson format, emitting the rows of a
+ * {@link StreamingRowList} one at a time as they are produced.
+ */
+class StreamingRowListWriter {
+
+  private final ObjectMapper mapper;
+  // do not flush the servlet stream after every row of a streamed list
+  private final ObjectWriter rowWriter;
+
+  StreamingRowListWriter(ObjectMapper mapper) {
+    this.mapper = mapper;
+    this.rowWriter = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+  }
+
+  void writeValue(JsonGenerator generator, Object o) throws IOException {
+    if (o instanceof StreamingRowList) {
+      writeStreaming(generator, (StreamingRowList<?>) o);
+    } else {
+      rowWriter.writeValue(generator, o);
+    }
+  }
+
+  /**
+   * Write the non-row fields of the list as usual, then emit each row as it is produced by the row
+   * source so that the full list is never held in memory.
+   *
+   * @param generator
+   * @param list
+   * @throws IOException
+   */
+  private void writeStreaming(JsonGenerator generator, StreamingRowList<?> list)
+      throws IOException {
+    ObjectNode header = mapper.valueToTree(list.getHeader());
+    boolean wroteRows = false;
+    generator.writeStartObject();
+    Iterator<Map.Entry<String, JsonNode>> fields = header.fields();
+    while (fields.hasNext()) {
+      Map.Entry<String, JsonNode> field = fields.next();
+      if (list.getRowsProperty().equals(field.getKey())) {
+        writeRows(generator, list);
+        wroteRows = true;
+      } else {
+        generator.writeFieldName(field.getKey());
+        mapper.writeTree(generator, field.getValue());
+      }
+    }
+    if (!wroteRows) {
+      writeRows(generator, list);
+    }
+    generator.writeEndObject();
+  }
+
+  private void writeRows(JsonGenerator generator, StreamingRowList<?> list) throws IOException {
+    generator.writeArrayFieldStart(list.getRowsProperty());
+    for (Object row : list.getRows()) {
+      rowWriter.writeValue(generator, row);
+    }
+    generator.writeEndArray();
+  }
+}
@@ -0,0 +1,37 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables.exception;
+
+/**
+ * The body of a change to the rows of a table is not a well-formed RowList.
+ */
+public class BadRowListException extends ODKTablesException {
+
+  private static final long serialVersionUID = 1L;
+
+  public BadRowListException() {
+    super();
+  }
+
+  public BadRowListException(String message) {
+    super(message);
+  }
+
+  public BadRowListException(Throwable cause) {
+    super(cause);
+  }
+
+  public BadRowListException(String message, Throwable cause) {
+    super(message, cause);
+  }
+
+}
@@ -0,0 +1,151 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables.relation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.ermodel.Entity;
+import org.opendatakit.ermodel.Query;
+import org.opendatakit.ermodel.Relation;
+import org.opendatakit.persistence.DataField;
+import org.opendatakit.persistence.DataField.DataType;
+import org.opendatakit.persistence.DataField.IndexType;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+
+/**
+ * Counts the references to each piece of content in a content-addressed
+ * {@link org.opendatakit.datamodel.BlobStore}. Identical content is stored
+ * once; the content is removed when its count drops to zero.
+ *
+ * Counts are only changed while holding the store's lock for the key.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public class DbBlobStoreReference extends Relation {
+
+  private DbBlobStoreReference(String namespace, String tableName, List<DataField> fields,
+      CallingContext cc) throws ODKDatastoreException {
+    super(namespace, tableName, fields, cc);
+  }
+
+  private static final String RELATION_NAME = "BLOB_STORE_REFERENCE";
+
+  private static final DataField BLOB_KEY = new DataField("BLOB_KEY", DataType.STRING, false,
+      255L).setIndexable(IndexType.HASH);
+  private static final DataField REF_COUNT = new DataField("REF_COUNT", DataType.INTEGER, false);
+  private static final DataField CONTENT_LENGTH = new DataField("CONTENT_LENGTH",
+      DataType.INTEGER, false);
+  private static final DataField CONTENT_HASH = new DataField("CONTENT_HASH", DataType.STRING,
+      false);
+
+  private static final List<DataField> dataFields;
+  static {
+    dataFields = new ArrayList<DataField>();
+    dataFields.add(BLOB_KEY);
+    dataFields.add(REF_COUNT);
+    dataFields.add(CONTENT_LENGTH);
+    dataFields.add(CONTENT_HASH);
+  }
+
+  public static class DbBlobStoreReferenceEntity {
+    Entity e;
+
+    public DbBlobStoreReferenceEntity(Entity e) {
+      this.e = e;
+    }
+
+    public void put(CallingContext cc) throws ODKDatastoreException {
+      e.put(cc);
+    }
+
+    public void delete(CallingContext cc) throws ODKDatastoreException {
+      e.delete(cc);
+    }
+
+    // Accessors
+
+    public String getBlobKey() {
+      return e.getString(BLOB_KEY);
+    }
+
+    public void setBlobKey(String value) {
+      e.set(BLOB_KEY, value);
+    }
+
+    public Long getRefCount() {
+      return e.getLong(REF_COUNT);
+    }
+
+    public void setRefCount(Long value) {
+      e.set(REF_COUNT, value);
+    }
+
+    public Long getContentLength() {
+      return e.getLong(CONTENT_LENGTH);
+    }
+
+    public void setContentLength(Long value) {
+      e.set(CONTENT_LENGTH, value);
+    }
+
+    public String getContentHash() {
+      return e.getString(CONTENT_HASH);
+    }
+
+    public void setContentHash(String value) {
+      e.set(CONTENT_HASH, value);
+    }
+  }
+
+  private static DbBlobStoreReference relation = null;
+
+  public static synchronized final DbBlobStoreReference getRelation(CallingContext cc)
+      throws ODKDatastoreException {
+    if (relation == null) {
+      relation = new DbBlobStoreReference(RUtil.NAMESPACE, RELATION_NAME, dataFields, cc);
+    }
+    return relation;
+  }
+
+  /**
+   * Create a new row in this relation. The row is not yet persisted.
+   *
+   * @param cc
+   * @return
+   * @throws ODKDatastoreException
+   */
+  public static DbBlobStoreReferenceEntity createNewEntity(CallingContext cc)
+      throws ODKDatastoreException {
+    return new DbBlobStoreReferenceEntity(getRelation(cc).newEntity(cc));
+  }
+
+  /**
+   * @param blobKey
+   * @param cc
+   * @return the reference count record of the content, or null if it is not
+   *         stored
+   * @throws ODKDatastoreException
+   */
+  public static DbBlobStoreReferenceEntity getReference(String blobKey, CallingContext cc)
+      throws ODKDatastoreException {
+    Query query = getRelation(cc).query("DbBlobStoreReference.getReference", cc);
+    query.equal(BLOB_KEY, blobKey);
+    List<Entity> list = query.execute();
+    if (list.isEmpty()) {
+      return null;
+    }
+    return new DbBlobStoreReferenceEntity(list.get(0));
+  }
+}
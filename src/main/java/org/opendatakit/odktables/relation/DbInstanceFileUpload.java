@@ -0,0 +1,235 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables.relation;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.ermodel.Entity;
+import org.opendatakit.ermodel.Query;
+import org.opendatakit.ermodel.Relation;
+import org.opendatakit.persistence.DataField;
+import org.opendatakit.persistence.DataField.DataType;
+import org.opendatakit.persistence.DataField.IndexType;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+import org.opendatakit.persistence.exception.ODKEntityNotFoundException;
+
+/**
+ * Tracks the resumable uploads of instance attachments that are in progress.
+ * The id of an upload is also the uri its content is staged under in the
+ * instance file blob relations of the table; the received bytes are kept there
+ * as they arrive, and UPLOAD_OFFSET counts them.
+ *
+ * Only the user who started an upload (CREATOR) may resume or abandon it.
+ * An upload is removed once its content is attached to the row, when it is
+ * abandoned, or after it expires.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public class DbInstanceFileUpload extends Relation {
+
+  private DbInstanceFileUpload(String namespace, String tableName, List<DataField> fields,
+      CallingContext cc) throws ODKDatastoreException {
+    super(namespace, tableName, fields, cc);
+  }
+
+  private static final String RELATION_NAME = "INSTANCE_FILE_UPLOAD";
+
+  private static final DataField TABLE_ID = new DataField("TABLE_ID", DataType.STRING, false,
+      80L).setIndexable(IndexType.HASH);
+  private static final DataField ROW_ID = new DataField("ROW_ID", DataType.STRING, false);
+  private static final DataField FILE_PATH = new DataField("FILE_PATH", DataType.STRING, false,
+      5120L);
+  private static final DataField CONTENT_TYPE = new DataField("CONTENT_TYPE", DataType.STRING,
+      false);
+  private static final DataField CONTENT_HASH = new DataField("CONTENT_HASH", DataType.STRING,
+      false);
+  private static final DataField UPLOAD_LENGTH = new DataField("UPLOAD_LENGTH", DataType.INTEGER,
+      false);
+  private static final DataField UPLOAD_OFFSET = new DataField("UPLOAD_OFFSET", DataType.INTEGER,
+      false);
+  private static final DataField CREATOR = new DataField("CREATOR", DataType.STRING, false);
+  private static final DataField EXPIRES = new DataField("EXPIRES", DataType.DATETIME, false)
+      .setIndexable(IndexType.ORDERED);
+
+  private static final List<DataField> dataFields;
+  static {
+    dataFields = new ArrayList<DataField>();
+    dataFields.add(TABLE_ID);
+    dataFields.add(ROW_ID);
+    dataFields.add(FILE_PATH);
+    dataFields.add(CONTENT_TYPE);
+    dataFields.add(CONTENT_HASH);
+    dataFields.add(UPLOAD_LENGTH);
+    dataFields.add(UPLOAD_OFFSET);
+    dataFields.add(CREATOR);
+    dataFields.add(EXPIRES);
+  }
+
+  public static class DbInstanceFileUploadEntity {
+    Entity e;
+
+    public DbInstanceFileUploadEntity(Entity e) {
+      this.e = e;
+    }
+
+    public void put(CallingContext cc) throws ODKDatastoreException {
+      e.put(cc);
+    }
+
+    public void delete(CallingContext cc) throws ODKDatastoreException {
+      e.delete(cc);
+    }
+
+    // Accessors
+
+    public String getId() {
+      return e.getId();
+    }
+
+    public String getTableId() {
+      return e.getString(TABLE_ID);
+    }
+
+    public void setTableId(String value) {
+      e.set(TABLE_ID, value);
+    }
+
+    public String getRowId() {
+      return e.getString(ROW_ID);
+    }
+
+    public void setRowId(String value) {
+      e.set(ROW_ID, value);
+    }
+
+    public String getFilePath() {
+      return e.getString(FILE_PATH);
+    }
+
+    public void setFilePath(String value) {
+      e.set(FILE_PATH, value);
+    }
+
+    public String getContentType() {
+      return e.getString(CONTENT_TYPE);
+    }
+
+    public void setContentType(String value) {
+      e.set(CONTENT_TYPE, value);
+    }
+
+    /**
+     * @return the md5 hash uri the completed content must match
+     */
+    public String getContentHash() {
+      return e.getString(CONTENT_HASH);
+    }
+
+    public void setContentHash(String value) {
+      e.set(CONTENT_HASH, value);
+    }
+
+    public Long getUploadLength() {
+      return e.getLong(UPLOAD_LENGTH);
+    }
+
+    public void setUploadLength(Long value) {
+      e.set(UPLOAD_LENGTH, value);
+    }
+
+    public Long getUploadOffset() {
+      return e.getLong(UPLOAD_OFFSET);
+    }
+
+    public void setUploadOffset(Long value) {
+      e.set(UPLOAD_OFFSET, value);
+    }
+
+    /**
+     * @return the odkTablesUserId of the user who started the upload
+     */
+    public String getCreator() {
+      return e.getString(CREATOR);
+    }
+
+    public void setCreator(String value) {
+      e.set(CREATOR, value);
+    }
+
+    public Date getExpires() {
+      return e.getDate(EXPIRES);
+    }
+
+    public void setExpires(Date value) {
+      e.set(EXPIRES, value);
+    }
+  }
+
+  private static DbInstanceFileUpload relation = null;
+
+  public static synchronized final DbInstanceFileUpload getRelation(CallingContext cc)
+      throws ODKDatastoreException {
+    if (relation == null) {
+      relation = new DbInstanceFileUpload(RUtil.NAMESPACE, RELATION_NAME, dataFields, cc);
+    }
+    return relation;
+  }
+
+  /**
+   * Create a new row in this relation. The row is not yet persisted.
+   *
+   * @param cc
+   * @return
+   * @throws ODKDatastoreException
+   */
+  public static DbInstanceFileUploadEntity createNewEntity(CallingContext cc)
+      throws ODKDatastoreException {
+    return new DbInstanceFileUploadEntity(getRelation(cc).newEntity(cc));
+  }
+
+  /**
+   * @param uploadId
+   * @param cc
+   * @return the upload, or null if there is none with that id
+   * @throws ODKDatastoreException
+   */
+  public static DbInstanceFileUploadEntity getUpload(String uploadId, CallingContext cc)
+      throws ODKDatastoreException {
+    try {
+      return new DbInstanceFileUploadEntity(getRelation(cc).getEntity(uploadId, cc));
+    } catch (ODKEntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param now
+   * @param cc
+   * @return the uploads that expired before now
+   * @throws ODKDatastoreException
+   */
+  public static List<DbInstanceFileUploadEntity> getExpiredUploads(Date now, CallingContext cc)
+      throws ODKDatastoreException {
+    Query query = getRelation(cc).query("DbInstanceFileUpload.getExpiredUploads", cc);
+    query.lessThan(EXPIRES, now);
+    List<Entity> list = query.execute();
+    List<DbInstanceFileUploadEntity> results = new ArrayList<DbInstanceFileUploadEntity>();
+    for (Entity e : list) {
+      results.add(new DbInstanceFileUploadEntity(e));
+    }
+    return results;
+  }
+}
@@ -0,0 +1,160 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables.relation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.ermodel.Entity;
+import org.opendatakit.ermodel.Query;
+import org.opendatakit.ermodel.Relation;
+import org.opendatakit.persistence.DataField;
+import org.opendatakit.persistence.DataField.DataType;
+import org.opendatakit.persistence.DataField.IndexType;
+import org.opendatakit.persistence.Query.Direction;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+
+/**
+ * Remembers where in a {@link DbLogTable} a dataETag was once found, after log
+ * compaction has removed the log entries that carried it. A client that syncs
+ * from such a dataETag then resumes from this sequence value instead of from
+ * the beginning of the log.
+ *
+ * A dataETag may have several checkpoints; the highest sequence value wins.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public class DbLogCheckpoint extends Relation {
+
+  private DbLogCheckpoint(String namespace, String tableName, List<DataField> fields,
+      CallingContext cc) throws ODKDatastoreException {
+    super(namespace, tableName, fields, cc);
+  }
+
+  private static final String RELATION_NAME = "LOG_CHECKPOINT";
+
+  private static final DataField TABLE_ID = new DataField("TABLE_ID", DataType.STRING, false)
+      .setIndexable(IndexType.HASH);
+  private static final DataField DATA_ETAG = new DataField("DATA_ETAG", DataType.STRING, false)
+      .setIndexable(IndexType.HASH);
+  // the highest _SEQUENCE_VALUE of the removed log entries with this dataETag
+  private static final DataField SEQUENCE_VALUE = new DataField("SEQUENCE_VALUE",
+      DataType.STRING, false);
+
+  private static final List<DataField> dataFields;
+  static {
+    dataFields = new ArrayList<DataField>();
+    dataFields.add(TABLE_ID);
+    dataFields.add(DATA_ETAG);
+    dataFields.add(SEQUENCE_VALUE);
+  }
+
+  public static class DbLogCheckpointEntity {
+    Entity e;
+
+    public DbLogCheckpointEntity(Entity e) {
+      this.e = e;
+    }
+
+    public void put(CallingContext cc) throws ODKDatastoreException {
+      e.put(cc);
+    }
+
+    // Accessors
+
+    public String getTableId() {
+      return e.getString(TABLE_ID);
+    }
+
+    public void setTableId(String value) {
+      e.set(TABLE_ID, value);
+    }
+
+    public String getDataETag() {
+      return e.getString(DATA_ETAG);
+    }
+
+    public void setDataETag(String value) {
+      e.set(DATA_ETAG, value);
+    }
+
+    public String getSequenceValue() {
+      return e.getString(SEQUENCE_VALUE);
+    }
+
+    public void setSequenceValue(String value) {
+      e.set(SEQUENCE_VALUE, value);
+    }
+  }
+
+  private static DbLogCheckpoint relation = null;
+
+  public static synchronized final DbLogCheckpoint getRelation(CallingContext cc)
+      throws ODKDatastoreException {
+    if (relation == null) {
+      relation = new DbLogCheckpoint(RUtil.NAMESPACE, RELATION_NAME, dataFields, cc);
+    }
+    return relation;
+  }
+
+  /**
+   * Create a new row in this relation. The row is not yet persisted.
+   *
+   * @param cc
+   * @return
+   * @throws ODKDatastoreException
+   */
+  public static DbLogCheckpointEntity createNewEntity(CallingContext cc)
+      throws ODKDatastoreException {
+    return new DbLogCheckpointEntity(getRelation(cc).newEntity(cc));
+  }
+
+  /**
+   * @param tableId
+   * @param dataETag
+   * @param cc
+   * @return the sequence value of the dataETag's removed log entries, or null
+   *         if none have been removed
+   * @throws ODKDatastoreException
+   */
+  public static String getSequenceValue(String tableId, String dataETag, CallingContext cc)
+      throws ODKDatastoreException {
+    Query query = getRelation(cc).query("DbLogCheckpoint.getSequenceValue", cc);
+    query.equal(TABLE_ID, tableId);
+    query.equal(DATA_ETAG, dataETag);
+    query.addSort(SEQUENCE_VALUE, Direction.DESCENDING);
+    List<Entity> list = query.execute();
+    if (list.isEmpty()) {
+      return null;
+    }
+    return new DbLogCheckpointEntity(list.get(0)).getSequenceValue();
+  }
+
+  /**
+   * Delete the checkpoints of a table, e.g., when it is deleted.
+   *
+   * @param tableId
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public static void deleteForTable(String tableId, CallingContext cc)
+      throws ODKDatastoreException {
+    Query query = getRelation(cc).query("DbLogCheckpoint.deleteForTable", cc);
+    query.equal(TABLE_ID, tableId);
+    List<Entity> list = query.execute();
+    if (!list.isEmpty()) {
+      Relation.deleteEntities(list, cc);
+    }
+  }
+}
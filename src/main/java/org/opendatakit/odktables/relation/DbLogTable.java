@@ -94,6 +94,9 @@ public class DbLogTable extends Relation {
           "DEVICE_ID", DataType.STRING, true);
   public static final DataField OFFICE_ID = new DataField(
           "OFFICE_ID", DataType.STRING, true);
+  // SHA-256 (hex) of the content of the row, as computed by RowContentHash.
+  // null for rows written before this column existed.
+  public static final DataField ROW_HASH = new DataField("_ROW_HASH", DataType.STRING, true, 64L);
 
   private static final List<DataField> dataFields;
   static {
@@ -118,6 +121,15 @@ public class DbLogTable extends Relation {
     dataFields.add(SAVEPOINT_CREATOR);
     dataFields.add(DEVICE_ID);
     dataFields.add(OFFICE_ID);
+    dataFields.add(ROW_HASH);
+  }
+
+  // time-range queries filter on a timestamp and page in (timestamp, sequence value) order
+  private static final List<String[]> compositeIndexes;
+  static {
+    compositeIndexes = new ArrayList<String[]>();
+    compositeIndexes.add(new String[] { LAST_UPDATE_DATE_COLUMN_NAME, SEQUENCE_VALUE.getName() });
+    compositeIndexes.add(new String[] { SAVEPOINT_TIMESTAMP.getName(), SEQUENCE_VALUE.getName() });
   }
 
   private static final EntityConverter converter = new EntityConverter();
@@ -143,4 +155,14 @@ public class DbLogTable extends Relation {
     return Collections.unmodifiableList(dataFields);
   }
 
+  @Override
+  protected List<String[]> getCompositeIndexes() {
+    return Collections.unmodifiableList(compositeIndexes);
+  }
+
+  @Override
+  protected List<String> getUpgradeColumns() {
+    return Collections.singletonList(ROW_HASH.getName());
+  }
+
 }
@@ -94,6 +94,9 @@ public class DbTable extends Relation {
           "DEVICE_ID", DataType.STRING, true);
   public static final DataField OFFICE_ID = new DataField(
           "OFFICE_ID", DataType.STRING, true);
+  // SHA-256 (hex) of the content of the row, as computed by RowContentHash.
+  // null for rows written before this column existed.
+  public static final DataField ROW_HASH = new DataField("_ROW_HASH", DataType.STRING, true, 64L);
 
   private static final List<DataField> dataFields;
   static {
@@ -116,6 +119,7 @@ public class DbTable extends Relation {
     dataFields.add(SAVEPOINT_CREATOR);
     dataFields.add(DEVICE_ID);
     dataFields.add(OFFICE_ID);
+    dataFields.add(ROW_HASH);
   }
 
   private static final EntityConverter converter = new EntityConverter();
@@ -167,4 +171,9 @@ public class DbTable extends Relation {
     return entities;
   }
 
+  @Override
+  protected List<String> getUpgradeColumns() {
+    return Collections.singletonList(ROW_HASH.getName());
+  }
+
 }
\ No newline at end of file
@@ -0,0 +1,286 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables.relation;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.ermodel.BlobEntitySet;
+import org.opendatakit.ermodel.Entity;
+import org.opendatakit.ermodel.Relation;
+import org.opendatakit.odktables.relation.DbTableSnapshotPage.DbTableSnapshotPageEntity;
+import org.opendatakit.persistence.DataField;
+import org.opendatakit.persistence.DataField.DataType;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+import org.opendatakit.persistence.exception.ODKEntityNotFoundException;
+
+/**
+ * The current snapshot of each table: the non-deleted rows of the table as of
+ * DATA_ETAG, stored as the {@link DbTableSnapshotPage}s of that dataETag. The
+ * TableId is the PK for this table.
+ * <p>
+ * A snapshot is replaced by first writing the pages of the new one, then this
+ * record, and only then marking the pages of the old one as superseded, so
+ * this record always names a complete set of pages. Superseded pages are
+ * removed once they have been superseded for long enough that no download of
+ * them can still be in progress.
+ * <p>
+ * A snapshot may include rows in a state later than DATA_ETAG if they were
+ * changed while it was being built. Those rows are returned again by
+ * getRowsSince(DATA_ETAG), so a device that loads the snapshot and then syncs
+ * from DATA_ETAG ends with the current state of the table.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public class DbTableSnapshot extends Relation {
+
+  private DbTableSnapshot(String namespace, String tableName, List<DataField> fields,
+      CallingContext cc) throws ODKDatastoreException {
+    super(namespace, tableName, fields, cc);
+  }
+
+  private static final String RELATION_NAME = "TABLE_SNAPSHOT";
+
+  private static final DataField SCHEMA_ETAG = new DataField("SCHEMA_ETAG", DataType.STRING,
+      false);
+  private static final DataField DATA_ETAG = new DataField("DATA_ETAG", DataType.STRING, false);
+  // the highest _SEQUENCE_VALUE of the log when the snapshot was started; null if it was empty
+  private static final DataField SEQUENCE_VALUE = new DataField("SEQUENCE_VALUE",
+      DataType.STRING, true);
+  private static final DataField ROW_COUNT = new DataField("ROW_COUNT", DataType.INTEGER, false);
+  private static final DataField PAGE_COUNT = new DataField("PAGE_COUNT", DataType.INTEGER,
+      false);
+
+  private static final List<DataField> dataFields;
+  static {
+    dataFields = new ArrayList<DataField>();
+    dataFields.add(SCHEMA_ETAG);
+    dataFields.add(DATA_ETAG);
+    dataFields.add(SEQUENCE_VALUE);
+    dataFields.add(ROW_COUNT);
+    dataFields.add(PAGE_COUNT);
+  }
+
+  public static class DbTableSnapshotEntity {
+    Entity e;
+
+    public DbTableSnapshotEntity(Entity e) {
+      this.e = e;
+    }
+
+    public void put(CallingContext cc) throws ODKDatastoreException {
+      e.put(cc);
+    }
+
+    // Accessors
+
+    public String getTableId() {
+      return e.getId();
+    }
+
+    public String getSchemaETag() {
+      return e.getString(SCHEMA_ETAG);
+    }
+
+    public void setSchemaETag(String value) {
+      e.set(SCHEMA_ETAG, value);
+    }
+
+    public String getDataETag() {
+      return e.getString(DATA_ETAG);
+    }
+
+    public void setDataETag(String value) {
+      e.set(DATA_ETAG, value);
+    }
+
+    public String getSequenceValue() {
+      return e.getString(SEQUENCE_VALUE);
+    }
+
+    public void setSequenceValue(String value) {
+      e.set(SEQUENCE_VALUE, value);
+    }
+
+    public Integer getRowCount() {
+      return e.getInteger(ROW_COUNT);
+    }
+
+    public void setRowCount(Integer value) {
+      e.set(ROW_COUNT, value);
+    }
+
+    public Integer getPageCount() {
+      return e.getInteger(PAGE_COUNT);
+    }
+
+    public void setPageCount(Integer value) {
+      e.set(PAGE_COUNT, value);
+    }
+  }
+
+  private static DbTableSnapshot relation = null;
+
+  public static synchronized final DbTableSnapshot getRelation(CallingContext cc)
+      throws ODKDatastoreException {
+    if (relation == null) {
+      relation = new DbTableSnapshot(RUtil.NAMESPACE, RELATION_NAME, dataFields, cc);
+    }
+    return relation;
+  }
+
+  /**
+   * Create a new row in this relation. The row is not yet persisted.
+   *
+   * @param tableId
+   * @param cc
+   * @return
+   * @throws ODKDatastoreException
+   */
+  public static DbTableSnapshotEntity createNewEntity(String tableId, CallingContext cc)
+      throws ODKDatastoreException {
+    return new DbTableSnapshotEntity(getRelation(cc).newEntity(tableId, cc));
+  }
+
+  /**
+   * @param tableId
+   * @param cc
+   * @return the current snapshot of the table, or null if it has none
+   * @throws ODKDatastoreException
+   */
+  public static DbTableSnapshotEntity getSnapshot(String tableId, CallingContext cc)
+      throws ODKDatastoreException {
+    try {
+      return new DbTableSnapshotEntity(getRelation(cc).getEntity(tableId, cc));
+    } catch (ODKEntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Stamp the pages of a snapshot that has just been replaced with the time it
+   * was replaced, which {@link #deleteSupersededPages} counts from. Pages that
+   * are already stamped keep their time.
+   *
+   * @param tableId
+   * @param dataETag
+   *          the dataETag of the replaced snapshot
+   * @param supersededDate
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public static void markPagesSuperseded(String tableId, String dataETag, Date supersededDate,
+      CallingContext cc) throws ODKDatastoreException {
+    for (DbTableSnapshotPageEntity page : DbTableSnapshotPage.query(tableId, dataETag, cc)) {
+      if (page.getSupersededDate() == null) {
+        page.setSupersededDate(supersededDate);
+        page.put(cc);
+      }
+    }
+  }
+
+  /**
+   * Delete the pages of the table's snapshots that were replaced before the
+   * given time, along with the blob sets that no remaining page uses.
+   *
+   * @param tableId
+   * @param supersededBefore
+   * @param cc
+   * @return the number of pages deleted
+   * @throws ODKDatastoreException
+   */
+  public static int deleteSupersededPages(String tableId, Date supersededBefore,
+      CallingContext cc) throws ODKDatastoreException {
+    List<DbTableSnapshotPageEntity> removed = new ArrayList<DbTableSnapshotPageEntity>();
+    List<DbTableSnapshotPageEntity> kept = new ArrayList<DbTableSnapshotPageEntity>();
+    for (DbTableSnapshotPageEntity page : DbTableSnapshotPage.query(tableId, null, cc)) {
+      Date supersededDate = page.getSupersededDate();
+      if (supersededDate != null && supersededDate.before(supersededBefore)) {
+        removed.add(page);
+      } else {
+        kept.add(page);
+      }
+    }
+    deletePages(removed, kept, cc);
+    return removed.size();
+  }
+
+  /**
+   * Delete the pages of the table's snapshots of the given dataETag, or of
+   * every snapshot, along with the blob sets that no remaining page uses.
+   *
+   * @param tableId
+   * @param dataETag
+   *          the dataETag of the pages to delete; null to delete them all
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public static void deletePages(String tableId, String dataETag, CallingContext cc)
+      throws ODKDatastoreException {
+    List<DbTableSnapshotPageEntity> removed = new ArrayList<DbTableSnapshotPageEntity>();
+    List<DbTableSnapshotPageEntity> kept = new ArrayList<DbTableSnapshotPageEntity>();
+    for (DbTableSnapshotPageEntity page : DbTableSnapshotPage.query(tableId, null, cc)) {
+      if (dataETag == null || dataETag.equals(page.getDataETag())) {
+        removed.add(page);
+      } else {
+        kept.add(page);
+      }
+    }
+    deletePages(removed, kept, cc);
+  }
+
+  private static void deletePages(List<DbTableSnapshotPageEntity> removed,
+      List<DbTableSnapshotPageEntity> kept, CallingContext cc) throws ODKDatastoreException {
+    if (removed.isEmpty()) {
+      return;
+    }
+    List<Entity> entities = new ArrayList<Entity>();
+    Set<String> removedBlobSets = new HashSet<String>();
+    for (DbTableSnapshotPageEntity page : removed) {
+      entities.add(page.getEntity());
+      removedBlobSets.add(page.getBlobSetUri());
+    }
+    // carried over pages share blob sets with the snapshots that followed
+    for (DbTableSnapshotPageEntity page : kept) {
+      removedBlobSets.remove(page.getBlobSetUri());
+    }
+    // the page records go first, so that none is left naming a missing blob set
+    Relation.deleteEntities(entities, cc);
+    DbTableSnapshotFiles files = new DbTableSnapshotFiles(cc);
+    for (String uri : removedBlobSets) {
+      BlobEntitySet blobs = files.getBlobEntitySet(uri, cc);
+      blobs.remove(cc);
+    }
+  }
+
+  /**
+   * Delete the snapshot of a table, e.g., when it is deleted.
+   *
+   * @param tableId
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public static void deleteForTable(String tableId, CallingContext cc)
+      throws ODKDatastoreException {
+    try {
+      getRelation(cc).getEntity(tableId, cc).delete(cc);
+    } catch (ODKEntityNotFoundException e) {
+      // no snapshot
+    }
+    deletePages(tableId, null, cc);
+  }
+}
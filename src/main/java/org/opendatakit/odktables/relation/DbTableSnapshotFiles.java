@@ -0,0 +1,33 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables.relation;
+
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.ermodel.AbstractBlobRelationSet;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+
+/**
+ * Holds the pages of the table snapshots (see {@link DbTableSnapshot}). Each
+ * page is a blob set containing a single gzip-compressed JSON RowList.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public class DbTableSnapshotFiles extends AbstractBlobRelationSet {
+
+  private static final String BLOB_RELATION_NAME = "TABLESNAPSHOTS";
+
+  public DbTableSnapshotFiles(CallingContext cc) throws ODKDatastoreException {
+    super(BLOB_RELATION_NAME, cc);
+  }
+
+}
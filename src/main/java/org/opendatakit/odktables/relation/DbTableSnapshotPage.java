@@ -0,0 +1,255 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables.relation;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.ermodel.Entity;
+import org.opendatakit.ermodel.Query;
+import org.opendatakit.ermodel.Relation;
+import org.opendatakit.persistence.DataField;
+import org.opendatakit.persistence.DataField.DataType;
+import org.opendatakit.persistence.DataField.IndexType;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+
+/**
+ * One page of a table snapshot. The pages of a snapshot share its dataETag and
+ * are numbered from 1; each holds the rows after the LAST_ROW_ID of the page
+ * before it, up to and including its own, in rowId order.
+ * <p>
+ * Pages that did not change are carried over to the next snapshot of the table,
+ * so several pages (of different snapshots) may name the same blob set.
+ * <p>
+ * The pages of a snapshot that has been replaced are stamped with the time it
+ * was replaced, SUPERSEDED_DATE, and removed once that is old enough.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public class DbTableSnapshotPage extends Relation {
+
+  private DbTableSnapshotPage(String namespace, String tableName, List<DataField> fields,
+      CallingContext cc) throws ODKDatastoreException {
+    super(namespace, tableName, fields, cc);
+  }
+
+  private static final String RELATION_NAME = "TABLE_SNAPSHOT_PAGE";
+
+  private static final DataField TABLE_ID = new DataField("TABLE_ID", DataType.STRING, false)
+      .setIndexable(IndexType.HASH);
+  private static final DataField DATA_ETAG = new DataField("DATA_ETAG", DataType.STRING, false);
+  private static final DataField ORDINAL = new DataField("ORDINAL", DataType.INTEGER, false);
+  private static final DataField LAST_ROW_ID = new DataField("LAST_ROW_ID", DataType.STRING,
+      false);
+  private static final DataField ROW_COUNT = new DataField("ROW_COUNT", DataType.INTEGER, false);
+  // in DbTableSnapshotFiles
+  private static final DataField BLOB_SET_URI = new DataField("BLOB_SET_URI", DataType.STRING,
+      false);
+  private static final DataField CONTENT_LENGTH = new DataField("CONTENT_LENGTH",
+      DataType.INTEGER, true);
+  private static final DataField CONTENT_HASH = new DataField("CONTENT_HASH", DataType.STRING,
+      true);
+  // null while the page belongs to the current snapshot
+  private static final DataField SUPERSEDED_DATE = new DataField("SUPERSEDED_DATE",
+      DataType.DATETIME, true);
+
+  private static final List<DataField> dataFields;
+  static {
+    dataFields = new ArrayList<DataField>();
+    dataFields.add(TABLE_ID);
+    dataFields.add(DATA_ETAG);
+    dataFields.add(ORDINAL);
+    dataFields.add(LAST_ROW_ID);
+    dataFields.add(ROW_COUNT);
+    dataFields.add(BLOB_SET_URI);
+    dataFields.add(CONTENT_LENGTH);
+    dataFields.add(CONTENT_HASH);
+    dataFields.add(SUPERSEDED_DATE);
+  }
+
+  public static class DbTableSnapshotPageEntity {
+    Entity e;
+
+    public DbTableSnapshotPageEntity(Entity e) {
+      this.e = e;
+    }
+
+    public void put(CallingContext cc) throws ODKDatastoreException {
+      e.put(cc);
+    }
+
+    public Entity getEntity() {
+      return e;
+    }
+
+    // Accessors
+
+    public String getTableId() {
+      return e.getString(TABLE_ID);
+    }
+
+    public void setTableId(String value) {
+      e.set(TABLE_ID, value);
+    }
+
+    public String getDataETag() {
+      return e.getString(DATA_ETAG);
+    }
+
+    public void setDataETag(String value) {
+      e.set(DATA_ETAG, value);
+    }
+
+    public Integer getOrdinal() {
+      return e.getInteger(ORDINAL);
+    }
+
+    public void setOrdinal(Integer value) {
+      e.set(ORDINAL, value);
+    }
+
+    public String getLastRowId() {
+      return e.getString(LAST_ROW_ID);
+    }
+
+    public void setLastRowId(String value) {
+      e.set(LAST_ROW_ID, value);
+    }
+
+    public Integer getRowCount() {
+      return e.getInteger(ROW_COUNT);
+    }
+
+    public void setRowCount(Integer value) {
+      e.set(ROW_COUNT, value);
+    }
+
+    public String getBlobSetUri() {
+      return e.getString(BLOB_SET_URI);
+    }
+
+    public void setBlobSetUri(String value) {
+      e.set(BLOB_SET_URI, value);
+    }
+
+    public Long getContentLength() {
+      return e.getLong(CONTENT_LENGTH);
+    }
+
+    public void setContentLength(Long value) {
+      e.set(CONTENT_LENGTH, value);
+    }
+
+    public String getContentHash() {
+      return e.getString(CONTENT_HASH);
+    }
+
+    public void setContentHash(String value) {
+      e.set(CONTENT_HASH, value);
+    }
+
+    public Date getSupersededDate() {
+      return e.getDate(SUPERSEDED_DATE);
+    }
+
+    public void setSupersededDate(Date value) {
+      e.set(SUPERSEDED_DATE, value);
+    }
+  }
+
+  private static DbTableSnapshotPage relation = null;
+
+  public static synchronized final DbTableSnapshotPage getRelation(CallingContext cc)
+      throws ODKDatastoreException {
+    if (relation == null) {
+      relation = new DbTableSnapshotPage(RUtil.NAMESPACE, RELATION_NAME, dataFields, cc);
+    }
+    return relation;
+  }
+
+  /**
+   * Create a new row in this relation. The row is not yet persisted.
+   *
+   * @param cc
+   * @return
+   * @throws ODKDatastoreException
+   */
+  public static DbTableSnapshotPageEntity createNewEntity(CallingContext cc)
+      throws ODKDatastoreException {
+    return new DbTableSnapshotPageEntity(getRelation(cc).newEntity(cc));
+  }
+
+  /**
+   * @param tableId
+   * @param dataETag
+   *          the dataETag of the snapshot, or null for the pages of every
+   *          snapshot of the table
+   * @param cc
+   * @return the pages, in ordinal order
+   * @throws ODKDatastoreException
+   */
+  public static List<DbTableSnapshotPageEntity> query(String tableId, String dataETag,
+      CallingContext cc) throws ODKDatastoreException {
+    Query query = getRelation(cc).query("DbTableSnapshotPage.query", cc);
+    query.equal(TABLE_ID, tableId);
+    if (dataETag != null) {
+      query.equal(DATA_ETAG, dataETag);
+    }
+    query.sortAscending(ORDINAL);
+
+    List<Entity> list = query.execute();
+    List<DbTableSnapshotPageEntity> results = new ArrayList<DbTableSnapshotPageEntity>();
+    for (Entity e : list) {
+      results.add(new DbTableSnapshotPageEntity(e));
+    }
+    return results;
+  }
+
+  /**
+   * @param tableId
+   * @param supersededBefore
+   * @param cc
+   * @return true if a page of the table was superseded before the given time
+   * @throws ODKDatastoreException
+   */
+  public static boolean hasSupersededBefore(String tableId, Date supersededBefore,
+      CallingContext cc) throws ODKDatastoreException {
+    Query query = getRelation(cc).query("DbTableSnapshotPage.hasSupersededBefore", cc);
+    query.equal(TABLE_ID, tableId);
+    query.lessThan(SUPERSEDED_DATE, supersededBefore);
+    return !query.execute(null, 1).entities.isEmpty();
+  }
+
+  /**
+   * @param tableId
+   * @param dataETag
+   * @param ordinal
+   * @param cc
+   * @return the page, or null if the snapshot has no such page
+   * @throws ODKDatastoreException
+   */
+  public static DbTableSnapshotPageEntity getPage(String tableId, String dataETag, int ordinal,
+      CallingContext cc) throws ODKDatastoreException {
+    Query query = getRelation(cc).query("DbTableSnapshotPage.getPage", cc);
+    query.equal(TABLE_ID, tableId);
+    query.equal(DATA_ETAG, dataETag);
+    query.equal(ORDINAL, ordinal);
+    List<Entity> list = query.execute();
+    if (list.isEmpty()) {
+      return null;
+    }
+    return new DbTableSnapshotPageEntity(list.get(0));
+  }
+}
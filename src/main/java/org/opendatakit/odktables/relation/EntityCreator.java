@@ -59,6 +59,10 @@ public class EntityCreator {
 
   public static final int INITIAL_MODIFICATION_NUMBER = 1;
 
+  // the hasher for the column definitions last seen by setRowHash
+  private RowContentHash hasher = null;
+  private List<DbColumnDefinitionsEntity> hasherColumns = null;
+
   /**
    * Create a new {@link DbTableEntry} entity.
    *
@@ -262,6 +266,24 @@ public class EntityCreator {
         }
       }
     }
+
+    setRowHash(row, columns);
+  }
+
+  /**
+   * Recompute the {@link DbTable#ROW_HASH} of a row after its fields have changed.
+   *
+   * @param row
+   *          the {@link DbTable} entity
+   * @param columns
+   *          the {@link DbColumnDefinitions} entities for the table
+   */
+  public void setRowHash(Entity row, List<DbColumnDefinitionsEntity> columns) {
+    if (hasher == null || hasherColumns != columns) {
+      hasher = new RowContentHash(columns);
+      hasherColumns = columns;
+    }
+    row.set(DbTable.ROW_HASH, hasher.hash(row));
   }
 
   private DbColumnDefinitionsEntity findColumn(String elementKey,
@@ -323,6 +345,7 @@ public class EntityCreator {
     entity.set(DbLogTable.SAVEPOINT_TYPE, row.getString(DbTable.SAVEPOINT_TYPE));
     entity.set(DbLogTable.SAVEPOINT_TIMESTAMP, row.getString(DbTable.SAVEPOINT_TIMESTAMP));
     entity.set(DbLogTable.SAVEPOINT_CREATOR, row.getString(DbTable.SAVEPOINT_CREATOR));
+    entity.set(DbLogTable.ROW_HASH, row.getString(DbTable.ROW_HASH));
 
     for (DbColumnDefinitionsEntity column : columns) {
       if (column.isUnitOfRetention()) {
@@ -0,0 +1,151 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.odktables.relation;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Hex;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.ElementType;
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
+import org.opendatakit.ermodel.Entity;
+import org.opendatakit.odktables.relation.DbColumnDefinitions.DbColumnDefinitionsEntity;
+
+/**
+ * Computes the {@link DbTable#ROW_HASH} of a row: a SHA-256 over the fields that decide whether
+ * two versions of a row are the same (rowId, deleted flag, filter scope, form and savepoint
+ * metadata, and the values of the columns that are stored).
+ * <p>
+ * Equal hashes mean the rows match, and different hashes mean they do not. Number values are hashed
+ * in their Double form, so that "9.80" and "9.8" hash alike; values that differ in their last
+ * binary digits, which {@link org.opendatakit.odktables.DataKeyValueDeepComparator} would accept as
+ * a rounding difference, hash differently and so count as a change.
+ */
+public class RowContentHash {
+
+  // the stored columns, in elementKey order
+  private final List<String> elementKeys;
+  private final Set<String> numberKeys = new HashSet<String>();
+
+  public RowContentHash(List<DbColumnDefinitionsEntity> columns) {
+    List<String> keys = new ArrayList<String>();
+    for (DbColumnDefinitionsEntity column : columns) {
+      if (!column.isUnitOfRetention()) {
+        continue;
+      }
+      keys.add(column.getElementKey());
+      boolean hasChildren = !column.getArrayListChildElementKeys().isEmpty();
+      ElementType e = ElementType.parseElementType(column.getElementType(), hasChildren);
+      if (e.getDataType() == ElementDataType.number) {
+        numberKeys.add(column.getElementKey());
+      }
+    }
+    Collections.sort(keys);
+    elementKeys = Collections.unmodifiableList(keys);
+  }
+
+  /**
+   * @param row
+   *          a {@link DbTable} entity whose fields have been set
+   * @return the hash of the row as stored
+   */
+  public String hash(Entity row) {
+    Map<String, String> values = new HashMap<String, String>();
+    for (String elementKey : elementKeys) {
+      values.put(elementKey, row.getAsString(elementKey.toUpperCase()));
+    }
+    return hash(row.getId(), row.getBoolean(DbTable.DELETED), row.getString(DbTable.FILTER_TYPE),
+        row.getString(DbTable.FILTER_VALUE), row.getString(DbTable.FORM_ID),
+        row.getString(DbTable.LOCALE), row.getString(DbTable.SAVEPOINT_TYPE),
+        row.getString(DbTable.SAVEPOINT_TIMESTAMP), row.getString(DbTable.SAVEPOINT_CREATOR),
+        values);
+  }
+
+  /**
+   * @param row
+   *          a row sent by a client
+   * @return the hash the row would have once stored
+   */
+  public String hash(Row row) {
+    Map<String, String> values = new HashMap<String, String>();
+    if (row.getValues() != null) {
+      for (DataKeyValue kv : row.getValues()) {
+        values.put(kv.column, kv.value);
+      }
+    }
+    RowFilterScope scope = row.getRowFilterScope();
+    String filterType = (scope == null || scope.getType() == null) ? null
+        : scope.getType().name();
+    String filterValue = (scope == null) ? null : scope.getValue();
+    return hash(row.getRowId(), row.isDeleted(), filterType, filterValue, row.getFormId(),
+        row.getLocale(), row.getSavepointType(), row.getSavepointTimestamp(),
+        row.getSavepointCreator(), values);
+  }
+
+  private String hash(String rowId, boolean deleted, String filterType, String filterValue,
+      String formId, String locale, String savepointType, String savepointTimestamp,
+      String savepointCreator, Map<String, String> values) {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unexpected problem computing sha-256 hash", e);
+    }
+    update(md, rowId);
+    update(md, Boolean.toString(deleted));
+    update(md, filterType);
+    update(md, filterValue);
+    update(md, formId);
+    update(md, locale);
+    update(md, savepointType);
+    update(md, savepointTimestamp);
+    update(md, savepointCreator);
+    for (String elementKey : elementKeys) {
+      String value = values.get(elementKey);
+      if (value != null && numberKeys.contains(elementKey)) {
+        value = canonicalNumber(value);
+      }
+      update(md, elementKey);
+      update(md, value);
+    }
+    return Hex.encodeHexString(md.digest());
+  }
+
+  private static String canonicalNumber(String value) {
+    try {
+      // !!Important!! Double.valueOf(str) handles NaN and +/-Infinity
+      double d = Double.valueOf(value);
+      return (d == 0.0) ? "0.0" : Double.toString(d);
+    } catch (NumberFormatException e) {
+      return value;
+    }
+  }
+
+  private static void update(MessageDigest md, String value) {
+    // length-prefixed, with -1 for null, so that adjacent fields cannot run into one another
+    byte[] bytes = (value == null) ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    int len = (value == null) ? -1 : bytes.length;
+    md.update(new byte[] { (byte) (len >>> 24), (byte) (len >>> 16), (byte) (len >>> 8),
+        (byte) len });
+    md.update(bytes);
+  }
+}
@@ -19,6 +19,7 @@ package org.opendatakit.odktables.security;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.commons.lang3.Validate;
 import org.opendatakit.aggregate.odktables.rest.entity.Scope;
@@ -36,6 +37,7 @@ public class AuthFilter {
   private TableAclManager am;
   private TablesUserPermissions userPermissions;
   private Set<TablePermission> permissions;
+  private String accessScope;
 
   public AuthFilter(String appId, String tableId, TablesUserPermissions userPermissions, List<Scope> scopes, CallingContext cc) throws ODKEntityNotFoundException,
       ODKDatastoreException {
@@ -51,6 +53,23 @@ public class AuthFilter {
         permissions.addAll(def.getRole().getPermissions());
       }
     }
+
+    Set<String> names = new TreeSet<String>();
+    for (Scope scope : scopes) {
+      names.add(scope.getType() + ":" + scope.getValue());
+    }
+    for (TablePermission permission : permissions) {
+      names.add(permission.name());
+    }
+    accessScope = names.toString();
+  }
+
+  /**
+   * @return the scopes of the current user and the table permissions they
+   *         confer, in a canonical order
+   */
+  public String getAccessScope() {
+    return accessScope;
   }
 
   /**
@@ -71,4 +71,17 @@ public interface TablesUserPermissions {
    */
   public abstract boolean hasFilterScope(String appId, String tableId, TablePermission permission, String rowId, Scope filterScope) throws ODKEntityNotFoundException, ODKDatastoreException;
 
+  /**
+   * Describe everything that determines which rows of the table the current
+   * user may see: the user's granted roles, the scopes the user participates
+   * in, and the table permissions those scopes confer. Two reads whose access
+   * scopes are equal are filtered identically.
+   *
+   * @param appId
+   * @param tableId
+   * @return the access scope of the current user on this table
+   * @throws ODKDatastoreException
+   */
+  public abstract String getAccessScope(String appId, String tableId) throws ODKDatastoreException;
+
 }
\ No newline at end of file
@@ -17,10 +17,11 @@
 package org.opendatakit.odktables.security;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.opendatakit.aggregate.odktables.rest.entity.Scope;
 import org.opendatakit.aggregate.odktables.rest.entity.Scope.Type;
@@ -37,13 +38,22 @@ public class TablesUserPermissionsImpl implements TablesUserPermissions {
 
   private final CallingContext cc;
   private final OdkTablesUserInfo userInfo;
-  private final Map<String, AuthFilter> authFilters = new HashMap<String, AuthFilter>();
+  private final String roles;
+  // shared by the worker threads of a batch sync request
+  private final Map<String, AuthFilter> authFilters = new ConcurrentHashMap<String, AuthFilter>();
 
 
   public TablesUserPermissionsImpl(CallingContext cc, String uriUser, Set<GrantedAuthority> grants)
       throws ODKDatastoreException, PermissionDeniedException, ODKTaskLockException {
     this.cc = cc;
     this.userInfo = OdkTablesUserInfoTable.getOdkTablesUserInfo(uriUser, grants, cc);
+    Set<String> roleNames = new TreeSet<String>();
+    if (grants != null) {
+      for (GrantedAuthority grant : grants) {
+        roleNames.add(grant.getAuthority());
+      }
+    }
+    this.roles = roleNames.toString();
   }
 
  
@@ -149,4 +159,11 @@ public class TablesUserPermissionsImpl implements TablesUserPermissions {
     }
     return false;
   }
+
+  @Override
+  public String getAccessScope(String appId, String tableId) throws ODKDatastoreException {
+    AuthFilter authFilter = getAuthFilter(appId, tableId);
+    String tablePermissions = (authFilter == null) ? "" : authFilter.getAccessScope();
+    return roles + tablePermissions;
+  }
 }
@@ -15,6 +15,7 @@
  */
 package org.opendatakit.odktables.util;
 
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
 
@@ -83,6 +84,83 @@ public class ServiceUtils {
     boolean sessionId = req.isRequestedSessionIdValid();
   }
 
+  /**
+   * Determine whether any entity tag in the request's If-None-Match header matches the given
+   * entity tag. Quotes and weak-validator prefixes on the incoming values are ignored.
+   *
+   * @param httpHeaders
+   * @param eTag the current entity tag of the resource (may be null)
+   * @return true if the client already holds the representation identified by eTag
+   */
+  public static boolean matchesIfNoneMatch(HttpHeaders httpHeaders, String eTag) {
+    if (eTag == null || httpHeaders == null) {
+      return false;
+    }
+    List<String> eTags = httpHeaders.getRequestHeader(HttpHeaders.IF_NONE_MATCH);
+    if (eTags == null) {
+      return false;
+    }
+    for (String headerValue : eTags) {
+      for (String candidate : headerValue.split(",")) {
+        String tag = candidate.trim();
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+          tag = tag.substring(1, tag.length() - 1);
+        }
+        if (tag.equals("*") || tag.equals(eTag)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Determine whether a Range request may be served as a partial response. With an If-Range
+   * header, it may only if the header holds the current (strong) entity tag; an HTTP-date or a weak
+   * validator never matches.
+   *
+   * @param httpHeaders
+   * @param eTag the current entity tag of the resource (may be null)
+   * @return true if there is no If-Range header or it matches eTag
+   */
+  public static boolean matchesIfRange(HttpHeaders httpHeaders, String eTag) {
+    String ifRange = (httpHeaders == null) ? null : httpHeaders.getHeaderString("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    String tag = ifRange.trim();
+    if (eTag == null || tag.startsWith("W/")) {
+      return false;
+    }
+    if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+      tag = tag.substring(1, tag.length() - 1);
+    }
+    return tag.equals(eTag);
+  }
+
+  /**
+   * Split a comma-separated list of column names, as given to the columns= query parameter.
+   *
+   * @param columns
+   * @return the column names, or null if none were given
+   */
+  public static List<String> parseColumnList(String columns) {
+    if (columns == null) {
+      return null;
+    }
+    List<String> names = new ArrayList<String>();
+    for (String name : columns.split(",")) {
+      String trimmed = name.trim();
+      if (trimmed.length() != 0) {
+        names.add(trimmed);
+      }
+    }
+    return names.isEmpty() ? null : names;
+  }
+
   @SuppressWarnings("unused")
   public static void examineRequest(ServletContext sc, HttpServletRequest req, HttpHeaders httpHeaders) {
     MultivaluedMap<String,String> headers = httpHeaders.getRequestHeaders();
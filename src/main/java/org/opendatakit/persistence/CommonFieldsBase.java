@@ -19,6 +19,7 @@ import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -73,6 +74,10 @@ public abstract class CommonFieldsBase {
   private Object opaquePersistenceData = null;
   protected final List<DataField> fieldList = new ArrayList<DataField>();
   protected final Map<DataField, Object> fieldValueMap = new HashMap<DataField, Object>();
+  // multi-column ORDERED indices, as lists of column names
+  protected final List<List<String>> compositeIndexList = new ArrayList<List<String>>();
+  // names of the nullable columns added to the data model after the table may have been created
+  protected final List<String> upgradeColumnList = new ArrayList<String>();
 
   public final DataField primaryKey;
   public final DataField creatorUriUser;
@@ -117,6 +122,8 @@ public abstract class CommonFieldsBase {
     lastUpdateDate = ref.lastUpdateDate;
 
     fieldList.addAll(ref.fieldList);
+    compositeIndexList.addAll(ref.compositeIndexList);
+    upgradeColumnList.addAll(ref.upgradeColumnList);
 
     // populate the audit fields...
     Date now = new Date();
@@ -165,6 +172,38 @@ public abstract class CommonFieldsBase {
     return Collections.unmodifiableList(fieldList);
   }
 
+  /**
+   * Declare an ORDERED index over several columns, in the given order. The
+   * persistence layer creates it along with the table; it is added to a table
+   * that already exists by {@link Datastore#buildIndexes}.
+   *
+   * @param columnNames
+   *          names of fields in the field list (including the audit fields)
+   */
+  public final void addCompositeIndex(String... columnNames) {
+    compositeIndexList.add(Collections.unmodifiableList(Arrays.asList(columnNames)));
+  }
+
+  public final List<List<String>> getCompositeIndexList() {
+    return Collections.unmodifiableList(compositeIndexList);
+  }
+
+  /**
+   * Declare a nullable field that a table created by an earlier release does
+   * not have. Until {@link Datastore#upgradeRelation} adds its column, the
+   * relation is usable but the field has no column.
+   *
+   * @param columnName
+   *          name of a nullable field in the field list
+   */
+  public final void addUpgradeColumn(String columnName) {
+    upgradeColumnList.add(columnName);
+  }
+
+  public final List<String> getUpgradeColumnList() {
+    return Collections.unmodifiableList(upgradeColumnList);
+  }
+
   public final String getStringField(DataField f) {
     if (f == null) {
       throw new IllegalArgumentException("Field value is null!");
@@ -461,6 +500,34 @@ public abstract class CommonFieldsBase {
     }
   }
 
+  /**
+   * For content hashed incrementally (e.g., as it is streamed).
+   *
+   * @param md
+   *          an MD5 digest that has been updated with the content; it is reset by this call.
+   * @return the md5 hash uri of the content
+   */
+  public final static String newMD5HashUri(MessageDigest md) {
+    byte[] messageDigest = md.digest();
+
+    BigInteger number = new BigInteger(1, messageDigest);
+    String md5 = number.toString(16);
+    while (md5.length() < 32)
+      md5 = "0" + md5;
+    return "md5:" + md5;
+  }
+
+  /**
+   * @return a new MD5 digest for use with {@link #newMD5HashUri(MessageDigest)}
+   */
+  public final static MessageDigest newMD5Digest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unexpected problem computing md5 hash", e);
+    }
+  }
+
   /**********************************************************************************
    **********************************************************************************
    **********************************************************************************
@@ -70,6 +70,37 @@ public interface Datastore {
 	 */
 	public void assertRelation(CommonFieldsBase relation, User user ) throws ODKDatastoreException;
 
+	/**
+	 * Adds the columns of the relation's upgrade fields (see 
+	 * {@link CommonFieldsBase#addUpgradeColumn(String)}) that its table lacks, 
+	 * and updates the prototype with their storage capabilities.  This alters 
+	 * the table, so it is meant to be run once, at startup, for each relation 
+	 * that a previous release may have created.  A relation whose table does 
+	 * not exist is left alone.
+	 * 
+	 * @param relation
+	 *         a prototype that has been asserted
+	 * @param user non-null user responsible for this request.
+	 * @throws ODKDatastoreException
+	 *             if a column could not be added
+	 */
+	public void upgradeRelation(CommonFieldsBase relation, User user ) throws ODKDatastoreException;
+
+	/**
+	 * Builds the multi-column indices of the relation (see 
+	 * {@link CommonFieldsBase#addCompositeIndex}) that its existing table 
+	 * lacks, without blocking writes to it.  This can take a long time on a 
+	 * large table, so it is meant to be run once, in the background, for each 
+	 * relation that a previous release may have created.  A relation whose 
+	 * table does not exist is left alone.
+	 * 
+	 * @param relation
+	 *         a prototype that has been asserted
+	 * @param user non-null user responsible for this request.
+	 * @return true if every index is in place
+	 */
+	public boolean buildIndexes(CommonFieldsBase relation, User user );
+
 	/**
 	 * Drops the given relation from the Datastore.
 	 * The schema and table name are matched.  The structure of the relation 
@@ -145,6 +176,31 @@ public interface Datastore {
 	 * @return a Query object
 	 */
 	public Query createQuery(CommonFieldsBase table, String loggingContextTag, User user);
+
+	/**
+	 * Returns, in a single query, the rows of a reference relation that have the
+	 * given key, in order, each joined to the row of the target relation that it
+	 * points to. This is how the parts of a blob (BinaryContentRefBlob rows and
+	 * their RefBlob rows) are read without a query per part. Large results are
+	 * fetched a page at a time by passing the next order value as fromOrder.
+	 * 
+	 * @param refRelation -- the prototype reference relation (e.g., BinaryContentRefBlob).
+	 * @param keyField -- the field of refRelation to match (e.g., _DOM_AURI).
+	 * @param key -- the value to match.
+	 * @param orderField -- the integer field of refRelation to order by (e.g., _PART).
+	 * @param fromOrder -- only rows with orderField >= fromOrder are returned.
+	 * @param limit -- the maximum number of rows to return; 0 for no limit.
+	 * @param targetKeyField -- the field of refRelation holding the primary key of the target (e.g., _SUB_AURI).
+	 * @param targetRelation -- the prototype target relation (e.g., RefBlob).
+	 * @param fetchTarget -- if false, only the primary key of each target row is fetched.
+	 * @param user -- non-null user responsible for this request.
+	 * @return the joined rows in orderField order; a missing target row is returned as null.
+	 * @throws ODKDatastoreException
+	 */
+	public <R extends CommonFieldsBase, T extends CommonFieldsBase> List<JoinedEntity<R, T>> queryReferenceJoin(
+	    R refRelation, DataField keyField, String key, DataField orderField, long fromOrder, int limit,
+	    DataField targetKeyField, T targetRelation, boolean fetchTarget, User user)
+	    throws ODKDatastoreException;
 	
 	/**
 	 * Puts the given entity into the Datastore.
@@ -0,0 +1,42 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.persistence;
+
+/**
+ * A row of a reference relation together with the row of the target relation
+ * that it points to, as returned by
+ * {@link Datastore#queryReferenceJoin}.
+ *
+ * @param <R> the reference relation
+ * @param <T> the target relation
+ */
+public final class JoinedEntity<R extends CommonFieldsBase, T extends CommonFieldsBase> {
+
+	private final R reference;
+	private final T target;
+
+	public JoinedEntity(R reference, T target) {
+		this.reference = reference;
+		this.target = target;
+	}
+
+	public R getReference() {
+		return reference;
+	}
+
+	/**
+	 * @return the target row, or null if the reference points to a row that
+	 *         does not exist.
+	 */
+	public T getTarget() {
+		return target;
+	}
+}
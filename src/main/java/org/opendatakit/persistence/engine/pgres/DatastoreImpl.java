@@ -19,10 +19,12 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.sql.DataSource;
 
@@ -31,6 +33,7 @@ import org.opendatakit.persistence.CommonFieldsBase;
 import org.opendatakit.persistence.DataField;
 import org.opendatakit.persistence.Datastore;
 import org.opendatakit.persistence.EntityKey;
+import org.opendatakit.persistence.JoinedEntity;
 import org.opendatakit.persistence.PersistConsts;
 import org.opendatakit.persistence.Query;
 import org.opendatakit.persistence.TaskLock;
@@ -43,6 +46,7 @@ import org.opendatakit.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.persistence.exception.ODKEntityPersistException;
 import org.opendatakit.security.User;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
@@ -75,6 +79,10 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   private static final Long MAX_BLOB_SIZE = 65536 * 4096L;
 
   private final DatastoreAccessMetrics dam = new DatastoreAccessMetrics();
+  // schema-qualified table name -> whether buildIndexes found or built all of its
+  // multi-column indices; a relation is only tried once per server
+  private final Map<String, Boolean> compositeIndexOutcomes =
+      new ConcurrentHashMap<String, Boolean>();
   private DataSource dataSource = null;
   private DataSourceTransactionManager tm = null;
 
@@ -106,6 +114,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
 
   private static final String K_CREATE_TABLE = "CREATE TABLE ";
   private static final String K_DROP_TABLE = "DROP TABLE ";
+  private static final String K_ALTER_TABLE = "ALTER TABLE ";
+  private static final String K_ADD_COLUMN = " ADD COLUMN ";
 
   private static final String K_OPEN_PAREN = " ( ";
   private static final String K_CLOSE_PAREN = " ) ";
@@ -119,6 +129,9 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   private static final String K_EQ = " = ";
   private static final String K_BIND_VALUE = "?";
   private static final String K_CREATE_INDEX = "CREATE INDEX ";
+  private static final String K_DROP_INDEX = "DROP INDEX ";
+  private static final String K_CONCURRENTLY = "CONCURRENTLY ";
+  private static final String K_IF_EXISTS = "IF EXISTS ";
   private static final String K_ON = " ON ";
   private static final String K_USING_HASH = " USING HASH ";
   private static final String K_INSERT_INTO = "INSERT INTO ";
@@ -126,6 +139,15 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   private static final String K_UPDATE = "UPDATE ";
   private static final String K_SET = " SET ";
   private static final String K_DELETE_FROM = "DELETE FROM ";
+  private static final String K_AS = " AS ";
+  private static final String K_LEFT_JOIN = " LEFT JOIN ";
+  private static final String K_ORDER_BY = " ORDER BY ";
+  private static final String K_ASC = " ASC";
+  private static final String K_LIMIT = " LIMIT ";
+  private static final String K_GE = " >= ";
+  private static final String K_REF_ALIAS = "r";
+  private static final String K_TARGET_ALIAS = "t";
+  private static final String K_TARGET_COLUMN_PREFIX = "t_";
 
   private static final Integer DEFAULT_DBL_NUMERIC_SCALE = 10;
   private static final Integer DEFAULT_DBL_NUMERIC_PRECISION = 38;
@@ -185,6 +207,12 @@ public class DatastoreImpl implements Datastore, InitializingBean {
         + INFORMATION_SCHEMA_COLUMNS + K_WHERE + TABLE_SCHEMA + K_EQ + K_BIND_VALUE + K_AND
         + TABLE_NAME + K_EQ + K_BIND_VALUE;
 
+    // whether a named index is usable; no row if there is no such index
+    public static final String INDEX_VALID_QUERY = K_SELECT + "i.indisvalid" + K_FROM
+        + "pg_catalog.pg_class c JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace"
+        + " JOIN pg_catalog.pg_index i ON i.indexrelid = c.oid" + K_WHERE + "n.nspname" + K_EQ
+        + K_BIND_VALUE + K_AND + "c.relname" + K_EQ + K_BIND_VALUE;
+
     private static final String YES = "YES";
     private static final String TEXT = "text"; // lower case!
     private static final String CHAR = "char";
@@ -401,6 +429,20 @@ public class DatastoreImpl implements Datastore, InitializingBean {
 
   private final boolean updateRelation(JdbcTemplate jc, CommonFieldsBase relation,
       String originalStatement) {
+    return updateRelation(jc, relation, originalStatement, null);
+  }
+
+  /**
+   * @param jc
+   * @param relation
+   * @param originalStatement
+   * @param missing
+   *          if not null, upgrade fields with no column in the table are added to this list
+   *          instead of failing; their dimensions are not updated
+   * @return true if the table exists
+   */
+  private final boolean updateRelation(JdbcTemplate jc, CommonFieldsBase relation,
+      String originalStatement, List<DataField> missing) {
 
     String qs = TableDefinition.TABLE_DEF_QUERY;
     List<?> columns;
@@ -421,6 +463,11 @@ public class DatastoreImpl implements Datastore, InitializingBean {
       // map...
       for (DataField f : relation.getFieldList()) {
         TableDefinition d = map.get(f.getName());
+        if (d == null && missing != null && f.getNullable()
+            && relation.getUpgradeColumnList().contains(f.getName())) {
+          missing.add(f);
+          continue;
+        }
         if (d == null) {
           StringBuilder b = new StringBuilder();
           if (originalStatement == null) {
@@ -505,10 +552,16 @@ public class DatastoreImpl implements Datastore, InitializingBean {
       status = tm.getTransaction(paramTransactionDefinition);
 
       // see if relation already is defined and update it with dimensions...
-      if (updateRelation(jc, relation, null)) {
+      List<DataField> missing = new ArrayList<DataField>();
+      if (updateRelation(jc, relation, null, missing)) {
         // it exists -- we're done!
         tm.commit(status);
         status = null;
+        if (!missing.isEmpty()) {
+          // added by upgradeRelation, at startup
+          LogFactory.getLog(DatastoreImpl.class).warn("Table " + relation.getTableName()
+              + " has not been upgraded; missing " + missing.size() + " columns");
+        }
         return;
       } else {
         tm.commit(status);
@@ -541,71 +594,7 @@ public class DatastoreImpl implements Datastore, InitializingBean {
           b.append(K_BQ);
           b.append(f.getName());
           b.append(K_BQ);
-          DataField.DataType type = f.getDataType();
-          switch (type) {
-          case BINARY:
-            b.append(" BYTEA");
-            break;
-          case LONG_STRING:
-            b.append(" TEXT");// b.append(" CHARACTER SET utf8");
-            break;
-          case STRING:
-            b.append(" VARCHAR(");
-            Long len = f.getMaxCharLen();
-            if (len == null) {
-              len = PersistConsts.DEFAULT_MAX_STRING_LENGTH;
-            }
-            b.append(len.toString());
-            b.append(K_CLOSE_PAREN);
-            // b.append(" CHARACTER SET utf8");
-            break;
-          case BOOLEAN:
-            b.append(" BOOLEAN");
-            break;
-          case INTEGER:
-            Integer int_digits = f.getNumericPrecision();
-            if (int_digits == null) {
-              int_digits = DEFAULT_INT_NUMERIC_PRECISION;
-            }
-
-            if (int_digits.compareTo(9) > 0) {
-              b.append(" BIGINT");
-            } else {
-              b.append(" INTEGER");
-            }
-            break;
-          case DECIMAL:
-            if (f.isDoublePrecision()) {
-              b.append(" FLOAT(53)");
-            } else {
-              Integer dbl_digits = f.getNumericPrecision();
-              Integer dbl_fract = f.getNumericScale();
-              if (dbl_digits == null) {
-                dbl_digits = DEFAULT_DBL_NUMERIC_PRECISION;
-              }
-              if (dbl_fract == null) {
-                dbl_fract = DEFAULT_DBL_NUMERIC_SCALE;
-              }
-              b.append(" DECIMAL(");
-              b.append(dbl_digits.toString());
-              b.append(K_CS);
-              b.append(dbl_fract.toString());
-              b.append(K_CLOSE_PAREN);
-            }
-            break;
-          case DATETIME:
-            b.append(" TIMESTAMP WITHOUT TIME ZONE");
-            break;
-          case URI:
-            b.append(" VARCHAR(");
-            len = f.getMaxCharLen();
-            if (len == null) {
-              len = PersistConsts.URI_STRING_LEN;
-            }
-            b.append(len.toString());
-            b.append(")");// b.append(" CHARACTER SET utf8");
-            break;
-          }
+          appendColumnType(b, f);
 
           if (f == relation.primaryKey) {
             b.append(" UNIQUE ");
@@ -637,6 +626,10 @@ public class DatastoreImpl implements Datastore, InitializingBean {
             createIndex(jc, relation, idx, f);
           }
         }
+        // the table is new and empty, so these need not be built concurrently
+        for (List<String> columnNames : relation.getCompositeIndexList()) {
+          jc.execute(createCompositeIndexStatement(relation, columnNames, false));
+        }
 
         // and update the relation with actual dimensions...
         updateRelation(jc, relation, createTableStmt);
@@ -650,6 +643,156 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     }
   }
 
+  @Override
+  public void upgradeRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+    if (relation.getUpgradeColumnList().isEmpty()) {
+      return;
+    }
+    JdbcTemplate jc = getJdbcConnection();
+    try {
+      List<DataField> missing = new ArrayList<DataField>();
+      if (!updateRelation(jc, relation, null, missing)) {
+        // no table; assertRelation creates it complete
+        return;
+      }
+      if (!missing.isEmpty()) {
+        addColumns(jc, relation, missing);
+      }
+    } catch (Exception e) {
+      throw new ODKDatastoreException(e);
+    }
+  }
+
+  @Override
+  public boolean buildIndexes(CommonFieldsBase relation, User user) {
+    if (relation.getCompositeIndexList().isEmpty()
+        || !hasRelation(relation.getSchemaName(), relation.getTableName(), user)) {
+      return true;
+    }
+    return createCompositeIndexes(getJdbcConnection(), relation);
+  }
+
+  /**
+   * Add nullable columns to an existing table, then update the relation with their dimensions. A
+   * column added concurrently by another server is not an error.
+   *
+   * @param jc
+   * @param relation
+   * @param missing
+   *          the nullable fields that have no column in the table
+   */
+  private void addColumns(JdbcTemplate jc, CommonFieldsBase relation, List<DataField> missing) {
+    for (DataField f : missing) {
+      StringBuilder b = new StringBuilder();
+      b.append(K_ALTER_TABLE);
+      b.append(K_BQ);
+      b.append(relation.getSchemaName());
+      b.append(K_BQ);
+      b.append(".");
+      b.append(K_BQ);
+      b.append(relation.getTableName());
+      b.append(K_BQ);
+      b.append(K_ADD_COLUMN);
+      b.append(K_BQ);
+      b.append(f.getName());
+      b.append(K_BQ);
+      appendColumnType(b, f);
+      b.append(" NULL ");
+
+      String alterTableStmt = b.toString();
+      LogFactory.getLog(DatastoreImpl.class).info("Attempting: " + alterTableStmt);
+      try {
+        jc.execute(alterTableStmt);
+      } catch (DataAccessException e) {
+        LogFactory.getLog(DatastoreImpl.class)
+            .warn("add column failed (may already exist): " + e.toString());
+      }
+      if (f.getIndexable() != IndexType.NONE) {
+        try {
+          createIndex(jc, relation, relation.getTableName() + "_" + shortPrefix(f.getName()), f);
+        } catch (DataAccessException e) {
+          LogFactory.getLog(DatastoreImpl.class)
+              .warn("create index failed (may already exist): " + e.toString());
+        }
+      }
+    }
+    updateRelation(jc, relation, null);
+  }
+
+  /**
+   * Append the SQL type of a column, as used in CREATE TABLE and ALTER TABLE ... ADD COLUMN.
+   *
+   * @param b
+   * @param f
+   */
+  private static void appendColumnType(StringBuilder b, DataField f) {
+    DataField.DataType type = f.getDataType();
+    switch (type) {
+    case BINARY:
+      b.append(" BYTEA");
+      break;
+    case LONG_STRING:
+      b.append(" TEXT");// b.append(" CHARACTER SET utf8");
+      break;
+    case STRING:
+      b.append(" VARCHAR(");
+      Long len = f.getMaxCharLen();
+      if (len == null) {
+        len = PersistConsts.DEFAULT_MAX_STRING_LENGTH;
+      }
+      b.append(len.toString());
+      b.append(K_CLOSE_PAREN);
+      // b.append(" CHARACTER SET utf8");
+      break;
+    case BOOLEAN:
+      b.append(" BOOLEAN");
+      break;
+    case INTEGER:
+      Integer int_digits = f.getNumericPrecision();
+      if (int_digits == null) {
+        int_digits = DEFAULT_INT_NUMERIC_PRECISION;
+      }
+
+      if (int_digits.compareTo(9) > 0) {
+        b.append(" BIGINT");
+      } else {
+        b.append(" INTEGER");
+      }
+      break;
+    case DECIMAL:
+      if (f.isDoublePrecision()) {
+        b.append(" FLOAT(53)");
+      } else {
+        Integer dbl_digits = f.getNumericPrecision();
+        Integer dbl_fract = f.getNumericScale();
+        if (dbl_digits == null) {
+          dbl_digits = DEFAULT_DBL_NUMERIC_PRECISION;
+        }
+        if (dbl_fract == null) {
+          dbl_fract = DEFAULT_DBL_NUMERIC_SCALE;
+        }
+        b.append(" DECIMAL(");
+        b.append(dbl_digits.toString());
+        b.append(K_CS);
+        b.append(dbl_fract.toString());
+        b.append(K_CLOSE_PAREN);
+      }
+      break;
+    case DATETIME:
+      b.append(" TIMESTAMP WITHOUT TIME ZONE");
+      break;
+    case URI:
+      b.append(" VARCHAR(");
+      len = f.getMaxCharLen();
+      if (len == null) {
+        len = PersistConsts.URI_STRING_LEN;
+      }
+      b.append(len.toString());
+      b.append(")");// b.append(" CHARACTER SET utf8");
+      break;
+    }
+  }
+
   /**
    * Construct a 3-character or more prefix for use in the index name.
    *
@@ -697,6 +840,121 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     jc.execute(b.toString());
   }
 
+  /**
+   * Build the multi-column indices that an existing table lacks, with CREATE
+   * INDEX CONCURRENTLY so that writes to the table are not blocked. This cannot
+   * run inside a transaction. An index left invalid by an interrupted build is
+   * dropped and built again. Each relation is only tried once per server, and
+   * the outcome is remembered; a failure is logged and retried at the next
+   * startup.
+   *
+   * @param jc
+   * @param tbl
+   * @return true if every index is in place
+   */
+  private boolean createCompositeIndexes(JdbcTemplate jc, CommonFieldsBase tbl) {
+    String key = tbl.getSchemaName() + "." + tbl.getTableName();
+    Boolean outcome = compositeIndexOutcomes.get(key);
+    if (outcome != null) {
+      return outcome;
+    }
+    boolean success = true;
+    for (List<String> columnNames : tbl.getCompositeIndexList()) {
+      String idxName = compositeIndexName(tbl, columnNames);
+      try {
+        List<Boolean> valid = jc.queryForList(TableDefinition.INDEX_VALID_QUERY,
+            new Object[] { tbl.getSchemaName(), idxName }, Boolean.class);
+        if (!valid.isEmpty() && Boolean.TRUE.equals(valid.get(0))) {
+          continue;
+        }
+        if (!valid.isEmpty()) {
+          LogFactory.getLog(DatastoreImpl.class).warn("Rebuilding invalid index " + idxName);
+          jc.execute(dropCompositeIndexStatement(tbl, idxName));
+        }
+        String createIndexStmt = createCompositeIndexStatement(tbl, columnNames, true);
+        LogFactory.getLog(DatastoreImpl.class).info("Attempting: " + createIndexStmt);
+        jc.execute(createIndexStmt);
+      } catch (DataAccessException e) {
+        success = false;
+        LogFactory.getLog(DatastoreImpl.class)
+            .warn("create index failed: " + idxName + " " + e.toString());
+        try {
+          // a failed concurrent build leaves an invalid index behind
+          jc.execute(dropCompositeIndexStatement(tbl, idxName));
+        } catch (DataAccessException ex) {
+          LogFactory.getLog(DatastoreImpl.class)
+              .warn("drop index failed: " + idxName + " " + ex.toString());
+        }
+      }
+    }
+    compositeIndexOutcomes.put(key, success);
+    return success;
+  }
+
+  private String compositeIndexName(CommonFieldsBase tbl, List<String> columnNames) {
+    StringBuilder idx = new StringBuilder();
+    idx.append(tbl.getTableName());
+    for (String name : columnNames) {
+      idx.append("_");
+      idx.append(shortPrefix(name));
+    }
+    if (idx.length() <= MAX_COLUMN_NAME_LEN) {
+      return idx.toString();
+    }
+    // PostgreSQL would silently truncate the name, and then the index would not
+    // be found under it; shorten it here, keeping it distinct with a hash
+    String hash = String.format("%08x", idx.toString().hashCode());
+    return idx.substring(0, MAX_COLUMN_NAME_LEN - hash.length() - 1) + "_" + hash;
+  }
+
+  private String createCompositeIndexStatement(CommonFieldsBase tbl, List<String> columnNames,
+      boolean concurrently) {
+    StringBuilder b = new StringBuilder();
+    b.append(K_CREATE_INDEX);
+    if (concurrently) {
+      b.append(K_CONCURRENTLY);
+    }
+    b.append(K_BQ);
+    b.append(compositeIndexName(tbl, columnNames));
+    b.append(K_BQ);
+    b.append(K_ON);
+    b.append(K_BQ);
+    b.append(tbl.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(tbl.getTableName());
+    b.append(K_BQ);
+    b.append(" (");
+    boolean first = true;
+    for (String name : columnNames) {
+      if (!first) {
+        b.append(K_CS);
+      }
+      first = false;
+      b.append(K_BQ);
+      b.append(name);
+      b.append(K_BQ);
+    }
+    b.append(" )");
+    return b.toString();
+  }
+
+  private String dropCompositeIndexStatement(CommonFieldsBase tbl, String idxName) {
+    StringBuilder b = new StringBuilder();
+    b.append(K_DROP_INDEX);
+    b.append(K_CONCURRENTLY);
+    b.append(K_IF_EXISTS);
+    b.append(K_BQ);
+    b.append(tbl.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(idxName);
+    b.append(K_BQ);
+    return b.toString();
+  }
+
   @Override
   public boolean hasRelation(String schema, String tableName, User user) {
     dam.recordQueryUsage(TableDefinition.INFORMATION_SCHEMA_COLUMNS, 1);
@@ -775,6 +1033,109 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     return query;
   }
 
+  private static void appendQualifiedName(StringBuilder b, CommonFieldsBase relation) {
+    b.append(K_BQ);
+    b.append(relation.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(relation.getTableName());
+    b.append(K_BQ);
+  }
+
+  private static void appendColumn(StringBuilder b, String alias, DataField f) {
+    b.append(alias);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(f.getName());
+    b.append(K_BQ);
+  }
+
+  @Override
+  public <R extends CommonFieldsBase, T extends CommonFieldsBase> List<JoinedEntity<R, T>> queryReferenceJoin(
+      R refRelation, DataField keyField, String key, DataField orderField, long fromOrder,
+      int limit, DataField targetKeyField, T targetRelation, boolean fetchTarget, User user)
+      throws ODKDatastoreException {
+
+    final List<DataField> targetFields = fetchTarget ? targetRelation.getFieldList()
+        : Collections.singletonList(targetRelation.primaryKey);
+
+    // SELECT r.*, t."F" AS "t_F", ... FROM ref r LEFT JOIN target t ON t."_URI" = r.targetKey
+    // WHERE r.key = ? AND r.order >= ? ORDER BY r.order ASC LIMIT n
+    StringBuilder b = new StringBuilder();
+    b.append(K_SELECT);
+    boolean first = true;
+    for (DataField f : refRelation.getFieldList()) {
+      if (!first) {
+        b.append(K_CS);
+      }
+      first = false;
+      appendColumn(b, K_REF_ALIAS, f);
+    }
+    for (DataField f : targetFields) {
+      b.append(K_CS);
+      appendColumn(b, K_TARGET_ALIAS, f);
+      b.append(K_AS);
+      b.append(K_BQ);
+      b.append(K_TARGET_COLUMN_PREFIX);
+      b.append(f.getName());
+      b.append(K_BQ);
+    }
+    b.append(K_FROM);
+    appendQualifiedName(b, refRelation);
+    b.append(" ");
+    b.append(K_REF_ALIAS);
+    b.append(K_LEFT_JOIN);
+    appendQualifiedName(b, targetRelation);
+    b.append(" ");
+    b.append(K_TARGET_ALIAS);
+    b.append(K_ON);
+    appendColumn(b, K_TARGET_ALIAS, targetRelation.primaryKey);
+    b.append(K_EQ);
+    appendColumn(b, K_REF_ALIAS, targetKeyField);
+    b.append(K_WHERE);
+    appendColumn(b, K_REF_ALIAS, keyField);
+    b.append(K_EQ);
+    b.append(K_BIND_VALUE);
+    b.append(K_AND);
+    appendColumn(b, K_REF_ALIAS, orderField);
+    b.append(K_GE);
+    b.append(K_BIND_VALUE);
+    b.append(K_ORDER_BY);
+    appendColumn(b, K_REF_ALIAS, orderField);
+    b.append(K_ASC);
+    if (limit > 0) {
+      b.append(K_LIMIT);
+      b.append(limit);
+    }
+
+    final RelationRowMapper refMapper = new RelationRowMapper(refRelation, user);
+    final RelationRowMapper targetMapper = new RelationRowMapper(targetRelation, user,
+        targetFields, K_TARGET_COLUMN_PREFIX);
+    final String targetKeyColumn = K_TARGET_COLUMN_PREFIX + targetRelation.primaryKey.getName();
+    RowMapper<JoinedEntity<R, T>> joinMapper = new RowMapper<JoinedEntity<R, T>>() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public JoinedEntity<R, T> mapRow(ResultSet rs, int rowNum) throws SQLException {
+        R reference = (R) refMapper.mapRow(rs, rowNum);
+        T target = null;
+        if (rs.getString(targetKeyColumn) != null) {
+          target = (T) targetMapper.mapRow(rs, rowNum);
+        }
+        return new JoinedEntity<R, T>(reference, target);
+      }
+    };
+
+    try {
+      List<JoinedEntity<R, T>> results = getJdbcConnection().query(b.toString(),
+          new Object[] { key, fromOrder }, joinMapper);
+      dam.recordQueryUsage(refRelation, results.size());
+      return results;
+    } catch (DataAccessException e) {
+      throw new ODKDatastoreException(e);
+    }
+  }
+
   private static class ReusableStatementSetter implements PreparedStatementSetter {
 
     String sql = null;
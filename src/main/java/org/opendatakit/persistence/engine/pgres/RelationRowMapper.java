@@ -16,6 +16,7 @@ package org.opendatakit.persistence.engine.pgres;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Date;
+import java.util.List;
 
 import org.opendatakit.persistence.CommonFieldsBase;
 import org.opendatakit.persistence.DataField;
@@ -33,10 +34,28 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
 
   private final CommonFieldsBase relation;
   private final User user;
+  private final List<DataField> fields;
+  private final String columnPrefix;
 
   RelationRowMapper(CommonFieldsBase relation, User user) {
+    this(relation, user, relation.getFieldList(), "");
+  }
+
+  /**
+   * Map only some of the relation's fields, from columns whose names are
+   * prefixed (as in a join, where the columns are aliased to be unique).
+   * 
+   * @param relation
+   * @param user
+   * @param fields
+   * @param columnPrefix
+   */
+  RelationRowMapper(CommonFieldsBase relation, User user, List<DataField> fields,
+      String columnPrefix) {
     this.relation = relation;
     this.user = user;
+    this.fields = fields;
+    this.columnPrefix = columnPrefix;
   }
 
   @Override
@@ -53,19 +72,20 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
     /**
      * Correct for the funky handling of nulls by the various accessors...
      */
-    for (DataField f : relation.getFieldList()) {
+    for (DataField f : fields) {
+      String columnName = columnPrefix + f.getName();
       switch (f.getDataType()) {
       case BINARY:
-        byte[] blobBytes = rs.getBytes(f.getName());
+        byte[] blobBytes = rs.getBytes(columnName);
         row.setBlobField(f, blobBytes);
         break;
       case LONG_STRING:
       case URI:
       case STRING:
-        row.setStringField(f, rs.getString(f.getName()));
+        row.setStringField(f, rs.getString(columnName));
         break;
       case INTEGER:
-        long l = rs.getLong(f.getName());
+        long l = rs.getLong(columnName);
         if (rs.wasNull()) {
           row.setLongField(f, null);
         } else {
@@ -73,7 +93,7 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
         }
         break;
       case DECIMAL: {
-        String value = rs.getString(f.getName());
+        String value = rs.getString(columnName);
         if ( value == null ) {
           row.setNumericField(f, null);
         } else {
@@ -82,7 +102,7 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
       }
         break;
       case BOOLEAN:
-        Boolean b = rs.getBoolean(f.getName());
+        Boolean b = rs.getBoolean(columnName);
         if (rs.wasNull()) {
           row.setBooleanField(f, null);
         } else {
@@ -90,7 +110,7 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
         }
         break;
       case DATETIME:
-        Date d = rs.getTimestamp(f.getName());
+        Date d = rs.getTimestamp(columnName);
         if (d == null) {
           row.setDateField(f, null);
         } else {
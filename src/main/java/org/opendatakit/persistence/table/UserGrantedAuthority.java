@@ -195,7 +195,7 @@ public final class UserGrantedAuthority extends CommonFieldsBase {
 
     Datastore ds = cc.getDatastore();
     User user = cc.getCurrentUser();
-    boolean hasNotChanged = true;
+    Set<String> changedUsers = new HashSet<String>();
 
     try {
       UserGrantedAuthority relation = UserGrantedAuthority.assertRelation(ds, user);
@@ -218,6 +218,7 @@ public final class UserGrantedAuthority extends CommonFieldsBase {
           desiredMembers.remove(uriUser);
         } else {
           deleted.add(t.getEntityKey());
+          changedUsers.add(uriUser);
         }
       }
       // we now have the list of desiredMembers to insert, and the list of
@@ -228,18 +229,16 @@ public final class UserGrantedAuthority extends CommonFieldsBase {
         t.setUser(uriUser);
         t.setGrantedAuthority(group);
         added.add(t);
+        changedUsers.add(uriUser);
       }
 
-      // we have no changes if there are no adds and no deletes
-      hasNotChanged = added.isEmpty() && deleted.isEmpty();
-
       // we now have the list of EntityKeys to delete, and the list of records to add -- do it.
       ds.putEntities(added, user);
       ds.deleteEntities(deleted, user);
     } finally {
-      if (!hasNotChanged) {
-        // we've changed -- reload the permissions tree...
-        cc.getUserService().reloadPermissions();
+      // only the users whose memberships changed need to be reloaded...
+      for (String uriUser : changedUsers) {
+        cc.getUserService().reloadPermissions(uriUser);
       }
     }
   }
@@ -292,8 +291,8 @@ public final class UserGrantedAuthority extends CommonFieldsBase {
       ds.deleteEntities(deleted, user);
     } finally {
       if (!hasNotChanged) {
-        // we've changed, so we need to reload permissions tree
-        cc.getUserService().reloadPermissions();
+        // we've changed, so we need to reload this user's permissions
+        cc.getUserService().reloadPermissions(uriUser);
       }
     }
   }
@@ -316,7 +315,7 @@ public final class UserGrantedAuthority extends CommonFieldsBase {
       }
       datastore.deleteEntities(memberships, user);
     } finally {
-      userService.reloadPermissions();
+      userService.reloadPermissions(uriUser);
     }
   }
 }
@@ -47,6 +47,13 @@ public interface UserService {
   public boolean isAccessManagementConfigured();
 
   public void reloadPermissions();
+
+  /**
+   * Discard any cached information for a single user, leaving other cached users intact.
+   *
+   * @param uriUser the user whose permissions have changed
+   */
+  public void reloadPermissions(String uriUser);
 
   public boolean isUserLoggedIn();
 
@@ -14,12 +14,19 @@
 package org.opendatakit.security.spring;
 
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -46,13 +53,47 @@ public class UserServiceImpl implements org.opendatakit.security.UserService, In
 
   private static final Log logger = LogFactory.getLog(UserServiceImpl.class);
 
+  /**
+   * Default upper bound on the number of users held in the activeUsers cache.
+   */
+  public static final int DEFAULT_MAX_ACTIVE_USERS = 2000;
+
   // configured by bean definition...
   private Datastore datastore;
   private Realm realm;
   private String superUserUsername;
-  private RegisteredUsersTable superUserUsernameRecord;
+  private volatile RegisteredUsersTable superUserUsernameRecord;
+  private int maxActiveUsers = DEFAULT_MAX_ACTIVE_USERS;
+
+  /**
+   * A cached user: the load that constructs it and when it was last used.
+   */
+  static final class ActiveUser {
+    final FutureTask<User> task;
+    volatile long lastAccess;
+
+    ActiveUser(FutureTask<User> task, long lastAccess) {
+      this.task = task;
+      this.lastAccess = lastAccess;
+    }
+  }
 
-  final Map<String, User> activeUsers = new HashMap<String, User>();
+  /**
+   * Cache of constructed users. Each entry holds a FutureTask so that the first caller for a
+   * given uriUser performs the (possibly database-backed) load while concurrent callers for the
+   * same uriUser wait on that one load. Lookups take no lock, so callers for different users never
+   * wait on one another.
+   *
+   * Once it holds more than maxActiveUsers entries, the caller that overflowed it trims it,
+   * evicting the least recently used entries (by accessClock) until a tenth of the capacity is
+   * free again; the daemon and anonymous users are never evicted. Only one caller trims at a
+   * time and the others go on without waiting, so the cache may briefly run over its bound.
+   */
+  final ConcurrentMap<String, ActiveUser> activeUsers =
+      new ConcurrentHashMap<String, ActiveUser>();
+
+  private final AtomicLong accessClock = new AtomicLong();
+  private final ReentrantLock trimLock = new ReentrantLock();
 
   public UserServiceImpl() {}
 
@@ -97,6 +138,24 @@ public class UserServiceImpl implements org.opendatakit.security.UserService, In
     this.superUserUsernameRecord = null;
   }
 
+  public int getMaxActiveUsers() {
+    return maxActiveUsers;
+  }
+
+  public void setMaxActiveUsers(int maxActiveUsers) {
+    if (maxActiveUsers < 1) {
+      throw new IllegalArgumentException("maxActiveUsers must be positive");
+    }
+    this.maxActiveUsers = maxActiveUsers;
+  }
+
+  /**
+   * @return the number of users currently cached
+   */
+  public int getActiveUserCount() {
+    return activeUsers.size();
+  }
+
   @Override
   public boolean isSuperUsernamePasswordSet(CallingContext cc) throws ODKDatastoreException {
     if (superUserUsername == null) {
@@ -159,12 +218,22 @@ public class UserServiceImpl implements org.opendatakit.security.UserService, In
   }
 
   @Override
-  public synchronized void reloadPermissions() {
+  public void reloadPermissions() {
     logger.info("Executing: reloadPermissions");
     activeUsers.clear();
     superUserUsernameRecord = null;
   }
 
+  @Override
+  public void reloadPermissions(String uriUser) {
+    logger.info("Executing: reloadPermissions for " + uriUser);
+    if (uriUser == null) {
+      return;
+    }
+    activeUsers.remove(uriUser);
+    superUserUsernameRecord = null;
+  }
+
   @Override
   public boolean isAccessManagementConfigured() {
     try {
@@ -200,45 +269,100 @@ public class UserServiceImpl implements org.opendatakit.security.UserService, In
     }
   }
 
-  private synchronized User internalGetUser(String uriUser,
-      Collection<? extends GrantedAuthority> authorities) {
-    User match = activeUsers.get(uriUser);
-    if (match != null) {
-      return match;
-    } else if (User.ANONYMOUS_USER.equals(uriUser)) {
+  private User internalGetUser(final String uriUser,
+      final Collection<? extends GrantedAuthority> authorities) {
+    ActiveUser entry = activeUsers.get(uriUser);
+    if (entry != null) {
+      entry.lastAccess = accessClock.incrementAndGet();
+    } else {
+      ActiveUser created = new ActiveUser(
+          new FutureTask<User>(() -> loadUser(uriUser, authorities)),
+          accessClock.incrementAndGet());
+      entry = activeUsers.putIfAbsent(uriUser, created);
+      if (entry == null) {
+        entry = created;
+        // perform the load on this thread; callers for this user wait on it
+        entry.task.run();
+        if (activeUsers.size() > maxActiveUsers) {
+          trimActiveUsers();
+        }
+      }
+    }
+
+    try {
+      return entry.task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      // don't leave the caller empty-handed; build an uncached user
+      return loadUser(uriUser, authorities);
+    } catch (ExecutionException e) {
+      // loadUser handles its own datastore failures; anything here is unexpected
+      activeUsers.remove(uriUser, entry);
+      throw new IllegalStateException("Unable to construct user " + uriUser, e.getCause());
+    }
+  }
+
+  /**
+   * Evict the least recently used users until a tenth of the capacity is free. Does nothing if
+   * another caller is already trimming.
+   */
+  private void trimActiveUsers() {
+    if (!trimLock.tryLock()) {
+      return;
+    }
+    try {
+      int target = maxActiveUsers - maxActiveUsers / 10;
+      List<Map.Entry<String, ActiveUser>> candidates =
+          new ArrayList<Map.Entry<String, ActiveUser>>();
+      // sort on a snapshot, as the access times change underneath
+      Map<ActiveUser, Long> lastAccess = new HashMap<ActiveUser, Long>();
+      for (Map.Entry<String, ActiveUser> e : activeUsers.entrySet()) {
+        if (!User.DAEMON_USER.equals(e.getKey()) && !User.ANONYMOUS_USER.equals(e.getKey())) {
+          candidates.add(e);
+          lastAccess.put(e.getValue(), e.getValue().lastAccess);
+        }
+      }
+      candidates.sort((a, b) -> Long.compare(lastAccess.get(a.getValue()),
+          lastAccess.get(b.getValue())));
+      for (Map.Entry<String, ActiveUser> e : candidates) {
+        if (activeUsers.size() <= target) {
+          break;
+        }
+        activeUsers.remove(e.getKey(), e.getValue());
+      }
+    } finally {
+      trimLock.unlock();
+    }
+  }
+
+  private User loadUser(String uriUser, Collection<? extends GrantedAuthority> authorities) {
+    if (User.ANONYMOUS_USER.equals(uriUser)) {
       // ignored passed-in authorities
       Set<GrantedAuthority> anonGroups = new HashSet<GrantedAuthority>();
       anonGroups.add(new SimpleGrantedAuthority(GrantedAuthorityName.USER_IS_ANONYMOUS.name()));
-      match = new UserImpl(User.ANONYMOUS_USER, null, User.ANONYMOUS_USER_NICKNAME, anonGroups,
+      return new UserImpl(User.ANONYMOUS_USER, null, User.ANONYMOUS_USER_NICKNAME, anonGroups,
           datastore);
-      activeUsers.put(uriUser, match);
-      return match;
     } else if (User.DAEMON_USER.equals(uriUser)) {
       // ignored passed-in authorities
       Set<GrantedAuthority> daemonGroups = new HashSet<GrantedAuthority>();
-      daemonGroups = new HashSet<GrantedAuthority>();
       daemonGroups.add(new SimpleGrantedAuthority(GrantedAuthorityName.USER_IS_DAEMON.name()));
-      match =
-          new UserImpl(User.DAEMON_USER, null, User.DAEMON_USER_NICKNAME, daemonGroups, datastore);
-      activeUsers.put(uriUser, match);
-      return match;
+      return new UserImpl(User.DAEMON_USER, null, User.DAEMON_USER_NICKNAME, daemonGroups,
+          datastore);
     } else {
       try {
         RegisteredUsersTable t =
             RegisteredUsersTable.getUserByUri(uriUser, datastore, getDaemonAccountUser());
-        match = new UserImpl(uriUser, getEmail(uriUser, t.getEmail()), t.getDisplayName(),
+        return new UserImpl(uriUser, getEmail(uriUser, t.getEmail()), t.getDisplayName(),
             authorities, datastore);
       } catch (ODKEntityNotFoundException e) {
-        match = new UserImpl(uriUser, getEmail(uriUser, null), getNickname(uriUser), authorities,
+        return new UserImpl(uriUser, getEmail(uriUser, null), getNickname(uriUser), authorities,
             datastore);
       } catch (ODKDatastoreException e) {
         e.printStackTrace();
         // best guess...
-        match = new UserImpl(uriUser, getEmail(uriUser, null), getNickname(uriUser), authorities,
+        return new UserImpl(uriUser, getEmail(uriUser, null), getNickname(uriUser), authorities,
             datastore);
       }
-      activeUsers.put(uriUser, match);
-      return match;
     }
   }
 
@@ -15,10 +15,20 @@ package org.opendatakit.utils;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UTFDataFormatException;
 import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
 import org.javarosa.xform.parse.XFormParser;
 import org.kxml2.io.KXmlParser;
 import org.kxml2.io.KXmlSerializer;
@@ -39,9 +49,142 @@ public class WebCursorUtils {
 
   private static final String XML_TAG_NAMESPACE = "http://www.opendatakit.org/cursor";
 
+  /**
+   * Prefix of the compact cursor format: "c1." + base64url(fields) [ + "." + base64url(hmac) ].
+   * Neither base64url nor the gzip+base64url output of {@link WebUtils#safeEncode(String)} can
+   * contain '.', so the prefix cannot be confused with either.
+   */
+  static final String COMPACT_CURSOR_PREFIX = "c1.";
+  private static final char COMPACT_CURSOR_SEPARATOR = '.';
+
+  private static final int FLAG_FORWARD = 0x01;
+  private static final int FLAG_HAS_URI_LAST_RETURNED = 0x02;
+
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+  private static final int HMAC_LENGTH = 16;
+
+  private static volatile SecretKeySpec signingKey = null;
+  private static volatile boolean acceptUnsignedXml = false;
+
+  /**
+   * Sign compact cursors with HMAC-SHA256 under this key, and reject cursors that are not signed
+   * with it. Legacy XML cursors cannot be signed, so they are rejected too unless
+   * {@link #setAcceptUnsignedXml(boolean)} allows them while clients move over.
+   *
+   * @param key the key, or null or empty to turn signing off
+   */
+  public static void setSigningKey(byte[] key) {
+    signingKey = (key == null || key.length == 0) ? null : new SecretKeySpec(key, HMAC_ALGORITHM);
+  }
+
+  /**
+   * Whether legacy XML cursors are still accepted when a signing key is set. Off by default; turn
+   * it on only for the migration to signed cursors, as anyone can forge an XML cursor.
+   *
+   * @param accept true to accept XML cursors without a signature
+   */
+  public static void setAcceptUnsignedXml(boolean accept) {
+    acceptUnsignedXml = accept;
+  }
+
   public static final String formatCursorParameter(QueryResumePoint cursor) {
     if (cursor == null)
       return null;
+    String compact = formatCompactCursor(cursor);
+    if (compact != null) {
+      return compact;
+    }
+    return formatXmlCursorParameter(cursor);
+  }
+
+  /**
+   * @return the compact form of the cursor, or null if a field is too long for it.
+   */
+  private static String formatCompactCursor(QueryResumePoint cursor) {
+    ByteArrayOutputStream ba = new ByteArrayOutputStream(128);
+    DataOutputStream out = new DataOutputStream(ba);
+    try {
+      int flags = (cursor.isForwardCursor() ? FLAG_FORWARD : 0)
+          | (cursor.getUriLastReturnedValue() != null ? FLAG_HAS_URI_LAST_RETURNED : 0);
+      out.writeByte(flags);
+      out.writeUTF(cursor.getAttributeName());
+      out.writeUTF(cursor.getValue() == null ? "" : cursor.getValue());
+      if (cursor.getUriLastReturnedValue() != null) {
+        out.writeUTF(cursor.getUriLastReturnedValue());
+      }
+      out.flush();
+    } catch (UTFDataFormatException e) {
+      // a field is longer than 64k; the XML format has no such limit, but cannot be signed
+      return null;
+    } catch (IOException e) {
+      e.printStackTrace();
+      throw new IllegalStateException("unexpected failure");
+    }
+    byte[] payload = ba.toByteArray();
+    StringBuilder b = new StringBuilder(COMPACT_CURSOR_PREFIX);
+    b.append(Base64.encodeBase64URLSafeString(payload));
+    SecretKeySpec key = signingKey;
+    if (key != null) {
+      b.append(COMPACT_CURSOR_SEPARATOR);
+      b.append(Base64.encodeBase64URLSafeString(sign(key, payload)));
+    }
+    return b.toString();
+  }
+
+  private static byte[] sign(SecretKeySpec key, byte[] payload) {
+    try {
+      Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+      mac.init(key);
+      return Arrays.copyOf(mac.doFinal(payload), HMAC_LENGTH);
+    } catch (GeneralSecurityException e) {
+      e.printStackTrace();
+      throw new IllegalStateException("unexpected failure");
+    }
+  }
+
+  private static QueryResumePoint parseCompactCursor(String websafeCursorString) {
+    String body = websafeCursorString.substring(COMPACT_CURSOR_PREFIX.length());
+    int sep = body.indexOf(COMPACT_CURSOR_SEPARATOR);
+    String encodedPayload = (sep < 0) ? body : body.substring(0, sep);
+    byte[] payload = Base64.decodeBase64(encodedPayload);
+
+    SecretKeySpec key = signingKey;
+    if (key != null) {
+      if (sep < 0) {
+        throw new IllegalArgumentException("websafeCursor is not signed");
+      }
+      byte[] signature = Base64.decodeBase64(body.substring(sep + 1));
+      if (!MessageDigest.isEqual(signature, sign(key, payload))) {
+        throw new IllegalArgumentException("websafeCursor signature is invalid");
+      }
+    }
+
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+      int flags = in.readUnsignedByte();
+      String attributeName = in.readUTF();
+      String attributeValue = in.readUTF();
+      String uriLastReturnedValue = null;
+      if ((flags & FLAG_HAS_URI_LAST_RETURNED) != 0) {
+        uriLastReturnedValue = in.readUTF();
+      }
+      if (attributeName.length() == 0 || attributeValue.length() == 0) {
+        // matches the XML format, where empty elements read back as null
+        throw new IllegalArgumentException("null value for websafeCursor element");
+      }
+      return new QueryResumePoint(attributeName, attributeValue, uriLastReturnedValue,
+          (flags & FLAG_FORWARD) != 0);
+    } catch (IOException e) {
+      WebUtils.logger.error("websafe cursor is not parseable");
+      throw new IllegalArgumentException("unable to parse websafeCursor");
+    }
+  }
+
+  static boolean isCompactCursor(String websafeCursorString) {
+    return websafeCursorString.startsWith(COMPACT_CURSOR_PREFIX);
+  }
+
+  static final String formatXmlCursorParameter(QueryResumePoint cursor) {
     Document doc = new Document();
     doc.setStandalone(true);
     doc.setEncoding(BasicConsts.UTF8_ENCODE);
@@ -91,6 +234,13 @@ public class WebCursorUtils {
     if (websafeCursorString == null || websafeCursorString.length() == 0) {
       return null;
     }
+    if (isCompactCursor(websafeCursorString)) {
+      return parseCompactCursor(websafeCursorString);
+    }
+    if (signingKey != null && !acceptUnsignedXml) {
+      throw new IllegalArgumentException("websafeCursor is not signed");
+    }
+    // legacy XML cursor
     // parse the document
     ByteArrayInputStream is;
     try {
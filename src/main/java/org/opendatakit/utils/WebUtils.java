@@ -95,6 +95,10 @@ public class WebUtils {
     if (rawString == null || rawString.length() == 0) {
       return null;
     }
+    if (WebCursorUtils.isCompactCursor(rawString)) {
+      // already websafe and compact; gzip would only make it longer
+      return rawString;
+    }
 
     try {
       ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -123,6 +127,9 @@ public class WebUtils {
     if (encodedWebsafeString == null || encodedWebsafeString.length() == 0) {
       return encodedWebsafeString;
     }
+    if (WebCursorUtils.isCompactCursor(encodedWebsafeString)) {
+      return encodedWebsafeString;
+    }
 
     try {
       ByteArrayInputStream in = new ByteArrayInputStream(Base64.decodeBase64(encodedWebsafeString
@@ -0,0 +1,95 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.api.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response.Status;
+
+import org.junit.Test;
+
+public class CompressionWriterInterceptorTest {
+
+  private static ContainerRequestContext request() {
+    ContainerRequestContext request = mock(ContainerRequestContext.class);
+    when(request.getHeaderString(HttpHeaders.ACCEPT_ENCODING)).thenReturn("gzip, deflate");
+    return request;
+  }
+
+  private static ContainerResponseContext response(Status status,
+      MultivaluedMap<String, Object> headers) {
+    ContainerResponseContext response = mock(ContainerResponseContext.class);
+    when(response.hasEntity()).thenReturn(true);
+    when(response.getEntity()).thenReturn("entity");
+    when(response.getStatus()).thenReturn(status.getStatusCode());
+    when(response.getMediaType()).thenReturn(MediaType.APPLICATION_JSON_TYPE);
+    when(response.getHeaders()).thenReturn(headers);
+    return response;
+  }
+
+  @Test
+  public void testNegotiateEncoding() {
+    assertNull(CompressionWriterInterceptor.negotiateEncoding(null));
+    assertEquals("gzip", CompressionWriterInterceptor.negotiateEncoding("gzip, deflate"));
+    assertEquals("deflate", CompressionWriterInterceptor.negotiateEncoding("gzip;q=0.5, deflate"));
+    assertEquals("gzip", CompressionWriterInterceptor.negotiateEncoding("*"));
+    assertNull(CompressionWriterInterceptor.negotiateEncoding("gzip;q=0, identity"));
+  }
+
+  @Test
+  public void testIsCompressedType() {
+    assertTrue(CompressionWriterInterceptor.isCompressedType(MediaType.valueOf("image/png")));
+    assertFalse(CompressionWriterInterceptor.isCompressedType(MediaType.valueOf("image/svg+xml")));
+    assertTrue(CompressionWriterInterceptor.isCompressedType(MediaType.valueOf("application/zip")));
+    assertFalse(CompressionWriterInterceptor.isCompressedType(MediaType.APPLICATION_JSON_TYPE));
+  }
+
+  @Test
+  public void testCompressesOrdinaryResponse() throws Exception {
+    ContainerRequestContext request = request();
+    MultivaluedMap<String, Object> headers = new MultivaluedHashMap<String, Object>();
+    new CompressionWriterInterceptor().filter(request, response(Status.OK, headers));
+    verify(request).setProperty(anyString(), eq("gzip"));
+    assertEquals(HttpHeaders.ACCEPT_ENCODING, headers.getFirst(HttpHeaders.VARY));
+  }
+
+  @Test
+  public void testRangeableResponseIsNotCompressed() throws Exception {
+    ContainerRequestContext request = request();
+    MultivaluedMap<String, Object> headers = new MultivaluedHashMap<String, Object>();
+    headers.putSingle("Accept-Ranges", "bytes");
+    new CompressionWriterInterceptor().filter(request, response(Status.OK, headers));
+    verify(request, never()).setProperty(anyString(), eq("gzip"));
+  }
+
+  @Test
+  public void testPartialResponseIsNotCompressed() throws Exception {
+    ContainerRequestContext request = request();
+    MultivaluedMap<String, Object> headers = new MultivaluedHashMap<String, Object>();
+    new CompressionWriterInterceptor().filter(request, response(Status.PARTIAL_CONTENT, headers));
+    verify(request, never()).setProperty(anyString(), eq("gzip"));
+  }
+}
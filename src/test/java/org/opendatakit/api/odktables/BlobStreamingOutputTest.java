@@ -0,0 +1,111 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.api.odktables;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.junit.Test;
+import org.opendatakit.datamodel.BinaryContentManipulator.BlobStreamer;
+
+public class BlobStreamingOutputTest {
+
+  private static final String ETAG = "md5:0123456789abcdef0123456789abcdef";
+  private static final long LENGTH = 1000L;
+
+  private static Response respond(String range, String ifRange) {
+    HttpHeaders httpHeaders = mock(HttpHeaders.class);
+    when(httpHeaders.getHeaderString(BlobStreamingOutput.HEADER_RANGE)).thenReturn(range);
+    when(httpHeaders.getHeaderString("If-Range")).thenReturn(ifRange);
+    BlobStreamer blobStreamer = mock(BlobStreamer.class);
+    when(blobStreamer.getContentLength()).thenReturn(LENGTH);
+    return BlobStreamingOutput.responseFor(httpHeaders, blobStreamer, ETAG, null).build();
+  }
+
+  @Test
+  public void testParseRange() {
+    assertArrayEquals(new long[] { 0L, 499L }, BlobStreamingOutput.parseRange("bytes=0-499", LENGTH));
+    assertArrayEquals(new long[] { 500L, 999L }, BlobStreamingOutput.parseRange("bytes=500-", LENGTH));
+    assertArrayEquals(new long[] { 900L, 999L }, BlobStreamingOutput.parseRange("bytes=-100", LENGTH));
+    assertArrayEquals(new long[] { 0L, 999L }, BlobStreamingOutput.parseRange("bytes=-2000", LENGTH));
+    assertArrayEquals(new long[] { 10L, 999L }, BlobStreamingOutput.parseRange("bytes=10-5000", LENGTH));
+    assertArrayEquals(new long[0], BlobStreamingOutput.parseRange("bytes=1000-", LENGTH));
+    assertArrayEquals(new long[0], BlobStreamingOutput.parseRange("bytes=-0", LENGTH));
+    assertNull(BlobStreamingOutput.parseRange("bytes=0-1,5-6", LENGTH));
+    assertNull(BlobStreamingOutput.parseRange("items=0-1", LENGTH));
+    assertNull(BlobStreamingOutput.parseRange("bytes=5-1", LENGTH));
+    assertNull(BlobStreamingOutput.parseRange("bytes=a-", LENGTH));
+  }
+
+  @Test
+  public void testWholeFile() {
+    Response response = respond(null, null);
+    assertEquals(Status.OK.getStatusCode(), response.getStatus());
+    assertEquals(String.valueOf(LENGTH), response.getHeaderString(HttpHeaders.CONTENT_LENGTH));
+    assertEquals("bytes", response.getHeaderString(BlobStreamingOutput.HEADER_ACCEPT_RANGES));
+    assertEquals(ETAG, response.getHeaderString(HttpHeaders.ETAG));
+    assertTrue(response.getEntity() instanceof BlobStreamingOutput);
+  }
+
+  @Test
+  public void testRange() {
+    Response response = respond("bytes=100-199", null);
+    assertEquals(Status.PARTIAL_CONTENT.getStatusCode(), response.getStatus());
+    assertEquals("bytes 100-199/1000",
+        response.getHeaderString(BlobStreamingOutput.HEADER_CONTENT_RANGE));
+    assertEquals("100", response.getHeaderString(HttpHeaders.CONTENT_LENGTH));
+    assertEquals(ETAG, response.getHeaderString(HttpHeaders.ETAG));
+  }
+
+  @Test
+  public void testIfRangeMatches() {
+    Response response = respond("bytes=500-", "\"" + ETAG + "\"");
+    assertEquals(Status.PARTIAL_CONTENT.getStatusCode(), response.getStatus());
+    assertEquals("bytes 500-999/1000",
+        response.getHeaderString(BlobStreamingOutput.HEADER_CONTENT_RANGE));
+  }
+
+  @Test
+  public void testIfRangeStaleSendsWholeFile() {
+    Response response = respond("bytes=500-", "\"md5:ffffffffffffffffffffffffffffffff\"");
+    assertEquals(Status.OK.getStatusCode(), response.getStatus());
+    assertEquals(String.valueOf(LENGTH), response.getHeaderString(HttpHeaders.CONTENT_LENGTH));
+    assertNull(response.getHeaderString(BlobStreamingOutput.HEADER_CONTENT_RANGE));
+  }
+
+  @Test
+  public void testIfRangeWeakSendsWholeFile() {
+    Response response = respond("bytes=500-", "W/\"" + ETAG + "\"");
+    assertEquals(Status.OK.getStatusCode(), response.getStatus());
+  }
+
+  @Test
+  public void testUnsatisfiableRange() {
+    Response response = respond("bytes=1000-1999", null);
+    assertEquals(Status.REQUESTED_RANGE_NOT_SATISFIABLE.getStatusCode(), response.getStatus());
+    assertEquals("bytes */1000", response.getHeaderString(BlobStreamingOutput.HEADER_CONTENT_RANGE));
+    assertNull(response.getEntity());
+  }
+
+  @Test
+  public void testMultipleRangesSendWholeFile() {
+    Response response = respond("bytes=0-9,20-29", null);
+    assertEquals(Status.OK.getStatusCode(), response.getStatus());
+  }
+}
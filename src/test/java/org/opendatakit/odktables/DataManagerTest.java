@@ -0,0 +1,189 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.odktables;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
+import org.opendatakit.aggregate.odktables.rest.entity.RowList;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcome;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.aggregate.odktables.rest.entity.TableRole.TablePermission;
+import org.opendatakit.configuration.annotations.DBUnitTestConfig;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.odktables.security.TablesUserPermissions;
+import org.opendatakit.persistence.exception.ODKEntityNotFoundException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Row changes and filtered diffs, against a real database.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@DBUnitTestConfig
+public class DataManagerTest {
+
+  private static final String APP_ID = "default";
+  private static final String TABLE_ID = "data_manager_test";
+  private static final String AGE = "age";
+
+  @Autowired
+  CallingContext callingContext;
+
+  private TablesUserPermissions userPermissions;
+  private TableManager tm;
+  private DataManager dm;
+
+  @Before
+  public void setUp() throws Exception {
+    userPermissions = mock(TablesUserPermissions.class);
+    when(userPermissions.getOdkTablesUserId()).thenReturn("mailto:testuser@gmail.com");
+    when(userPermissions.getAccessScope(anyString(), anyString())).thenReturn("");
+    when(userPermissions.hasPermission(anyString(), anyString(), any(TablePermission.class)))
+        .thenReturn(true);
+    when(userPermissions.hasFilterScope(anyString(), anyString(), any(TablePermission.class),
+        anyString(), any(Scope.class))).thenReturn(true);
+
+    tm = new TableManager(APP_ID, userPermissions, callingContext);
+    dropTable();
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column(AGE, AGE, "integer", "[]"));
+    tm.createTable(TABLE_ID, columns, null);
+    dm = new DataManager(APP_ID, TABLE_ID, userPermissions, callingContext);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    dropTable();
+  }
+
+  private void dropTable() throws Exception {
+    try {
+      tm.deleteTable(TABLE_ID);
+    } catch (ODKEntityNotFoundException e) {
+      // not there
+    }
+  }
+
+  private static Row row(String rowId, String rowETag, String age) {
+    ArrayList<DataKeyValue> values = new ArrayList<DataKeyValue>();
+    values.add(new DataKeyValue(AGE, age));
+    if (rowETag == null) {
+      return Row.forInsert(rowId, null, null, null, null, null,
+          RowFilterScope.EMPTY_ROW_FILTER, values);
+    }
+    return Row.forUpdate(rowId, rowETag, null, null, null, null, null,
+        RowFilterScope.EMPTY_ROW_FILTER, values);
+  }
+
+  private static Map<String, String> rowETags(RowOutcomeList outcomes) {
+    Map<String, String> rowETags = new HashMap<String, String>();
+    for (RowOutcome outcome : outcomes.getRows()) {
+      assertEquals(RowOutcome.OutcomeType.SUCCESS, outcome.getOutcome());
+      rowETags.put(outcome.getRowId(), outcome.getRowETag());
+    }
+    return rowETags;
+  }
+
+  private static Map<String, Row> byRowId(Iterable<Row> rows) {
+    Map<String, Row> result = new HashMap<String, Row>();
+    for (Row row : rows) {
+      result.put(row.getRowId(), row);
+    }
+    return result;
+  }
+
+  private static String age(Row row) {
+    for (DataKeyValue value : row.getValues()) {
+      if (AGE.equals(value.column)) {
+        return value.value;
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void testFilteredDiffReportsCurrentVersions() throws Exception {
+    ArrayList<Row> inserts = new ArrayList<Row>();
+    inserts.add(row("r1", null, "10"));
+    inserts.add(row("r2", null, "30"));
+    inserts.add(row("r3", null, "50"));
+    RowOutcomeList inserted = dm.insertOrUpdateRows(new RowList(inserts, null));
+    Map<String, String> rowETags = rowETags(inserted);
+    String since = inserted.getDataETag();
+
+    // r1 starts to match, r2 stops matching, r3 is deleted
+    ArrayList<Row> updates = new ArrayList<Row>();
+    updates.add(row("r1", rowETags.get("r1"), "40"));
+    updates.add(row("r2", rowETags.get("r2"), "5"));
+    Row deleted = row("r3", rowETags.get("r3"), "50");
+    deleted.setDeleted(true);
+    updates.add(deleted);
+    rowETags(dm.insertOrUpdateRows(new RowList(updates, since)));
+
+    Map<String, Row> diff = byRowId(dm.streamRowsSince(since, null, 100,
+        RowFilter.parse(AGE + " >= 18"), null).rows);
+
+    assertEquals(2, diff.size());
+    assertEquals("40", age(diff.get("r1")));
+    assertTrue(diff.get("r3").isDeleted());
+  }
+
+  @Test
+  public void testFilteredDiffIgnoresOlderMatchingVersions() throws Exception {
+    ArrayList<Row> inserts = new ArrayList<Row>();
+    inserts.add(row("r1", null, "20"));
+    RowOutcomeList inserted = dm.insertOrUpdateRows(new RowList(inserts, null));
+    Map<String, String> rowETags = rowETags(inserted);
+
+    ArrayList<Row> updates = new ArrayList<Row>();
+    updates.add(row("r1", rowETags.get("r1"), "12"));
+    rowETags(dm.insertOrUpdateRows(new RowList(updates, inserted.getDataETag())));
+
+    // from the beginning: the logged insert matches, the current version does not
+    Map<String, Row> diff = byRowId(dm.streamRowsSince(null, null, 100,
+        RowFilter.parse(AGE + " >= 18"), null).rows);
+    assertTrue(diff.isEmpty());
+
+    diff = byRowId(dm.streamRowsSince(null, null, 100, RowFilter.parse(AGE + " < 18"), null).rows);
+    assertEquals(1, diff.size());
+    assertEquals("12", age(diff.get("r1")));
+  }
+
+  @Test
+  public void testUnfilteredDiffReportsEveryChange() throws Exception {
+    ArrayList<Row> inserts = new ArrayList<Row>();
+    inserts.add(row("r1", null, "10"));
+    inserts.add(row("r2", null, "30"));
+    dm.insertOrUpdateRows(new RowList(inserts, null));
+
+    Map<String, Row> diff = byRowId(dm.streamRowsSince(null, null, 100, null, null).rows);
+    assertEquals(2, diff.size());
+  }
+}
@@ -0,0 +1,194 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.odktables;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.UUID;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.configuration.annotations.DBUnitTestConfig;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.datamodel.BlobStore;
+import org.opendatakit.datamodel.BlobStore.StoredBlob;
+import org.opendatakit.datamodel.BlobStores;
+import org.opendatakit.ermodel.AbstractBlobRelationSet;
+import org.opendatakit.ermodel.BlobEntitySet;
+import org.opendatakit.odktables.relation.DbBlobStoreReference;
+import org.opendatakit.odktables.relation.DbBlobStoreReference.DbBlobStoreReferenceEntity;
+import org.opendatakit.persistence.exception.ODKDatastoreException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Reference counting of deduplicated attachment content, against a real database.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@DBUnitTestConfig
+public class DatastoreBlobStoreTest {
+
+  @Autowired
+  CallingContext callingContext;
+
+  private DatastoreBlobStore store;
+  // the store the server was configured with, put back afterwards
+  private BlobStore configured;
+
+  static class MyBlobRelationSet extends AbstractBlobRelationSet {
+
+    MyBlobRelationSet(String name, CallingContext callingContext) throws ODKDatastoreException {
+      super(name, callingContext);
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    configured = BlobStores.getActive();
+    store = new DatastoreBlobStore();
+    BlobStores.register(store, true);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (configured != null) {
+      BlobStores.register(configured, true);
+    } else {
+      BlobStores.unregister(store);
+    }
+  }
+
+  /**
+   * @return content that no earlier run has stored
+   */
+  private static byte[] uniqueContent() {
+    return ("dedup test content " + UUID.randomUUID()).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String keyOf(byte[] content) throws Exception {
+    MessageDigest sha = MessageDigest.getInstance("SHA-256");
+    return DatastoreBlobStore.NAME + ":" + Hex.encodeHexString(sha.digest(content));
+  }
+
+  private Long refCount(String key) throws ODKDatastoreException {
+    DbBlobStoreReferenceEntity reference = DbBlobStoreReference.getReference(key, callingContext);
+    return (reference == null) ? null : reference.getRefCount();
+  }
+
+  private byte[] read(String key, int length) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    store.writeTo(key, out, 0L, length, callingContext);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testIdenticalContentIsStoredOnce() throws Exception {
+    byte[] content = uniqueContent();
+
+    StoredBlob first = store.put(content, callingContext);
+    StoredBlob second = store.put(content, callingContext);
+    StoredBlob streamed = store.put(new ByteArrayInputStream(content), callingContext);
+
+    assertEquals(keyOf(content), first.getKey());
+    assertEquals(first.getKey(), second.getKey());
+    assertEquals(first.getKey(), streamed.getKey());
+    assertEquals(first.getContentHash(), streamed.getContentHash());
+    assertEquals(Long.valueOf(3L), refCount(first.getKey()));
+    assertArrayEquals(content, read(first.getKey(), content.length));
+
+    store.release(first.getKey(), callingContext);
+    store.release(second.getKey(), callingContext);
+    store.release(streamed.getKey(), callingContext);
+  }
+
+  @Test
+  public void testDifferentContentIsStoredSeparately() throws Exception {
+    StoredBlob first = store.put(uniqueContent(), callingContext);
+    StoredBlob second = store.put(uniqueContent(), callingContext);
+
+    assertNotEquals(first.getKey(), second.getKey());
+    assertEquals(Long.valueOf(1L), refCount(first.getKey()));
+    assertEquals(Long.valueOf(1L), refCount(second.getKey()));
+
+    store.release(first.getKey(), callingContext);
+    store.release(second.getKey(), callingContext);
+  }
+
+  @Test
+  public void testContentOutlivesAllButTheLastRelease() throws Exception {
+    byte[] content = uniqueContent();
+    String key = store.put(content, callingContext).getKey();
+    store.put(content, callingContext);
+
+    store.release(key, callingContext);
+    assertEquals(Long.valueOf(1L), refCount(key));
+    assertArrayEquals(content, read(key, content.length));
+
+    store.release(key, callingContext);
+    assertNull(refCount(key));
+    try {
+      read(key, content.length);
+      throw new AssertionError("released content is still readable");
+    } catch (IOException e) {
+      // removed
+    }
+  }
+
+  @Test
+  public void testContentIsStoredAgainAfterItsLastRelease() throws Exception {
+    byte[] content = uniqueContent();
+    String key = store.put(content, callingContext).getKey();
+    store.release(key, callingContext);
+
+    assertEquals(key, store.put(new ByteArrayInputStream(content), callingContext).getKey());
+    assertEquals(Long.valueOf(1L), refCount(key));
+    assertArrayEquals(content, read(key, content.length));
+
+    store.release(key, callingContext);
+  }
+
+  @Test
+  public void testAttachmentsShareContentAcrossRelationSets() throws Exception {
+    byte[] content = uniqueContent();
+    String key = keyOf(content);
+    MyBlobRelationSet one = new MyBlobRelationSet("TEST_DEDUP_ONE", callingContext);
+    MyBlobRelationSet two = new MyBlobRelationSet("TEST_DEDUP_TWO", callingContext);
+    try {
+      BlobEntitySet a = one.newBlobEntitySet(callingContext);
+      a.addBlob(content, "text/plain", "a.txt", false, callingContext);
+      BlobEntitySet b = two.newBlobEntitySet(callingContext);
+      b.addBlob(new ByteArrayInputStream(content), "text/plain", "b.txt", false, callingContext);
+      assertEquals(Long.valueOf(2L), refCount(key));
+
+      a.remove(callingContext);
+      assertEquals(Long.valueOf(1L), refCount(key));
+      assertArrayEquals(content, two.getBlobEntitySet(b.getUri(), callingContext)
+          .getBlob(1, callingContext));
+
+      b.remove(callingContext);
+      assertNull(refCount(key));
+    } finally {
+      one.dropBlobRelationSet(callingContext);
+      two.dropBlobRelationSet(callingContext);
+    }
+  }
+}
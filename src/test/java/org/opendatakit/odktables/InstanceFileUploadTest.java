@@ -0,0 +1,214 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.odktables;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.aggregate.odktables.rest.entity.TableRole.TablePermission;
+import org.opendatakit.api.odktables.InstanceFileService;
+import org.opendatakit.configuration.annotations.DBUnitTestConfig;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.odktables.exception.FileNotFoundException;
+import org.opendatakit.odktables.exception.InstanceFileModificationException;
+import org.opendatakit.odktables.exception.UploadOffsetMismatchException;
+import org.opendatakit.odktables.relation.DbInstanceFileUpload.DbInstanceFileUploadEntity;
+import org.opendatakit.odktables.security.TablesUserPermissions;
+import org.opendatakit.persistence.PersistenceUtils;
+import org.opendatakit.persistence.exception.ODKEntityNotFoundException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Resumable uploads of instance attachments, against a real database.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@DBUnitTestConfig
+public class InstanceFileUploadTest {
+
+  private static final String APP_ID = "default";
+  private static final String TABLE_ID = "instance_file_upload_test";
+  private static final String ROW_ID = "r1";
+  private static final String PATH = "photo.jpg";
+  private static final String CONTENT_TYPE = "image/jpeg";
+
+  private static final byte[] CONTENT = "0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+  @Autowired
+  CallingContext callingContext;
+
+  private TablesUserPermissions userPermissions;
+  private TableManager tm;
+  private InstanceFileManager fm;
+
+  private static TablesUserPermissions permissionsFor(String user) throws Exception {
+    TablesUserPermissions permissions = mock(TablesUserPermissions.class);
+    when(permissions.getOdkTablesUserId()).thenReturn(user);
+    when(permissions.hasPermission(anyString(), anyString(), any(TablePermission.class)))
+        .thenReturn(true);
+    return permissions;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    userPermissions = permissionsFor("mailto:testuser@gmail.com");
+    tm = new TableManager(APP_ID, userPermissions, callingContext);
+    dropTable();
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column("age", "age", "integer", "[]"));
+    tm.createTable(TABLE_ID, columns, null);
+    fm = new InstanceFileManager(APP_ID, callingContext);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    dropTable();
+  }
+
+  private void dropTable() throws Exception {
+    try {
+      tm.deleteTable(TABLE_ID);
+    } catch (ODKEntityNotFoundException e) {
+      // not there
+    }
+  }
+
+  private DbInstanceFileUploadEntity createUpload(byte[] expected) throws Exception {
+    return fm.createUpload(TABLE_ID, ROW_ID, PATH, CONTENT_TYPE,
+        PersistenceUtils.newMD5HashUri(expected), CONTENT.length, userPermissions);
+  }
+
+  private DbInstanceFileUploadEntity append(String uploadId, long offset, int from, int to)
+      throws Exception {
+    return fm.appendToUpload(TABLE_ID, ROW_ID, uploadId, offset,
+        new ByteArrayInputStream(Arrays.copyOfRange(CONTENT, from, to)), userPermissions);
+  }
+
+  private void assertUploadGone(String uploadId) throws Exception {
+    try {
+      fm.getUpload(TABLE_ID, ROW_ID, uploadId, userPermissions);
+      fail("upload " + uploadId + " is still there");
+    } catch (FileNotFoundException e) {
+      // removed
+    }
+  }
+
+  @Test
+  public void testUploadResumesFromItsOffset() throws Exception {
+    String uploadId = createUpload(CONTENT).getId();
+
+    assertEquals(Long.valueOf(6L), append(uploadId, 0L, 0, 6).getUploadOffset());
+    assertEquals(Long.valueOf(6L),
+        fm.getUpload(TABLE_ID, ROW_ID, uploadId, userPermissions).getUploadOffset());
+    assertEquals(Long.valueOf(CONTENT.length),
+        append(uploadId, 6L, 6, CONTENT.length).getUploadOffset());
+
+    // completed and attached
+    assertUploadGone(uploadId);
+    FileContentInfo attached = fm.getFile(TABLE_ID, ROW_ID, PATH, userPermissions);
+    assertArrayEquals(CONTENT, attached.fileBlob);
+  }
+
+  @Test
+  public void testAppendAtAnotherOffsetConflicts() throws Exception {
+    String uploadId = createUpload(CONTENT).getId();
+    append(uploadId, 0L, 0, 6);
+
+    try {
+      append(uploadId, 4L, 4, CONTENT.length);
+      fail("appended at the wrong offset");
+    } catch (UploadOffsetMismatchException e) {
+      assertEquals(6L, e.getUploadOffset());
+    }
+    assertEquals(Long.valueOf(6L),
+        fm.getUpload(TABLE_ID, ROW_ID, uploadId, userPermissions).getUploadOffset());
+  }
+
+  @Test
+  public void testAppendAtAnotherOffsetIsConflict() throws Exception {
+    String uploadId = createUpload(CONTENT).getId();
+    HttpHeaders headers = mock(HttpHeaders.class);
+    when(headers.getHeaderString(InstanceFileService.HEADER_TUS_RESUMABLE))
+        .thenReturn(InstanceFileService.TUS_VERSION);
+    when(headers.getHeaderString(InstanceFileService.HEADER_UPLOAD_OFFSET)).thenReturn("3");
+    InstanceFileService service = new InstanceFileService(APP_ID, TABLE_ID, null, ROW_ID, null,
+        userPermissions, InstanceFileReaders.SEQUENTIAL, callingContext);
+
+    Response response = service.appendToUpload(headers, uploadId,
+        new ByteArrayInputStream(CONTENT));
+
+    assertEquals(Status.CONFLICT.getStatusCode(), response.getStatus());
+    assertEquals("0", response.getHeaderString(InstanceFileService.HEADER_UPLOAD_OFFSET));
+  }
+
+  @Test
+  public void testContentNotMatchingItsHashIsRejected() throws Exception {
+    String uploadId = createUpload("something else".getBytes(StandardCharsets.UTF_8)).getId();
+
+    try {
+      append(uploadId, 0L, 0, CONTENT.length);
+      fail("attached content that does not match its md5 hash");
+    } catch (InstanceFileModificationException e) {
+      // rejected
+    }
+    assertUploadGone(uploadId);
+    assertNull(fm.getFile(TABLE_ID, ROW_ID, PATH, userPermissions));
+  }
+
+  @Test
+  public void testUploadIsOnlyVisibleToItsCreator() throws Exception {
+    String uploadId = createUpload(CONTENT).getId();
+    TablesUserPermissions other = permissionsFor("mailto:otheruser@gmail.com");
+
+    try {
+      fm.getUpload(TABLE_ID, ROW_ID, uploadId, other);
+      fail("another user saw the upload");
+    } catch (FileNotFoundException e) {
+      // not theirs
+    }
+    try {
+      fm.appendToUpload(TABLE_ID, ROW_ID, uploadId, 0L, new ByteArrayInputStream(CONTENT),
+          other);
+      fail("another user appended to the upload");
+    } catch (FileNotFoundException e) {
+      // not theirs
+    }
+    try {
+      fm.deleteUpload(TABLE_ID, ROW_ID, uploadId, other);
+      fail("another user abandoned the upload");
+    } catch (FileNotFoundException e) {
+      // not theirs
+    }
+    assertEquals(Long.valueOf(0L),
+        fm.getUpload(TABLE_ID, ROW_ID, uploadId, userPermissions).getUploadOffset());
+  }
+}
@@ -0,0 +1,202 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.odktables;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
+import org.opendatakit.aggregate.odktables.rest.entity.RowList;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcome;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.aggregate.odktables.rest.entity.TableRole.TablePermission;
+import org.opendatakit.configuration.annotations.DBUnitTestConfig;
+import org.opendatakit.context.CallingContext;
+import org.opendatakit.odktables.relation.DbTableEntry;
+import org.opendatakit.odktables.relation.DbTableEntry.DbTableEntryEntity;
+import org.opendatakit.odktables.security.TablesUserPermissions;
+import org.opendatakit.persistence.exception.ODKEntityNotFoundException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Compaction of the table change logs, against a real database.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@DBUnitTestConfig
+public class LogCompactorTest {
+
+  private static final String APP_ID = "default";
+  private static final String TABLE_ID = "log_compactor_test";
+  private static final String AGE = "age";
+
+  @Autowired
+  CallingContext callingContext;
+
+  private TableManager tm;
+  private DataManager dm;
+  private LogCompactor compactor;
+
+  private final Map<String, String> rowETags = new HashMap<String, String>();
+  private String dataETag;
+
+  @Before
+  public void setUp() throws Exception {
+    TablesUserPermissions userPermissions = mock(TablesUserPermissions.class);
+    when(userPermissions.getOdkTablesUserId()).thenReturn("mailto:testuser@gmail.com");
+    when(userPermissions.getAccessScope(anyString(), anyString())).thenReturn("");
+    when(userPermissions.hasPermission(anyString(), anyString(), any(TablePermission.class)))
+        .thenReturn(true);
+    when(userPermissions.hasFilterScope(anyString(), anyString(), any(TablePermission.class),
+        anyString(), any(Scope.class))).thenReturn(true);
+
+    tm = new TableManager(APP_ID, userPermissions, callingContext);
+    dropTable();
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column(AGE, AGE, "integer", "[]"));
+    tm.createTable(TABLE_ID, columns, null);
+    dm = new DataManager(APP_ID, TABLE_ID, userPermissions, callingContext);
+    // no retention: every superseded entry written before the run is removed; small batches
+    compactor = new LogCompactor(callingContext, 0L, new HashMap<String, Long>(), 2, 0L);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    dropTable();
+  }
+
+  private void dropTable() throws Exception {
+    try {
+      tm.deleteTable(TABLE_ID);
+    } catch (ODKEntityNotFoundException e) {
+      // not there
+    }
+  }
+
+  /**
+   * Insert or update the given rows, each given as a rowId and age, as one change set.
+   *
+   * @return the dataETag of the change set
+   */
+  private String write(String... rowIdsAndAges) throws Exception {
+    ArrayList<Row> rows = new ArrayList<Row>();
+    for (int i = 0; i < rowIdsAndAges.length; i += 2) {
+      String rowId = rowIdsAndAges[i];
+      ArrayList<DataKeyValue> values = new ArrayList<DataKeyValue>();
+      values.add(new DataKeyValue(AGE, rowIdsAndAges[i + 1]));
+      String rowETag = rowETags.get(rowId);
+      if (rowETag == null) {
+        rows.add(Row.forInsert(rowId, null, null, null, null, null,
+            RowFilterScope.EMPTY_ROW_FILTER, values));
+      } else {
+        rows.add(Row.forUpdate(rowId, rowETag, null, null, null, null, null,
+            RowFilterScope.EMPTY_ROW_FILTER, values));
+      }
+    }
+    RowOutcomeList outcomes = dm.insertOrUpdateRows(new RowList(rows, dataETag));
+    for (RowOutcome outcome : outcomes.getRows()) {
+      assertEquals(RowOutcome.OutcomeType.SUCCESS, outcome.getOutcome());
+      rowETags.put(outcome.getRowId(), outcome.getRowETag());
+    }
+    dataETag = outcomes.getDataETag();
+    return dataETag;
+  }
+
+  private LogCompactor.Result compact() throws Exception {
+    // the entries must be older than the horizon
+    Thread.sleep(50L);
+    return compactor.compactTable(TABLE_ID);
+  }
+
+  private Map<String, String> agesSince(String since) throws Exception {
+    Map<String, String> ages = new HashMap<String, String>();
+    for (Row row : dm.getRowsSince(since, null, 100).rows) {
+      assertEquals(rowETags.get(row.getRowId()), row.getRowETag());
+      for (DataKeyValue value : row.getValues()) {
+        if (AGE.equals(value.column)) {
+          ages.put(row.getRowId(), value.value);
+        }
+      }
+    }
+    return ages;
+  }
+
+  @Test
+  public void testCurrentEntriesSurvive() throws Exception {
+    write("r1", "10", "r2", "20", "r3", "30");
+    write("r1", "11");
+    write("r1", "12", "r3", "31");
+
+    // r1's first two versions and r3's first
+    assertEquals(3L, compact().getRows());
+    // only current entries remain
+    assertEquals(0L, compact().getRows());
+
+    Map<String, String> ages = agesSince(null);
+    assertEquals(3, ages.size());
+    assertEquals("12", ages.get("r1"));
+    assertEquals("20", ages.get("r2"));
+    assertEquals("31", ages.get("r3"));
+  }
+
+  @Test
+  public void testRowsSinceCompactedDataETag() throws Exception {
+    String first = write("r1", "10", "r2", "20");
+    String second = write("r1", "11");
+    write("r1", "12");
+    write("r2", "21");
+    String last = write("r3", "30");
+
+    // no entry carries the first two dataETags any more
+    assertEquals(3L, compact().getRows());
+
+    Map<String, String> ages = agesSince(first);
+    assertEquals(3, ages.size());
+    assertEquals("12", ages.get("r1"));
+    assertEquals("21", ages.get("r2"));
+    assertEquals("30", ages.get("r3"));
+
+    assertEquals(ages, agesSince(second));
+    assertEquals(0, agesSince(last).size());
+  }
+
+  @Test
+  public void testTableWithPendingChangeIsSkipped() throws Exception {
+    write("r1", "10");
+    write("r1", "11");
+
+    DbTableEntryEntity entry = DbTableEntry.getTableIdEntry(TABLE_ID, callingContext);
+    entry.setPendingDataETag("uuid:pending");
+    entry.put(callingContext);
+    assertEquals(0L, compact().getRows());
+
+    entry = DbTableEntry.getTableIdEntry(TABLE_ID, callingContext);
+    entry.setPendingDataETag(null);
+    entry.put(callingContext);
+    assertEquals(1L, compact().getRows());
+  }
+}
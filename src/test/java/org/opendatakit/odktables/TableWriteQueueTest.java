@@ -0,0 +1,273 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.odktables;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.odktables.DataManager.RowOutcomeSink;
+import org.opendatakit.odktables.DataManager.RowWriteSession;
+import org.opendatakit.odktables.exception.TableDataETagMismatchException;
+import org.opendatakit.persistence.exception.ODKTaskLockException;
+
+public class TableWriteQueueTest {
+
+  private static final long WAIT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  private static final long RETAIN_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  private DataManager dm;
+  private RowOutcomeSink outcomes;
+
+  /**
+   * Holds the writers until they are run, so that jobs can be queued behind one another.
+   */
+  private static class HeldExecutor implements Executor {
+    final List<Runnable> held = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(Runnable command) {
+      held.add(command);
+    }
+
+    void runAll() {
+      while (!held.isEmpty()) {
+        held.remove(0).run();
+      }
+    }
+  }
+
+  private static class Resource implements Closeable {
+    boolean closed = false;
+
+    @Override
+    public void close() throws IOException {
+      closed = true;
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    dm = mock(DataManager.class);
+    when(dm.getAppId()).thenReturn("default");
+    when(dm.getTableId()).thenReturn("table");
+    outcomes = mock(RowOutcomeSink.class);
+  }
+
+  private TableWriteQueue.Job submit(TableWriteQueue queue, String rowsDataETag, int rowCount,
+      Closeable... resources) {
+    List<Row> rows = new ArrayList<Row>();
+    for (int i = 0; i < rowCount; ++i) {
+      rows.add(new Row());
+    }
+    List<Closeable> list = new ArrayList<Closeable>();
+    Collections.addAll(list, resources);
+    return queue.submit(dm, "mailto:testuser@gmail.com", rowsDataETag, null, null, rows,
+        outcomes, list);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void applyReturns(String rowsDataETag, final String dataETag) throws Exception {
+    when(dm.applyRows(any(RowWriteSession.class), eq(rowsDataETag), anyString(), anyString(),
+        any(Iterator.class), any(RowOutcomeSink.class))).thenAnswer(
+            new Answer<String>() {
+              @Override
+              public String answer(InvocationOnMock invocation) {
+                Iterator<Row> rows = (Iterator<Row>) invocation.getArguments()[4];
+                while (rows.hasNext()) {
+                  rows.next();
+                }
+                return dataETag;
+              }
+            });
+  }
+
+  @Test
+  public void testSucceededJobIsCollectable() throws Exception {
+    applyReturns("e0", "e1");
+    TableWriteQueue queue = new TableWriteQueue(null, 16, Long.MAX_VALUE, Long.MAX_VALUE,
+        WAIT_MILLIS, RETAIN_MILLIS);
+
+    TableWriteQueue.Job job = submit(queue, "e0", 3);
+
+    assertTrue(job.isDone());
+    assertEquals(TableWriteQueue.State.SUCCEEDED, job.getState());
+    assertEquals("e1", job.getDataETag());
+    assertNull(job.getFailure());
+    assertEquals("table", job.getTableId());
+    assertSame(job, queue.getJob(job.getId()));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testFailedJobReportsFailure() throws Exception {
+    TableDataETagMismatchException mismatch = new TableDataETagMismatchException("stale");
+    when(dm.applyRows(any(RowWriteSession.class), eq("stale"), anyString(), anyString(),
+        any(Iterator.class), any(RowOutcomeSink.class))).thenThrow(mismatch);
+    TableWriteQueue queue = new TableWriteQueue(null, 16, Long.MAX_VALUE, Long.MAX_VALUE,
+        WAIT_MILLIS, RETAIN_MILLIS);
+
+    TableWriteQueue.Job job = submit(queue, "stale", 1);
+
+    assertEquals(TableWriteQueue.State.FAILED, job.getState());
+    assertSame(mismatch, job.getFailure());
+    assertNull(job.getDataETag());
+  }
+
+  @Test
+  public void testUnavailableLockFailsOnlyTheFirstJob() throws Exception {
+    applyReturns("e0", "e1");
+    when(dm.openWriteSession()).thenThrow(new ODKTaskLockException("busy")).thenReturn(null);
+    HeldExecutor writers = new HeldExecutor();
+    TableWriteQueue queue = new TableWriteQueue(writers, 16, Long.MAX_VALUE, Long.MAX_VALUE,
+        WAIT_MILLIS, RETAIN_MILLIS);
+
+    TableWriteQueue.Job first = submit(queue, "e0", 1);
+    TableWriteQueue.Job second = submit(queue, "e0", 1);
+    assertEquals(TableWriteQueue.State.QUEUED, first.getState());
+    writers.runAll();
+
+    assertEquals(TableWriteQueue.State.FAILED, first.getState());
+    assertTrue(first.getFailure() instanceof ODKTaskLockException);
+    assertEquals(TableWriteQueue.State.SUCCEEDED, second.getState());
+  }
+
+  @Test
+  public void testBatchIsBoundedByJobs() throws Exception {
+    applyReturns("e0", "e1");
+    HeldExecutor writers = new HeldExecutor();
+    TableWriteQueue queue = new TableWriteQueue(writers, 2, Long.MAX_VALUE, Long.MAX_VALUE,
+        WAIT_MILLIS, RETAIN_MILLIS);
+
+    for (int i = 0; i < 5; ++i) {
+      submit(queue, "e0", 1);
+    }
+    writers.runAll();
+
+    verify(dm, times(3)).openWriteSession();
+  }
+
+  @Test
+  public void testBatchIsBoundedByRows() throws Exception {
+    applyReturns("e0", "e1");
+    HeldExecutor writers = new HeldExecutor();
+    TableWriteQueue queue = new TableWriteQueue(writers, 16, 10L, Long.MAX_VALUE, WAIT_MILLIS,
+        RETAIN_MILLIS);
+
+    TableWriteQueue.Job large = submit(queue, "e0", 10);
+    TableWriteQueue.Job small = submit(queue, "e0", 1);
+    TableWriteQueue.Job last = submit(queue, "e0", 1);
+    writers.runAll();
+
+    // the large change fills its batch; the others share the next one
+    verify(dm, times(2)).openWriteSession();
+    assertTrue(large.isDone() && small.isDone() && last.isDone());
+  }
+
+  @Test
+  public void testBatchIsBoundedByTime() throws Exception {
+    applyReturns("e0", "e1");
+    HeldExecutor writers = new HeldExecutor();
+    TableWriteQueue queue = new TableWriteQueue(writers, 16, Long.MAX_VALUE, 0L, WAIT_MILLIS,
+        RETAIN_MILLIS);
+
+    for (int i = 0; i < 3; ++i) {
+      submit(queue, "e0", 1);
+    }
+    writers.runAll();
+
+    verify(dm, times(3)).openWriteSession();
+  }
+
+  @Test
+  public void testClosedJobIsForgotten() throws Exception {
+    applyReturns("e0", "e1");
+    Resource resource = new Resource();
+    TableWriteQueue queue = new TableWriteQueue(null, 16, Long.MAX_VALUE, Long.MAX_VALUE,
+        WAIT_MILLIS, RETAIN_MILLIS);
+
+    TableWriteQueue.Job job = submit(queue, "e0", 1, resource);
+    job.close();
+
+    assertTrue(resource.closed);
+    assertNull(queue.getJob(job.getId()));
+  }
+
+  @Test
+  public void testUncollectedJobIsDiscardedOnRead() throws Exception {
+    applyReturns("e0", "e1");
+    Resource resource = new Resource();
+    // retained for no time at all
+    TableWriteQueue queue = new TableWriteQueue(null, 16, Long.MAX_VALUE, Long.MAX_VALUE,
+        WAIT_MILLIS, -1L);
+
+    TableWriteQueue.Job job = submit(queue, "e0", 1, resource);
+    assertTrue(job.isDone());
+
+    assertNull(queue.getJob(job.getId()));
+    assertTrue(resource.closed);
+  }
+
+  @Test
+  public void testUncollectedJobIsDiscardedBySweep() throws Exception {
+    applyReturns("e0", "e1");
+    Resource resource = new Resource();
+    TableWriteQueue queue = new TableWriteQueue(null, 16, Long.MAX_VALUE, Long.MAX_VALUE,
+        WAIT_MILLIS, -1L);
+    try {
+      submit(queue, "e0", 1, resource);
+      queue.startSweep(10L);
+      long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+      while (!resource.closed && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10L);
+      }
+      assertTrue(resource.closed);
+    } finally {
+      queue.shutdown();
+    }
+  }
+
+  @Test
+  public void testQueuedJobIsNotDone() throws Exception {
+    HeldExecutor writers = new HeldExecutor();
+    TableWriteQueue queue = new TableWriteQueue(writers, 16, Long.MAX_VALUE, Long.MAX_VALUE,
+        WAIT_MILLIS, RETAIN_MILLIS);
+
+    TableWriteQueue.Job job = submit(queue, "e0", 1);
+
+    assertFalse(job.isDone());
+    assertFalse(job.await(10L, TimeUnit.MILLISECONDS));
+    assertEquals(TableWriteQueue.State.QUEUED, job.getState());
+  }
+}
@@ -0,0 +1,96 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.odktables.entity.serialization;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.ws.rs.core.MediaType;
+
+import org.junit.Test;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.odktables.exception.BadRowListException;
+
+public class RowListStreamReaderTest {
+
+  private static final String ROW = "{\"rowId\":\"r%d\",\"rowETag\":null,\"deleted\":false}";
+
+  private static RowListStreamReader reader(String body) throws Exception {
+    return new RowListStreamReader(
+        new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),
+        MediaType.APPLICATION_JSON_TYPE);
+  }
+
+  private static int spool(String body) throws Exception {
+    try (RowListStreamReader reader = reader(body);
+        JsonSpool<Row> rows = new JsonSpool<Row>(Row.class)) {
+      reader.spoolRows(rows);
+      return rows.size();
+    }
+  }
+
+  @Test
+  public void testReadsRowsAfterFields() throws Exception {
+    String body = "{\"dataETag\":\"e\",\"deviceId\":\"d\",\"officeId\":null,\"rows\":["
+        + String.format(ROW, 1) + "," + String.format(ROW, 2) + "]}";
+    assertEquals(2, spool(body));
+  }
+
+  @Test
+  public void testReadsRowsBeforeFields() throws Exception {
+    String body = "{\"rows\":[" + String.format(ROW, 1) + "],\"dataETag\":\"e\"}";
+    RowListStreamReader reader = reader(body);
+    try {
+      assertEquals("e", reader.getDataETag());
+    } finally {
+      reader.close();
+    }
+    assertEquals(1, spool(body));
+  }
+
+  @Test(expected = BadRowListException.class)
+  public void testNotAnObject() throws Exception {
+    reader("[]");
+  }
+
+  @Test(expected = BadRowListException.class)
+  public void testTruncatedRows() throws Exception {
+    spool("{\"dataETag\":\"e\",\"deviceId\":\"d\",\"officeId\":null,\"rows\":["
+        + String.format(ROW, 1) + ",{\"rowId\":\"r2\",");
+  }
+
+  @Test(expected = BadRowListException.class)
+  public void testMalformedRow() throws Exception {
+    spool("{\"dataETag\":\"e\",\"deviceId\":\"d\",\"officeId\":null,\"rows\":["
+        + String.format(ROW, 1) + ",{\"rowId\" \"r2\"}]}");
+  }
+
+  @Test(expected = BadRowListException.class)
+  public void testTruncatedSpooledRows() throws Exception {
+    spool("{\"rows\":[" + String.format(ROW, 1) + ",");
+  }
+
+  @Test(expected = BadRowListException.class)
+  public void testMalformedSpooledRow() throws Exception {
+    spool("{\"rows\":[" + String.format(ROW, 1)
+        + ",{\"rowId\":\"r2\",\"deleted\":{\"not\":\"a boolean\"}}],\"dataETag\":\"e\"}");
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testRowsIteratedOnce() throws Exception {
+    try (RowListStreamReader reader = reader("{\"rows\":[]}")) {
+      reader.getRows();
+      reader.getRows();
+    }
+  }
+}
@@ -0,0 +1,154 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.odktables.entity.serialization;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcome;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcome.OutcomeType;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
+import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
+import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares payload size and encode/decode time of JSON and Smile for {@link RowResourceList} and
+ * {@link RowOutcomeList}. Not a unit test, so it is ignored by the build; remove the @Ignore to
+ * run it from the IDE with the defaults, or run it by hand:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=org.opendatakit.odktables.entity.serialization.SerializationBenchmark
+ * </pre>
+ *
+ * Optional arguments: number of rows (default 2000), number of columns (default 20), iterations
+ * (default 50).
+ */
+@Ignore("benchmark; run by hand")
+public class SerializationBenchmark {
+
+  @Test
+  public void testCompareJsonAndSmile() throws Exception {
+    main(new String[0]);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numRows = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+    int numColumns = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+    int iterations = (args.length > 2) ? Integer.parseInt(args[2]) : 50;
+
+    ObjectMapper json = new ObjectMapper();
+    ObjectMapper smile = SimpleSmileMessageReaderWriter.mapper;
+
+    ArrayList<RowResource> resources = new ArrayList<RowResource>();
+    ArrayList<RowOutcome> outcomes = new ArrayList<RowOutcome>();
+    for (int i = 0; i < numRows; ++i) {
+      Row row = newRow(i, numColumns);
+      RowResource resource = new RowResource(row);
+      resource.setSelfUri("https://example.org/odktables/default/tables/benchmark/ref/"
+          + UUID.randomUUID().toString() + "/rows/" + row.getRowId());
+      resources.add(resource);
+      RowOutcome outcome = new RowOutcome(row);
+      outcome.setOutcome(OutcomeType.SUCCESS);
+      outcomes.add(outcome);
+    }
+    String dataETag = UUID.randomUUID().toString();
+    RowResourceList rowResourceList = new RowResourceList(resources, dataETag,
+        "https://example.org/odktables/default/tables/benchmark", null, null, "resume", false,
+        false);
+    RowOutcomeList rowOutcomeList = new RowOutcomeList(outcomes, dataETag);
+
+    System.out.println(numRows + " rows x " + numColumns + " columns, " + iterations
+        + " iterations");
+    run("RowResourceList", rowResourceList, RowResourceList.class, json, smile, iterations);
+    run("RowOutcomeList", rowOutcomeList, RowOutcomeList.class, json, smile, iterations);
+  }
+
+  private static Row newRow(int i, int numColumns) {
+    Row row = new Row();
+    row.setRowId("uuid:" + UUID.randomUUID().toString());
+    row.setRowETag("uuid:" + UUID.randomUUID().toString());
+    row.setDataETagAtModification("uuid:" + UUID.randomUUID().toString());
+    row.setCreateUser("mailto:user" + (i % 10) + "@example.org");
+    row.setLastUpdateUser("mailto:user" + (i % 10) + "@example.org");
+    row.setRowFilterScope(new RowFilterScope(RowFilterScope.Type.DEFAULT, null));
+    row.setDeleted(false);
+    row.setFormId("benchmark");
+    row.setLocale("en_US");
+    row.setSavepointType("COMPLETE");
+    row.setSavepointTimestamp("2017-03-01T12:00:00.000000000");
+    row.setSavepointCreator("mailto:user" + (i % 10) + "@example.org");
+    ArrayList<DataKeyValue> values = new ArrayList<DataKeyValue>();
+    for (int c = 0; c < numColumns; ++c) {
+      values.add(new DataKeyValue("column_" + c, (c % 3 == 0) ? UUID.randomUUID().toString()
+          : Integer.toString(i * numColumns + c)));
+    }
+    row.setValues(values);
+    return row;
+  }
+
+  private static void run(String name, Object entity, Class<?> type, ObjectMapper json,
+      ObjectMapper smile, int iterations) throws Exception {
+    Result jsonResult = measure(entity, type, json, iterations);
+    Result smileResult = measure(entity, type, smile, iterations);
+    System.out.println(name);
+    System.out.println("  json : " + jsonResult);
+    System.out.println("  smile: " + smileResult + String.format("  (%.0f%% of json size)",
+        100.0 * smileResult.size / jsonResult.size));
+  }
+
+  private static Result measure(Object entity, Class<?> type, ObjectMapper mapper,
+      int iterations) throws Exception {
+    // warm up
+    byte[] bytes = null;
+    for (int i = 0; i < iterations; ++i) {
+      bytes = mapper.writeValueAsBytes(entity);
+      mapper.readValue(bytes, type);
+    }
+    long encode = 0;
+    long decode = 0;
+    for (int i = 0; i < iterations; ++i) {
+      long start = System.nanoTime();
+      bytes = mapper.writeValueAsBytes(entity);
+      long mid = System.nanoTime();
+      mapper.readValue(bytes, type);
+      decode += System.nanoTime() - mid;
+      encode += mid - start;
+    }
+    return new Result(bytes.length, encode / iterations, decode / iterations);
+  }
+
+  private static class Result {
+    final int size;
+    final long encodeNanos;
+    final long decodeNanos;
+
+    Result(int size, long encodeNanos, long decodeNanos) {
+      this.size = size;
+      this.encodeNanos = encodeNanos;
+      this.decodeNanos = decodeNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%,d bytes, encode %.2f ms, decode %.2f ms", size,
+          encodeNanos / 1e6, decodeNanos / 1e6);
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.odktables.relation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
+import org.opendatakit.odktables.relation.DbColumnDefinitions.DbColumnDefinitionsEntity;
+
+public class RowContentHashTest {
+
+  private RowContentHash hasher;
+
+  private static DbColumnDefinitionsEntity column(String elementKey, String elementType) {
+    DbColumnDefinitionsEntity column = mock(DbColumnDefinitionsEntity.class);
+    when(column.getElementKey()).thenReturn(elementKey);
+    when(column.getElementType()).thenReturn(elementType);
+    when(column.getArrayListChildElementKeys()).thenReturn(new ArrayList<String>());
+    when(column.isUnitOfRetention()).thenReturn(true);
+    return column;
+  }
+
+  private static Row row(DataKeyValue... values) {
+    return Row.forInsert("r1", "form", "en_US", "COMPLETE", "2017-03-01T10:00:00.000000000",
+        "mailto:testuser@gmail.com", RowFilterScope.EMPTY_ROW_FILTER,
+        new ArrayList<DataKeyValue>(Arrays.asList(values)));
+  }
+
+  @Before
+  public void setUp() {
+    List<DbColumnDefinitionsEntity> columns = new ArrayList<DbColumnDefinitionsEntity>();
+    columns.add(column("name", "string"));
+    columns.add(column("weight", "number"));
+    columns.add(column("age", "integer"));
+    hasher = new RowContentHash(columns);
+  }
+
+  @Test
+  public void testFieldOrderDoesNotMatter() {
+    String hash = hasher.hash(row(new DataKeyValue("name", "Ann"),
+        new DataKeyValue("weight", "9.8"), new DataKeyValue("age", "4")));
+    assertEquals(hash, hasher.hash(row(new DataKeyValue("age", "4"),
+        new DataKeyValue("name", "Ann"), new DataKeyValue("weight", "9.8"))));
+  }
+
+  @Test
+  public void testValuesDoNotRunTogether() {
+    assertNotEquals(
+        hasher.hash(row(new DataKeyValue("name", "Ann4"), new DataKeyValue("age", ""))),
+        hasher.hash(row(new DataKeyValue("name", "Ann"), new DataKeyValue("age", "4"))));
+  }
+
+  @Test
+  public void testNumbersAreCanonical() {
+    String hash = hasher.hash(row(new DataKeyValue("weight", "9.8")));
+    assertEquals(hash, hasher.hash(row(new DataKeyValue("weight", "9.80"))));
+    assertEquals(hash, hasher.hash(row(new DataKeyValue("weight", "98e-1"))));
+    assertNotEquals(hash, hasher.hash(row(new DataKeyValue("weight", "9.81"))));
+
+    assertEquals(hasher.hash(row(new DataKeyValue("weight", "0"))),
+        hasher.hash(row(new DataKeyValue("weight", "-0.0"))));
+    assertEquals(hasher.hash(row(new DataKeyValue("weight", "Infinity"))),
+        hasher.hash(row(new DataKeyValue("weight", "+Infinity"))));
+  }
+
+  @Test
+  public void testOnlyNumberColumnsAreCanonical() {
+    assertNotEquals(hasher.hash(row(new DataKeyValue("name", "9.8"))),
+        hasher.hash(row(new DataKeyValue("name", "9.80"))));
+    assertNotEquals(hasher.hash(row(new DataKeyValue("age", "4"))),
+        hasher.hash(row(new DataKeyValue("age", "4.0"))));
+  }
+
+  @Test
+  public void testRoundingDifferenceIsAChange() {
+    double d = 9.8;
+    assertNotEquals(hasher.hash(row(new DataKeyValue("weight", Double.toString(d)))),
+        hasher.hash(row(new DataKeyValue("weight", Double.toString(Math.nextUp(d))))));
+  }
+
+  @Test
+  public void testNullIsNotEmpty() {
+    String nullName = hasher.hash(row(new DataKeyValue("name", null)));
+    assertNotEquals(nullName, hasher.hash(row(new DataKeyValue("name", ""))));
+    // a column left out of the row is null
+    assertEquals(nullName, hasher.hash(row()));
+  }
+
+  @Test
+  public void testMetadataIsHashed() {
+    Row r = row(new DataKeyValue("name", "Ann"));
+    String hash = hasher.hash(r);
+    r.setDeleted(true);
+    assertNotEquals(hash, hasher.hash(r));
+  }
+}
@@ -0,0 +1,143 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.security.spring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.opendatakit.persistence.CommonFieldsBase;
+import org.opendatakit.persistence.Datastore;
+import org.opendatakit.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.security.User;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Eviction order and concurrency of the active users cache of {@link UserServiceImpl}.
+ */
+public class UserServiceImplTest {
+
+  private Datastore datastore;
+  private UserServiceImpl userService;
+
+  @Before
+  public void setUp() throws Exception {
+    datastore = Mockito.mock(Datastore.class);
+    // no registered users: every user is built from its uri
+    Mockito.doThrow(new ODKEntityNotFoundException()).when(datastore).getEntity(
+        Matchers.any(CommonFieldsBase.class), Matchers.anyString(), Matchers.any(User.class));
+    userService = new UserServiceImpl();
+    userService.setDatastore(datastore);
+    // loading a user also caches the (never evicted) daemon user
+    userService.setMaxActiveUsers(3);
+  }
+
+  @After
+  public void tearDown() {
+    SecurityContextHolder.clearContext();
+  }
+
+  private User login(String uriUser) {
+    SecurityContextHolder.getContext()
+        .setAuthentication(new TestingAuthenticationToken(uriUser, null, "ROLE_USER"));
+    return userService.getCurrentUser();
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    login("uid:a");
+    login("uid:b");
+    // touch a, so that b is now the least recently used
+    login("uid:a");
+    login("uid:c");
+
+    assertEquals(3, userService.getActiveUserCount());
+    assertTrue(userService.activeUsers.containsKey("uid:a"));
+    assertFalse(userService.activeUsers.containsKey("uid:b"));
+    assertTrue(userService.activeUsers.containsKey("uid:c"));
+  }
+
+  @Test
+  public void testNewestEntryIsKept() {
+    for (int i = 0; i < 10; ++i) {
+      String uriUser = "uid:user" + i;
+      User user = login(uriUser);
+      assertEquals(uriUser, user.getUriUser());
+      assertTrue(userService.activeUsers.containsKey(uriUser));
+    }
+    assertEquals(3, userService.getActiveUserCount());
+  }
+
+  @Test
+  public void testDaemonUserIsNotEvicted() {
+    userService.getDaemonAccountUser();
+    login("uid:a");
+    login("uid:b");
+    login("uid:c");
+
+    assertTrue(userService.activeUsers.containsKey(User.DAEMON_USER));
+    assertFalse(userService.activeUsers.containsKey("uid:a"));
+    assertTrue(userService.activeUsers.containsKey("uid:b"));
+    assertTrue(userService.activeUsers.containsKey("uid:c"));
+    assertEquals(3, userService.getActiveUserCount());
+  }
+
+  @Test
+  public void testCachedUserIsReused() {
+    User first = login("uid:a");
+    User second = login("uid:a");
+    assertTrue(first == second);
+  }
+
+  @Test
+  public void testSlowLoadDoesNotHoldUpOtherUsers() throws Exception {
+    CountDownLatch loading = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Mockito.doAnswer(invocation -> {
+      loading.countDown();
+      release.await();
+      throw new ODKEntityNotFoundException();
+    }).when(datastore).getEntity(Matchers.any(CommonFieldsBase.class), Matchers.eq("uid:slow"),
+        Matchers.any(User.class));
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<User> slow = executor.submit(() -> login("uid:slow"));
+      assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+      // a cached user and a user not yet loaded are both served while uid:slow loads
+      login("uid:a");
+      assertEquals("uid:a", executor.submit(() -> login("uid:a")).get(5, TimeUnit.SECONDS)
+          .getUriUser());
+      assertEquals("uid:b", executor.submit(() -> login("uid:b")).get(5, TimeUnit.SECONDS)
+          .getUriUser());
+      assertFalse(slow.isDone());
+
+      release.countDown();
+      assertEquals("uid:slow", slow.get(5, TimeUnit.SECONDS).getUriUser());
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Test;
+import org.opendatakit.persistence.QueryResumePoint;
+
+public class WebCursorUtilsTest {
+
+  private static final byte[] KEY = "a shared secret".getBytes(StandardCharsets.UTF_8);
+
+  private static final QueryResumePoint CURSOR =
+      new QueryResumePoint("_LAST_UPDATE_DATE", "2017-03-01T10:00:00.000", "uuid:r1", true);
+
+  @After
+  public void tearDown() {
+    WebCursorUtils.setSigningKey(null);
+    WebCursorUtils.setAcceptUnsignedXml(false);
+  }
+
+  private static void assertSameCursor(QueryResumePoint expected, QueryResumePoint actual) {
+    assertEquals(expected.getAttributeName(), actual.getAttributeName());
+    assertEquals(expected.getValue(), actual.getValue());
+    assertEquals(expected.getUriLastReturnedValue(), actual.getUriLastReturnedValue());
+    assertEquals(expected.isForwardCursor(), actual.isForwardCursor());
+  }
+
+  /**
+   * @return the cursor with one character of its signature changed
+   */
+  private static String tamper(String cursor) {
+    int at = cursor.lastIndexOf('.') + 1;
+    char c = cursor.charAt(at);
+    return cursor.substring(0, at) + (c == 'A' ? 'B' : 'A') + cursor.substring(at + 1);
+  }
+
+  @Test
+  public void testCompactRoundTrip() {
+    String cursor = WebCursorUtils.formatCursorParameter(CURSOR);
+    assertTrue(WebCursorUtils.isCompactCursor(cursor));
+    assertSameCursor(CURSOR, WebCursorUtils.parseCursorParameter(cursor));
+
+    QueryResumePoint backward =
+        new QueryResumePoint("_LAST_UPDATE_DATE", "2017-03-01T10:00:00.000", null, false);
+    assertSameCursor(backward,
+        WebCursorUtils.parseCursorParameter(WebCursorUtils.formatCursorParameter(backward)));
+  }
+
+  @Test
+  public void testSignedCompactRoundTrip() {
+    WebCursorUtils.setSigningKey(KEY);
+    String cursor = WebCursorUtils.formatCursorParameter(CURSOR);
+    assertSameCursor(CURSOR, WebCursorUtils.parseCursorParameter(cursor));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTamperedSignatureIsRejected() {
+    WebCursorUtils.setSigningKey(KEY);
+    WebCursorUtils.parseCursorParameter(tamper(WebCursorUtils.formatCursorParameter(CURSOR)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSignatureUnderAnotherKeyIsRejected() {
+    WebCursorUtils.setSigningKey("another secret".getBytes(StandardCharsets.UTF_8));
+    String cursor = WebCursorUtils.formatCursorParameter(CURSOR);
+    WebCursorUtils.setSigningKey(KEY);
+    WebCursorUtils.parseCursorParameter(cursor);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMissingSignatureIsRejected() {
+    String unsigned = WebCursorUtils.formatCursorParameter(CURSOR);
+    WebCursorUtils.setSigningKey(KEY);
+    WebCursorUtils.parseCursorParameter(unsigned);
+  }
+
+  @Test
+  public void testXmlCursorIsAcceptedWithoutSigning() {
+    String xml = WebCursorUtils.formatXmlCursorParameter(CURSOR);
+    assertFalse(WebCursorUtils.isCompactCursor(xml));
+    assertSameCursor(CURSOR, WebCursorUtils.parseCursorParameter(xml));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testXmlCursorIsRejectedWhenSigning() {
+    WebCursorUtils.setSigningKey(KEY);
+    WebCursorUtils.parseCursorParameter(WebCursorUtils.formatXmlCursorParameter(CURSOR));
+  }
+
+  @Test
+  public void testXmlCursorIsAcceptedWhileMigrating() {
+    WebCursorUtils.setSigningKey(KEY);
+    WebCursorUtils.setAcceptUnsignedXml(true);
+    assertSameCursor(CURSOR,
+        WebCursorUtils.parseCursorParameter(WebCursorUtils.formatXmlCursorParameter(CURSOR)));
+  }
+
+  @Test
+  public void testEmptyCursorIsNull() {
+    assertNull(WebCursorUtils.parseCursorParameter(null));
+    assertNull(WebCursorUtils.parseCursorParameter(""));
+  }
+}